@@ -0,0 +1,107 @@
+package edu.cmu.cc.minisite;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput of {@link Cache} under contention, with timeline-sized values.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class CacheBenchmark {
+
+    /**
+     * Number of distinct cached timelines.
+     */
+    @Param({"1024", "65536"})
+    int keys;
+
+    private Cache cache;
+    private String[] ids;
+    private byte[] timeline;
+
+    /**
+     * Fills the cache with every key, large enough to hold them all.
+     */
+    @Setup
+    public void setUp() {
+        timeline = JsonResponses.toBytes(new TimelineFixtures().timeline());
+        cache = new Cache((long) keys * (timeline.length + 1024), 0, 16);
+        ids = new String[keys];
+        for (int i = 0; i < keys; i++) {
+            ids[i] = "user_" + i;
+            cache.putBytes(ids[i], timeline);
+        }
+    }
+
+    /**
+     * Per-thread key sequence, a xorshift generator with a fixed seed.
+     */
+    @State(Scope.Thread)
+    public static class Keys {
+
+        private int state = 0x2545F491;
+
+        int next(int bound) {
+            state ^= state << 13;
+            state ^= state >>> 17;
+            state ^= state << 5;
+            return (state & Integer.MAX_VALUE) % bound;
+        }
+    }
+
+    /**
+     * Cache hits from eight threads.
+     *
+     * @param keySequence the thread's keys
+     * @return the cached timeline
+     */
+    @Benchmark
+    @Threads(8)
+    public byte[] getHit(Keys keySequence) {
+        return cache.getBytes(ids[keySequence.next(keys)]);
+    }
+
+    /**
+     * Readers of a mixed workload.
+     *
+     * @param keySequence the thread's keys
+     * @return the cached timeline
+     */
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(6)
+    public byte[] mixedGet(Keys keySequence) {
+        return cache.getBytes(ids[keySequence.next(keys)]);
+    }
+
+    /**
+     * Writers of a mixed workload, replacing existing entries.
+     *
+     * @param keySequence the thread's keys
+     */
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(2)
+    public void mixedPut(Keys keySequence) {
+        cache.putBytes(ids[keySequence.next(keys)], timeline);
+    }
+}
@@ -0,0 +1,120 @@
+package edu.cmu.cc.minisite;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.bson.Document;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonWriter;
+
+/**
+ * Cost of turning timelines and comments into response bytes.
+ *
+ * The "baseline" benchmarks are the code paths the servlets used before, so
+ * a run shows what the current paths save.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class SerializationBenchmark {
+
+    /**
+     * Discards what is written to it.
+     */
+    private static final class NullOutputStream extends OutputStream {
+
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    }
+
+    private JsonObject timeline;
+    private Document comment;
+
+    /**
+     * Generates the payloads.
+     */
+    @Setup
+    public void setUp() {
+        TimelineFixtures fixtures = new TimelineFixtures();
+        timeline = fixtures.timeline();
+        comment = fixtures.comments().get(0);
+    }
+
+    /**
+     * Timeline rendered to a String and then encoded.
+     *
+     * @return the encoded timeline
+     */
+    @Benchmark
+    public byte[] timelineBaseline() {
+        return timeline.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Timeline streamed into a byte array, as cached by
+     * TimelineWithCacheServlet.
+     *
+     * @return the encoded timeline
+     */
+    @Benchmark
+    public byte[] timelineToBytes() {
+        return JsonResponses.toBytes(timeline);
+    }
+
+    /**
+     * Comment rendered by the driver and reparsed by Gson.
+     *
+     * @return the comment as a tree
+     */
+    @Benchmark
+    public JsonObject commentBaseline() {
+        return JsonParser.parseString(comment.toJson()).getAsJsonObject();
+    }
+
+    /**
+     * Comment converted directly to a tree, as for timelines.
+     *
+     * @return the comment as a tree
+     */
+    @Benchmark
+    public JsonObject commentToTree() {
+        return DocumentJson.toJsonObject(comment);
+    }
+
+    /**
+     * Comment written directly to a JSON stream, as for /task3.
+     *
+     * @param blackhole keeps the writer alive
+     * @throws IOException never, the stream discards its input
+     */
+    @Benchmark
+    public void commentToStream(Blackhole blackhole) throws IOException {
+        JsonWriter writer = JsonResponses.newWriter(new NullOutputStream());
+        DocumentJson.write(writer, comment);
+        writer.flush();
+        blackhole.consume(writer);
+    }
+}
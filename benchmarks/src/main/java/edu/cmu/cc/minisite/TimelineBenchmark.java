@@ -0,0 +1,108 @@
+package edu.cmu.cc.minisite;
+
+import java.sql.Connection;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import org.bson.Document;
+import org.neo4j.driver.v1.Driver;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.mongodb.client.MongoCollection;
+
+/**
+ * {@link TimelineServlet#getTimeline} over in-memory stub backends.
+ *
+ * Each stub can sleep to stand in for a network round trip. With no latency
+ * the benchmark measures the assembly overhead; with latency it shows that a
+ * timeline takes about as long as its slowest path.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class TimelineBenchmark {
+
+    /**
+     * Simulated latency of every backend call.
+     */
+    @Param({"0", "500"})
+    long backendLatencyMicros;
+
+    private TimelineServlet servlet;
+
+    /**
+     * Wires the servlet to the stub backends.
+     */
+    @Setup
+    public void setUp() {
+        TimelineFixtures fixtures = new TimelineFixtures();
+        long latencyNanos = TimeUnit.MICROSECONDS.toNanos(backendLatencyMicros);
+
+        ProfileServlet profile = new ProfileServlet((Connection) null) {
+            @Override
+            public String getProfile(String name) {
+                pause(latencyNanos);
+                return fixtures.profileUrl(name);
+            }
+        };
+        FollowerServlet followers = new FollowerServlet((Driver) null) {
+            @Override
+            public SocialGraph getSocialGraph(String userId) {
+                pause(latencyNanos);
+                return fixtures.socialGraph();
+            }
+        };
+        HomepageServlet homepage = new HomepageServlet((MongoCollection<Document>) null) {
+            @Override
+            public JsonArray getTopCommentsFromFollowees(List<String> followeeIds, int top) {
+                pause(latencyNanos);
+                return fixtures.topComments();
+            }
+        };
+        servlet = new TimelineServlet(profile, followers, homepage);
+    }
+
+    /**
+     * One timeline request at a time.
+     *
+     * @return the timeline
+     */
+    @Benchmark
+    public JsonObject timeline() {
+        return servlet.getTimeline("benchmark");
+    }
+
+    /**
+     * Sixteen concurrent timeline requests, encoded as for the response.
+     *
+     * @return the encoded timeline
+     */
+    @Benchmark
+    @Threads(16)
+    public byte[] concurrentTimelineBytes() {
+        return JsonResponses.toBytes(servlet.getTimeline("benchmark"));
+    }
+
+    private static void pause(long nanos) {
+        if (nanos > 0) {
+            LockSupport.parkNanos(nanos);
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package edu.cmu.cc.minisite;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.bson.Document;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
+/**
+ * Realistic, reproducible benchmark data: a user with 300 followers, 200
+ * followees and 30 top comments, each with a parent and a grandparent.
+ *
+ * The data is generated from a fixed seed, so every run measures the same
+ * payload.
+ */
+final class TimelineFixtures {
+
+    /**
+     * Number of followers, just above the top-user threshold.
+     */
+    static final int FOLLOWERS = 301;
+    /**
+     * Number of followees.
+     */
+    static final int FOLLOWEES = 200;
+
+    private final Random random = new Random(42);
+    private final JsonArray followers = new JsonArray();
+    private final List<String> followees = new ArrayList<>();
+    private final List<Document> comments = new ArrayList<>();
+    private final List<Document> parents = new ArrayList<>();
+    private final List<Document> grandParents = new ArrayList<>();
+
+    /**
+     * Generates the data.
+     */
+    TimelineFixtures() {
+        List<String> names = new ArrayList<>();
+        for (int i = 0; i < FOLLOWERS; i++) {
+            names.add(randomName());
+        }
+        Collections.sort(names);
+        for (String name : names) {
+            JsonObject follower = new JsonObject();
+            follower.addProperty("profile", profileUrl(name));
+            follower.addProperty("name", name);
+            followers.add(follower);
+        }
+        for (int i = 0; i < FOLLOWEES; i++) {
+            followees.add(randomName());
+        }
+        Collections.sort(followees);
+        for (int i = 0; i < TimelineFanOut.TOP_COMMENTS; i++) {
+            Document grandParent = comment("t3_" + i, "");
+            Document parent = comment("t1_p" + i, grandParent.getString("cid"));
+            grandParents.add(grandParent);
+            parents.add(parent);
+            comments.add(comment("t1_c" + i, parent.getString("cid")));
+        }
+    }
+
+    /**
+     * @param name a user name
+     * @return the user's profile image URL
+     */
+    String profileUrl(String name) {
+        return "https://cc-minisite.s3.amazonaws.com/profiles/" + name + ".jpg";
+    }
+
+    /**
+     * @return followers as FollowerServlet returns them
+     */
+    JsonArray followers() {
+        return followers;
+    }
+
+    /**
+     * @return the social graph of the benchmark user
+     */
+    FollowerServlet.SocialGraph socialGraph() {
+        return new FollowerServlet.SocialGraph(followers, followees);
+    }
+
+    /**
+     * @return the top comments as MongoDB returns them
+     */
+    List<Document> comments() {
+        return comments;
+    }
+
+    /**
+     * Converts the comments the way HomepageServlet does, with the parent
+     * and grandparent embedded.
+     *
+     * @return the top comments as HomepageServlet returns them
+     */
+    JsonArray topComments() {
+        JsonArray result = new JsonArray();
+        for (int i = 0; i < comments.size(); i++) {
+            JsonObject comment = DocumentJson.toJsonObject(comments.get(i));
+            comment.add("parent", DocumentJson.toJsonObject(parents.get(i)));
+            comment.add("grand_parent", DocumentJson.toJsonObject(grandParents.get(i)));
+            result.add(comment);
+        }
+        return result;
+    }
+
+    /**
+     * @return a complete timeline as TimelineFanOut builds it
+     */
+    JsonObject timeline() {
+        JsonObject timeline = new JsonObject();
+        timeline.add("followers", followers);
+        timeline.add("comments", topComments());
+        timeline.addProperty("profile", profileUrl("benchmark"));
+        timeline.addProperty("name", "benchmark");
+        return timeline;
+    }
+
+    private Document comment(String cid, String parentId) {
+        return new Document("cid", cid)
+                .append("parent_id", parentId)
+                .append("uid", followees.get(random.nextInt(followees.size())))
+                .append("timestamp", 1420070400L + random.nextInt(31536000))
+                .append("ups", random.nextInt(5000))
+                .append("downs", random.nextInt(100))
+                .append("subreddit", "cloudcomputing")
+                .append("content", randomText(80 + random.nextInt(400)));
+    }
+
+    private String randomName() {
+        return "user_" + Integer.toString(random.nextInt(Integer.MAX_VALUE), 36);
+    }
+
+    private String randomText(int length) {
+        StringBuilder text = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            text.append(random.nextInt(6) == 0 ? ' ' : (char) ('a' + random.nextInt(26)));
+        }
+        return text.toString();
+    }
+}
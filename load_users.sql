@@ -11,8 +11,8 @@
      `profile_photo_url` varchar(140) default null
  );
 
- ## Step 3 create an index
- create index user_index ON users(username);
+ ## Step 3 create an index covering the login and profile queries
+ create index user_login ON users(username, pwd, profile_photo_url);
 
  ## Step 4 load data to the users table
  load data local infile 'users.csv' into table users columns terminated by ',' LINES TERMINATED BY '\n';
\ No newline at end of file
@@ -0,0 +1,305 @@
+package edu.cmu.cc.minisite;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.log4j.Logger;
+import org.bson.Document;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.stream.JsonWriter;
+import com.mongodb.client.MongoCursor;
+
+/**
+ * Batch variants of tasks 1 to 3, for clients that render many users at
+ * once. Each path takes the comma-separated user ids in "ids" and answers
+ * with one JSON object keyed by user id, read with one query per backend
+ * instead of one request and one query per user:
+ *
+ * /batch/profiles answers {"profiles": {id: url...}}, "#" for unknown users.
+ *
+ * /batch/followers answers {"followers": {id: [{profile, name}...]...}}, []
+ * for unknown users.
+ *
+ * /batch/comments streams {"comments": {id: [comment...]...}}, each array
+ * sorted as in task 3.
+ *
+ * Every path reports the users it could not read the same way: they follow
+ * the object as "failed": [id...], with an "error", and are absent from it
+ * or, for comments read half way, only partly there. A comments query that
+ * fails before its first comment fails the request with 500.
+ *
+ * Settings: BATCH_MAX_IDS bounds the ids of a request, more are rejected
+ * with 400.
+ */
+public class BatchServlet extends HttpServlet {
+
+    /**
+     * Logger.
+     */
+    private static final Logger LOG = Logging.getLogger(BatchServlet.class);
+
+    /**
+     * Maximum number of ids of a request.
+     */
+    static final int MAX_IDS = Config.getInt("BATCH_MAX_IDS", 100);
+    /**
+     * Error of a request with more than {@link #MAX_IDS} ids.
+     */
+    static final String TOO_MANY_IDS = "At most " + MAX_IDS + " ids are allowed.";
+    /**
+     * Error of a response with failed users.
+     */
+    static final String FAILED = "Internal server error.";
+
+    /**
+     * Path of the batch profiles.
+     */
+    static final String PROFILES_PATH = "/batch/profiles";
+    /**
+     * Path of the batch followers.
+     */
+    static final String FOLLOWERS_PATH = "/batch/followers";
+    /**
+     * Path of the batch comments.
+     */
+    static final String COMMENTS_PATH = "/batch/comments";
+
+    private ProfileServlet profileServlet;
+    private FollowerServlet followerServlet;
+    private HomepageServlet homepageServlet;
+
+    /**
+     * The constructor, the backends are created in {@link #init()}.
+     */
+    public BatchServlet() {
+    }
+
+    /**
+     * Constructor for running the servlet over given backends
+     *
+     * @param profileServlet MySQL backend
+     * @param followerServlet Neo4j backend
+     * @param homepageServlet MongoDB backend
+     */
+    BatchServlet(ProfileServlet profileServlet, FollowerServlet followerServlet,
+            HomepageServlet homepageServlet) {
+        this.profileServlet = profileServlet;
+        this.followerServlet = followerServlet;
+        this.homepageServlet = homepageServlet;
+    }
+
+    /**
+     * Initializes servlet instances.
+     *
+     * @throws ServletException if an initialization error occurs.
+     */
+    @Override
+    public void init() throws ServletException {
+        super.init();
+        try {
+            profileServlet = new ProfileServlet();
+            followerServlet = new FollowerServlet();
+            homepageServlet = new HomepageServlet();
+        } catch (SQLException | ClassNotFoundException e) {
+            LOG.error("Initialization failed", e);
+            throw new ServletException("Initialization failed: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Cleans up resources by closing connections and servlet instances.
+     */
+    @Override
+    public void destroy() {
+        super.destroy();
+        if (profileServlet != null) {
+            profileServlet.closeConnection();
+        }
+        if (followerServlet != null) {
+            followerServlet.closeDriver();
+        }
+        if (homepageServlet != null) {
+            homepageServlet.closeCollection();
+        }
+    }
+
+    /**
+     * Method to get the user ids from the request and answer the path's
+     * batch.
+     *
+     * @param request the request object that is passed to the servlet
+     * @param response the response object that the servlet uses to return the
+     * headers to the client
+     * @throws IOException if an input or output error occurs
+     * @throws ServletException if the request for the HEAD could not be handled
+     */
+    @Override
+    protected void doGet(final HttpServletRequest request,
+            final HttpServletResponse response) throws ServletException, IOException {
+        List<String> ids;
+        try {
+            ids = parseIds(request.getParameter("ids"));
+        } catch (IllegalArgumentException e) {
+            response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+            JsonResponses.write(response, JsonResponses.error(e.getMessage()));
+            return;
+        }
+        switch (request.getServletPath()) {
+            case PROFILES_PATH:
+                JsonResponses.write(response, getProfiles(ids));
+                break;
+            case FOLLOWERS_PATH:
+                JsonResponses.write(response, getFollowers(ids));
+                break;
+            case COMMENTS_PATH:
+                MongoCursor<Document> cursor;
+                try {
+                    cursor = findComments(ids);
+                } catch (Exception e) {
+                    LOG.error("Failed to get the comments of " + ids.size() + " users", e);
+                    response.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+                    JsonResponses.write(response, JsonResponses.error("Internal server error."));
+                    return;
+                }
+                try (JsonWriter writer = JsonResponses.start(response)) {
+                    writeComments(writer, cursor, ids);
+                }
+                break;
+            default:
+                response.sendError(HttpServletResponse.SC_NOT_FOUND);
+        }
+    }
+
+    /**
+     * Parses the user ids of a request.
+     *
+     * @param ids comma-separated user ids, may be null
+     * @return the distinct non-empty ids, in request order
+     * @throws IllegalArgumentException if there are more than {@link #MAX_IDS}
+     */
+    static List<String> parseIds(String ids) {
+        Set<String> parsed = new LinkedHashSet<>();
+        if (ids != null) {
+            for (String id : ids.split(",")) {
+                if (!id.isEmpty()) {
+                    parsed.add(id);
+                }
+            }
+        }
+        if (parsed.size() > MAX_IDS) {
+            throw new IllegalArgumentException(TOO_MANY_IDS);
+        }
+        return new ArrayList<>(parsed);
+    }
+
+    /**
+     * @param ids user ids
+     * @return the profiles of the users as {"profiles": {id: url...}}, with
+     *         the users whose query failed as "failed"
+     */
+    JsonObject getProfiles(List<String> ids) {
+        JsonObject profiles = new JsonObject();
+        List<String> failed = new ArrayList<>();
+        for (Map.Entry<String, String> profile : profileServlet.getProfiles(ids).entrySet()) {
+            if (profile.getValue() == null) {
+                failed.add(profile.getKey());
+            } else {
+                profiles.addProperty(profile.getKey(), profile.getValue());
+            }
+        }
+        JsonObject result = new JsonObject();
+        result.add("profiles", profiles);
+        addFailed(result, failed);
+        return result;
+    }
+
+    /**
+     * @param ids user ids
+     * @return the followers of the users as {"followers": {id: [...]...}},
+     *         with the users whose query failed as "failed"
+     */
+    JsonObject getFollowers(List<String> ids) {
+        JsonObject followers = new JsonObject();
+        List<String> failed = new ArrayList<>();
+        for (Map.Entry<String, JsonArray> user : followerServlet.getFollowers(ids).entrySet()) {
+            if (user.getValue() == null) {
+                failed.add(user.getKey());
+            } else {
+                followers.add(user.getKey(), user.getValue());
+            }
+        }
+        JsonObject result = new JsonObject();
+        result.add("followers", followers);
+        addFailed(result, failed);
+        return result;
+    }
+
+    /**
+     * Adds the failed users as "failed": [id...], with an "error".
+     *
+     * @param result the response
+     * @param failed ids of the failed users, nothing is added if empty
+     */
+    private static void addFailed(JsonObject result, List<String> failed) {
+        if (failed.isEmpty()) {
+            return;
+        }
+        JsonArray ids = new JsonArray();
+        failed.forEach(ids::add);
+        result.addProperty("error", FAILED);
+        result.add("failed", ids);
+    }
+
+    /**
+     * Queries the comments of the users, see {@link #writeComments}.
+     *
+     * @param ids user ids
+     * @return cursor over the comments, null if there are no ids
+     */
+    MongoCursor<Document> findComments(List<String> ids) {
+        return ids.isEmpty() ? null : homepageServlet.findUsersComments(ids);
+    }
+
+    /**
+     * Streams the comments of the users as {"comments": {id: [...]...}}. If
+     * the query fails half way, the users whose comments could not all be
+     * read follow as "failed": [id...], with an "error".
+     *
+     * @param writer the JSON stream
+     * @param cursor the comments of {@link #findComments}
+     * @param ids user ids
+     * @throws IOException if the stream cannot be written
+     */
+    void writeComments(JsonWriter writer, MongoCursor<Document> cursor, List<String> ids)
+            throws IOException {
+        writer.beginObject().name("comments");
+        List<String> failed = Collections.emptyList();
+        if (cursor == null) {
+            writer.beginObject().endObject();
+        } else {
+            failed = homepageServlet.writeUsersComments(writer, cursor, ids);
+        }
+        if (!failed.isEmpty()) {
+            writer.name("error").value(FAILED);
+            writer.name("failed").beginArray();
+            for (String id : failed) {
+                writer.value(id);
+            }
+            writer.endArray();
+        }
+        writer.endObject();
+    }
+}
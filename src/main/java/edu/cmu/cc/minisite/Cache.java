@@ -1,17 +1,175 @@
 package edu.cmu.cc.minisite;
 
-import java.util.HashMap;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.function.LongSupplier;
+
+import org.apache.log4j.Logger;
 
 /*
  * Wrapper class for cache.
+ *
+ * The cache is split into independently locked segments, so concurrent
+ * requests rarely contend on the same lock. Each segment is a segmented LRU:
+ * new entries start in a probation area and move to a protected area on their
+ * second hit, so a burst of one-off requests cannot flush the entries that are
+ * requested over and over again. The total weight of the cache, the bytes
+ * held by the cached keys and JSON values, is bounded, and entries may expire
+ * after a time to live.
+ *
+ * Values are held UTF-8 encoded, so {@link #getBytes} can hand a hit straight
+ * to the response without going through a String. A caller that needs the
+ * value parsed reads it with {@link #getDecoded}, which keeps the parsed
+ * value with the entry, so it is parsed once per entry instead of once per
+ * hit.
+ *
+ * Entries can be invalidated when their source data changes. A reader that
+ * builds a value from the backends takes the key's {@link #epoch} first and
+ * puts the value with {@link #putBytesIfUnchanged}, so a value built from
+ * data older than an invalidation is never cached.
+ *
+ * An optional second tier, see {@link CacheTier}, is shared with other nodes
+ * or processes. A miss is looked up there and promoted into this cache;
+ * puts and invalidations are written through. Entries carry their wall clock
+ * expiry into the second tier, so a promoted entry expires when the original
+ * would have.
+ *
+ * The entries can be saved to a {@link CacheSnapshot} and a saved snapshot
+ * loaded into a new cache, which then serves its entries on demand until
+ * they are replaced.
+ *
+ * Settings: CACHE_MAX_BYTES, CACHE_TTL_SECONDS (0 means no expiry),
+ * CACHE_SEGMENTS and CACHE_L2.
  */
 public class Cache {
 
+    /**
+     * Logger.
+     */
+    private static final Logger LOG = Logging.getLogger(Cache.class);
+
+    /**
+     * Estimated bytes of bookkeeping per entry, on top of its key and value.
+     */
+    static final int ENTRY_OVERHEAD = 96;
+    /**
+     * Estimated heap bytes of a decoded value per byte of its encoding.
+     */
+    static final int DECODED_WEIGHT_FACTOR = 3;
+    /**
+     * Share of a segment's weight that is reserved for protected entries.
+     */
+    private static final double PROTECTED_RATIO = 0.8;
+
     /**
      * Internal cache implementation.
      */
-    Map<String, String> internalCache = new HashMap<>();
+    private final Segment[] segments;
+    private final long defaultTtlNanos;
+    private final LongSupplier ticker;
+    /**
+     * Shared second tier, null for none or once closed.
+     */
+    private volatile CacheTier secondTier;
+    /**
+     * Snapshot loaded at startup, null once drained or if none was loaded.
+     */
+    private volatile CacheSnapshot snapshot;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder expirations = new LongAdder();
+    private final LongAdder invalidations = new LongAdder();
+    private final LongAdder secondTierHits = new LongAdder();
+    private final LongAdder snapshotHits = new LongAdder();
+
+    /**
+     * Creates a cache sized by the CACHE_MAX_BYTES, CACHE_TTL_SECONDS and
+     * CACHE_SEGMENTS settings, over the second tier selected by CACHE_L2.
+     */
+    public Cache() {
+        this(Config.getLong("CACHE_MAX_BYTES", 256L * 1024 * 1024),
+                TimeUnit.SECONDS.toMillis(Config.getLong("CACHE_TTL_SECONDS", 0)),
+                Config.getInt("CACHE_SEGMENTS", 16), System::nanoTime, CacheTier.fromConfig());
+    }
+
+    /**
+     * Creates a cache of one kind of entity, sized by the NAME_CACHE_MAX_BYTES
+     * and NAME_CACHE_TTL_SECONDS settings, without a second tier. A maximum
+     * of 0 bytes turns it off.
+     *
+     * @param name prefix of the settings, such as "PROFILE"
+     * @param maxBytes default maximum size in bytes
+     * @param ttlSeconds default time to live in seconds, 0 for no expiry
+     * @return the cache
+     */
+    static Cache fromConfig(String name, long maxBytes, long ttlSeconds) {
+        return new Cache(Config.getLong(name + "_CACHE_MAX_BYTES", maxBytes),
+                TimeUnit.SECONDS.toMillis(Config.getLong(name + "_CACHE_TTL_SECONDS", ttlSeconds)),
+                Config.getInt("CACHE_SEGMENTS", 16));
+    }
+
+    /**
+     * Creates a cache.
+     *
+     * @param maxWeight maximum estimated size of the cache in bytes
+     * @param defaultTtlMillis time to live of entries put without one, 0 for
+     * no expiry
+     * @param concurrency number of segments, rounded up to a power of two
+     */
+    public Cache(long maxWeight, long defaultTtlMillis, int concurrency) {
+        this(maxWeight, defaultTtlMillis, concurrency, System::nanoTime);
+    }
+
+    /**
+     * Creates a cache with the given clock, for tests.
+     *
+     * @param maxWeight maximum estimated size of the cache in bytes
+     * @param defaultTtlMillis time to live of entries put without one, 0 for
+     * no expiry
+     * @param concurrency number of segments, rounded up to a power of two
+     * @param ticker source of nanosecond timestamps
+     */
+    Cache(long maxWeight, long defaultTtlMillis, int concurrency, LongSupplier ticker) {
+        this(maxWeight, defaultTtlMillis, concurrency, ticker, null);
+    }
+
+    /**
+     * Creates a cache over a second tier.
+     *
+     * @param maxWeight maximum estimated size of the cache in bytes
+     * @param defaultTtlMillis time to live of entries put without one, 0 for
+     * no expiry
+     * @param concurrency number of segments, rounded up to a power of two
+     * @param ticker source of nanosecond timestamps
+     * @param secondTier shared second tier, null for none
+     */
+    Cache(long maxWeight, long defaultTtlMillis, int concurrency, LongSupplier ticker,
+            CacheTier secondTier) {
+        int count = 1;
+        while (count < concurrency) {
+            count <<= 1;
+        }
+        segments = new Segment[count];
+        for (int i = 0; i < count; i++) {
+            segments[i] = new Segment(maxWeight / count);
+        }
+        this.defaultTtlNanos = TimeUnit.MILLISECONDS.toNanos(defaultTtlMillis);
+        this.ticker = ticker;
+        this.secondTier = secondTier;
+    }
 
     /**
      * Returns the value to which the specified key is mapped,
@@ -21,8 +179,101 @@ public class Cache {
      * @return the value to which the specified key is mapped, or
      *         null if this cache contains no mapping for the key
      */
-    public synchronized String get(String key) {
-        return internalCache.get(key);
+    public String get(String key) {
+        byte[] value = getBytes(key);
+        return value == null ? null : new String(value, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Returns the UTF-8 encoded value to which the specified key is mapped,
+     * or null if this cache contains no mapping for the key.
+     *
+     * @param key the key whose associated value is to be returned
+     * @return the encoded value, must not be modified
+     */
+    public byte[] getBytes(String key) {
+        Node entry = lookup(key);
+        return entry == null ? null : entry.value;
+    }
+
+    /**
+     * Returns the value to which the specified key is mapped, decoded, or
+     * null if this cache contains no mapping for the key. The decoded value
+     * is kept with the entry and returned by the next hits of the entry
+     * without decoding it again, until the entry is replaced, so it is
+     * shared by every caller and must not be modified. It counts towards the
+     * weight of the cache.
+     *
+     * @param key the key whose associated value is to be returned
+     * @param type type of the decoded value
+     * @param decoder decodes a UTF-8 encoded value
+     * @return the decoded value, or null
+     */
+    public <T> T getDecoded(String key, Class<T> type, Function<byte[], ? extends T> decoder) {
+        Node entry = lookup(key);
+        if (entry == null) {
+            return null;
+        }
+        Object decoded = entry.decoded;
+        if (type.isInstance(decoded)) {
+            return type.cast(decoded);
+        }
+        T value = decoder.apply(entry.value);
+        segmentFor(key).attach(key, entry, value, ticker.getAsLong());
+        return value;
+    }
+
+    /**
+     * Looks a key up in this cache, then in the snapshot and the second tier.
+     *
+     * @return the entry, or null
+     */
+    private Node lookup(String key) {
+        long now = ticker.getAsLong();
+        Node entry = segmentFor(key).get(key, now);
+        CacheSnapshot loaded = snapshot;
+        if (entry == null && loaded != null) {
+            entry = promote(loaded, key, now);
+            if (entry != null) {
+                snapshotHits.increment();
+            } else if (loaded.remaining() == 0) {
+                snapshot = null;
+            }
+        }
+        CacheTier tier = secondTier;
+        if (entry == null && tier != null) {
+            entry = promote(tier, key, now);
+            if (entry != null) {
+                secondTierHits.increment();
+            }
+        }
+        if (entry == null) {
+            misses.increment();
+        } else {
+            hits.increment();
+        }
+        return entry;
+    }
+
+    /**
+     * Tells whether the key is cached, without counting as a lookup or
+     * refreshing the entry.
+     *
+     * @param key the key
+     * @return true if the key is mapped to a value that has not expired
+     */
+    public boolean contains(String key) {
+        return segmentFor(key).contains(key, ticker.getAsLong());
+    }
+
+    /**
+     * Puts key-value pair in the cache, with the default time to live.
+     *
+     * @param key   key with which the specified value is to be associated
+     * @param value value to be associated with the specified key
+     */
+    public void put(String key, String value) {
+        putBytes(key, value.getBytes(StandardCharsets.UTF_8));
     }
 
     /**
@@ -30,8 +281,558 @@ public class Cache {
      *
      * @param key   key with which the specified value is to be associated
      * @param value value to be associated with the specified key
+     * @param ttlMillis time to live of the entry, 0 for no expiry
+     */
+    public void put(String key, String value, long ttlMillis) {
+        putBytes(key, value.getBytes(StandardCharsets.UTF_8), ttlMillis);
+    }
+
+    /**
+     * Puts a UTF-8 encoded value in the cache, with the default time to live.
+     *
+     * @param key   key with which the specified value is to be associated
+     * @param value encoded value, must not be modified afterwards
+     */
+    public void putBytes(String key, byte[] value) {
+        putWithTtl(key, value, defaultTtlNanos);
+    }
+
+    /**
+     * Puts a UTF-8 encoded value in the cache.
+     *
+     * @param key   key with which the specified value is to be associated
+     * @param value encoded value, must not be modified afterwards
+     * @param ttlMillis time to live of the entry, 0 for no expiry
+     */
+    public void putBytes(String key, byte[] value, long ttlMillis) {
+        putWithTtl(key, value, TimeUnit.MILLISECONDS.toNanos(ttlMillis));
+    }
+
+    /**
+     * Puts a UTF-8 encoded value in the cache unless the key was invalidated
+     * since the given epoch was read.
+     *
+     * @param key   key with which the specified value is to be associated
+     * @param value encoded value, must not be modified afterwards
+     * @param ttlMillis time to live of the entry, 0 for no expiry
+     * @param epoch the key's {@link #epoch} before the value was built
+     * @return false if the value was not cached because the key was
+     *         invalidated in the meantime
+     */
+    public boolean putBytesIfUnchanged(String key, byte[] value, long ttlMillis, long epoch) {
+        long ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+        return putUnlessInvalidated(key, value, ttlNanos, epoch);
+    }
+
+    /**
+     * Puts key-value pair in the cache, with the default time to live,
+     * unless the key was invalidated since the given epoch was read.
+     *
+     * @param key   key with which the specified value is to be associated
+     * @param value value to be associated with the specified key
+     * @param epoch the key's {@link #epoch} before the value was built
+     * @return false if the value was not cached because the key was
+     *         invalidated in the meantime
+     */
+    public boolean putIfUnchanged(String key, String value, long epoch) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        return putUnlessInvalidated(key, bytes, defaultTtlNanos, epoch);
+    }
+
+    private boolean putUnlessInvalidated(String key, byte[] value, long ttlNanos, long epoch) {
+        long now = ticker.getAsLong();
+        long expiresAt = ttlNanos > 0 ? now + ttlNanos : 0;
+        if (!segmentFor(key).putIfEpoch(key, value, weigh(key, value), expiresAt, now, epoch)) {
+            return false;
+        }
+        forgetSnapshot(key);
+        putInSecondTier(key, value, ttlNanos);
+        return true;
+    }
+
+    /**
+     * Returns a counter that changes whenever the key is invalidated. It is
+     * shared by all keys of a segment, so it may also change when another
+     * key is invalidated, which only costs a skipped put.
+     *
+     * @param key the key
+     * @return the current invalidation epoch of the key
+     */
+    public long epoch(String key) {
+        return segmentFor(key).epoch();
+    }
+
+    /**
+     * Closes the second tier, which this cache stops using; its own entries
+     * are still served.
+     */
+    public void closeSecondTier() {
+        CacheTier tier = secondTier;
+        secondTier = null;
+        if (tier != null) {
+            tier.close();
+        }
+    }
+
+    /**
+     * Removes the key, and makes puts of values built before now fail.
+     *
+     * @param key the key to invalidate
+     */
+    public void invalidate(String key) {
+        if (segmentFor(key).invalidate(key)) {
+            invalidations.increment();
+        }
+        forgetSnapshot(key);
+        CacheTier tier = secondTier;
+        if (tier != null) {
+            try {
+                tier.invalidate(key);
+            } catch (RuntimeException e) {
+                LOG.warn("Failed to invalidate " + key + " in " + tier, e);
+            }
+        }
+    }
+
+    private void putWithTtl(String key, byte[] value, long ttlNanos) {
+        long now = ticker.getAsLong();
+        long expiresAt = ttlNanos > 0 ? now + ttlNanos : 0;
+        segmentFor(key).put(key, value, weigh(key, value), expiresAt, now);
+        forgetSnapshot(key);
+        putInSecondTier(key, value, ttlNanos);
+    }
+
+    /**
+     * Looks a key up in the second tier or the snapshot and promotes a hit
+     * into this cache, unless the key is put or invalidated meanwhile.
+     *
+     * @return the entry, or null
+     */
+    private Node promote(CacheTier tier, String key, long now) {
+        Segment segment = segmentFor(key);
+        long epoch = segment.epoch();
+        byte[] stored;
+        try {
+            stored = tier.get(key);
+        } catch (RuntimeException e) {
+            LOG.warn("Failed to read " + key + " from " + tier, e);
+            return null;
+        }
+        if (stored == null || stored.length < Long.BYTES) {
+            return null;
+        }
+        ByteBuffer entry = ByteBuffer.wrap(stored);
+        long expiresAtMillis = entry.getLong();
+        long remainingMillis = expiresAtMillis - System.currentTimeMillis();
+        if (expiresAtMillis != 0 && remainingMillis <= 0) {
+            return null;
+        }
+        byte[] value = Arrays.copyOfRange(stored, Long.BYTES, stored.length);
+        long expiresAt = expiresAtMillis != 0
+                ? now + TimeUnit.MILLISECONDS.toNanos(remainingMillis) : 0;
+        Node promoted = new Node(value, weigh(key, value), expiresAt);
+        segment.putIfAbsent(key, promoted, now, epoch);
+        return promoted;
+    }
+
+    /**
+     * Drops the snapshot's entry of a key that was put or invalidated.
+     */
+    private void forgetSnapshot(String key) {
+        CacheSnapshot loaded = snapshot;
+        if (loaded != null) {
+            loaded.invalidate(key);
+        }
+    }
+
+    /**
+     * Saves the entries that have not expired to a snapshot file, the most
+     * recently used of each segment last.
+     *
+     * @param file the snapshot file, replaced atomically
+     * @return number of entries saved
+     * @throws IOException if the snapshot cannot be written
+     */
+    public int saveSnapshot(File file) throws IOException {
+        List<CacheSnapshot.Entry> entries = new ArrayList<>();
+        for (Segment segment : segments) {
+            segment.copyTo(entries, ticker.getAsLong(), System.currentTimeMillis());
+        }
+        return CacheSnapshot.write(file, entries);
+    }
+
+    /**
+     * Loads a snapshot file. Its entries are read when first requested and
+     * are superseded by entries put or invalidated since.
+     *
+     * @param file the snapshot file
+     * @return number of entries in the snapshot, 0 if there is no usable one
+     */
+    public int loadSnapshot(File file) {
+        CacheSnapshot loaded = CacheSnapshot.open(file);
+        CacheSnapshot previous = snapshot;
+        snapshot = loaded;
+        if (previous != null) {
+            previous.close();
+        }
+        return loaded == null ? 0 : loaded.remaining();
+    }
+
+    /**
+     * Writes an entry through to the second tier, prefixed with its wall
+     * clock expiry.
+     */
+    private void putInSecondTier(String key, byte[] value, long ttlNanos) {
+        CacheTier tier = secondTier;
+        if (tier == null) {
+            return;
+        }
+        long ttlMillis = TimeUnit.NANOSECONDS.toMillis(ttlNanos);
+        long expiresAtMillis = ttlNanos > 0 ? System.currentTimeMillis() + ttlMillis : 0;
+        byte[] stored = ByteBuffer.allocate(Long.BYTES + value.length)
+                .putLong(expiresAtMillis).put(value).array();
+        try {
+            tier.put(key, stored, ttlMillis);
+        } catch (RuntimeException e) {
+            LOG.warn("Failed to write " + key + " to " + tier, e);
+        }
+    }
+
+    /**
+     * @return number of entries in the cache
+     */
+    public long size() {
+        long size = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                size += segment.probation.size() + segment.protectedArea.size();
+            }
+        }
+        return size;
+    }
+
+    /**
+     * @return estimated size of the cache in bytes
+     */
+    public long weight() {
+        long weight = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                weight += segment.probationWeight + segment.protectedWeight;
+            }
+        }
+        return weight;
+    }
+
+    /**
+     * @return number of lookups that found a value
+     */
+    public long hitCount() {
+        return hits.sum();
+    }
+
+    /**
+     * @return number of lookups that found no value
+     */
+    public long missCount() {
+        return misses.sum();
+    }
+
+    /**
+     * @return number of entries removed to stay within the maximum weight
      */
-    public synchronized void put(String key, String value) {
-        internalCache.put(key, value);
+    public long evictionCount() {
+        return evictions.sum();
+    }
+
+    /**
+     * @return number of entries removed because their time to live passed
+     */
+    public long expirationCount() {
+        return expirations.sum();
+    }
+
+    /**
+     * @return number of cached entries removed by {@link #invalidate}
+     */
+    public long invalidationCount() {
+        return invalidations.sum();
+    }
+
+    /**
+     * @return number of hits served by the second tier, included in the
+     *         hit count
+     */
+    public long secondTierHitCount() {
+        return secondTierHits.sum();
+    }
+
+    /**
+     * @return number of hits served by the loaded snapshot, included in the
+     *         hit count
+     */
+    public long snapshotHitCount() {
+        return snapshotHits.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "Cache{size=" + size() + ", weight=" + weight() + ", hits=" + hitCount()
+                + ", snapshotHits=" + snapshotHitCount()
+                + ", secondTierHits=" + secondTierHitCount()
+                + ", misses=" + missCount() + ", evictions=" + evictionCount()
+                + ", expirations=" + expirationCount()
+                + ", invalidations=" + invalidationCount() + "}";
+    }
+
+    /**
+     * Estimates the bytes held by an entry: two bytes per char of the key,
+     * the encoded value and the bookkeeping overhead.
+     *
+     * @param key the key
+     * @param value the encoded value
+     * @return estimated size in bytes
+     */
+    static long weigh(String key, byte[] value) {
+        return 2L * key.length() + value.length + ENTRY_OVERHEAD;
+    }
+
+    private Segment segmentFor(String key) {
+        int h = key.hashCode();
+        h ^= h >>> 16;
+        return segments[h & (segments.length - 1)];
+    }
+
+    /**
+     * A cached value.
+     */
+    private static final class Node {
+
+        final byte[] value;
+        /**
+         * Weight of the entry, with its decoded value once attached. Guarded
+         * by the segment.
+         */
+        long weight;
+        /**
+         * System.nanoTime() after which the entry is expired, 0 for never.
+         */
+        final long expiresAt;
+        /**
+         * The value decoded by {@link #getDecoded}, null until then.
+         */
+        volatile Object decoded;
+
+        Node(byte[] value, long weight, long expiresAt) {
+            this.value = value;
+            this.weight = weight;
+            this.expiresAt = expiresAt;
+        }
+
+        boolean isExpired(long now) {
+            return expiresAt != 0 && now - expiresAt >= 0;
+        }
+    }
+
+    /**
+     * One lock stripe of the cache, a segmented LRU. Both areas are kept in
+     * insertion order, least recently used first.
+     */
+    private final class Segment {
+
+        final long maxWeight;
+        final long maxProtectedWeight;
+        final LinkedHashMap<String, Node> probation = new LinkedHashMap<>();
+        final LinkedHashMap<String, Node> protectedArea = new LinkedHashMap<>();
+        long probationWeight;
+        long protectedWeight;
+        /**
+         * Number of invalidations in this segment.
+         */
+        long epoch;
+
+        Segment(long maxWeight) {
+            this.maxWeight = maxWeight;
+            this.maxProtectedWeight = (long) (maxWeight * PROTECTED_RATIO);
+        }
+
+        synchronized Node get(String key, long now) {
+            Node entry = protectedArea.get(key);
+            if (entry != null) {
+                if (entry.isExpired(now)) {
+                    protectedArea.remove(key);
+                    protectedWeight -= entry.weight;
+                    expirations.increment();
+                    return null;
+                }
+                // move to the most recently used end
+                protectedArea.remove(key);
+                protectedArea.put(key, entry);
+                return entry;
+            }
+            entry = probation.remove(key);
+            if (entry == null) {
+                return null;
+            }
+            probationWeight -= entry.weight;
+            if (entry.isExpired(now)) {
+                expirations.increment();
+                return null;
+            }
+            // second hit, promote to the protected area
+            protectedArea.put(key, entry);
+            protectedWeight += entry.weight;
+            demoteProtected();
+            return entry;
+        }
+
+        synchronized boolean contains(String key, long now) {
+            Node entry = protectedArea.get(key);
+            if (entry == null) {
+                entry = probation.get(key);
+            }
+            return entry != null && !entry.isExpired(now);
+        }
+
+        synchronized void put(String key, byte[] value, long weight, long expiresAt, long now) {
+            put(key, new Node(value, weight, expiresAt), now);
+        }
+
+        private void put(String key, Node entry, long now) {
+            remove(key);
+            if (entry.weight > maxWeight) {
+                // would flush the whole segment, do not cache it
+                return;
+            }
+            probation.put(key, entry);
+            probationWeight += entry.weight;
+            evict(now);
+        }
+
+        synchronized boolean putIfEpoch(String key, byte[] value, long weight, long expiresAt,
+                long now, long expectedEpoch) {
+            if (epoch != expectedEpoch) {
+                return false;
+            }
+            put(key, value, weight, expiresAt, now);
+            return true;
+        }
+
+        /**
+         * Puts a value found in a lower tier, unless the key was cached or
+         * invalidated since the lookup started.
+         */
+        synchronized boolean putIfAbsent(String key, Node entry, long now, long expectedEpoch) {
+            if (epoch != expectedEpoch
+                    || protectedArea.containsKey(key) || probation.containsKey(key)) {
+                return false;
+            }
+            put(key, entry, now);
+            return true;
+        }
+
+        /**
+         * Keeps a decoded value with its entry and adds its weight, if the
+         * entry is still cached.
+         */
+        synchronized void attach(String key, Node entry, Object decoded, long now) {
+            if (entry.decoded != null) {
+                return;
+            }
+            entry.decoded = decoded;
+            long weight = (long) DECODED_WEIGHT_FACTOR * entry.value.length;
+            if (protectedArea.get(key) == entry) {
+                protectedWeight += weight;
+            } else if (probation.get(key) == entry) {
+                probationWeight += weight;
+            } else {
+                return;
+            }
+            entry.weight += weight;
+            evict(now);
+        }
+
+        /**
+         * Adds the entries that have not expired, with their wall clock
+         * expiry, least recently used first.
+         */
+        synchronized void copyTo(List<CacheSnapshot.Entry> entries, long now, long nowMillis) {
+            for (LinkedHashMap<String, Node> area : Arrays.asList(probation, protectedArea)) {
+                for (Map.Entry<String, Node> entry : area.entrySet()) {
+                    Node node = entry.getValue();
+                    if (node.isExpired(now)) {
+                        continue;
+                    }
+                    long expiresAtMillis = node.expiresAt != 0
+                            ? nowMillis + TimeUnit.NANOSECONDS.toMillis(node.expiresAt - now) : 0;
+                    entries.add(new CacheSnapshot.Entry(entry.getKey(), node.value,
+                            expiresAtMillis));
+                }
+            }
+        }
+
+        synchronized long epoch() {
+            return epoch;
+        }
+
+        synchronized boolean invalidate(String key) {
+            epoch++;
+            return remove(key);
+        }
+
+        private boolean remove(String key) {
+            Node entry = protectedArea.remove(key);
+            if (entry != null) {
+                protectedWeight -= entry.weight;
+            }
+            Node probationEntry = probation.remove(key);
+            if (probationEntry != null) {
+                probationWeight -= probationEntry.weight;
+            }
+            return entry != null || probationEntry != null;
+        }
+
+        /**
+         * Moves the least recently used protected entries back to probation
+         * while the protected area is over its share.
+         */
+        private void demoteProtected() {
+            Iterator<Map.Entry<String, Node>> it = protectedArea.entrySet().iterator();
+            while (protectedWeight > maxProtectedWeight && it.hasNext()) {
+                Map.Entry<String, Node> eldest = it.next();
+                it.remove();
+                protectedWeight -= eldest.getValue().weight;
+                probation.put(eldest.getKey(), eldest.getValue());
+                probationWeight += eldest.getValue().weight;
+            }
+        }
+
+        /**
+         * Removes entries until the segment is within its weight, the least
+         * recently used probation entries first. Expired entries are dropped
+         * on the way without counting as evictions.
+         */
+        private void evict(long now) {
+            evictFrom(probation, true, now);
+            evictFrom(protectedArea, false, now);
+        }
+
+        private void evictFrom(LinkedHashMap<String, Node> area, boolean isProbation, long now) {
+            Iterator<Node> it = area.values().iterator();
+            while (probationWeight + protectedWeight > maxWeight && it.hasNext()) {
+                Node eldest = it.next();
+                it.remove();
+                if (isProbation) {
+                    probationWeight -= eldest.weight;
+                } else {
+                    protectedWeight -= eldest.weight;
+                }
+                if (eldest.isExpired(now)) {
+                    expirations.increment();
+                } else {
+                    evictions.increment();
+                }
+            }
+        }
     }
 }
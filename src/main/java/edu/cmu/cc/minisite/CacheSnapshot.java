@@ -0,0 +1,272 @@
+package edu.cmu.cc.minisite;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+import org.apache.log4j.Logger;
+
+/**
+ * A snapshot of the cache in a file, so a restarted node starts with the
+ * entries its predecessor held instead of sending every request to the
+ * backends.
+ *
+ * A snapshot is written to a temporary file that replaces the previous one
+ * atomically, so a crash mid-write leaves the previous snapshot intact. It
+ * is opened by mapping the file and indexing the keys; values are only read
+ * when their key is first looked up, so opening a large snapshot is cheap.
+ * Every entry carries a CRC and its wall clock expiry: a corrupt entry reads
+ * as a miss and an entry that expired while the node was down is dropped.
+ *
+ * An opened snapshot acts as a read-only tier that drains into the cache:
+ * an entry is served at most once and is forgotten when its key is put or
+ * invalidated, so it never hides a newer value.
+ */
+final class CacheSnapshot implements CacheTier {
+
+    /**
+     * Logger.
+     */
+    private static final Logger LOG = Logging.getLogger(CacheSnapshot.class);
+
+    private static final int MAGIC = 0x4D534E31;
+    /**
+     * Format version, a snapshot of another version is ignored.
+     */
+    static final int VERSION = 1;
+    /**
+     * Bytes of the header: magic, version, entry count and creation time.
+     */
+    private static final int HEADER_BYTES = 20;
+
+    private final File file;
+    private final MappedByteBuffer buffer;
+    /**
+     * Offset of every entry not served or replaced yet, by key.
+     */
+    private final ConcurrentHashMap<String, Integer> offsets;
+
+    private CacheSnapshot(File file, MappedByteBuffer buffer,
+            ConcurrentHashMap<String, Integer> offsets) {
+        this.file = file;
+        this.buffer = buffer;
+        this.offsets = offsets;
+    }
+
+    /**
+     * Writes a snapshot, replacing the file atomically.
+     *
+     * @param file the snapshot file
+     * @param entries the entries to write, with their wall clock expiry
+     * @return number of entries written
+     * @throws IOException if the snapshot cannot be written
+     */
+    static int write(File file, Iterable<Entry> entries) throws IOException {
+        File parent = file.getAbsoluteFile().getParentFile();
+        File temp = File.createTempFile(file.getName(), ".tmp", parent);
+        int count = 0;
+        try {
+            try (FileOutputStream stream = new FileOutputStream(temp);
+                 DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream))) {
+                // the count is patched in once known
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(0);
+                out.writeLong(System.currentTimeMillis());
+                for (Entry entry : entries) {
+                    byte[] key = entry.key.getBytes(StandardCharsets.UTF_8);
+                    out.writeInt(key.length);
+                    out.write(key);
+                    out.writeLong(entry.expiresAtMillis);
+                    out.writeInt(entry.value.length);
+                    out.write(entry.value);
+                    out.writeInt(checksum(key, entry.expiresAtMillis, entry.value));
+                    count++;
+                }
+                out.flush();
+                stream.getChannel().write(
+                        (ByteBuffer) ByteBuffer.allocate(Integer.BYTES).putInt(count).flip(),
+                        2 * Integer.BYTES);
+                stream.getFD().sync();
+            }
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp.toPath());
+        }
+        return count;
+    }
+
+    /**
+     * Opens a snapshot, indexing its keys.
+     *
+     * @param file the snapshot file
+     * @return the snapshot, or null if there is none or it is of another
+     *         version or malformed
+     */
+    static CacheSnapshot open(File file) {
+        if (!file.isFile()) {
+            return null;
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            if (raf.length() < HEADER_BYTES || raf.length() > Integer.MAX_VALUE) {
+                LOG.warn("Ignoring snapshot " + file + " of " + raf.length() + " bytes");
+                return null;
+            }
+            // the mapping stays valid after the file is closed
+            MappedByteBuffer buffer =
+                    raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+            if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+                LOG.warn("Ignoring snapshot " + file + " of another version");
+                return null;
+            }
+            int count = buffer.getInt(8);
+            ConcurrentHashMap<String, Integer> offsets = new ConcurrentHashMap<>(count * 2);
+            int offset = HEADER_BYTES;
+            for (int i = 0; i < count; i++) {
+                int next = skip(buffer, offset);
+                if (next < 0) {
+                    LOG.warn("Snapshot " + file + " is truncated after " + i + " entries");
+                    break;
+                }
+                offsets.put(key(buffer, offset), offset);
+                offset = next;
+            }
+            LOG.info("Opened snapshot " + file + " of " + offsets.size() + " entries, taken "
+                    + (System.currentTimeMillis() - buffer.getLong(12)) / 1000 + " s ago");
+            return new CacheSnapshot(file, buffer, offsets);
+        } catch (IOException | RuntimeException e) {
+            LOG.warn("Failed to open snapshot " + file, e);
+            return null;
+        }
+    }
+
+    /**
+     * Takes an entry out of the snapshot.
+     *
+     * @param key the key
+     * @return the value prefixed with its wall clock expiry, as the cache
+     *         stores it in a second tier; null if the snapshot does not hold
+     *         the key, or the entry is corrupt
+     */
+    @Override
+    public byte[] get(String key) {
+        Integer offset = offsets.remove(key);
+        if (offset == null) {
+            return null;
+        }
+        ByteBuffer view = buffer.duplicate();
+        view.position(offset);
+        byte[] keyBytes = new byte[view.getInt()];
+        view.get(keyBytes);
+        long expiresAtMillis = view.getLong();
+        byte[] value = new byte[view.getInt()];
+        view.get(value);
+        if (view.getInt() != checksum(keyBytes, expiresAtMillis, value)) {
+            LOG.warn("Corrupt entry " + key + " in snapshot " + file);
+            return null;
+        }
+        return ByteBuffer.allocate(Long.BYTES + value.length)
+                .putLong(expiresAtMillis).put(value).array();
+    }
+
+    /**
+     * Forgets the key, its snapshot value is outdated.
+     */
+    @Override
+    public void put(String key, byte[] value, long ttlMillis) {
+        offsets.remove(key);
+    }
+
+    @Override
+    public void invalidate(String key) {
+        offsets.remove(key);
+    }
+
+    /**
+     * @return number of entries not served or replaced yet
+     */
+    int remaining() {
+        return offsets.size();
+    }
+
+    @Override
+    public void close() {
+        offsets.clear();
+    }
+
+    @Override
+    public String toString() {
+        return "CacheSnapshot{file=" + file + ", remaining=" + remaining() + "}";
+    }
+
+    /**
+     * @return offset of the entry after the one at the offset, or -1 if the
+     *         entry does not fit the buffer
+     */
+    private static int skip(ByteBuffer buffer, int offset) {
+        long end = offset + (long) Integer.BYTES;
+        if (end > buffer.limit()) {
+            return -1;
+        }
+        int keyLength = buffer.getInt(offset);
+        end += keyLength + Long.BYTES + Integer.BYTES;
+        if (keyLength < 0 || end > buffer.limit()) {
+            return -1;
+        }
+        int valueLength = buffer.getInt((int) end - Integer.BYTES);
+        end += valueLength + Integer.BYTES;
+        if (valueLength < 0 || end > buffer.limit()) {
+            return -1;
+        }
+        return (int) end;
+    }
+
+    private static String key(ByteBuffer buffer, int offset) {
+        byte[] key = new byte[buffer.getInt(offset)];
+        ByteBuffer view = buffer.duplicate();
+        view.position(offset + Integer.BYTES);
+        view.get(key);
+        return new String(key, StandardCharsets.UTF_8);
+    }
+
+    private static int checksum(byte[] key, long expiresAtMillis, byte[] value) {
+        CRC32 crc = new CRC32();
+        crc.update(key);
+        for (int shift = 0; shift < 64; shift += 8) {
+            crc.update((int) (expiresAtMillis >>> shift));
+        }
+        crc.update(value);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * An entry to write.
+     */
+    static final class Entry {
+
+        final String key;
+        final byte[] value;
+        /**
+         * Wall clock expiry in milliseconds, 0 for never.
+         */
+        final long expiresAtMillis;
+
+        Entry(String key, byte[] value, long expiresAtMillis) {
+            this.key = key;
+            this.value = value;
+            this.expiresAtMillis = expiresAtMillis;
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package edu.cmu.cc.minisite;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+/**
+ * A second cache tier behind {@link Cache}, shared by the nodes or processes
+ * that use it and outliving them, so a new node starts warm.
+ *
+ * A tier stores opaque values. It may drop any entry at any time and must
+ * report its own failures as misses rather than throw; the cache treats a
+ * failing tier as empty.
+ *
+ * Settings: CACHE_L2 selects the tier, "none" (the default), "mapped",
+ * or "memcached". See the implementations for their settings.
+ */
+interface CacheTier extends AutoCloseable {
+
+    /**
+     * @param key the key
+     * @return the value, or null if the tier does not hold the key
+     */
+    byte[] get(String key);
+
+    /**
+     * Stores a value, replacing the key's previous value.
+     *
+     * @param key the key
+     * @param value the value, must not be modified afterwards
+     * @param ttlMillis time to live of the entry, 0 for no expiry
+     */
+    void put(String key, byte[] value, long ttlMillis);
+
+    /**
+     * Removes the key.
+     *
+     * @param key the key
+     */
+    void invalidate(String key);
+
+    /**
+     * Releases the tier's resources, the shared data is kept.
+     */
+    @Override
+    void close();
+
+    /**
+     * Creates the tier selected by CACHE_L2.
+     *
+     * @return the tier, or null for none
+     * @throws IllegalArgumentException if CACHE_L2 names no tier
+     * @throws UncheckedIOException if the mapped file cannot be opened
+     */
+    static CacheTier fromConfig() {
+        String type = Config.get("CACHE_L2", "none").toLowerCase();
+        switch (type) {
+            case "none":
+                return null;
+            case "mapped":
+                String dir = new File("/dev/shm").isDirectory()
+                        ? "/dev/shm" : System.getProperty("java.io.tmpdir");
+                try {
+                    return new MappedCacheTier(
+                            new File(Config.get("CACHE_L2_PATH", dir + "/minisite-cache")),
+                            Config.getInt("CACHE_L2_SLOTS", 1024),
+                            Config.getInt("CACHE_L2_SLOT_BYTES", 256 * 1024));
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            case "memcached":
+                return new MemcachedCacheTier(
+                        Config.get("CACHE_L2_SERVERS", "127.0.0.1:11211"),
+                        Config.getInt("CACHE_L2_TIMEOUT_MS", 50),
+                        Config.getInt("CACHE_L2_POOL_SIZE", 16),
+                        Config.getLong("CACHE_L2_BACKOFF_MS", 1000),
+                        Config.getInt("CACHE_L2_WRITE_QUEUE", 10000));
+            default:
+                throw new IllegalArgumentException("CACHE_L2 is not a cache tier: " + type);
+        }
+    }
+}
@@ -0,0 +1,456 @@
+package edu.cmu.cc.minisite;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+import org.bson.BsonDocument;
+import org.bson.Document;
+import org.neo4j.driver.v1.Driver;
+import org.neo4j.driver.v1.Record;
+import org.neo4j.driver.v1.Session;
+import org.neo4j.driver.v1.StatementResult;
+import org.neo4j.driver.v1.Values;
+
+import com.mongodb.MongoException;
+import com.mongodb.client.ChangeStreamIterable;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.model.changestream.ChangeStreamDocument;
+import com.mongodb.client.model.changestream.FullDocument;
+
+/**
+ * Publishes changes of the data behind the timelines to listeners.
+ *
+ * Comments: a MongoDB change stream on the comments collection reports the
+ * author of every inserted, updated or replaced comment. The stream resumes
+ * after the last change it saw when the connection drops. Change streams need
+ * a replica set.
+ *
+ * Follows: Neo4j 3 has no change data capture, and cannot index a
+ * relationship id or property, so finding the FOLLOWS relationships with
+ * ids above the highest one seen scans all of them. The feed therefore
+ * polls only the number of FOLLOWS relationships every
+ * CHANGE_FEED_NEO4J_POLL_MS (1 s), which Neo4j answers from its count
+ * store without reading any relationship, and scans when the number
+ * changed, or every CHANGE_FEED_NEO4J_SCAN_MS (60 s) at the latest. A scan
+ * costs a read of every FOLLOWS relationship, as does the highest id read
+ * when polling starts. This finds new relationships; deleted ones, and new
+ * ones that reuse the id of a deleted one, are not reported. A follow
+ * created with another deleted in the same poll is reported by the next
+ * periodic scan.
+ *
+ * Users: the MySQL users table has no column to poll on, so the feed reads
+ * every row every CHANGE_FEED_MYSQL_POLL_MS (30 s), from the users index
+ * alone, and reports the users whose password or profile URL changed, and
+ * the users added or deleted, since the previous read. It keeps a hash of
+ * each user's row in between, about 60 bytes per user. A change that
+ * leaves the hash as it was is missed. A binlog connector or an admin tool
+ * may report changes sooner through {@link #userChanged}.
+ *
+ * Anything a source misses is bounded by the time to live of the cached data.
+ *
+ * Settings: CHANGE_FEED_NEO4J_POLL_MS, CHANGE_FEED_NEO4J_SCAN_MS,
+ * CHANGE_FEED_MYSQL_POLL_MS (0 turns the users poll off) and
+ * CHANGE_FEED_RETRY_MS.
+ */
+class ChangeFeed implements AutoCloseable {
+
+    /**
+     * Logger.
+     */
+    private static final Logger LOG = Logging.getLogger(ChangeFeed.class);
+
+    /**
+     * Interval between two polls of the number of FOLLOWS relationships.
+     */
+    static final long NEO4J_POLL_MS = Config.getLong("CHANGE_FEED_NEO4J_POLL_MS", 1000);
+    /**
+     * Longest interval between two scans of the FOLLOWS relationships.
+     */
+    static final long NEO4J_SCAN_MS = Config.getLong("CHANGE_FEED_NEO4J_SCAN_MS", 60000);
+    /**
+     * Interval between two reads of the users table, 0 for none.
+     */
+    static final long MYSQL_POLL_MS = Config.getLong("CHANGE_FEED_MYSQL_POLL_MS", 30000);
+    /**
+     * Pause before a failed source is tried again.
+     */
+    static final long RETRY_MS = Config.getLong("CHANGE_FEED_RETRY_MS", 5000);
+    /**
+     * Maximum number of relationships read by one poll.
+     */
+    private static final int POLL_LIMIT = 10000;
+
+    /**
+     * Query of the number of FOLLOWS relationships, answered from the count
+     * store.
+     */
+    static final String FOLLOWS_COUNT_QUERY = "MATCH ()-[r:FOLLOWS]->() RETURN count(r) AS n";
+    /**
+     * Query of the highest FOLLOWS relationship id, a scan.
+     */
+    static final String FOLLOWS_MAX_ID_QUERY = "MATCH ()-[r:FOLLOWS]->() "
+            + "RETURN coalesce(max(id(r)), 0) AS id";
+    /**
+     * Query of the FOLLOWS relationships above an id, a scan.
+     */
+    static final String FOLLOWS_AFTER_QUERY = "MATCH (a:User)-[r:FOLLOWS]->(b:User) "
+            + "WHERE id(r) > $lastId "
+            + "RETURN id(r) AS id, a.username AS follower, b.username AS followee "
+            + "ORDER BY id(r) ASC LIMIT " + POLL_LIMIT;
+
+    /**
+     * Receives changes. Listeners are called on the feed's threads and should
+     * return quickly.
+     */
+    interface Listener {
+
+        /**
+         * A comment was posted or edited.
+         *
+         * @param authorId uid of the comment's author
+         */
+        void commentChanged(String authorId);
+
+        /**
+         * A comment was posted or edited, as reported by a source that has
+         * the comment itself. By default only its author is passed on.
+         *
+         * @param comment the comment as stored
+         */
+        default void commentChanged(Document comment) {
+            commentChanged(comment.getString("uid"));
+        }
+
+        /**
+         * A user started following another one.
+         *
+         * @param followerId the follower
+         * @param followeeId the followed user
+         */
+        void followChanged(String followerId, String followeeId);
+
+        /**
+         * A user's profile changed.
+         *
+         * @param userId the user
+         */
+        void userChanged(String userId);
+    }
+
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+    private final ExecutorService sources;
+    private volatile boolean running = true;
+
+    /**
+     * Creates a feed, its sources are started with {@link #watchComments},
+     * {@link #pollFollows} and {@link #pollUsers}.
+     */
+    ChangeFeed() {
+        AtomicInteger count = new AtomicInteger();
+        sources = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "change-feed-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * @param listener receives the changes from now on
+     */
+    void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Starts following the comments collection.
+     *
+     * @param comments the comments collection
+     */
+    void watchComments(MongoCollection<Document> comments) {
+        sources.execute(() -> {
+            BsonDocument resumeToken = null;
+            while (running) {
+                ChangeStreamIterable<Document> stream = comments.watch()
+                        .fullDocument(FullDocument.UPDATE_LOOKUP)
+                        .maxAwaitTime(1, TimeUnit.SECONDS);
+                if (resumeToken != null) {
+                    stream.resumeAfter(resumeToken);
+                }
+                try (MongoCursor<ChangeStreamDocument<Document>> cursor = stream.iterator()) {
+                    while (running) {
+                        ChangeStreamDocument<Document> change = cursor.tryNext();
+                        if (change == null) {
+                            continue;
+                        }
+                        resumeToken = change.getResumeToken();
+                        Document comment = change.getFullDocument();
+                        // deletes carry no document and are left to expire
+                        if (comment != null && comment.getString("uid") != null) {
+                            commentChanged(comment);
+                        }
+                    }
+                } catch (MongoException e) {
+                    LOG.warn("Comment change stream failed, retrying in " + RETRY_MS + " ms", e);
+                    pause(RETRY_MS);
+                }
+            }
+        });
+    }
+
+    /**
+     * Starts polling the FOLLOWS relationships created from now on.
+     *
+     * @param driver the Neo4j driver
+     */
+    void pollFollows(Driver driver) {
+        sources.execute(() -> {
+            FollowPoll poll = new FollowPoll(NEO4J_SCAN_MS);
+            while (running) {
+                try (Session session = driver.session()) {
+                    poll.poll(session);
+                    pause(NEO4J_POLL_MS);
+                } catch (Exception e) {
+                    LOG.warn("Polling FOLLOWS failed, retrying in " + RETRY_MS + " ms", e);
+                    pause(RETRY_MS);
+                }
+            }
+        });
+    }
+
+    /**
+     * Starts polling the users table for changed users, unless
+     * CHANGE_FEED_MYSQL_POLL_MS is 0.
+     *
+     * @param profileServlet the MySQL backend
+     */
+    void pollUsers(ProfileServlet profileServlet) {
+        if (MYSQL_POLL_MS <= 0) {
+            return;
+        }
+        sources.execute(() -> {
+            UserPoll poll = new UserPoll();
+            while (running) {
+                try (Connection conn = profileServlet.connection()) {
+                    poll.poll(conn);
+                    pause(MYSQL_POLL_MS);
+                } catch (Exception e) {
+                    LOG.warn("Polling users failed, retrying in " + RETRY_MS + " ms", e);
+                    pause(RETRY_MS);
+                }
+            }
+        });
+    }
+
+    /**
+     * The state of the users poll between two polls.
+     */
+    final class UserPoll {
+
+        /**
+         * Hash of each user's row at the last poll, null before the first.
+         */
+        private Map<String, Integer> rows;
+
+        /**
+         * Reads every user, and reports those that changed, were added or
+         * were deleted since the last poll. The first poll reports nothing.
+         *
+         * @param conn a MySQL connection
+         * @return number of users reported
+         * @throws SQLException if the table cannot be read
+         */
+        int poll(Connection conn) throws SQLException {
+            Map<String, Integer> read = new HashMap<>(rows == null ? 1024 : rows.size() * 2);
+            try (Statement stmt = conn.createStatement(ResultSet.TYPE_FORWARD_ONLY,
+                    ResultSet.CONCUR_READ_ONLY)) {
+                // stream the rows instead of buffering the whole table
+                stmt.setFetchSize(Integer.MIN_VALUE);
+                try (ResultSet rs = stmt.executeQuery(CredentialIndex.ALL_QUERY)) {
+                    while (rs.next()) {
+                        String name = rs.getString("username");
+                        if (name != null) {
+                            read.merge(name, Objects.hash(rs.getString("pwd"),
+                                    rs.getString("profile_photo_url")), (a, b) -> 31 * a + b);
+                        }
+                    }
+                }
+            }
+            Map<String, Integer> previous = rows;
+            rows = read;
+            if (previous == null) {
+                return 0;
+            }
+            int reported = 0;
+            for (Map.Entry<String, Integer> user : read.entrySet()) {
+                if (!user.getValue().equals(previous.remove(user.getKey()))) {
+                    userChanged(user.getKey());
+                    reported++;
+                }
+            }
+            // the users left were deleted
+            for (String deleted : previous.keySet()) {
+                userChanged(deleted);
+                reported++;
+            }
+            return reported;
+        }
+    }
+
+    /**
+     * The state of the FOLLOWS poll between two polls.
+     */
+    final class FollowPoll {
+
+        private final long scanIntervalNanos;
+        /**
+         * Highest relationship id seen, -1 before the first poll.
+         */
+        private long lastId = -1;
+        /**
+         * Number of relationships at the last poll.
+         */
+        private long lastCount = -1;
+        /**
+         * System.nanoTime() of the last scan.
+         */
+        private long lastScan;
+        /**
+         * Whether the last scan stopped at its limit.
+         */
+        private boolean more;
+
+        /**
+         * @param scanIntervalMs longest interval between two scans
+         */
+        FollowPoll(long scanIntervalMs) {
+            this.scanIntervalNanos = TimeUnit.MILLISECONDS.toNanos(scanIntervalMs);
+        }
+
+        /**
+         * Polls the number of relationships, and reports the new ones if it
+         * changed, the last scan was cut short or the scan interval passed.
+         *
+         * @param session a Neo4j session
+         * @return whether the relationships were scanned
+         */
+        boolean poll(Session session) {
+            long count = session.run(FOLLOWS_COUNT_QUERY).single().get("n").asLong();
+            long now = System.nanoTime();
+            boolean scanned = true;
+            if (lastId < 0) {
+                lastId = session.run(FOLLOWS_MAX_ID_QUERY).single().get("id").asLong();
+            } else if (count != lastCount || more || now - lastScan >= scanIntervalNanos) {
+                StatementResult rs = session.run(FOLLOWS_AFTER_QUERY,
+                        Values.parameters("lastId", lastId));
+                int read = 0;
+                while (rs.hasNext()) {
+                    Record r = rs.next();
+                    lastId = r.get("id").asLong();
+                    read++;
+                    followChanged(r.get("follower").asString(), r.get("followee").asString());
+                }
+                more = read == POLL_LIMIT;
+            } else {
+                scanned = false;
+            }
+            if (scanned) {
+                lastScan = now;
+            }
+            lastCount = count;
+            return scanned;
+        }
+    }
+
+    /**
+     * Reports that a comment was posted or edited.
+     *
+     * @param authorId uid of the comment's author
+     */
+    void commentChanged(String authorId) {
+        for (Listener listener : listeners) {
+            try {
+                listener.commentChanged(authorId);
+            } catch (RuntimeException e) {
+                LOG.error("Listener failed on a comment of " + authorId, e);
+            }
+        }
+    }
+
+    /**
+     * Reports that a comment was posted or edited, with the comment.
+     *
+     * @param comment the comment as stored, with its author's uid
+     */
+    void commentChanged(Document comment) {
+        for (Listener listener : listeners) {
+            try {
+                listener.commentChanged(comment);
+            } catch (RuntimeException e) {
+                LOG.error("Listener failed on a comment of " + comment.getString("uid"), e);
+            }
+        }
+    }
+
+    /**
+     * Reports that a user started following another one.
+     *
+     * @param followerId the follower
+     * @param followeeId the followed user
+     */
+    void followChanged(String followerId, String followeeId) {
+        for (Listener listener : listeners) {
+            try {
+                listener.followChanged(followerId, followeeId);
+            } catch (RuntimeException e) {
+                LOG.error("Listener failed on " + followerId + " following " + followeeId, e);
+            }
+        }
+    }
+
+    /**
+     * Reports that a user's profile or password changed, or that the user
+     * was added or deleted, as a row of the MySQL users table.
+     *
+     * @param userId the user
+     */
+    void userChanged(String userId) {
+        for (Listener listener : listeners) {
+            try {
+                listener.userChanged(userId);
+            } catch (RuntimeException e) {
+                LOG.error("Listener failed on a change of " + userId, e);
+            }
+        }
+    }
+
+    /**
+     * Stops the sources.
+     */
+    @Override
+    public void close() {
+        running = false;
+        sources.shutdownNow();
+    }
+
+    private void pause(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            running = false;
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package edu.cmu.cc.minisite;
+
+/**
+ * Reads tuning knobs of the website.
+ *
+ * A setting is looked up in the environment first, e.g. "export
+ * TIMELINE_FANOUT_THREADS=128", and then in the JVM system properties, e.g.
+ * "-DTIMELINE_FANOUT_THREADS=128". If neither is set, the default is used.
+ */
+final class Config {
+
+    /**
+     * Utility class.
+     */
+    private Config() {
+    }
+
+    /**
+     * Returns the raw value of a setting.
+     *
+     * @param name name of the setting
+     * @param defaultValue value to use when the setting is absent
+     * @return the configured value, or the default
+     */
+    static String get(String name, String defaultValue) {
+        String value = System.getenv(name);
+        if (value == null || value.trim().isEmpty()) {
+            value = System.getProperty(name);
+        }
+        if (value == null || value.trim().isEmpty()) {
+            return defaultValue;
+        }
+        return value.trim();
+    }
+
+    /**
+     * Returns an integer setting.
+     *
+     * @param name name of the setting
+     * @param defaultValue value to use when the setting is absent
+     * @return the configured value, or the default
+     * @throws IllegalArgumentException if the value is not an integer
+     */
+    static int getInt(String name, int defaultValue) {
+        String value = get(name, null);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(name + " is not an integer: " + value, e);
+        }
+    }
+
+    /**
+     * Returns a long setting.
+     *
+     * @param name name of the setting
+     * @param defaultValue value to use when the setting is absent
+     * @return the configured value, or the default
+     * @throws IllegalArgumentException if the value is not a long
+     */
+    static long getLong(String name, long defaultValue) {
+        String value = get(name, null);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(name + " is not a long: " + value, e);
+        }
+    }
+
+    /**
+     * Returns a boolean setting, "true", "yes", "on" and "1" are true.
+     *
+     * @param name name of the setting
+     * @param defaultValue value to use when the setting is absent
+     * @return the configured value, or the default
+     */
+    static boolean getBoolean(String name, boolean defaultValue) {
+        String value = get(name, null);
+        if (value == null) {
+            return defaultValue;
+        }
+        switch (value.toLowerCase()) {
+            case "true":
+            case "yes":
+            case "on":
+            case "1":
+                return true;
+            default:
+                return false;
+        }
+    }
+}
@@ -0,0 +1,409 @@
+package edu.cmu.cc.minisite;
+
+import java.io.PrintWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.sql.DataSource;
+
+import org.apache.log4j.Logger;
+
+/**
+ * A small JDBC connection pool.
+ *
+ * Callers borrow a connection with {@link #getConnection()} and give it back
+ * by closing it, so the usual try-with-resources block is all that is needed:
+ *
+ * <pre>
+ * try (Connection conn = pool.getConnection();
+ *      PreparedStatement stmt = conn.prepareStatement(q)) { ... }
+ * </pre>
+ *
+ * The pool keeps at least minIdle connections open and never opens more than
+ * maxSize. A connection that has been idle for longer than the validation
+ * interval is checked with {@link Connection#isValid(int)} before it is handed
+ * out. A connection that has been borrowed for longer than the leak threshold
+ * is reported once, together with the stack trace of the borrower if
+ * MYSQL_POOL_LEAK_TRACE is set.
+ */
+class ConnectionPool implements DataSource, AutoCloseable {
+
+    /**
+     * Logger.
+     */
+    private static final Logger LOG = Logging.getLogger(ConnectionPool.class);
+
+    /**
+     * Opens physical connections for the pool.
+     */
+    interface ConnectionFactory {
+
+        /**
+         * @return a new connection
+         * @throws SQLException on a database access error
+         */
+        Connection create() throws SQLException;
+    }
+
+    /**
+     * Seconds to wait for {@link Connection#isValid(int)}.
+     */
+    private static final int VALIDATION_TIMEOUT_SECONDS = 2;
+    /**
+     * Whether to record the borrower's stack trace for leak reports. Off by
+     * default because it costs a stack walk per borrow.
+     */
+    private static final boolean TRACE_BORROWS = Config.getBoolean("MYSQL_POOL_LEAK_TRACE", false);
+
+    private final ConnectionFactory factory;
+    private final int minIdle;
+    private final int maxSize;
+    private final long validationIntervalNanos;
+    private final long leakThresholdNanos;
+    private final long borrowTimeoutNanos;
+
+    /**
+     * Idle connections, the most recently returned one first.
+     */
+    private final LinkedBlockingDeque<PooledConnection> idle = new LinkedBlockingDeque<>();
+    /**
+     * Borrowed connections, used for leak detection.
+     */
+    private final Set<PooledConnection> borrowed = ConcurrentHashMap.newKeySet();
+    /**
+     * One permit per connection that may still be borrowed.
+     */
+    private final Semaphore permits;
+    /**
+     * Tops up idle connections and looks for leaks, null if neither is needed.
+     */
+    private final ScheduledExecutorService housekeeper;
+    private volatile boolean closed;
+
+    /**
+     * Creates a pool.
+     *
+     * @param factory opens physical connections
+     * @param minIdle number of connections to keep open
+     * @param maxSize maximum number of open connections
+     * @param validationIntervalMs idle time after which a connection is
+     * validated before use
+     * @param leakThresholdMs borrow time after which a connection is reported
+     * as leaked, 0 to disable leak detection
+     * @param borrowTimeoutMs time to wait for a free connection
+     */
+    ConnectionPool(ConnectionFactory factory, int minIdle, int maxSize,
+            long validationIntervalMs, long leakThresholdMs, long borrowTimeoutMs) {
+        if (maxSize < 1 || minIdle < 0 || minIdle > maxSize) {
+            throw new IllegalArgumentException(
+                    "invalid pool size: min " + minIdle + ", max " + maxSize);
+        }
+        this.factory = factory;
+        this.minIdle = minIdle;
+        this.maxSize = maxSize;
+        this.validationIntervalNanos = TimeUnit.MILLISECONDS.toNanos(validationIntervalMs);
+        this.leakThresholdNanos = TimeUnit.MILLISECONDS.toNanos(leakThresholdMs);
+        this.borrowTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(borrowTimeoutMs);
+        this.permits = new Semaphore(maxSize, true);
+
+        if (minIdle > 0 || leakThresholdMs > 0) {
+            housekeeper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "connection-pool-housekeeper");
+                thread.setDaemon(true);
+                return thread;
+            });
+            long periodMs = leakThresholdMs > 0 ? Math.max(leakThresholdMs / 2, 1000) : 30000;
+            housekeeper.scheduleWithFixedDelay(this::housekeep, 0, periodMs,
+                    TimeUnit.MILLISECONDS);
+        } else {
+            housekeeper = null;
+        }
+    }
+
+    /**
+     * Creates a pool sized by the MYSQL_POOL_MIN, MYSQL_POOL_MAX,
+     * MYSQL_POOL_VALIDATION_MS, MYSQL_POOL_LEAK_MS and MYSQL_POOL_TIMEOUT_MS
+     * settings.
+     *
+     * @param factory opens physical connections
+     * @return the pool
+     */
+    static ConnectionPool fromConfig(ConnectionFactory factory) {
+        return new ConnectionPool(factory,
+                Config.getInt("MYSQL_POOL_MIN", 4),
+                Config.getInt("MYSQL_POOL_MAX", 32),
+                Config.getLong("MYSQL_POOL_VALIDATION_MS", 5000),
+                Config.getLong("MYSQL_POOL_LEAK_MS", 30000),
+                Config.getLong("MYSQL_POOL_TIMEOUT_MS", 5000));
+    }
+
+    /**
+     * Borrows a connection. Closing the returned connection gives it back to
+     * the pool.
+     *
+     * @return a connection
+     * @throws SQLException if the pool is closed, no connection became free in
+     * time or a new connection could not be opened
+     */
+    @Override
+    public Connection getConnection() throws SQLException {
+        if (closed) {
+            throw new SQLException("Connection pool is closed");
+        }
+        try {
+            if (!permits.tryAcquire(borrowTimeoutNanos, TimeUnit.NANOSECONDS)) {
+                throw new SQLException("Timed out waiting for a connection, "
+                        + borrowed.size() + " connections are in use");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a connection", e);
+        }
+        try {
+            PooledConnection pooled = takeIdle();
+            if (pooled == null) {
+                pooled = new PooledConnection(factory.create());
+            }
+            pooled.borrowedAt = System.nanoTime();
+            pooled.borrowSite = TRACE_BORROWS && leakThresholdNanos > 0
+                    ? new Throwable("Connection borrowed here") : null;
+            pooled.leakReported = false;
+            borrowed.add(pooled);
+            return pooled.newHandle();
+        } catch (SQLException | RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Takes the most recently used idle connection that is still valid.
+     *
+     * @return an idle connection, or null if there is none
+     */
+    private PooledConnection takeIdle() {
+        PooledConnection pooled;
+        while ((pooled = idle.pollFirst()) != null) {
+            if (System.nanoTime() - pooled.returnedAt < validationIntervalNanos
+                    || isValid(pooled.raw)) {
+                return pooled;
+            }
+            closeQuietly(pooled.raw);
+        }
+        return null;
+    }
+
+    /**
+     * Gives a borrowed connection back.
+     *
+     * @param pooled the connection
+     */
+    private void giveBack(PooledConnection pooled) {
+        borrowed.remove(pooled);
+        boolean broken;
+        try {
+            broken = pooled.raw.isClosed();
+        } catch (SQLException e) {
+            broken = true;
+        }
+        if (closed || broken) {
+            closeQuietly(pooled.raw);
+        } else {
+            pooled.returnedAt = System.nanoTime();
+            idle.offerFirst(pooled);
+        }
+        permits.release();
+    }
+
+    /**
+     * Opens connections up to minIdle and reports leaked connections. Each
+     * connection is opened holding a permit, as a borrower would, so a
+     * borrower opening its own cannot push the pool beyond maxSize, and the
+     * pool stops topping up when every permit is taken.
+     */
+    private void housekeep() {
+        try {
+            while (!closed && idle.size() < minIdle
+                    && idle.size() + borrowed.size() < maxSize && permits.tryAcquire()) {
+                try {
+                    PooledConnection pooled = new PooledConnection(factory.create());
+                    pooled.returnedAt = System.nanoTime();
+                    idle.offerLast(pooled);
+                } finally {
+                    permits.release();
+                }
+            }
+        } catch (SQLException e) {
+            LOG.warn("Connection pool could not open a connection: " + e.getMessage());
+        }
+        if (leakThresholdNanos > 0) {
+            long now = System.nanoTime();
+            for (PooledConnection pooled : borrowed) {
+                if (!pooled.leakReported && now - pooled.borrowedAt > leakThresholdNanos) {
+                    pooled.leakReported = true;
+                    LOG.warn("Connection held for more than "
+                            + TimeUnit.NANOSECONDS.toMillis(leakThresholdNanos)
+                            + " ms, possible leak", pooled.borrowSite);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return number of connections currently borrowed
+     */
+    int borrowedCount() {
+        return borrowed.size();
+    }
+
+    /**
+     * @return number of idle connections
+     */
+    int idleCount() {
+        return idle.size();
+    }
+
+    /**
+     * Closes all idle connections. Borrowed connections are closed when they
+     * are given back.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        if (housekeeper != null) {
+            housekeeper.shutdownNow();
+        }
+        PooledConnection pooled;
+        while ((pooled = idle.pollFirst()) != null) {
+            closeQuietly(pooled.raw);
+        }
+    }
+
+    private static boolean isValid(Connection conn) {
+        try {
+            return conn.isValid(VALIDATION_TIMEOUT_SECONDS);
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
+    private static void closeQuietly(Connection conn) {
+        try {
+            conn.close();
+        } catch (SQLException e) {
+            LOG.warn("Failed to close a connection", e);
+        }
+    }
+
+    @Override
+    public Connection getConnection(String username, String password) throws SQLException {
+        throw new SQLFeatureNotSupportedException("The pool uses fixed credentials");
+    }
+
+    @Override
+    public PrintWriter getLogWriter() {
+        return null;
+    }
+
+    @Override
+    public void setLogWriter(PrintWriter out) {
+    }
+
+    @Override
+    public void setLoginTimeout(int seconds) {
+    }
+
+    @Override
+    public int getLoginTimeout() {
+        return 0;
+    }
+
+    @Override
+    public java.util.logging.Logger getParentLogger() throws SQLFeatureNotSupportedException {
+        throw new SQLFeatureNotSupportedException();
+    }
+
+    @Override
+    public <T> T unwrap(Class<T> iface) throws SQLException {
+        if (iface.isInstance(this)) {
+            return iface.cast(this);
+        }
+        throw new SQLException("Not a wrapper for " + iface);
+    }
+
+    @Override
+    public boolean isWrapperFor(Class<?> iface) {
+        return iface.isInstance(this);
+    }
+
+    /**
+     * A physical connection owned by the pool.
+     */
+    private final class PooledConnection {
+
+        private final Connection raw;
+        private volatile long borrowedAt;
+        private volatile long returnedAt;
+        private volatile Throwable borrowSite;
+        private volatile boolean leakReported;
+
+        PooledConnection(Connection raw) {
+            this.raw = raw;
+        }
+
+        /**
+         * Creates the handle given to a borrower. Closing the handle gives the
+         * connection back, every other call goes to the physical connection.
+         *
+         * @return the handle
+         */
+        Connection newHandle() {
+            AtomicBoolean handleClosed = new AtomicBoolean();
+            InvocationHandler handler = (proxy, method, args) -> {
+                switch (method.getName()) {
+                    case "close":
+                        if (handleClosed.compareAndSet(false, true)) {
+                            giveBack(this);
+                        }
+                        return null;
+                    case "isClosed":
+                        return handleClosed.get() || raw.isClosed();
+                    case "equals":
+                        return proxy == args[0];
+                    case "hashCode":
+                        return System.identityHashCode(proxy);
+                    case "toString":
+                        return "Pooled(" + raw + ")";
+                    default:
+                        if (handleClosed.get()) {
+                            throw new SQLException("Connection is closed");
+                        }
+                        return invoke(method, args);
+                }
+            };
+            return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+                    new Class<?>[] {Connection.class}, handler);
+        }
+
+        private Object invoke(Method method, Object[] args) throws Throwable {
+            try {
+                return method.invoke(raw, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+        }
+    }
+}
@@ -0,0 +1,448 @@
+package edu.cmu.cc.minisite;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+import org.apache.log4j.Logger;
+
+import com.google.gson.JsonObject;
+
+/**
+ * The credentials of the users held in memory, so a valid login is checked
+ * without a query to MySQL.
+ *
+ * Every user maps to a salted SHA-256 digest of the username and password,
+ * truncated to {@link #DIGEST_BYTES}, and to the profile URL, in an
+ * open-addressing table of parallel arrays. The salt is drawn when the
+ * index is created, so the plaintext passwords are not kept and the digests
+ * are worthless outside the process. A fast digest rather than a slow key
+ * derivation is used because it runs on every login.
+ *
+ * The index only answers logins that match exactly. MySQL compares with
+ * the collation of the columns, which may ignore case, so any other login,
+ * and the login of a user the index does not hold, is left to MySQL,
+ * which is what a null result means. So are usernames held by more than
+ * one row, whose matching row only MySQL can pick.
+ *
+ * The table is loaded in one streamed query when the index starts and
+ * reloaded every CREDENTIAL_INDEX_REFRESH_SECONDS (60). In between, a user
+ * reported by the change feed is read again on its own. Users reported
+ * while a reload runs are applied again to the reloaded table.
+ *
+ * Staleness: the change feed reads the users table for changes every
+ * CHANGE_FEED_MYSQL_POLL_MS (see {@link ChangeFeed#pollUsers}), so until
+ * then, or until the next reload if the feed is off, a changed password
+ * still logs in with the old one, and a deleted user still logs in. A
+ * table older than CREDENTIAL_INDEX_MAX_AGE_SECONDS (twice the refresh)
+ * answers nothing, so failing reloads do not extend that window. The index
+ * is off by default; turn it on only where a login may be that stale.
+ *
+ * Settings: CREDENTIAL_INDEX turns the index on.
+ */
+final class CredentialIndex implements ChangeFeed.Listener, AutoCloseable {
+
+    /**
+     * Logger.
+     */
+    private static final Logger LOG = Logging.getLogger(CredentialIndex.class);
+
+    /**
+     * Whether logins are checked in memory.
+     */
+    static final boolean ENABLED = Config.getBoolean("CREDENTIAL_INDEX", false);
+    /**
+     * Seconds between two reloads of the whole table, 0 to load it once.
+     */
+    static final long REFRESH_SECONDS = Config.getLong("CREDENTIAL_INDEX_REFRESH_SECONDS", 60);
+    /**
+     * Seconds after its load a table stops answering, 0 for no limit.
+     */
+    static final long MAX_AGE_SECONDS =
+            Config.getLong("CREDENTIAL_INDEX_MAX_AGE_SECONDS", 2 * REFRESH_SECONDS);
+
+    /**
+     * Query of all credentials.
+     */
+    static final String ALL_QUERY = "SELECT username, pwd, profile_photo_url FROM users";
+    /**
+     * Query of one user's credentials.
+     */
+    static final String USER_QUERY = ALL_QUERY + " WHERE username = ?";
+
+    /**
+     * Bytes kept of every digest.
+     */
+    static final int DIGEST_BYTES = 16;
+
+    private static final ThreadLocal<MessageDigest> SHA_256 = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    });
+
+    private final ProfileServlet profileServlet;
+    /**
+     * Nanoseconds after its load a table stops answering, 0 for no limit.
+     */
+    private final long maxAgeNanos;
+    private final byte[] salt = new byte[16];
+    /**
+     * The loaded table with the changes since, null until loaded.
+     */
+    private volatile Table table;
+    /**
+     * Changes reported while a reload runs, to apply again to its table,
+     * null when no reload runs. Guarded by this.
+     */
+    private List<Consumer<Table>> replay;
+    private final LongAdder localLogins = new LongAdder();
+    private final LongAdder fallbacks = new LongAdder();
+    /**
+     * Reloads the table, null until started.
+     */
+    private ScheduledExecutorService refresher;
+
+    /**
+     * @param profileServlet reads the users
+     */
+    CredentialIndex(ProfileServlet profileServlet) {
+        this(profileServlet, TimeUnit.SECONDS.toMillis(MAX_AGE_SECONDS));
+    }
+
+    /**
+     * @param profileServlet reads the users
+     * @param maxAgeMs milliseconds after its load a table stops answering, 0
+     *        for no limit
+     */
+    CredentialIndex(ProfileServlet profileServlet, long maxAgeMs) {
+        this.profileServlet = profileServlet;
+        this.maxAgeNanos = TimeUnit.MILLISECONDS.toNanos(maxAgeMs);
+        new SecureRandom().nextBytes(salt);
+    }
+
+    /**
+     * Loads the table in the background and reloads it periodically.
+     *
+     * @param refreshSeconds seconds between two reloads, 0 to load once
+     */
+    synchronized void start(long refreshSeconds) {
+        if (refresher != null) {
+            return;
+        }
+        LOG.warn("Logins are checked in memory: a changed password or a deleted user logs in"
+                + " until the next reload, in up to " + refreshSeconds + " s");
+        refresher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "credential-index");
+            thread.setDaemon(true);
+            return thread;
+        });
+        if (refreshSeconds > 0) {
+            refresher.scheduleWithFixedDelay(this::refresh, 0, refreshSeconds, TimeUnit.SECONDS);
+        } else {
+            refresher.execute(this::refresh);
+        }
+    }
+
+    /**
+     * Registers the counts of logins checked in memory and left to MySQL.
+     */
+    void registerMetrics() {
+        String help = "Logins by whether the credential index or MySQL checked them";
+        Metrics.counter("minisite_credential_logins_total", help, "checked=\"index\"",
+                localLogins::sum);
+        Metrics.counter("minisite_credential_logins_total", help, "checked=\"mysql\"",
+                fallbacks::sum);
+    }
+
+    /**
+     * Reloads the whole table from MySQL.
+     *
+     * @return false if the query failed and the previous table is kept
+     */
+    boolean refresh() {
+        synchronized (this) {
+            replay = new ArrayList<>();
+        }
+        long start = System.nanoTime();
+        Table loaded;
+        try (Connection conn = profileServlet.connection();
+                Statement stmt = conn.createStatement(ResultSet.TYPE_FORWARD_ONLY,
+                        ResultSet.CONCUR_READ_ONLY)) {
+            // stream the rows instead of buffering the whole table
+            stmt.setFetchSize(Integer.MIN_VALUE);
+            List<String> names = new ArrayList<>();
+            List<String> urls = new ArrayList<>();
+            byte[] digests = new byte[1024 * DIGEST_BYTES];
+            try (ResultSet rs = stmt.executeQuery(ALL_QUERY)) {
+                while (rs.next()) {
+                    String name = rs.getString("username");
+                    if (name == null) {
+                        continue;
+                    }
+                    if ((names.size() + 1) * DIGEST_BYTES > digests.length) {
+                        digests = Arrays.copyOf(digests, digests.length * 2);
+                    }
+                    System.arraycopy(digest(name, rs.getString("pwd")), 0, digests,
+                            names.size() * DIGEST_BYTES, DIGEST_BYTES);
+                    names.add(name);
+                    urls.add(rs.getString("profile_photo_url"));
+                }
+            }
+            loaded = new Table(names, urls, digests);
+        } catch (SQLException | RuntimeException e) {
+            synchronized (this) {
+                replay = null;
+            }
+            LOG.error("Failed to load the credentials, keeping the previous ones", e);
+            return false;
+        }
+        synchronized (this) {
+            for (Consumer<Table> change : replay) {
+                change.accept(loaded);
+            }
+            replay = null;
+            table = loaded;
+        }
+        LOG.info("Loaded the credentials of " + loaded.size() + " users in "
+                + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+        return true;
+    }
+
+    /**
+     * @return whether a table is loaded, and young enough to answer
+     */
+    boolean isLoaded() {
+        return current() != null;
+    }
+
+    /**
+     * @return the table, null if none is loaded or it is older than the
+     *         maximum age
+     */
+    private Table current() {
+        Table t = table;
+        return t == null || maxAgeNanos > 0 && System.nanoTime() - t.loadedAt > maxAgeNanos
+                ? null : t;
+    }
+
+    /**
+     * Checks a login in memory.
+     *
+     * @param name the username
+     * @param pwd the password
+     * @return the result of {@link ProfileServlet#validateLoginAndReturnResult}
+     *         for a valid login, null to ask MySQL
+     */
+    JsonObject login(String name, String pwd) {
+        Table t = current();
+        Credential credential = t == null || name == null || pwd == null ? null : t.get(name);
+        if (credential == null || credential.digest == null
+                || !MessageDigest.isEqual(credential.digest, digest(name, pwd))) {
+            fallbacks.increment();
+            return null;
+        }
+        localLogins.increment();
+        JsonObject result = new JsonObject();
+        result.addProperty("name", name);
+        result.addProperty("profile", credential.url);
+        return result;
+    }
+
+    @Override
+    public void commentChanged(String authorId) {
+        // comments hold no credentials
+    }
+
+    @Override
+    public void followChanged(String followerId, String followeeId) {
+        // follows hold no credentials
+    }
+
+    @Override
+    public void userChanged(String userId) {
+        Credential credential = Credential.UNKNOWN;
+        try (Connection conn = profileServlet.connection();
+                PreparedStatement stmt = conn.prepareStatement(USER_QUERY)) {
+            stmt.setString(1, userId);
+            try (ResultSet rs = stmt.executeQuery()) {
+                // a user held by several rows is left to MySQL
+                if (rs.next() && userId.equals(rs.getString("username"))) {
+                    Credential read = new Credential(digest(userId, rs.getString("pwd")),
+                            rs.getString("profile_photo_url"));
+                    credential = rs.next() ? Credential.UNKNOWN : read;
+                }
+            }
+        } catch (SQLException e) {
+            LOG.warn("Failed to read the credentials of " + userId, e);
+        }
+        Credential changed = credential;
+        synchronized (this) {
+            if (replay != null) {
+                replay.add(t -> t.changed.put(userId, changed));
+            }
+            if (table != null) {
+                table.changed.put(userId, changed);
+            }
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        if (refresher != null) {
+            refresher.shutdownNow();
+            refresher = null;
+        }
+    }
+
+    /**
+     * @return the salted digest of a login, truncated
+     */
+    private byte[] digest(String name, String pwd) {
+        MessageDigest sha256 = SHA_256.get();
+        sha256.reset();
+        sha256.update(salt);
+        sha256.update(name.getBytes(StandardCharsets.UTF_8));
+        // separates the name from the password
+        sha256.update((byte) 0);
+        sha256.update(String.valueOf(pwd).getBytes(StandardCharsets.UTF_8));
+        return Arrays.copyOf(sha256.digest(), DIGEST_BYTES);
+    }
+
+    /**
+     * A user's digest and profile URL.
+     */
+    private static final class Credential {
+
+        /**
+         * A user the index does not answer for.
+         */
+        static final Credential UNKNOWN = new Credential(null, null);
+
+        /**
+         * The digest, null to ask MySQL.
+         */
+        final byte[] digest;
+        final String url;
+
+        Credential(byte[] digest, String url) {
+            this.digest = digest;
+            this.url = url;
+        }
+    }
+
+    /**
+     * An open-addressing table with linear probing, immutable but for the
+     * users changed since it was loaded.
+     */
+    static final class Table {
+
+        private final String[] names;
+        private final String[] urls;
+        /**
+         * Digests by slot, {@link #DIGEST_BYTES} each.
+         */
+        private final byte[] digests;
+        /**
+         * Whether the slot's username is held by more than one row.
+         */
+        private final boolean[] ambiguous;
+        private final int mask;
+        private final int size;
+        /**
+         * System.nanoTime() when the table was loaded.
+         */
+        final long loadedAt = System.nanoTime();
+        /**
+         * Users read again since the table was loaded.
+         */
+        final Map<String, Credential> changed = new ConcurrentHashMap<>();
+
+        /**
+         * @param names the usernames
+         * @param urls the profile URLs, in the same order
+         * @param digests the digests, in the same order
+         */
+        Table(List<String> names, List<String> urls, byte[] digests) {
+            int capacity = Integer.highestOneBit(Math.max(2, names.size() * 2 - 1)) << 1;
+            this.names = new String[capacity];
+            this.urls = new String[capacity];
+            this.digests = new byte[capacity * DIGEST_BYTES];
+            this.ambiguous = new boolean[capacity];
+            this.mask = capacity - 1;
+            int distinct = 0;
+            for (int i = 0; i < names.size(); i++) {
+                String name = names.get(i);
+                int slot = slot(name);
+                if (this.names[slot] != null) {
+                    ambiguous[slot] = true;
+                    continue;
+                }
+                this.names[slot] = name;
+                this.urls[slot] = urls.get(i);
+                System.arraycopy(digests, i * DIGEST_BYTES, this.digests, slot * DIGEST_BYTES,
+                        DIGEST_BYTES);
+                distinct++;
+            }
+            this.size = distinct;
+        }
+
+        /**
+         * @return the slot of the name, or the empty slot it would take
+         */
+        private int slot(String name) {
+            int hash = name.hashCode();
+            int slot = (hash ^ (hash >>> 16)) & mask;
+            while (names[slot] != null && !names[slot].equals(name)) {
+                slot = (slot + 1) & mask;
+            }
+            return slot;
+        }
+
+        /**
+         * @param name a username
+         * @return the user's credential, null if unknown
+         */
+        Credential get(String name) {
+            Credential credential = changed.get(name);
+            if (credential != null) {
+                return credential;
+            }
+            int slot = slot(name);
+            if (names[slot] == null) {
+                return null;
+            }
+            if (ambiguous[slot]) {
+                return Credential.UNKNOWN;
+            }
+            int from = slot * DIGEST_BYTES;
+            return new Credential(Arrays.copyOfRange(digests, from, from + DIGEST_BYTES),
+                    urls[slot]);
+        }
+
+        /**
+         * @return number of distinct usernames
+         */
+        int size() {
+            return size;
+        }
+    }
+}
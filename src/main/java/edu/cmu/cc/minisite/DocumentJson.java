@@ -0,0 +1,132 @@
+package edu.cmu.cc.minisite;
+
+import java.io.IOException;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+import org.bson.Document;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonNull;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+import com.google.gson.stream.JsonWriter;
+
+/**
+ * Converts MongoDB documents to JSON without rendering and reparsing them.
+ *
+ * The output is the same as parsing {@link Document#toJson()} with Gson:
+ * 64-bit integers become {"$numberLong": "..."} and dates
+ * {"$date": millis}, as in the driver's strict JSON mode. The types comments
+ * are made of are converted directly; any other BSON type falls back to the
+ * driver's rendering for that one value.
+ */
+final class DocumentJson {
+
+    /**
+     * Utility class.
+     */
+    private DocumentJson() {
+    }
+
+    /**
+     * Converts a document to a Gson tree.
+     *
+     * @param document the document
+     * @return its JSON representation
+     */
+    static JsonObject toJsonObject(Map<String, Object> document) {
+        JsonObject json = new JsonObject();
+        for (Map.Entry<String, Object> field : document.entrySet()) {
+            json.add(field.getKey(), toJsonElement(field.getValue()));
+        }
+        return json;
+    }
+
+    /**
+     * Writes a document straight to a JSON stream.
+     *
+     * @param writer the stream
+     * @param document the document
+     * @throws IOException if the stream cannot be written
+     */
+    static void write(JsonWriter writer, Map<String, Object> document) throws IOException {
+        writer.beginObject();
+        for (Map.Entry<String, Object> field : document.entrySet()) {
+            writer.name(field.getKey());
+            writeValue(writer, field.getValue());
+        }
+        writer.endObject();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static JsonElement toJsonElement(Object value) {
+        if (value == null) {
+            return JsonNull.INSTANCE;
+        } else if (value instanceof String) {
+            return new JsonPrimitive((String) value);
+        } else if (value instanceof Integer || value instanceof Double) {
+            return new JsonPrimitive((Number) value);
+        } else if (value instanceof Boolean) {
+            return new JsonPrimitive((Boolean) value);
+        } else if (value instanceof Long) {
+            JsonObject json = new JsonObject();
+            json.addProperty("$numberLong", value.toString());
+            return json;
+        } else if (value instanceof Date) {
+            JsonObject json = new JsonObject();
+            json.addProperty("$date", ((Date) value).getTime());
+            return json;
+        } else if (value instanceof Map) {
+            return toJsonObject((Map<String, Object>) value);
+        } else if (value instanceof List) {
+            JsonArray json = new JsonArray();
+            for (Object element : (List<Object>) value) {
+                json.add(toJsonElement(element));
+            }
+            return json;
+        }
+        return renderWithDriver(value);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void writeValue(JsonWriter writer, Object value) throws IOException {
+        if (value == null) {
+            writer.nullValue();
+        } else if (value instanceof String) {
+            writer.value((String) value);
+        } else if (value instanceof Integer || value instanceof Double) {
+            writer.value((Number) value);
+        } else if (value instanceof Boolean) {
+            writer.value((Boolean) value);
+        } else if (value instanceof Long) {
+            writer.beginObject().name("$numberLong").value(value.toString()).endObject();
+        } else if (value instanceof Date) {
+            writer.beginObject().name("$date").value(((Date) value).getTime()).endObject();
+        } else if (value instanceof Map) {
+            write(writer, (Map<String, Object>) value);
+        } else if (value instanceof List) {
+            writer.beginArray();
+            for (Object element : (List<Object>) value) {
+                writeValue(writer, element);
+            }
+            writer.endArray();
+        } else {
+            JsonResponses.write(writer, renderWithDriver(value));
+        }
+    }
+
+    /**
+     * Converts a value of an uncommon BSON type the slow way.
+     *
+     * @param value the value
+     * @return its JSON representation
+     */
+    private static JsonElement renderWithDriver(Object value) {
+        String json = new Document("v", value).toJson();
+        return JsonParser.parseString(json).getAsJsonObject().get("v");
+    }
+}
@@ -0,0 +1,56 @@
+package edu.cmu.cc.minisite;
+
+import org.bson.Document;
+
+/**
+ * Evicts the cached entities of the backends that a change makes stale,
+ * see {@link ProfileServlet#getProfile}, {@link FollowerServlet#getSocialGraph}
+ * and {@link HomepageServlet#getTopCommentsFromFollowees}.
+ *
+ * It must run before the listeners that read the backends to handle the
+ * same change, so they read the new data:
+ *
+ * a changed comment is evicted by c_id,
+ * a new follow changes the followers or followees of both users, and
+ * a profile change changes the user's profile and, as a follower, the
+ * followers of everyone the user follows.
+ */
+class EntityCacheInvalidator implements ChangeFeed.Listener {
+
+    private final FollowerServlet followerServlet;
+
+    /**
+     * @param followerServlet finds the users affected by a change
+     */
+    EntityCacheInvalidator(FollowerServlet followerServlet) {
+        this.followerServlet = followerServlet;
+    }
+
+    @Override
+    public void commentChanged(String authorId) {
+        // only the comments are cached by c_id, and the author does not tell which
+    }
+
+    @Override
+    public void commentChanged(Document comment) {
+        String cid = comment.getString("cid");
+        if (cid != null) {
+            HomepageServlet.invalidateComment(cid);
+        }
+    }
+
+    @Override
+    public void followChanged(String followerId, String followeeId) {
+        FollowerServlet.invalidateSocialGraph(followerId);
+        FollowerServlet.invalidateSocialGraph(followeeId);
+    }
+
+    @Override
+    public void userChanged(String userId) {
+        ProfileServlet.invalidateProfile(userId);
+        for (String followee : followerServlet.getSocialGraph(userId).getFollowees()) {
+            FollowerServlet.invalidateSocialGraph(followee);
+        }
+        FollowerServlet.invalidateSocialGraph(userId);
+    }
+}
@@ -1,31 +1,142 @@
 package edu.cmu.cc.minisite;
 
 import java.io.IOException;
-import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import org.apache.log4j.Logger;
+import org.bson.Document;
 import org.neo4j.driver.v1.AuthTokens;
 import org.neo4j.driver.v1.Driver;
 import org.neo4j.driver.v1.GraphDatabase;
 import org.neo4j.driver.v1.Record;
 import org.neo4j.driver.v1.Session;
 import org.neo4j.driver.v1.StatementResult;
+import org.neo4j.driver.v1.Value;
 
 import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonWriter;
 
 /**
  * Task 2: Implement your logic to retrieve the followers of this user. You need
  * to send back the Name and Profile Image URL of his/her Followers.
  *
  * You should sort the followers alphabetically in ascending order by Name.
+ *
+ * The followers can also be read by pages keyed by name, or streamed, see
+ * {@link PageRequest}.
  */
 public class FollowerServlet extends HttpServlet {
 
+    /**
+     * Logger.
+     */
+    private static final Logger LOG = Logging.getLogger(FollowerServlet.class);
+
+    /**
+     * A user with more followers than this is a top user, TOP_USER_FOLLOWERS.
+     */
+    static final int TOP_USER_FOLLOWERS = Config.getInt("TOP_USER_FOLLOWERS", 300);
+
+    /**
+     * Query of a user's followers, sorted by name: u is the requested user,
+     * f is the follower, f follows u.
+     */
+    static final String FOLLOWERS_QUERY = "MATCH (f:User)-[:FOLLOWS]->(u:User) "
+            + "WHERE u.username = $username "
+            + "RETURN f.username AS name, f.url AS url "
+            + "ORDER BY f.username ASC";
+    /**
+     * Query of a user's followers after a name, sorted by name, see
+     * {@link #writeFollowers}.
+     */
+    static final String FOLLOWERS_AFTER_QUERY = "MATCH (f:User)-[:FOLLOWS]->(u:User) "
+            + "WHERE u.username = $username AND ($after IS NULL OR f.username > $after) "
+            + "RETURN f.username AS name, f.url AS url "
+            + "ORDER BY f.username ASC";
+    /**
+     * Query of a page of a user's followers, see {@link #writeFollowers}.
+     */
+    static final String FOLLOWERS_PAGE_QUERY = FOLLOWERS_AFTER_QUERY + " LIMIT $limit";
+    /**
+     * Query of the followers of several users, each sorted by name, see
+     * {@link #getFollowers(Collection)}.
+     */
+    static final String USERS_FOLLOWERS_QUERY = "UNWIND $usernames AS username "
+            + "OPTIONAL MATCH (f:User)-[:FOLLOWS]->(u:User {username: username}) "
+            + "WITH username, f ORDER BY f.username ASC "
+            + "WITH username, collect(f) AS followers "
+            + "RETURN username, [x IN followers | {name: x.username, url: x.url}] AS followers";
+    /**
+     * Query of a user's followees, sorted by name.
+     */
+    static final String FOLLOWEES_QUERY = "MATCH (u:User)-[:FOLLOWS]->(f:User) "
+            + "WHERE u.username = $username "
+            + "RETURN f.username AS name "
+            + "ORDER BY f.username ASC";
+    /**
+     * Query of a user's followers and followees, see {@link #getSocialGraph}.
+     */
+    static final String SOCIAL_GRAPH_QUERY = "MATCH (u:User {username: $username}) "
+            + "OPTIONAL MATCH (f:User)-[:FOLLOWS]->(u) "
+            + "WITH u, f ORDER BY f.username ASC "
+            + "WITH u, collect(f) AS followers "
+            + "OPTIONAL MATCH (u)-[:FOLLOWS]->(e:User) "
+            + "WITH followers, e ORDER BY e.username ASC "
+            + "RETURN [x IN followers | {name: x.username, url: x.url}] AS followers, "
+            + "collect(e.username) AS followees";
+    /**
+     * Query of a user's number of followers.
+     */
+    static final String FOLLOWER_COUNT_QUERY =
+            "MATCH (user:User {username: $userId})<-[:FOLLOWS]-(follower) "
+            + "RETURN COUNT(follower) AS followers";
+
+    private static final Metrics.Timer FOLLOWERS = Metrics.backend("neo4j", "followers");
+    private static final Metrics.Timer FOLLOWERS_PAGE = Metrics.backend("neo4j", "followers_page");
+    private static final Metrics.Timer USERS_FOLLOWERS =
+            Metrics.backend("neo4j", "users_followers");
+    private static final Metrics.Timer FOLLOWEES = Metrics.backend("neo4j", "followees");
+    private static final Metrics.Timer SOCIAL_GRAPH = Metrics.backend("neo4j", "social_graph");
+    private static final Metrics.Timer FOLLOWER_COUNT =
+            Metrics.backend("neo4j", "follower_count");
+    private static final Metrics.Timer TOP_USERS = Metrics.backend("neo4j", "top_users");
+
+    /**
+     * Adjacency of the users, shared by all instances: a user's followers
+     * as {@link #getFollowers} returns them under "followers/" + id, and the
+     * user's {@link SocialGraph} under "graph/" + id. Both are parsed once
+     * per entry and then shared, see {@link Cache#getDecoded}. Sized by
+     * SOCIAL_GRAPH_CACHE_MAX_BYTES and SOCIAL_GRAPH_CACHE_TTL_SECONDS.
+     */
+    private static final Cache GRAPHS =
+            Cache.fromConfig("SOCIAL_GRAPH", 64L * 1024 * 1024, 30);
+
+    static {
+        Metrics.registerCache("social_graphs", GRAPHS);
+    }
+
+    /**
+     * The FOLLOWS relation in memory, shared by all instances, null when
+     * SOCIAL_GRAPH_INDEX is off. Users it does not answer for are queried.
+     */
+    private static volatile SocialGraphIndex graphIndex;
+
     /**
      * The Neo4j driver.
      */
@@ -86,29 +197,53 @@ public class FollowerServlet extends HttpServlet {
     protected void doGet(final HttpServletRequest request, final HttpServletResponse response)
             throws ServletException, IOException {
         String id = request.getParameter("id");
-        JsonObject result = new JsonObject();
-        result.add("followers", getFollowers(id));
-        response.setContentType("text/html; charset=UTF-8");
-        response.setCharacterEncoding("UTF-8");
-        PrintWriter writer = response.getWriter();
-        writer.write(result.toString());
-        writer.close();
+        PageRequest page;
+        String after;
+        try {
+            page = PageRequest.parse(request.getParameter("limit"),
+                    request.getParameter("cursor"), request.getParameter("stream"));
+            after = page == null ? null : page.after("f", String.class);
+        } catch (IllegalArgumentException e) {
+            response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+            JsonResponses.write(response, JsonResponses.error(e.getMessage()));
+            return;
+        }
+        if (page == null) {
+            JsonObject result = new JsonObject();
+            result.add("followers", getFollowers(id));
+            JsonResponses.write(response, result);
+            return;
+        }
+        try (JsonWriter writer = JsonResponses.start(response)) {
+            writer.beginObject();
+            writeFollowers(writer, id, after, page.limit);
+            writer.endObject();
+        }
     }
 
     /**
      * Return the name and profile image url of followers, sorted
      * lexicographically in ascending order by userName. Input: id(string)
      * Output: [{name, url}...]
+     * Served from the in-memory graph or the adjacency cache when they hold
+     * them, in which case the array is shared and must not be modified.
      */
     public JsonArray getFollowers(String id) {
+        SocialGraphIndex index = graphIndex;
+        JsonArray indexed = index == null ? null : index.followers(id);
+        if (indexed != null) {
+            return indexed;
+        }
+        String key = "followers/" + id;
+        JsonArray cached = GRAPHS.getDecoded(key, JsonArray.class, FollowerServlet::parseArray);
+        if (cached != null) {
+            return cached;
+        }
+        long epoch = GRAPHS.epoch(key);
         JsonArray followers = new JsonArray();
-        // u is the requested user, f is the follower, f follows u
-        String query = "MATCH (f:User)-[:FOLLOWS]->(u:User) "
-                + "WHERE u.username = $username "
-                + "RETURN f.username AS name, f.url AS url "
-                + "ORDER BY f.username ASC";
+        long start = System.nanoTime();
         try (Session s = driver.session()) {
-            StatementResult rs = s.run(query,
+            StatementResult rs = s.run(FOLLOWERS_QUERY,
                     org.neo4j.driver.v1.Values.parameters("username", id));
             // name and url JSON objects formatted as {"name": "...", "profile": "..."}
             while (rs.hasNext()) {
@@ -118,13 +253,164 @@ public class FollowerServlet extends HttpServlet {
                 follower.addProperty("name", r.get("name").asString());
                 followers.add(follower);
             }
+            FOLLOWERS.record(start);
+            GRAPHS.putIfUnchanged(key, followers.toString(), epoch);
         } catch (Exception e) {
-            e.printStackTrace();
+            FOLLOWERS.recordError(start);
+            LOG.error("Failed to get the followers of " + id, e);
             return new JsonArray();
         }
         return followers;
     }
 
+    /**
+     * Streams a page of a user's followers as the "followers" array and, if
+     * more follow, the cursor of the next page as "next", into an open
+     * object. The rows are written as the in-memory graph or the Neo4j
+     * result yields them, without building the list, and one row more than
+     * the page is read to tell whether more follow. If the query fails half
+     * way, the array ends with the followers read so far, followed by an
+     * "error" and the "next" cursor to resume from, after the last follower
+     * written or at the page itself if none was.
+     *
+     * @param writer the JSON stream, in an open object
+     * @param id the user ID
+     * @param after name of the last follower of the previous page, null for
+     * the first page
+     * @param limit followers of the page, 0 for all
+     * @throws IOException if the stream cannot be written
+     */
+    void writeFollowers(JsonWriter writer, String id, String after, int limit)
+            throws IOException {
+        SocialGraphIndex index = graphIndex;
+        if (index != null && index.writeFollowers(writer, id, after, limit)) {
+            return;
+        }
+        writer.name("followers").beginArray();
+        // the name of the last follower written
+        String last = after;
+        boolean more = false;
+        boolean failed = false;
+        long start = System.nanoTime();
+        try (Session s = driver.session()) {
+            StatementResult rs = limit > 0
+                    ? s.run(FOLLOWERS_PAGE_QUERY, org.neo4j.driver.v1.Values.parameters(
+                            "username", id, "after", after, "limit", limit + 1))
+                    : s.run(FOLLOWERS_AFTER_QUERY, org.neo4j.driver.v1.Values.parameters(
+                            "username", id, "after", after));
+            int written = 0;
+            while (rs.hasNext()) {
+                Record r = rs.next();
+                if (written == limit && limit > 0) {
+                    more = true;
+                    break;
+                }
+                last = r.get("name").asString();
+                writeFollower(writer, last, r.get("url").asString());
+                written++;
+            }
+            FOLLOWERS_PAGE.record(start);
+        } catch (RuntimeException e) {
+            FOLLOWERS_PAGE.recordError(start);
+            LOG.error("Failed to get the followers of " + id, e);
+            failed = true;
+        }
+        writer.endArray();
+        if (failed) {
+            writer.name("error").value("Internal server error.");
+        }
+        if ((more || failed) && last != null) {
+            writeNext(writer, last);
+        }
+    }
+
+    /**
+     * Writes a follower as {@link #getFollowers(String)} returns it.
+     *
+     * @param writer the JSON stream
+     * @param name the follower's name
+     * @param url the follower's profile image URL
+     * @throws IOException if the stream cannot be written
+     */
+    static void writeFollower(JsonWriter writer, String name, String url) throws IOException {
+        writer.beginObject().name("profile").value(url).name("name").value(name).endObject();
+    }
+
+    /**
+     * Writes the cursor of the page after a follower as "next".
+     *
+     * @param writer the JSON stream, in an open object
+     * @param last name of the last follower of the page
+     * @throws IOException if the stream cannot be written
+     */
+    static void writeNext(JsonWriter writer, String last) throws IOException {
+        writer.name("next").value(PageRequest.encode(new Document("f", last)));
+    }
+
+    /**
+     * Return the followers of several users as {@link #getFollowers(String)}
+     * does, from the in-memory graph or the adjacency cache when they hold
+     * them and with one UNWIND query for the others.
+     *
+     * @param ids user IDs
+     * @return followers keyed by user ID, in the order of the IDs, an empty
+     * array for unknown users and null for users whose query failed
+     */
+    public Map<String, JsonArray> getFollowers(Collection<String> ids) {
+        SocialGraphIndex index = graphIndex;
+        Map<String, JsonArray> followers = new LinkedHashMap<>();
+        // the epochs of the cache misses, to cache what is read for them
+        Map<String, Long> missing = new LinkedHashMap<>();
+        for (String id : ids) {
+            JsonArray indexed = index == null ? null : index.followers(id);
+            JsonArray cached = indexed != null ? null
+                    : GRAPHS.getDecoded("followers/" + id, JsonArray.class,
+                            FollowerServlet::parseArray);
+            if (indexed != null) {
+                followers.put(id, indexed);
+            } else if (cached != null) {
+                followers.put(id, cached);
+            } else {
+                followers.put(id, null);
+                missing.put(id, GRAPHS.epoch("followers/" + id));
+            }
+        }
+        if (missing.isEmpty()) {
+            return followers;
+        }
+        long start = System.nanoTime();
+        try (Session s = driver.session()) {
+            StatementResult rs = s.run(USERS_FOLLOWERS_QUERY,
+                    org.neo4j.driver.v1.Values.parameters("usernames",
+                            new ArrayList<>(missing.keySet())));
+            Map<String, JsonArray> read = new LinkedHashMap<>();
+            while (rs.hasNext()) {
+                Record r = rs.next();
+                JsonArray userFollowers = new JsonArray();
+                for (Value value : r.get("followers").values()) {
+                    JsonObject follower = new JsonObject();
+                    follower.addProperty("profile", value.get("url").asString());
+                    follower.addProperty("name", value.get("name").asString());
+                    userFollowers.add(follower);
+                }
+                read.put(r.get("username").asString(), userFollowers);
+            }
+            USERS_FOLLOWERS.record(start);
+            for (Map.Entry<String, JsonArray> user : read.entrySet()) {
+                String key = "followers/" + user.getKey();
+                followers.put(user.getKey(), user.getValue());
+                GRAPHS.putIfUnchanged(key, user.getValue().toString(), missing.get(user.getKey()));
+            }
+            for (String id : missing.keySet()) {
+                followers.putIfAbsent(id, new JsonArray());
+            }
+        } catch (Exception e) {
+            USERS_FOLLOWERS.recordError(start);
+            LOG.error("Failed to get the followers of " + missing.size() + " users", e);
+        }
+        return followers;
+    }
+
     /**
      * Return the name followees, sorted
      *
@@ -132,14 +418,22 @@ public class FollowerServlet extends HttpServlet {
      * @return followees.
      */
     public JsonArray getFollowees(String userId) {
+        SocialGraphIndex index = graphIndex;
+        List<String> indexed = index == null ? null : index.followees(userId);
+        if (indexed != null) {
+            JsonArray followees = new JsonArray();
+            for (String name : indexed) {
+                JsonObject followee = new JsonObject();
+                followee.addProperty("name", name);
+                followees.add(followee);
+            }
+            return followees;
+        }
         JsonArray followees = new JsonArray();
-        String query = "MATCH (u:User)-[:FOLLOWS]->(f:User) "
-                + "WHERE u.username = $username "
-                + "RETURN f.username AS name "
-                + "ORDER BY f.username ASC";
 
+        long start = System.nanoTime();
         try (Session session = driver.session()) {
-            StatementResult rs = session.run(query,
+            StatementResult rs = session.run(FOLLOWEES_QUERY,
                     org.neo4j.driver.v1.Values.parameters("username", userId));
             while (rs.hasNext()) {
                 Record record = rs.next();
@@ -147,28 +441,197 @@ public class FollowerServlet extends HttpServlet {
                 followee.addProperty("name", record.get("name").asString());
                 followees.add(followee);
             }
+            FOLLOWEES.record(start);
         } catch (Exception e) {
-            e.printStackTrace();
+            FOLLOWEES.recordError(start);
+            LOG.error("Failed to get the followees of " + userId, e);
             return new JsonArray();
         }
 
         return followees;
     }
 
+    /**
+     * Return the followers, the followees and the follower count of a user
+     * with one Cypher statement in one session, instead of one round trip per
+     * part. Both lists are sorted by name in ascending order. Served from the
+     * in-memory graph or the adjacency cache when they hold it.
+     *
+     * @param userId The user's ID.
+     * @return the user's social graph, empty if the user is unknown or the
+     * query failed
+     */
+    public SocialGraph getSocialGraph(String userId) {
+        try {
+            return loadSocialGraph(userId);
+        } catch (RuntimeException e) {
+            LOG.error("Failed to get the social graph of " + userId, e);
+            return SocialGraph.EMPTY;
+        }
+    }
+
+    /**
+     * Return the social graph of a user as {@link #getSocialGraph} does, but
+     * report a failed query instead of answering an empty graph.
+     *
+     * @param userId The user's ID.
+     * @return the user's social graph, empty if the user is unknown
+     * @throws RuntimeException if the query failed
+     */
+    SocialGraph loadSocialGraph(String userId) {
+        SocialGraphIndex index = graphIndex;
+        if (index != null) {
+            JsonArray followers = index.followers(userId);
+            List<String> followees = followers == null ? null : index.followees(userId);
+            if (followees != null) {
+                return new SocialGraph(followers, followees);
+            }
+        }
+        String key = "graph/" + userId;
+        SocialGraph cached = GRAPHS.getDecoded(key, SocialGraph.class,
+                json -> SocialGraph.fromJson(new String(json, StandardCharsets.UTF_8)));
+        if (cached != null) {
+            return cached;
+        }
+        long epoch = GRAPHS.epoch(key);
+        long start = System.nanoTime();
+        SocialGraph graph;
+        try (Session session = driver.session()) {
+            StatementResult rs = session.run(SOCIAL_GRAPH_QUERY,
+                    org.neo4j.driver.v1.Values.parameters("username", userId));
+            if (!rs.hasNext()) {
+                graph = SocialGraph.EMPTY;
+            } else {
+                Record record = rs.next();
+                JsonArray followers = new JsonArray();
+                for (Value value : record.get("followers").values()) {
+                    JsonObject follower = new JsonObject();
+                    follower.addProperty("profile", value.get("url").asString());
+                    follower.addProperty("name", value.get("name").asString());
+                    followers.add(follower);
+                }
+                List<String> followees = record.get("followees").asList(Value::asString);
+                graph = new SocialGraph(followers, followees);
+            }
+            SOCIAL_GRAPH.record(start);
+        } catch (RuntimeException e) {
+            SOCIAL_GRAPH.recordError(start);
+            throw e;
+        }
+        GRAPHS.putIfUnchanged(key, graph.toJson(), epoch);
+        return graph;
+    }
+
+    /**
+     * Tells whether a user with this many followers is a top user.
+     *
+     * @param followerCount number of followers
+     * @return true if the user has more than {@link #TOP_USER_FOLLOWERS}
+     * followers
+     */
+    static boolean isTopUser(int followerCount) {
+        return followerCount > TOP_USER_FOLLOWERS;
+    }
+
+    /**
+     * Return whether the user has more than {@link #TOP_USER_FOLLOWERS}
+     * followers.
+     *
+     * @param userId The user's ID.
+     * @return true for top users
+     */
     public boolean isTopUser(String userId) {
-        String query = "MATCH (user:User {username: $userId})<-[:FOLLOWS]-(follower) "
-                + "RETURN COUNT(follower) > 300 AS isTopUser";
+        return isTopUser(getFollowerCount(userId));
+    }
+
+    /**
+     * Return the number of followers of a user.
+     *
+     * @param userId The user's ID.
+     * @return the number of followers, -1 if the query failed
+     */
+    public int getFollowerCount(String userId) {
+        SocialGraphIndex index = graphIndex;
+        int indexed = index == null ? -1 : index.followerCount(userId);
+        if (indexed >= 0) {
+            return indexed;
+        }
+        long start = System.nanoTime();
         try (Session session = driver.session()) {
-            StatementResult rs = session.run(query,
+            StatementResult rs = session.run(FOLLOWER_COUNT_QUERY,
                     org.neo4j.driver.v1.Values.parameters("userId", userId));
-            Record record = rs.next();
-            return record.get("isTopUser").asBoolean();
+            int followers = rs.next().get("followers").asInt();
+            FOLLOWER_COUNT.record(start);
+            return followers;
         } catch (Exception e) {
-            e.printStackTrace();
-            return false;
+            FOLLOWER_COUNT.recordError(start);
+            LOG.error("Failed to count the followers of " + userId, e);
+            return -1;
         }
     }
 
+    /**
+     * Return the names of all top users, in one pass over the graph.
+     *
+     * @return names of the users with more than {@link #TOP_USER_FOLLOWERS}
+     * followers, null if the query failed
+     */
+    public Set<String> getTopUsers() {
+        String query = "MATCH (follower:User)-[:FOLLOWS]->(user:User) "
+                + "WITH user, COUNT(follower) AS followers "
+                + "WHERE followers > $threshold "
+                + "RETURN user.username AS name";
+        long start = System.nanoTime();
+        try (Session session = driver.session()) {
+            StatementResult rs = session.run(query,
+                    org.neo4j.driver.v1.Values.parameters("threshold", TOP_USER_FOLLOWERS));
+            Set<String> names = new HashSet<>();
+            while (rs.hasNext()) {
+                names.add(rs.next().get("name").asString());
+            }
+            TOP_USERS.record(start);
+            return names;
+        } catch (Exception e) {
+            TOP_USERS.recordError(start);
+            LOG.error("Failed to find the top users", e);
+            return null;
+        }
+    }
+
+    /**
+     * @param json a UTF-8 encoded JSON array
+     * @return the array
+     */
+    private static JsonArray parseArray(byte[] json) {
+        return JsonParser.parseString(new String(json, StandardCharsets.UTF_8)).getAsJsonArray();
+    }
+
+    /**
+     * Serves the followers and followees from an in-memory graph.
+     *
+     * @param index the graph, null to query Neo4j again
+     */
+    static void useGraphIndex(SocialGraphIndex index) {
+        graphIndex = index;
+    }
+
+    /**
+     * Evicts the cached followers and social graph of a user.
+     *
+     * @param userId The user's ID.
+     */
+    static void invalidateSocialGraph(String userId) {
+        GRAPHS.invalidate("followers/" + userId);
+        GRAPHS.invalidate("graph/" + userId);
+    }
+
+    /**
+     * @return the Neo4j driver
+     */
+    Driver driver() {
+        return driver;
+    }
+
     /**
      * Closes the driver connection.
      */
@@ -177,4 +640,91 @@ public class FollowerServlet extends HttpServlet {
             driver.close();
         }
     }
+
+    /**
+     * The followers and followees of a user.
+     */
+    public static final class SocialGraph {
+
+        /**
+         * Graph of an unknown user.
+         */
+        static final SocialGraph EMPTY = new SocialGraph(new JsonArray(),
+                Collections.<String>emptyList());
+
+        /**
+         * Followers as [{profile, name}...], sorted by name.
+         */
+        private final JsonArray followers;
+        /**
+         * Names of the followees, sorted.
+         */
+        private final List<String> followees;
+
+        /**
+         * @param followers followers as [{profile, name}...]
+         * @param followees names of the followees
+         */
+        SocialGraph(JsonArray followers, List<String> followees) {
+            this.followers = followers;
+            this.followees = followees;
+        }
+
+        /**
+         * @param json a graph as {@link #toJson} returns it
+         * @return the graph
+         */
+        static SocialGraph fromJson(String json) {
+            JsonObject graph = JsonParser.parseString(json).getAsJsonObject();
+            List<String> followees = new ArrayList<>();
+            for (JsonElement followee : graph.getAsJsonArray("followees")) {
+                followees.add(followee.getAsString());
+            }
+            return new SocialGraph(graph.getAsJsonArray("followers"),
+                    Collections.unmodifiableList(followees));
+        }
+
+        /**
+         * @return the graph as {"followers": [...], "followees": [...]}
+         */
+        String toJson() {
+            JsonArray followeeNames = new JsonArray();
+            for (String followee : followees) {
+                followeeNames.add(followee);
+            }
+            JsonObject graph = new JsonObject();
+            graph.add("followers", followers);
+            graph.add("followees", followeeNames);
+            return graph.toString();
+        }
+
+        /**
+         * @return followers as [{profile, name}...], sorted by name; the
+         * array is shared and must not be modified
+         */
+        public JsonArray getFollowers() {
+            return followers;
+        }
+
+        /**
+         * @return names of the followees, sorted
+         */
+        public List<String> getFollowees() {
+            return followees;
+        }
+
+        /**
+         * @return number of followers
+         */
+        public int getFollowerCount() {
+            return followers.size();
+        }
+
+        /**
+         * @return whether the user is a top user
+         */
+        public boolean isTopUser() {
+            return FollowerServlet.isTopUser(getFollowerCount());
+        }
+    }
 }
@@ -1,22 +1,31 @@
 package edu.cmu.cc.minisite;
 
 import java.io.IOException;
-import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import org.apache.log4j.Logger;
 import org.bson.Document;
+import org.bson.conversions.Bson;
 
 import com.google.gson.JsonArray;
 import com.google.gson.JsonObject;
-import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonWriter;
 import com.mongodb.MongoClient;
 import com.mongodb.MongoClientURI;
+import com.mongodb.MongoException;
 import com.mongodb.client.MongoCollection;
 import com.mongodb.client.MongoCursor;
 import com.mongodb.client.MongoDatabase;
@@ -30,9 +39,17 @@ import com.mongodb.client.model.Sorts;
  * You should sort the comments by ups in descending order (from the largest to
  * the smallest one). If there is a tie in the ups, sort the comments in
  * descending order by their timestamp.
+ *
+ * The comments can also be read by pages keyed by (ups, timestamp, _id), see
+ * {@link PageRequest}.
  */
 public class HomepageServlet extends HttpServlet {
 
+    /**
+     * Logger.
+     */
+    private static final Logger LOG = Logging.getLogger(HomepageServlet.class);
+
     /**
      * The endpoint of the database.
      *
@@ -55,11 +72,33 @@ public class HomepageServlet extends HttpServlet {
     /**
      * Collection name.
      */
-    private static final String COLLECTION_NAME = "posts";
+    static final String COLLECTION_NAME = "posts";
+
+    private static final Metrics.Timer USER_COMMENTS = Metrics.backend("mongo", "user_comments");
+    private static final Metrics.Timer TOP_COMMENTS = Metrics.backend("mongo", "top_comments");
+    private static final Metrics.Timer USERS_COMMENTS =
+            Metrics.backend("mongo", "users_comments");
+
+    /**
+     * Comments by c_id, as fetched for the parents and grandparents of the
+     * timelines, shared by all instances. Comments rarely change once
+     * posted, so they are kept long. A cached comment is parsed once and
+     * then shared, see {@link Cache#getDecoded}. Sized by
+     * COMMENT_CACHE_MAX_BYTES and COMMENT_CACHE_TTL_SECONDS.
+     */
+    private static final Cache COMMENTS = Cache.fromConfig("COMMENT", 64L * 1024 * 1024, 3600);
+
+    static {
+        Metrics.registerCache("comments", COMMENTS);
+    }
     /**
      * MongoDB connection.
      */
     private static MongoCollection<Document> collection;
+    /**
+     * The database of the collection, null when the collection is given.
+     */
+    private static MongoDatabase database;
 
     /**
      * Initialize the connection.
@@ -68,10 +107,19 @@ public class HomepageServlet extends HttpServlet {
         Objects.requireNonNull(MONGO_HOST);
         MongoClientURI connectionString = new MongoClientURI(URL);
         MongoClient mongoClient = new MongoClient(connectionString);
-        MongoDatabase database = mongoClient.getDatabase(DB_NAME);
+        database = mongoClient.getDatabase(DB_NAME);
         collection = database.getCollection(COLLECTION_NAME);
     }
 
+    /**
+     * Constructor for mocking the class behaviour
+     *
+     * @param collection Mocked collection object
+     */
+    HomepageServlet(MongoCollection<Document> collection) {
+        HomepageServlet.collection = collection;
+    }
+
     /**
      * Implement this method.
      *
@@ -85,131 +133,498 @@ public class HomepageServlet extends HttpServlet {
     protected void doGet(final HttpServletRequest request,
             final HttpServletResponse response) throws ServletException, IOException {
 
-        JsonObject result = new JsonObject();
         String id = request.getParameter("id");
+        PageRequest page;
         // try to get the comments
+        MongoCursor<Document> cursor;
         try {
-            JsonArray comments = fetchUserComments(id);
-            result.add("comments", comments);
+            page = PageRequest.parse(request.getParameter("limit"),
+                    request.getParameter("cursor"), request.getParameter("stream"));
+            cursor = page == null ? findUserComments(id) : findUserComments(id, page);
+        } catch (IllegalArgumentException e) {
+            response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+            JsonResponses.write(response, JsonResponses.error(e.getMessage()));
+            return;
         } catch (Exception e) {
+            LOG.error("Failed to get the comments of " + id, e);
+            JsonObject result = new JsonObject();
             response.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
             result.addProperty("error", "Internal server error.");
+            JsonResponses.write(response, result);
+            return;
+        }
+        try (JsonWriter writer = JsonResponses.start(response)) {
+            writer.beginObject();
+            if (page == null) {
+                writeComments(writer.name("comments"), cursor, id);
+            } else {
+                writeComments(writer, cursor, id, page);
+            }
+            writer.endObject();
+        }
+    }
+
+    /**
+     * @return the comments collection
+     */
+    MongoCollection<Document> collection() {
+        return collection;
+    }
+
+    /**
+     * @return the database of the comments, null if the servlet was given
+     *         its collection
+     */
+    MongoDatabase database() {
+        return database;
+    }
+
+    /**
+     * @param name name of a collection
+     * @return the collection of the comments' database
+     * @throws IllegalStateException if the servlet was given its collection
+     */
+    MongoCollection<Document> collection(String name) {
+        if (database == null) {
+            throw new IllegalStateException("No database to find " + name + " in");
         }
-        response.setContentType("text/html; charset=UTF-8");
-        response.setCharacterEncoding("UTF-8");
-        PrintWriter writer = response.getWriter();
-        writer.write(result.toString());
-        writer.close();
+        return database.getCollection(name);
     }
 
     /**
-     * Get the comments by the user id.
+     * Queries the comments by the user id.
      *
      * @param userId the user id
-     * @return the comments by the user id
+     * @return cursor over the comments by the user id
      */
-    private JsonArray fetchUserComments(String userId) {
-        // filter by user id 
+    MongoCursor<Document> findUserComments(String userId) {
+        // filter by user id
         Document f = new Document("uid", userId);
         // sort by ups then timestamp
         Document s = new Document("ups", -1).append("timestamp", -1);
         // exclude the id field
         Document p = new Document("_id", 0);
 
-        MongoCursor<Document> cursor = collection.find(f)
-                .sort(s).projection(p).iterator();
+        // times the query and its first batch, the rest is streamed
+        long start = System.nanoTime();
+        try {
+            MongoCursor<Document> cursor = collection.find(f).sort(s).projection(p).iterator();
+            USER_COMMENTS.record(start);
+            return cursor;
+        } catch (RuntimeException e) {
+            USER_COMMENTS.recordError(start);
+            throw e;
+        }
+    }
+
+    /**
+     * Queries a page of the comments by the user id, in the order of
+     * {@link #findUserComments(String)}, ties broken by _id. The key of a
+     * comment is (ups, timestamp, _id), which is unique, so the page starts
+     * right after the key of the cursor: comments with equal ups and
+     * timestamp are neither lost nor repeated across pages, and the
+     * (uid, ups, timestamp, _id) index seeks to the page however deep it is.
+     * One comment more than the page is read to tell whether more follow.
+     *
+     * @param userId the user id
+     * @param page the page
+     * @return cursor over the comments of the page, with their _id
+     * @throws IllegalArgumentException if the cursor is invalid
+     */
+    MongoCursor<Document> findUserComments(String userId, PageRequest page) {
+        Bson f = Filters.eq("uid", userId);
+        if (page.after != null) {
+            Object ups = page.after("ups", Object.class);
+            Object timestamp = page.after("timestamp", Object.class);
+            Object id = page.after("_id", Object.class);
+            f = Filters.and(f, Filters.or(Filters.lt("ups", ups),
+                    Filters.and(Filters.eq("ups", ups), Filters.lt("timestamp", timestamp)),
+                    Filters.and(Filters.eq("ups", ups), Filters.eq("timestamp", timestamp),
+                            Filters.lt("_id", id))));
+        }
+        Document s = new Document("ups", -1).append("timestamp", -1).append("_id", -1);
+        long start = System.nanoTime();
+        try {
+            MongoCursor<Document> cursor = collection.find(f).sort(s)
+                    .limit(page.limit > 0 ? page.limit + 1 : 0).iterator();
+            USER_COMMENTS.record(start);
+            return cursor;
+        } catch (RuntimeException e) {
+            USER_COMMENTS.recordError(start);
+            throw e;
+        }
+    }
+
+    /**
+     * Streams a page of comments of {@link #findUserComments(String,
+     * PageRequest)} as the "comments" array and, if more follow, the cursor
+     * of the next page as "next", into an open object. The _id of a comment
+     * goes into the cursor only. If the cursor fails half way, the array ends
+     * with the comments read so far, followed by an "error" and the "next"
+     * cursor to resume from, after the last comment written or at the page
+     * itself if none was.
+     *
+     * @param writer the JSON stream, in an open object
+     * @param cursor the comments of the page
+     * @param userId the user id, for logging
+     * @param page the page
+     * @throws IOException if the stream cannot be written
+     */
+    void writeComments(JsonWriter writer, MongoCursor<Document> cursor, String userId,
+            PageRequest page) throws IOException {
+        // the key of the last comment written
+        Document last = page.after;
+        int written = 0;
+        boolean more = false;
+        boolean failed = false;
+        writer.name("comments").beginArray();
+        try {
+            while (cursor.hasNext()) {
+                Document comment = cursor.next();
+                if (written == page.limit && page.limit > 0) {
+                    more = true;
+                    break;
+                }
+                last = new Document("ups", comment.get("ups"))
+                        .append("timestamp", comment.get("timestamp"))
+                        .append("_id", comment.remove("_id"));
+                DocumentJson.write(writer, comment);
+                written++;
+            }
+        } catch (MongoException e) {
+            LOG.error("Failed to get the comments of " + userId, e);
+            failed = true;
+        } finally {
+            cursor.close();
+        }
+        writer.endArray();
+        if (failed) {
+            writer.name("error").value("Internal server error.");
+        }
+        if ((more || failed) && last != null) {
+            writer.name("next").value(PageRequest.encode(last));
+        }
+    }
 
-        JsonArray comments = new JsonArray();
-        // BSON to JSON
+    /**
+     * Streams the comments of a cursor as a JSON array, converting each BSON
+     * document straight to JSON. If the cursor fails half way, the array ends
+     * with the comments read so far.
+     *
+     * @param writer the JSON stream
+     * @param cursor the comments
+     * @param userId the user id, for logging
+     * @throws IOException if the stream cannot be written
+     */
+    void writeComments(JsonWriter writer, MongoCursor<Document> cursor, String userId)
+            throws IOException {
+        writer.beginArray();
         try {
             while (cursor.hasNext()) {
-                Document d = cursor.next();
-                JsonObject json = new JsonParser().parse(d.toJson()).getAsJsonObject();
-                comments.add(json);
+                DocumentJson.write(writer, cursor.next());
             }
-        } catch (Exception e) {
-            e.printStackTrace();
-            return new JsonArray();
+        } catch (MongoException e) {
+            LOG.error("Failed to get the comments of " + userId, e);
         } finally {
             cursor.close();
         }
-        return comments;
+        writer.endArray();
+    }
+
+    /**
+     * Queries the comments of several users with one $in query, sorted by
+     * user id, then by ups and timestamp in descending order, which is the
+     * order of the (uid, ups, timestamp) index, so the comments of a user
+     * come together and need no sort in memory.
+     *
+     * @param userIds the user ids
+     * @return cursor over the comments of the users
+     */
+    MongoCursor<Document> findUsersComments(Collection<String> userIds) {
+        Document s = new Document("uid", 1).append("ups", -1).append("timestamp", -1);
+        long start = System.nanoTime();
+        try {
+            MongoCursor<Document> cursor = collection.find(Filters.in("uid", userIds))
+                    .sort(s).projection(new Document("_id", 0)).iterator();
+            USERS_COMMENTS.record(start);
+            return cursor;
+        } catch (RuntimeException e) {
+            USERS_COMMENTS.recordError(start);
+            throw e;
+        }
+    }
+
+    /**
+     * Streams the comments of a cursor of {@link #findUsersComments} as a
+     * JSON object of the comments of every user, keyed by user id. Users
+     * without comments get an empty array; comments without a user id are
+     * skipped. If the cursor fails half way, the
+     * user being read and the users not reached yet are returned as failed:
+     * the array of the first holds only the comments read so far, the others
+     * get none.
+     *
+     * @param writer the JSON stream
+     * @param cursor the comments, grouped by user id
+     * @param userIds the user ids
+     * @return the users whose comments could not all be read, in request
+     *         order, empty if the cursor did not fail
+     * @throws IOException if the stream cannot be written
+     */
+    List<String> writeUsersComments(JsonWriter writer, MongoCursor<Document> cursor,
+            Collection<String> userIds) throws IOException {
+        Set<String> pending = new HashSet<>(userIds);
+        writer.beginObject();
+        String current = null;
+        boolean failed = false;
+        try {
+            while (cursor.hasNext()) {
+                Document comment = cursor.next();
+                String uid = comment.getString("uid");
+                if (uid == null) {
+                    // cannot be grouped under a user
+                    continue;
+                }
+                if (!uid.equals(current)) {
+                    if (current != null) {
+                        writer.endArray();
+                    }
+                    current = uid;
+                    pending.remove(uid);
+                    writer.name(uid).beginArray();
+                }
+                DocumentJson.write(writer, comment);
+            }
+        } catch (MongoException e) {
+            LOG.error("Failed to get the comments of " + userIds.size() + " users", e);
+            failed = true;
+        } finally {
+            cursor.close();
+        }
+        if (current != null) {
+            writer.endArray();
+        }
+        List<String> failedIds = new ArrayList<>();
+        for (String uid : userIds) {
+            if (failed && (pending.contains(uid) || Objects.equals(uid, current))) {
+                failedIds.add(uid);
+            } else if (pending.contains(uid)) {
+                writer.name(uid).beginArray().endArray();
+            }
+        }
+        writer.endObject();
+        return failedIds;
     }
 
     /**
-     * Fetches a parent comment by its c_id and converts it to a JsonObject.
+     * Fetches the comments with the given c_ids, from the comment cache or
+     * with a single $in query for those it does not hold. The comments are
+     * embedded as they are and must not be modified, since the cached ones
+     * are shared.
      *
-     * @param parent_id
-     * @return JsonObject representation of the comment, or null if not found.
+     * @param cids c_ids of the comments to fetch
+     * @return comments keyed by c_id, comments that are not found are absent
      */
-    private JsonObject fetchCommentByCid(String cid) {
-        Document commentDoc = collection.find(Filters.eq("cid", cid))
-                .projection(new Document("_id", 0))
-                .first();
-        return commentDoc != null ? parseDocumentToJson(commentDoc) : null;
+    private Map<String, Document> fetchCommentsByCid(Set<String> cids) {
+        Map<String, Document> comments = new HashMap<>();
+        // the epochs of the cache misses, to cache what is fetched for them
+        Map<String, Long> missing = new HashMap<>();
+        for (String cid : cids) {
+            Document cached = COMMENTS.getDecoded(cid, Document.class,
+                    json -> Document.parse(new String(json, StandardCharsets.UTF_8)));
+            if (cached != null) {
+                comments.put(cid, cached);
+            } else {
+                missing.put(cid, COMMENTS.epoch(cid));
+            }
+        }
+        if (missing.isEmpty()) {
+            return comments;
+        }
+        MongoCursor<Document> cursor = collection.find(Filters.in("cid", missing.keySet()))
+                .projection(new Document("_id", 0)).iterator();
+        try {
+            while (cursor.hasNext()) {
+                Document commentDoc = cursor.next();
+                String cid = commentDoc.getString("cid");
+                // keep the first match, as find(...).first() would
+                if (comments.putIfAbsent(cid, commentDoc) == null) {
+                    COMMENTS.putIfUnchanged(cid, commentDoc.toJson(), missing.get(cid));
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+        return comments;
     }
 
     /**
-     * Converts a BSON Document to a JsonObject.
+     * Evicts a cached comment.
      *
-     * @param document BSON Document to convert.
-     * @return JsonObject representation of the document.
+     * @param cid c_id of the comment
      */
-    private JsonObject parseDocumentToJson(Document document) {
-        return JsonParser.parseString(document.toJson()).getAsJsonObject();
+    static void invalidateComment(String cid) {
+        COMMENTS.invalidate(cid);
     }
 
     /**
      * Retrieves the top comments from followees, including parent and
      * grandparent comments.
      *
+     * The parents of all top comments are resolved with one $in query and the
+     * grandparents with a second one, so a timeline costs three round trips to
+     * MongoDB instead of one per ancestor.
+     *
      * @param followeeIds List of followee user IDs.
-     * @param limit Maximum number of comments to retrieve.
+     * @param top Maximum number of comments to retrieve.
      * @return JsonArray of comments with parent and grandparent data.
      */
     public JsonArray getTopCommentsFromFollowees(List<String> followeeIds, int top) {
-        JsonArray commentsArray = new JsonArray();
+        try {
+            return loadTopCommentsFromFollowees(followeeIds, top);
+        } catch (RuntimeException e) {
+            LOG.error("Failed to get the top comments of " + followeeIds.size() + " followees", e);
+            return new JsonArray();
+        }
+    }
+
+    /**
+     * Retrieves the top comments from followees as
+     * {@link #getTopCommentsFromFollowees} does, but reports a failed query
+     * instead of answering no comments.
+     *
+     * @param followeeIds List of followee user IDs.
+     * @param top Maximum number of comments to retrieve.
+     * @return JsonArray of comments with parent and grandparent data.
+     * @throws MongoException if a query failed
+     */
+    JsonArray loadTopCommentsFromFollowees(List<String> followeeIds, int top) {
         // handle empty followeeIds
         if (followeeIds.isEmpty()) {
+            return new JsonArray();
+        }
+        long start = System.nanoTime();
+        try {
+            JsonArray commentsArray = toTimelineComments(findTopComments(followeeIds, top), top);
+            TOP_COMMENTS.record(start);
             return commentsArray;
+        } catch (RuntimeException e) {
+            TOP_COMMENTS.recordError(start);
+            throw e;
+        }
+    }
+
+    /**
+     * Queries the top comments of the followees, sorted by ups then
+     * timestamp in descending order, each with its parent embedded as
+     * "parent" and its grandparent as "grand_parent" when they exist.
+     *
+     * @param followeeIds user IDs of the followees
+     * @param limit maximum number of comments to retrieve
+     * @return the comments with their ancestors
+     * @throws MongoException if a query fails
+     */
+    List<Document> findTopComments(List<String> followeeIds, int limit) {
+        if (followeeIds.isEmpty()) {
+            return new ArrayList<>();
         }
         // Query MongoDB for each followee top comments
-        MongoCursor<Document> cursor = collection.find(Filters.in("uid", followeeIds))
-                .sort(Sorts.descending("ups", "timestamp")).limit(top).projection(new Document("_id", 0)).iterator();
-        try {
-            while (cursor.hasNext()) {
-                Document commentDoc = cursor.next();
-                JsonObject commentJson = parseDocumentToJson(commentDoc);
-                String parentId = commentDoc.getString("parent_id");
-                // have parent
-                if (parentId != null && !parentId.isEmpty()) {
-                    JsonObject parentJson = fetchCommentByCid(parentId);
-                    // parent exists then parse grandparent
-                    if (parentJson != null) {
-                        // add parent comment to followee json
-                        commentJson.add("parent", parentJson);
-                        String grandParentId = parentJson.get("parent_id").getAsString();
-                        if (grandParentId != null && !grandParentId.isEmpty()) {
-                            JsonObject grandParentJson = fetchCommentByCid(grandParentId);
-                            // grandparent exists then add to parent json
-                            if (grandParentJson != null) {
-                                commentJson.add("grand_parent", grandParentJson);
-                            }
-                        }
-                        
-                    }
-                    commentsArray.add(commentJson);
-                }
+        List<Document> topComments = collection.find(Filters.in("uid", followeeIds))
+                .sort(Sorts.descending("ups", "timestamp")).limit(limit)
+                .projection(new Document("_id", 0)).into(new ArrayList<>());
+
+        // resolve all parents in one round trip
+        Set<String> parentIds = new HashSet<>();
+        for (Document commentDoc : topComments) {
+            addIfPresent(parentIds, commentDoc.getString("parent_id"));
+        }
+        Map<String, Document> parents = fetchCommentsByCid(parentIds);
+
+        // then all grandparents in a second one
+        Set<String> grandParentIds = new HashSet<>();
+        for (Document parentDoc : parents.values()) {
+            addIfPresent(grandParentIds, parentDoc.getString("parent_id"));
+        }
+        Map<String, Document> grandParents = fetchCommentsByCid(grandParentIds);
+
+        // stitch the comments together in memory
+        List<Document> comments = new ArrayList<>(topComments.size());
+        for (Document commentDoc : topComments) {
+            comments.add(embedAncestors(commentDoc, parents, grandParents));
+        }
+        return comments;
+    }
+
+    /**
+     * Embeds the parent and grandparent of a single comment, see
+     * {@link #findTopComments}.
+     *
+     * @param comment the comment, without _id
+     * @return a copy of the comment with its ancestors
+     * @throws MongoException if a query fails
+     */
+    Document withAncestors(Document comment) {
+        Set<String> parentIds = new HashSet<>();
+        addIfPresent(parentIds, comment.getString("parent_id"));
+        Map<String, Document> parents = fetchCommentsByCid(parentIds);
+        Set<String> grandParentIds = new HashSet<>();
+        for (Document parentDoc : parents.values()) {
+            addIfPresent(grandParentIds, parentDoc.getString("parent_id"));
+        }
+        return embedAncestors(comment, parents, fetchCommentsByCid(grandParentIds));
+    }
+
+    private static Document embedAncestors(Document comment, Map<String, Document> parents,
+            Map<String, Document> grandParents) {
+        Document embedded = new Document(comment);
+        String parentId = comment.getString("parent_id");
+        Document parentDoc = parentId == null ? null : parents.get(parentId);
+        // parent exists then add grandparent
+        if (parentDoc != null) {
+            embedded.append("parent", parentDoc);
+            String grandParentId = parentDoc.getString("parent_id");
+            Document grandParentDoc = grandParentId == null
+                    ? null : grandParents.get(grandParentId);
+            // grandparent exists then add to comment json
+            if (grandParentDoc != null) {
+                embedded.append("grand_parent", grandParentDoc);
+            }
+        }
+        return embedded;
+    }
+
+    /**
+     * Converts the top comments with their ancestors, as returned by
+     * {@link #findTopComments}, to the comments of a timeline: the comments
+     * among the first top ones that reply to another comment.
+     *
+     * @param comments the comments with their ancestors, best first
+     * @param top number of comments considered
+     * @return JsonArray of comments with parent and grandparent data
+     */
+    static JsonArray toTimelineComments(List<Document> comments, int top) {
+        JsonArray commentsArray = new JsonArray();
+        for (Document commentDoc : comments.subList(0, Math.min(top, comments.size()))) {
+            String parentId = commentDoc.getString("parent_id");
+            // have parent
+            if (parentId != null && !parentId.isEmpty()) {
+                commentsArray.add(DocumentJson.toJsonObject(commentDoc));
             }
-        } catch (Exception e) {
-            e.printStackTrace();
-            return new JsonArray();
-        } finally {
-            cursor.close();
         }
         return commentsArray;
     }
 
+    /**
+     * Adds the id to the set if it is neither null nor empty.
+     *
+     * @param ids the set to add to
+     * @param id the id, may be null
+     */
+    private static void addIfPresent(Set<String> ids, String id) {
+        if (id != null && !id.isEmpty()) {
+            ids.add(id);
+        }
+    }
+
     /**
      * Closes the MongoDB collection. Note: MongoClient should be closed
      * externally if needed.
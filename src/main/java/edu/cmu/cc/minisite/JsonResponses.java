@@ -0,0 +1,176 @@
+package edu.cmu.cc.minisite;
+
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import javax.servlet.http.HttpServletResponse;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonWriter;
+
+import io.undertow.server.HttpServerExchange;
+import io.undertow.util.Headers;
+
+/**
+ * Writes JSON responses.
+ *
+ * JSON is streamed as UTF-8 straight into the response instead of being
+ * rendered into a String first. The output is byte for byte what
+ * {@link JsonElement#toString()} would produce.
+ */
+final class JsonResponses {
+
+    /**
+     * Content type of every response.
+     */
+    static final String CONTENT_TYPE = "text/html; charset=UTF-8";
+    /**
+     * Content-Type header as the servlet container renders {@link #CONTENT_TYPE},
+     * sent as is by the native handlers so both modes answer alike.
+     */
+    static final String CONTENT_TYPE_HEADER = "text/html;charset=UTF-8";
+
+    /**
+     * Size of the buffer between the JSON writer and the output stream.
+     */
+    private static final int BUFFER_SIZE = 8192;
+
+    /**
+     * Writes JSON trees without touching the writer's settings.
+     */
+    private static final TypeAdapter<JsonElement> ELEMENT_ADAPTER =
+            new Gson().getAdapter(JsonElement.class);
+
+    /**
+     * Utility class.
+     */
+    private JsonResponses() {
+    }
+
+    /**
+     * @param message the error
+     * @return the error as {"error": message}
+     */
+    static JsonObject error(String message) {
+        JsonObject result = new JsonObject();
+        result.addProperty("error", message);
+        return result;
+    }
+
+    /**
+     * Creates a JSON writer that encodes UTF-8 into the stream. Closing the
+     * writer closes the stream.
+     *
+     * @param out the stream
+     * @return the writer
+     */
+    static JsonWriter newWriter(OutputStream out) {
+        JsonWriter writer = new JsonWriter(new BufferedWriter(
+                new OutputStreamWriter(out, StandardCharsets.UTF_8), BUFFER_SIZE));
+        // same settings as JsonElement.toString()
+        writer.setLenient(true);
+        return writer;
+    }
+
+    /**
+     * Sets the content type and returns a JSON writer over the response body.
+     *
+     * @param response the response
+     * @return the writer, to be closed by the caller
+     * @throws IOException if an input or output error occurs
+     */
+    static JsonWriter start(HttpServletResponse response) throws IOException {
+        response.setContentType(CONTENT_TYPE);
+        response.setCharacterEncoding("UTF-8");
+        return newWriter(response.getOutputStream());
+    }
+
+    /**
+     * Streams a JSON tree into the response.
+     *
+     * @param response the response
+     * @param json the JSON to send
+     * @throws IOException if an input or output error occurs
+     */
+    static void write(HttpServletResponse response, JsonElement json) throws IOException {
+        try (JsonWriter writer = start(response)) {
+            ELEMENT_ADAPTER.write(writer, json);
+        }
+    }
+
+    /**
+     * Sends pre-encoded JSON.
+     *
+     * @param response the response
+     * @param body UTF-8 encoded JSON
+     * @throws IOException if an input or output error occurs
+     */
+    static void write(HttpServletResponse response, byte[] body) throws IOException {
+        response.setContentType(CONTENT_TYPE);
+        response.setCharacterEncoding("UTF-8");
+        response.setContentLength(body.length);
+        try (OutputStream out = response.getOutputStream()) {
+            out.write(body);
+        }
+    }
+
+    /**
+     * Sets the content type of a native Undertow response and returns a JSON
+     * writer over its body. The exchange must be in blocking mode.
+     *
+     * @param exchange the exchange
+     * @return the writer, to be closed by the caller
+     */
+    static JsonWriter start(HttpServerExchange exchange) {
+        exchange.getResponseHeaders().put(Headers.CONTENT_TYPE, CONTENT_TYPE_HEADER);
+        return newWriter(exchange.getOutputStream());
+    }
+
+    /**
+     * Sends pre-encoded JSON as a native Undertow response, without blocking.
+     *
+     * @param exchange the exchange
+     * @param body UTF-8 encoded JSON
+     */
+    static void send(HttpServerExchange exchange, byte[] body) {
+        exchange.getResponseHeaders().put(Headers.CONTENT_TYPE, CONTENT_TYPE_HEADER);
+        exchange.getResponseSender().send(ByteBuffer.wrap(body));
+    }
+
+    /**
+     * Writes a JSON tree to a JSON stream.
+     *
+     * @param writer the stream
+     * @param json the JSON
+     * @throws IOException if the stream cannot be written
+     */
+    static void write(JsonWriter writer, JsonElement json) throws IOException {
+        ELEMENT_ADAPTER.write(writer, json);
+    }
+
+    /**
+     * Encodes a JSON tree as UTF-8.
+     *
+     * @param json the JSON
+     * @return the encoded JSON
+     */
+    static byte[] toBytes(JsonElement json) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(BUFFER_SIZE);
+        try (JsonWriter writer = newWriter(out)) {
+            ELEMENT_ADAPTER.write(writer, json);
+        } catch (IOException e) {
+            // cannot happen with an in-memory stream
+            throw new UncheckedIOException(e);
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,67 @@
+package edu.cmu.cc.minisite;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+
+/**
+ * Entry point to the logging of the website.
+ *
+ * Loggers are log4j loggers writing through the asynchronous appender set up
+ * in log4j.xml, so request threads never wait for stdout. The root level can
+ * be overridden with the LOG_LEVEL setting, e.g. "export LOG_LEVEL=DEBUG".
+ *
+ * Per-request logging is sampled: {@link #isSampled()} is true for about one
+ * request in LOG_SAMPLE_RATE (default 1000, 0 turns request logging off).
+ */
+final class Logging {
+
+    /**
+     * One in this many requests is logged.
+     */
+    private static final int SAMPLE_RATE = Config.getInt("LOG_SAMPLE_RATE", 1000);
+
+    static {
+        String level = Config.get("LOG_LEVEL", null);
+        if (level != null) {
+            setLevel(level);
+        }
+    }
+
+    /**
+     * Utility class.
+     */
+    private Logging() {
+    }
+
+    /**
+     * Returns the logger of a class.
+     *
+     * @param type the class
+     * @return its logger
+     */
+    static Logger getLogger(Class<?> type) {
+        return Logger.getLogger(type);
+    }
+
+    /**
+     * Decides whether the current request is logged.
+     *
+     * @return true for about one request in LOG_SAMPLE_RATE
+     */
+    static boolean isSampled() {
+        return SAMPLE_RATE > 0
+                && (SAMPLE_RATE == 1 || ThreadLocalRandom.current().nextInt(SAMPLE_RATE) == 0);
+    }
+
+    /**
+     * Changes the root log level at runtime.
+     *
+     * @param level name of the level, e.g. "DEBUG"
+     */
+    static void setLevel(String level) {
+        LogManager.getRootLogger().setLevel(Level.toLevel(level, Level.INFO));
+    }
+}
@@ -0,0 +1,334 @@
+package edu.cmu.cc.minisite;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+import org.apache.log4j.Logger;
+
+/**
+ * A second cache tier in a memory-mapped file, shared by every process on
+ * the host that maps the same file. The data lives in the page cache rather
+ * than on the heap, and survives restarts; on /dev/shm, the default, it
+ * lasts until the host reboots.
+ *
+ * The file is a hash table of fixed-size slots after a header that records
+ * its geometry. A key may live in any of {@link #PROBES} consecutive slots;
+ * when they are all taken, the first is overwritten. Values that do not fit
+ * a slot are not stored.
+ *
+ * Writers lock the slot's region of the file, which excludes other
+ * processes, and bump the slot's sequence number to odd before and to even
+ * after the write. Readers take no lock: they retry or give up when the
+ * sequence is odd or changes during the read, and verify a CRC of the
+ * entry, so a torn read is never returned.
+ *
+ * Settings: CACHE_L2_PATH, CACHE_L2_SLOTS and CACHE_L2_SLOT_BYTES.
+ */
+class MappedCacheTier implements CacheTier {
+
+    /**
+     * Logger.
+     */
+    private static final Logger LOG = Logging.getLogger(MappedCacheTier.class);
+
+    private static final int MAGIC = 0x4D534331;
+    private static final int VERSION = 1;
+    /**
+     * Bytes of the file header: magic, version, slot count and slot size,
+     * padded to a page.
+     */
+    private static final int HEADER_BYTES = 4096;
+
+    // slot layout
+    private static final int SEQ = 0;
+    private static final int HASH = 4;
+    private static final int EXPIRES_AT = 8;
+    private static final int KEY_LENGTH = 16;
+    private static final int VALUE_LENGTH = 20;
+    private static final int CRC = 24;
+    private static final int DATA = 28;
+
+    /**
+     * Number of slots a key may occupy.
+     */
+    static final int PROBES = 4;
+    /**
+     * Attempts at reading a slot that is being written.
+     */
+    private static final int READ_ATTEMPTS = 3;
+    /**
+     * Locks ordering the writers of this JVM, since file locks are held on
+     * behalf of the whole JVM and cannot exclude its threads.
+     */
+    private static final Object[] STRIPES = new Object[64];
+
+    static {
+        for (int i = 0; i < STRIPES.length; i++) {
+            STRIPES[i] = new Object();
+        }
+    }
+
+    private final File file;
+    private final RandomAccessFile raf;
+    private final FileChannel channel;
+    private final MappedByteBuffer buffer;
+    private final int slots;
+    private final int slotBytes;
+
+    /**
+     * Maps the file, creating or reformatting it if its geometry differs.
+     *
+     * @param file the shared file
+     * @param slots number of slots
+     * @param slotBytes size of a slot, which bounds key plus value size
+     * @throws IOException if the file cannot be mapped
+     * @throws IllegalArgumentException if the geometry does not fit a mapping
+     */
+    MappedCacheTier(File file, int slots, int slotBytes) throws IOException {
+        if (slots <= 0 || slotBytes <= DATA) {
+            throw new IllegalArgumentException("Invalid slots " + slots + " of " + slotBytes);
+        }
+        long size = HEADER_BYTES + (long) slots * slotBytes;
+        if (size > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Mapped cache of " + size + " bytes is too large");
+        }
+        this.file = file;
+        this.slots = slots;
+        this.slotBytes = slotBytes;
+        this.raf = new RandomAccessFile(file, "rw");
+        this.channel = raf.getChannel();
+        try {
+            FileLock lock = channel.lock(0, HEADER_BYTES, false);
+            try {
+                if (raf.length() < size) {
+                    raf.setLength(size);
+                }
+                buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+                if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION
+                        || buffer.getInt(8) != slots || buffer.getInt(12) != slotBytes) {
+                    format();
+                }
+            } finally {
+                lock.release();
+            }
+        } catch (IOException | RuntimeException e) {
+            raf.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public byte[] get(String key) {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        int hash = key.hashCode();
+        int base = indexOf(hash);
+        for (int probe = 0; probe < PROBES; probe++) {
+            byte[] value = read((base + probe) % slots, hash, keyBytes);
+            if (value != null) {
+                return value;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public void put(String key, byte[] value, long ttlMillis) {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        if (DATA + keyBytes.length + value.length > slotBytes) {
+            // never serve an older value that did fit
+            invalidate(key);
+            return;
+        }
+        int hash = key.hashCode();
+        long now = System.currentTimeMillis();
+        long expiresAt = ttlMillis > 0 ? now + ttlMillis : 0;
+        int slot = chooseSlot(hash, keyBytes, now);
+        write(slot, hash, keyBytes, value, expiresAt);
+    }
+
+    @Override
+    public void invalidate(String key) {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        int hash = key.hashCode();
+        int base = indexOf(hash);
+        for (int probe = 0; probe < PROBES; probe++) {
+            int slot = (base + probe) % slots;
+            if (holds(slot, hash, keyBytes)) {
+                write(slot, 0, new byte[0], new byte[0], 0);
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        try {
+            raf.close();
+        } catch (IOException e) {
+            LOG.warn("Failed to close " + file, e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "MappedCacheTier{file=" + file + ", slots=" + slots
+                + ", slotBytes=" + slotBytes + "}";
+    }
+
+    /**
+     * Reads the value of a key from a slot.
+     *
+     * @return the value, or null if the slot does not hold the key, holds an
+     *         expired value or could not be read consistently
+     */
+    private byte[] read(int slot, int hash, byte[] keyBytes) {
+        int offset = offsetOf(slot);
+        for (int attempt = 0; attempt < READ_ATTEMPTS; attempt++) {
+            int seq = buffer.getInt(offset + SEQ);
+            if ((seq & 1) != 0) {
+                Thread.yield();
+                continue;
+            }
+            if (buffer.getInt(offset + HASH) != hash
+                    || buffer.getInt(offset + KEY_LENGTH) != keyBytes.length) {
+                return null;
+            }
+            long expiresAt = buffer.getLong(offset + EXPIRES_AT);
+            int valueLength = buffer.getInt(offset + VALUE_LENGTH);
+            int crc = buffer.getInt(offset + CRC);
+            if (valueLength < 0 || DATA + keyBytes.length + valueLength > slotBytes) {
+                continue;
+            }
+            byte[] storedKey = new byte[keyBytes.length];
+            byte[] value = new byte[valueLength];
+            ByteBuffer view = buffer.duplicate();
+            view.position(offset + DATA);
+            view.get(storedKey).get(value);
+            if (buffer.getInt(offset + SEQ) != seq
+                    || crc != checksum(storedKey, value, expiresAt)) {
+                continue;
+            }
+            if (!Arrays.equals(storedKey, keyBytes)) {
+                return null;
+            }
+            if (expiresAt != 0 && System.currentTimeMillis() >= expiresAt) {
+                return null;
+            }
+            return value;
+        }
+        return null;
+    }
+
+    /**
+     * Picks the slot for a key: the one holding the key, else an empty or
+     * expired one, else the first.
+     */
+    private int chooseSlot(int hash, byte[] keyBytes, long now) {
+        int base = indexOf(hash);
+        int free = -1;
+        for (int probe = 0; probe < PROBES; probe++) {
+            int slot = (base + probe) % slots;
+            if (holds(slot, hash, keyBytes)) {
+                return slot;
+            }
+            int offset = offsetOf(slot);
+            long expiresAt = buffer.getLong(offset + EXPIRES_AT);
+            if (free < 0 && (buffer.getInt(offset + KEY_LENGTH) == 0
+                    || (expiresAt != 0 && now >= expiresAt))) {
+                free = slot;
+            }
+        }
+        return free >= 0 ? free : base;
+    }
+
+    /**
+     * Tells whether a slot holds the key, without checking its value.
+     */
+    private boolean holds(int slot, int hash, byte[] keyBytes) {
+        int offset = offsetOf(slot);
+        if (buffer.getInt(offset + HASH) != hash
+                || buffer.getInt(offset + KEY_LENGTH) != keyBytes.length) {
+            return false;
+        }
+        byte[] storedKey = new byte[keyBytes.length];
+        ByteBuffer view = buffer.duplicate();
+        view.position(offset + DATA);
+        view.get(storedKey);
+        return Arrays.equals(storedKey, keyBytes);
+    }
+
+    /**
+     * Overwrites a slot, excluding the other writers of this JVM and of other
+     * processes. An empty key empties the slot.
+     */
+    private void write(int slot, int hash, byte[] keyBytes, byte[] value, long expiresAt) {
+        int offset = offsetOf(slot);
+        synchronized (STRIPES[slot % STRIPES.length]) {
+            try {
+                FileLock lock = channel.lock(offset, slotBytes, false);
+                try {
+                    // odd while writing; a writer that died half way left it odd
+                    int seq = buffer.getInt(offset + SEQ) | 1;
+                    buffer.putInt(offset + SEQ, seq);
+                    buffer.putInt(offset + HASH, hash);
+                    buffer.putLong(offset + EXPIRES_AT, expiresAt);
+                    buffer.putInt(offset + KEY_LENGTH, keyBytes.length);
+                    buffer.putInt(offset + VALUE_LENGTH, value.length);
+                    buffer.putInt(offset + CRC, checksum(keyBytes, value, expiresAt));
+                    ByteBuffer view = buffer.duplicate();
+                    view.position(offset + DATA);
+                    view.put(keyBytes).put(value);
+                    buffer.putInt(offset + SEQ, seq + 1);
+                } finally {
+                    lock.release();
+                }
+            } catch (IOException e) {
+                LOG.warn("Failed to write slot " + slot + " of " + file, e);
+            }
+        }
+    }
+
+    /**
+     * Writes the header and empties every slot. Called with the header
+     * locked.
+     */
+    private void format() {
+        for (int slot = 0; slot < slots; slot++) {
+            int offset = offsetOf(slot);
+            buffer.putInt(offset + SEQ, 0);
+            buffer.putInt(offset + HASH, 0);
+            buffer.putInt(offset + KEY_LENGTH, 0);
+        }
+        buffer.putInt(4, VERSION);
+        buffer.putInt(8, slots);
+        buffer.putInt(12, slotBytes);
+        buffer.putInt(0, MAGIC);
+        buffer.force();
+    }
+
+    private int indexOf(int hash) {
+        return (hash & Integer.MAX_VALUE) % slots;
+    }
+
+    private int offsetOf(int slot) {
+        return HEADER_BYTES + slot * slotBytes;
+    }
+
+    private static int checksum(byte[] keyBytes, byte[] value, long expiresAt) {
+        CRC32 crc = new CRC32();
+        crc.update(keyBytes);
+        crc.update(value);
+        for (int shift = 0; shift < 64; shift += 8) {
+            crc.update((int) (expiresAt >>> shift));
+        }
+        crc.update(keyBytes.length);
+        return (int) crc.getValue();
+    }
+}
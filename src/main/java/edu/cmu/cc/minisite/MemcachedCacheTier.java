@@ -0,0 +1,639 @@
+package edu.cmu.cc.minisite;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+/**
+ * A second cache tier on memcached servers, shared by every node of the
+ * site. Speaks the memcached text protocol, so any compatible server works.
+ *
+ * Keys are spread over the servers by rendezvous hashing, so adding or
+ * removing a server only moves the keys of that server. Every operation has
+ * a short timeout; a slow or failed server answers misses instead of holding
+ * up the request, and its connection is dropped.
+ *
+ * A server that fails is skipped for a backoff that doubles with every
+ * failure in a row, up to 32 times CACHE_L2_BACKOFF_MS, so a dead server
+ * costs one timeout per backoff rather than one per request. Once it passes,
+ * one request tries the server again.
+ *
+ * Only gets run on the request thread. Sets and deletes are queued to a
+ * single writer thread, in order: a set that does not fit in the queue is
+ * dropped, and a deleted key is a miss until its delete has reached the
+ * server, however long the server is down. A server that missed more deletes
+ * than the queue holds is flushed when it comes back, which also drops the
+ * keys of anything else sharing it.
+ *
+ * Settings: CACHE_L2_SERVERS, a comma separated list of host:port,
+ * CACHE_L2_TIMEOUT_MS, CACHE_L2_POOL_SIZE, the idle connections kept per
+ * server, CACHE_L2_BACKOFF_MS and CACHE_L2_WRITE_QUEUE, the queued sets and
+ * the deletes kept per server.
+ */
+class MemcachedCacheTier implements CacheTier {
+
+    /**
+     * Logger.
+     */
+    private static final Logger LOG = Logging.getLogger(MemcachedCacheTier.class);
+
+    /**
+     * Prefix of every key, so the site can share servers.
+     */
+    private static final String KEY_PREFIX = "minisite:";
+    /**
+     * Longest key memcached accepts.
+     */
+    private static final int MAX_KEY_LENGTH = 250;
+    /**
+     * Longest relative expiry memcached accepts; longer ones are absolute.
+     */
+    private static final long MAX_RELATIVE_EXPIRY_SECONDS = TimeUnit.DAYS.toSeconds(30);
+    /**
+     * Longest backoff of a failing server, as a shift of the first one.
+     */
+    private static final int MAX_BACKOFF_SHIFT = 5;
+    /**
+     * Queued to run the pending deletes without a set.
+     */
+    private static final Write DELETES = new Write(null, null, null, 0);
+    /**
+     * Down-until time of a server that is up.
+     */
+    private static final long UP = Long.MIN_VALUE;
+
+    private final List<Server> servers = new ArrayList<>();
+    private final int timeoutMs;
+    private final long backoffNanos;
+    /**
+     * Deletes kept per server before it is flushed instead.
+     */
+    private final int maxDeletes;
+    /**
+     * Sets waiting for the writer, in order.
+     */
+    private final BlockingQueue<Write> writes;
+    /**
+     * Writes queued or running.
+     */
+    private final AtomicInteger unfinished = new AtomicInteger();
+    private final Thread writer;
+    private volatile boolean closed;
+
+    /**
+     * Creates the tier and starts its writer, connections are opened on
+     * demand.
+     *
+     * @param serverList comma separated host:port of the servers
+     * @param timeoutMs timeout of connecting and of every operation
+     * @param poolSize idle connections kept per server
+     * @param backoffMs first backoff of a failing server
+     * @param queueSize sets queued, and deletes kept per server
+     * @throws IllegalArgumentException if the list contains no server
+     */
+    MemcachedCacheTier(String serverList, int timeoutMs, int poolSize, long backoffMs,
+            int queueSize) {
+        for (String address : serverList.split(",")) {
+            address = address.trim();
+            if (address.isEmpty()) {
+                continue;
+            }
+            int colon = address.lastIndexOf(':');
+            String host = colon < 0 ? address : address.substring(0, colon);
+            int port = colon < 0 ? 11211 : Integer.parseInt(address.substring(colon + 1));
+            servers.add(new Server(host, port, poolSize));
+        }
+        if (servers.isEmpty()) {
+            throw new IllegalArgumentException("No memcached server in " + serverList);
+        }
+        this.timeoutMs = timeoutMs;
+        this.backoffNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(backoffMs, 1));
+        this.maxDeletes = Math.max(queueSize, 1);
+        this.writes = new ArrayBlockingQueue<>(maxDeletes);
+        this.writer = new Thread(this::runWrites, "memcached-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    @Override
+    public byte[] get(String key) {
+        String wireKey = wireKey(key);
+        Server server = serverFor(wireKey);
+        if (!server.holdsCurrent(wireKey) || !server.available()) {
+            return null;
+        }
+        Connection conn = server.borrow();
+        try {
+            conn.writeLine("get " + wireKey);
+            String line = conn.readLine();
+            byte[] value = null;
+            if (line.startsWith("VALUE ")) {
+                String[] parts = line.split(" ");
+                value = conn.readBytes(Integer.parseInt(parts[3]));
+                line = conn.readLine();
+            }
+            if (!"END".equals(line)) {
+                throw new IOException("Unexpected reply to get: " + line);
+            }
+            server.succeeded();
+            server.release(conn);
+            return value;
+        } catch (IOException | RuntimeException e) {
+            fail(server, conn, "get", e);
+            return null;
+        }
+    }
+
+    /**
+     * Queues the set, or drops it if the queue is full.
+     */
+    @Override
+    public void put(String key, byte[] value, long ttlMillis) {
+        String wireKey = wireKey(key);
+        enqueue(new Write(serverFor(wireKey), wireKey, value, ttlMillis));
+    }
+
+    /**
+     * Drops the queued sets of the key, makes it a miss at once and queues
+     * its delete. A set the writer already took either sees the delete
+     * pending and is skipped, or lands before the delete runs, since the
+     * writer runs the deletes after its set.
+     */
+    @Override
+    public void invalidate(String key) {
+        String wireKey = wireKey(key);
+        writes.removeIf(write -> {
+            if (!wireKey.equals(write.wireKey)) {
+                return false;
+            }
+            unfinished.decrementAndGet();
+            return true;
+        });
+        serverFor(wireKey).deleteLater(wireKey);
+        enqueue(DELETES);
+    }
+
+    /**
+     * Waits for the queued writes to run, for tests.
+     *
+     * @param timeoutMs longest wait
+     * @return true if every write ran and every delete reached its server
+     * @throws InterruptedException if interrupted while waiting
+     */
+    boolean awaitWrites(long timeoutMs) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        while (unfinished.get() > 0 || servers.stream().anyMatch(s -> !s.upToDate())) {
+            if (System.nanoTime() - deadline > 0) {
+                return false;
+            }
+            Thread.sleep(1);
+        }
+        return true;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        writer.interrupt();
+        try {
+            writer.join(timeoutMs);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (Server server : servers) {
+            Connection conn;
+            while ((conn = server.idle.poll()) != null) {
+                conn.close();
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "MemcachedCacheTier{servers=" + servers + "}";
+    }
+
+    /**
+     * Expiry argument of a set: relative seconds, rounded up, or an absolute
+     * Unix time beyond 30 days.
+     */
+    private static long expiry(long ttlMillis) {
+        if (ttlMillis <= 0) {
+            return 0;
+        }
+        long seconds = (ttlMillis + 999) / 1000;
+        if (seconds > MAX_RELATIVE_EXPIRY_SECONDS) {
+            return TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis()) + seconds;
+        }
+        return seconds;
+    }
+
+    /**
+     * Prefixes the key and hashes it if memcached would not accept it as is.
+     */
+    static String wireKey(String key) {
+        String wireKey = KEY_PREFIX + key;
+        boolean valid = wireKey.length() <= MAX_KEY_LENGTH;
+        for (int i = 0; valid && i < wireKey.length(); i++) {
+            char c = wireKey.charAt(i);
+            valid = c > ' ' && c < 0x7f;
+        }
+        return valid ? wireKey : KEY_PREFIX + "#" + sha256(key);
+    }
+
+    /**
+     * The server with the highest score for the key, rendezvous hashing.
+     */
+    private Server serverFor(String wireKey) {
+        Server best = servers.get(0);
+        if (servers.size() == 1) {
+            return best;
+        }
+        long bestScore = Long.MIN_VALUE;
+        for (Server server : servers) {
+            long score = mix(wireKey.hashCode() * 0x9E3779B97F4A7C15L + server.id);
+            if (score > bestScore) {
+                bestScore = score;
+                best = server;
+            }
+        }
+        return best;
+    }
+
+    private void enqueue(Write write) {
+        if (closed) {
+            return;
+        }
+        unfinished.incrementAndGet();
+        if (!writes.offer(write)) {
+            // the writer is busy and runs the deletes before its next set
+            unfinished.decrementAndGet();
+        }
+    }
+
+    /**
+     * Runs the queued sets in order, and the pending deletes of the servers
+     * after each set and after each backoff. Never before a set: a delete
+     * must not be gone from the pending ones while a set it followed has
+     * still to be checked against them.
+     */
+    private void runWrites() {
+        while (!closed) {
+            Write write;
+            try {
+                write = writes.poll(backoffNanos, TimeUnit.NANOSECONDS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            try {
+                if (write != null && write != DELETES) {
+                    store(write);
+                }
+                for (Server server : servers) {
+                    runDeletes(server);
+                }
+            } finally {
+                if (write != null) {
+                    unfinished.decrementAndGet();
+                }
+            }
+        }
+    }
+
+    private void store(Write write) {
+        Server server = write.server;
+        if (!server.holdsCurrent(write.wireKey) || !server.available()) {
+            // deleted since it was queued, or down
+            return;
+        }
+        Connection conn = server.borrow();
+        try {
+            conn.writeLine("set " + write.wireKey + " 0 " + expiry(write.ttlMillis) + " "
+                    + write.value.length, write.value);
+            String line = conn.readLine();
+            if (!"STORED".equals(line)) {
+                // e.g. a value over the server's item size, drop the old one
+                LOG.warn("memcached did not store " + write.wireKey + ": " + line);
+                delete(conn, write.wireKey);
+            }
+            server.succeeded();
+            server.release(conn);
+        } catch (IOException | RuntimeException e) {
+            fail(server, conn, "set", e);
+        }
+    }
+
+    /**
+     * Sends the server the deletes it missed, or flushes it if it missed too
+     * many, unless it is down.
+     */
+    private void runDeletes(Server server) {
+        if (server.upToDate() || !server.available()) {
+            return;
+        }
+        Connection conn = server.borrow();
+        try {
+            int flushes = server.flushesRequested.get();
+            if (flushes != server.flushesDone) {
+                conn.writeLine("flush_all");
+                String line = conn.readLine();
+                if (!"OK".equals(line)) {
+                    throw new IOException("Unexpected reply to flush_all: " + line);
+                }
+                LOG.warn("Flushed memcached " + server + ", it missed too many deletes");
+                server.flushesDone = flushes;
+            }
+            for (Map.Entry<String, Long> pending : server.deletes.entrySet()) {
+                if (closed) {
+                    break;
+                }
+                delete(conn, pending.getKey());
+                server.deletes.remove(pending.getKey(), pending.getValue());
+            }
+            server.succeeded();
+            server.release(conn);
+        } catch (IOException | RuntimeException e) {
+            fail(server, conn, "delete", e);
+        }
+    }
+
+    private static void delete(Connection conn, String wireKey) throws IOException {
+        conn.writeLine("delete " + wireKey);
+        String line = conn.readLine();
+        if (!"DELETED".equals(line) && !"NOT_FOUND".equals(line)) {
+            throw new IOException("Unexpected reply to delete: " + line);
+        }
+    }
+
+    private void fail(Server server, Connection conn, String operation, Exception e) {
+        conn.close();
+        long backoffMs = TimeUnit.NANOSECONDS.toMillis(server.failed());
+        if (Logging.isSampled()) {
+            LOG.warn("memcached " + operation + " on " + server + " failed, skipping it for "
+                    + backoffMs + " ms", e);
+        }
+    }
+
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    private static String sha256(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256")
+                    .digest(key.getBytes(StandardCharsets.UTF_8));
+            StringBuilder hex = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                hex.append(Character.forDigit((b >> 4) & 0xf, 16))
+                        .append(Character.forDigit(b & 0xf, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            // every JVM has SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * A queued set.
+     */
+    private static final class Write {
+
+        final Server server;
+        final String wireKey;
+        final byte[] value;
+        final long ttlMillis;
+
+        Write(Server server, String wireKey, byte[] value, long ttlMillis) {
+            this.server = server;
+            this.wireKey = wireKey;
+            this.value = value;
+            this.ttlMillis = ttlMillis;
+        }
+    }
+
+    /**
+     * A memcached server, its idle connections and its health.
+     */
+    private final class Server {
+
+        final String host;
+        final int port;
+        /**
+         * Hash of the address, the same on every node.
+         */
+        final int id;
+        final BlockingQueue<Connection> idle;
+        /**
+         * Keys deleted here but maybe not yet on the server, each with the
+         * sequence number of its latest delete.
+         */
+        final Map<String, Long> deletes = new ConcurrentHashMap<>();
+        private final AtomicLong deleteSequence = new AtomicLong();
+        /**
+         * Flushes asked for because the deletes overflowed, and those done.
+         */
+        final AtomicInteger flushesRequested = new AtomicInteger();
+        volatile int flushesDone;
+        /**
+         * Failures in a row.
+         */
+        private final AtomicInteger failures = new AtomicInteger();
+        /**
+         * System.nanoTime() until which the server is skipped, UP if it is
+         * not.
+         */
+        private final AtomicLong downUntil = new AtomicLong(UP);
+
+        Server(String host, int port, int poolSize) {
+            this.host = host;
+            this.port = port;
+            this.id = (host + ":" + port).hashCode();
+            this.idle = new ArrayBlockingQueue<>(Math.max(poolSize, 1));
+        }
+
+        /**
+         * @return an idle connection, or a new one that connects lazily
+         */
+        Connection borrow() {
+            Connection conn = idle.poll();
+            return conn != null ? conn : new Connection(this);
+        }
+
+        void release(Connection conn) {
+            if (!idle.offer(conn)) {
+                conn.close();
+            }
+        }
+
+        /**
+         * @return true if the server is up, or if its backoff is over and
+         *         the caller is the one to try it again
+         */
+        boolean available() {
+            long until = downUntil.get();
+            if (until == UP) {
+                return true;
+            }
+            long now = System.nanoTime();
+            return now - until >= 0 && downUntil.compareAndSet(until, now + backoff());
+        }
+
+        void succeeded() {
+            if (downUntil.get() != UP) {
+                failures.set(0);
+                downUntil.set(UP);
+                LOG.info("memcached " + this + " is back");
+            }
+        }
+
+        /**
+         * Skips the server for a backoff.
+         *
+         * @return the backoff in nanoseconds
+         */
+        long failed() {
+            failures.incrementAndGet();
+            long backoff = backoff();
+            downUntil.set(System.nanoTime() + backoff);
+            return backoff;
+        }
+
+        private long backoff() {
+            return backoffNanos << Math.min(Math.max(failures.get() - 1, 0), MAX_BACKOFF_SHIFT);
+        }
+
+        /**
+         * Makes the key a miss until its delete reaches the server.
+         */
+        void deleteLater(String wireKey) {
+            if (deletes.size() >= maxDeletes) {
+                flushesRequested.incrementAndGet();
+                deletes.clear();
+            } else {
+                deletes.put(wireKey, deleteSequence.incrementAndGet());
+            }
+        }
+
+        /**
+         * @return false if the server may still hold a deleted value of the
+         *         key
+         */
+        boolean holdsCurrent(String wireKey) {
+            return flushesRequested.get() == flushesDone && !deletes.containsKey(wireKey);
+        }
+
+        /**
+         * @return true if the server has no delete or flush pending
+         */
+        boolean upToDate() {
+            return flushesRequested.get() == flushesDone && deletes.isEmpty();
+        }
+
+        @Override
+        public String toString() {
+            return host + ":" + port;
+        }
+    }
+
+    /**
+     * A connection to a server, opened by its first operation.
+     */
+    private final class Connection {
+
+        private final Server server;
+        private Socket socket;
+        private InputStream in;
+        private OutputStream out;
+
+        Connection(Server server) {
+            this.server = server;
+        }
+
+        void writeLine(String line, byte[]... data) throws IOException {
+            if (socket == null) {
+                socket = new Socket();
+                socket.setTcpNoDelay(true);
+                socket.setSoTimeout(timeoutMs);
+                socket.connect(new InetSocketAddress(server.host, server.port), timeoutMs);
+                in = new BufferedInputStream(socket.getInputStream());
+                out = new BufferedOutputStream(socket.getOutputStream());
+            }
+            out.write(line.getBytes(StandardCharsets.UTF_8));
+            out.write('\r');
+            out.write('\n');
+            for (byte[] block : data) {
+                out.write(block);
+                out.write('\r');
+                out.write('\n');
+            }
+            out.flush();
+        }
+
+        String readLine() throws IOException {
+            ByteArrayOutputStream line = new ByteArrayOutputStream(64);
+            int c;
+            while ((c = in.read()) != '\n') {
+                if (c < 0) {
+                    throw new EOFException("Connection closed by " + server);
+                }
+                if (c != '\r') {
+                    line.write(c);
+                }
+            }
+            return new String(line.toByteArray(), StandardCharsets.UTF_8);
+        }
+
+        byte[] readBytes(int length) throws IOException {
+            byte[] data = new byte[length];
+            int read = 0;
+            while (read < length) {
+                int n = in.read(data, read, length - read);
+                if (n < 0) {
+                    throw new EOFException("Connection closed by " + server);
+                }
+                read += n;
+            }
+            // the data block ends with \r\n
+            if (in.read() != '\r' || in.read() != '\n') {
+                throw new IOException("Malformed data block from " + server);
+            }
+            return data;
+        }
+
+        void close() {
+            if (socket != null) {
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    // nothing to do
+                }
+            }
+        }
+    }
+}
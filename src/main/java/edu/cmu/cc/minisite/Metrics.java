@@ -0,0 +1,328 @@
+package edu.cmu.cc.minisite;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+
+import io.undertow.server.HttpHandler;
+import io.undertow.server.HttpServerExchange;
+import io.undertow.util.Headers;
+
+/**
+ * The metrics of the website, exposed in the Prometheus text format.
+ *
+ * Every backend call, task endpoint and batch endpoint has a {@link Timer}:
+ * a latency histogram reported as a summary with quantiles, and an error
+ * counter.
+ * Other subsystems, such as the timeline cache, register callbacks that are
+ * read when the metrics are scraped, so they cost nothing in between.
+ *
+ * Settings: METRICS_PATH, the path of the admin endpoint, "/metrics" by
+ * default and empty for none.
+ */
+final class Metrics {
+
+    /**
+     * Path of the admin endpoint, empty for none.
+     */
+    static final String PATH = Config.get("METRICS_PATH", "/metrics");
+
+    /**
+     * Content type of the Prometheus text format.
+     */
+    static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    /**
+     * Quantiles reported for every timer.
+     */
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    /**
+     * Metric families by name, in name order so the output is stable.
+     */
+    private static final ConcurrentSkipListMap<String, Family> FAMILIES =
+            new ConcurrentSkipListMap<>();
+
+    /**
+     * Timers of the task and batch endpoints, by path relative to the site.
+     */
+    private static final Map<String, Timer> ENDPOINTS;
+
+    static {
+        Map<String, Timer> endpoints = new HashMap<>();
+        for (int task = 1; task <= 5; task++) {
+            endpoints.put("/task" + task, endpoint("/task" + task));
+        }
+        for (String batch : new String[] {BatchServlet.PROFILES_PATH,
+                BatchServlet.FOLLOWERS_PATH, BatchServlet.COMMENTS_PATH}) {
+            endpoints.put(batch, endpoint(batch));
+        }
+        endpoints.put(null, endpoint("other"));
+        ENDPOINTS = Collections.unmodifiableMap(endpoints);
+    }
+
+    /**
+     * Utility class.
+     */
+    private Metrics() {
+    }
+
+    /**
+     * Returns the timer of a backend call.
+     *
+     * @param backend the backend, "mysql", "neo4j" or "mongo"
+     * @param call the call
+     * @return the timer, shared by all callers of the same call
+     */
+    static Timer backend(String backend, String call) {
+        return timer("minisite_backend_call",
+                "Latency of the calls to the backends",
+                "backend=\"" + backend + "\",call=\"" + call + "\"");
+    }
+
+    /**
+     * Returns the timer of an endpoint.
+     *
+     * @param path the endpoint's path relative to the site
+     * @return the timer
+     */
+    static Timer endpoint(String path) {
+        return timer("minisite_request",
+                "Latency of the requests, failures are 5xx responses",
+                "endpoint=\"" + path + "\"");
+    }
+
+    /**
+     * Returns the timer of a name and labels, creating it on first use. Its
+     * latencies are reported as NAME_seconds and its errors as
+     * NAME_errors_total.
+     *
+     * @param name base name of the metrics
+     * @param help description of what is timed
+     * @param labels the labels, as name="value" pairs separated by commas
+     * @return the timer
+     */
+    static Timer timer(String name, String help, String labels) {
+        Family seconds = family(name + "_seconds", help, "summary");
+        Family errors = family(name + "_errors_total", help, "counter");
+        Timer timer = (Timer) seconds.samples.computeIfAbsent(labels, l -> new Timer());
+        errors.samples.putIfAbsent(labels, (DoubleSupplier) () -> timer.errorCount());
+        return timer;
+    }
+
+    /**
+     * Registers a counter that is read when the metrics are scraped,
+     * replacing a previous one of the same name and labels.
+     *
+     * @param name the name, ending in _total
+     * @param help description
+     * @param labels the labels, as name="value" pairs separated by commas
+     * @param value reads the counter
+     */
+    static void counter(String name, String help, String labels, DoubleSupplier value) {
+        family(name, help, "counter").samples.put(labels, value);
+    }
+
+    /**
+     * Registers a gauge that is read when the metrics are scraped,
+     * replacing a previous one of the same name and labels.
+     *
+     * @param name the name
+     * @param help description
+     * @param labels the labels, as name="value" pairs separated by commas
+     * @param value reads the gauge
+     */
+    static void gauge(String name, String help, String labels, DoubleSupplier value) {
+        family(name, help, "gauge").samples.put(labels, value);
+    }
+
+    /**
+     * Registers the statistics of a cache.
+     *
+     * @param name the cache's name, its label
+     * @param cache the cache
+     */
+    static void registerCache(String name, Cache cache) {
+        String labels = "cache=\"" + name + "\"";
+        String help = "Lookups of the caches by result";
+        counter("minisite_cache_requests_total", help, labels + ",result=\"hit\"",
+                cache::hitCount);
+        counter("minisite_cache_requests_total", help, labels + ",result=\"miss\"",
+                cache::missCount);
+        counter("minisite_cache_tier_hits_total",
+                "Cache hits served by a lower tier and promoted, included in the hits",
+                labels + ",tier=\"second\"", cache::secondTierHitCount);
+        counter("minisite_cache_tier_hits_total",
+                "Cache hits served by a lower tier and promoted, included in the hits",
+                labels + ",tier=\"snapshot\"", cache::snapshotHitCount);
+        gauge("minisite_cache_hit_ratio", "Share of the cache lookups that hit", labels, () -> {
+            long hits = cache.hitCount();
+            long lookups = hits + cache.missCount();
+            return lookups == 0 ? 0 : (double) hits / lookups;
+        });
+        counter("minisite_cache_evictions_total",
+                "Cache entries removed to stay within the maximum size", labels,
+                cache::evictionCount);
+        counter("minisite_cache_expirations_total",
+                "Cache entries removed because their time to live passed", labels,
+                cache::expirationCount);
+        counter("minisite_cache_invalidations_total",
+                "Cache entries removed because their data changed", labels,
+                cache::invalidationCount);
+        gauge("minisite_cache_entries", "Entries in the caches", labels, cache::size);
+        gauge("minisite_cache_bytes", "Estimated size of the caches", labels, cache::weight);
+    }
+
+    /**
+     * Wraps a handler of the site to time its requests by endpoint.
+     *
+     * @param next the site's handler
+     * @return the timing handler
+     */
+    static HttpHandler instrument(HttpHandler next) {
+        return exchange -> {
+            long start = System.nanoTime();
+            Timer timer = ENDPOINTS.get(exchange.getRelativePath());
+            Timer endpoint = timer != null ? timer : ENDPOINTS.get(null);
+            exchange.addExchangeCompleteListener((done, nextListener) -> {
+                if (done.getStatusCode() >= 500) {
+                    endpoint.recordError(start);
+                } else {
+                    endpoint.record(start);
+                }
+                nextListener.proceed();
+            });
+            next.handleRequest(exchange);
+        };
+    }
+
+    /**
+     * Sends the metrics.
+     *
+     * @param exchange the request
+     */
+    static void handleRequest(HttpServerExchange exchange) {
+        exchange.getResponseHeaders().put(Headers.CONTENT_TYPE, CONTENT_TYPE);
+        exchange.getResponseSender().send(render());
+    }
+
+    /**
+     * @return all metrics in the Prometheus text format
+     */
+    static String render() {
+        StringBuilder out = new StringBuilder(8192);
+        for (Map.Entry<String, Family> entry : FAMILIES.entrySet()) {
+            String name = entry.getKey();
+            Family family = entry.getValue();
+            out.append("# HELP ").append(name).append(' ').append(family.help).append('\n');
+            out.append("# TYPE ").append(name).append(' ').append(family.type).append('\n');
+            for (Map.Entry<String, Object> sample : family.samples.entrySet()) {
+                String labels = sample.getKey();
+                Object value = sample.getValue();
+                if (value instanceof Timer) {
+                    LatencyHistogram histogram = ((Timer) value).histogram;
+                    for (double quantile : QUANTILES) {
+                        line(out, name, labels + ",quantile=\"" + quantile + "\"",
+                                histogram.quantileSeconds(quantile));
+                    }
+                    line(out, name + "_sum", labels, histogram.sumSeconds());
+                    line(out, name + "_count", labels, histogram.count());
+                } else {
+                    line(out, name, labels, ((DoubleSupplier) value).getAsDouble());
+                }
+            }
+        }
+        return out.toString();
+    }
+
+    private static void line(StringBuilder out, String name, String labels, double value) {
+        out.append(name);
+        if (!labels.isEmpty()) {
+            out.append('{').append(labels).append('}');
+        }
+        out.append(' ');
+        if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+            out.append((long) value);
+        } else {
+            out.append(value);
+        }
+        out.append('\n');
+    }
+
+    private static Family family(String name, String help, String type) {
+        Family family = FAMILIES.computeIfAbsent(name, n -> new Family(help, type));
+        if (!family.type.equals(type)) {
+            throw new IllegalArgumentException(name + " is a " + family.type + ", not a " + type);
+        }
+        return family;
+    }
+
+    /**
+     * The samples of one metric name, by labels. A sample is a
+     * {@link Timer} or a {@link DoubleSupplier}.
+     */
+    private static final class Family {
+
+        final String help;
+        final String type;
+        final ConcurrentSkipListMap<String, Object> samples = new ConcurrentSkipListMap<>();
+
+        Family(String help, String type) {
+            this.help = help;
+            this.type = type;
+        }
+    }
+
+    /**
+     * Latencies and errors of one operation.
+     */
+    static final class Timer {
+
+        private final LatencyHistogram histogram = new LatencyHistogram();
+        private final LongAdder errors = new LongAdder();
+
+        /**
+         * Records a successful operation.
+         *
+         * @param start System.nanoTime() when the operation started
+         */
+        void record(long start) {
+            histogram.record(System.nanoTime() - start);
+        }
+
+        /**
+         * Records a failed operation, its latency counts too.
+         *
+         * @param start System.nanoTime() when the operation started
+         */
+        void recordError(long start) {
+            histogram.record(System.nanoTime() - start);
+            errors.increment();
+        }
+
+        /**
+         * @return number of operations recorded
+         */
+        long count() {
+            return histogram.count();
+        }
+
+        /**
+         * @return number of failed operations
+         */
+        long errorCount() {
+            return errors.sum();
+        }
+
+        /**
+         * @param quantile the quantile, between 0 and 1
+         * @return the quantile of the latencies in seconds
+         */
+        double quantileSeconds(double quantile) {
+            return histogram.quantileSeconds(quantile);
+        }
+    }
+}
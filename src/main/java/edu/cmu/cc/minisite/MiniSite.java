@@ -11,8 +11,12 @@ import io.undertow.server.handlers.PathHandler;
 import io.undertow.servlet.api.DeploymentInfo;
 import io.undertow.servlet.api.DeploymentManager;
 
+import java.sql.SQLException;
+
 import javax.servlet.ServletException;
 
+import org.apache.log4j.Logger;
+
 
 /**
  * You should NOT modify this file.
@@ -30,6 +34,18 @@ public class MiniSite {
      */
     public static final String PATH = "/MiniSite";
 
+    /**
+     * Value of MINISITE_MODE that serves the tasks with native Undertow
+     * handlers, see {@link MiniSiteHandlers}. Any other value deploys the
+     * servlets.
+     */
+    static final String HANDLER_MODE = "handler";
+
+    /**
+     * Logger.
+     */
+    private static final Logger LOG = Logging.getLogger(MiniSite.class);
+
     /**
      * The main entry of the website.
      *
@@ -37,39 +53,66 @@ public class MiniSite {
      */
     public static void main(String[] args) {
         try {
-            DeploymentInfo servletBuilder = deployment()
-                    .setClassLoader(MiniSite.class.getClassLoader())
-                    .setContextPath(PATH)
-                    .setDeploymentName("handler.war")
-                    .addServlets(
-		 	    servlet("TimelineWithCacheServlet", TimelineWithCacheServlet.class)
-                                    .addMapping("/task5"),
-                            servlet("TimelineServlet", TimelineServlet.class)
-                                    .addMapping("/task4"),
-                            servlet("HomepageServlet", HomepageServlet.class)
-                                    .addMapping("/task3"),
-                            servlet("FollowerServlet", FollowerServlet.class)
-                                    .addMapping("/task2"),
-                            servlet("ProfileServlet", ProfileServlet.class)
-                                    .addMapping("/task1")
-                    );
-
-
-            DeploymentManager manager = defaultContainer().addDeployment(servletBuilder);
-            manager.deploy();
-
-            HttpHandler servletHandler = manager.start();
+            ServerConfig config = new ServerConfig();
+            LOG.info("Effective server settings: " + config);
+            String mode = Config.get("MINISITE_MODE", "servlet");
+            HttpHandler siteHandler;
+            if (HANDLER_MODE.equalsIgnoreCase(mode)) {
+                MiniSiteHandlers handlers = new MiniSiteHandlers();
+                Runtime.getRuntime().addShutdownHook(new Thread(handlers::close));
+                siteHandler = handlers.routes();
+            } else {
+                SharedBackends shared = SharedBackends.connect();
+                shared.start();
+                Runtime.getRuntime().addShutdownHook(new Thread(shared::close));
+                siteHandler = deployServlets(shared);
+            }
             PathHandler path = Handlers.path(Handlers.redirect(PATH))
-                    .addPrefixPath(PATH, servletHandler);
+                    .addPrefixPath(PATH, Metrics.instrument(siteHandler));
+            if (!Metrics.PATH.isEmpty()) {
+                path.addExactPath(Metrics.PATH, Metrics::handleRequest);
+            }
 
-            Undertow server = Undertow.builder()
-                    .addHttpListener(8080, "0.0.0.0")
-                    .setHandler(path)
-                    .build();
+            Undertow server = config.build(path);
             server.start();
-        } catch (ServletException e) {
+            LOG.info("Serving " + PATH + " in " + mode + " mode");
+        } catch (ServletException | SQLException | ClassNotFoundException e) {
             throw new RuntimeException(e);
         }
     }
-}
 
+    /**
+     * Deploys the task servlets.
+     *
+     * @param shared the services shared by the servlets
+     * @return handler of the deployment
+     * @throws ServletException if a servlet fails to start
+     */
+    private static HttpHandler deployServlets(SharedBackends shared) throws ServletException {
+        DeploymentInfo servletBuilder = deployment()
+                .setClassLoader(MiniSite.class.getClassLoader())
+                .setContextPath(PATH)
+                .setDeploymentName("handler.war")
+                .addServletContextAttribute(SharedBackends.ATTRIBUTE, shared)
+                .addServlets(
+                        servlet("TimelineWithCacheServlet", TimelineWithCacheServlet.class)
+                                .addMapping("/task5").setLoadOnStartup(1),
+                        servlet("TimelineServlet", TimelineServlet.class)
+                                .addMapping("/task4"),
+                        servlet("HomepageServlet", HomepageServlet.class)
+                                .addMapping("/task3"),
+                        servlet("FollowerServlet", FollowerServlet.class)
+                                .addMapping("/task2"),
+                        servlet("ProfileServlet", ProfileServlet.class)
+                                .addMapping("/task1"),
+                        servlet("BatchServlet", BatchServlet.class)
+                                .addMapping(BatchServlet.PROFILES_PATH)
+                                .addMapping(BatchServlet.FOLLOWERS_PATH)
+                                .addMapping(BatchServlet.COMMENTS_PATH)
+                );
+
+        DeploymentManager manager = defaultContainer().addDeployment(servletBuilder);
+        manager.deploy();
+        return manager.start();
+    }
+}
@@ -0,0 +1,383 @@
+package edu.cmu.cc.minisite;
+
+import java.sql.SQLException;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+
+import org.apache.log4j.Logger;
+import org.bson.Document;
+
+import com.google.gson.JsonObject;
+import com.google.gson.stream.JsonWriter;
+import com.mongodb.client.MongoCursor;
+
+import io.undertow.Handlers;
+import io.undertow.server.HttpHandler;
+import io.undertow.server.HttpServerExchange;
+import io.undertow.server.handlers.ResponseCodeHandler;
+import io.undertow.util.HttpString;
+import io.undertow.util.SameThreadExecutor;
+import io.undertow.util.StatusCodes;
+
+/**
+ * Serves /task1 to /task5 and the batch paths of {@link BatchServlet} with
+ * native Undertow handlers instead of servlets.
+ *
+ * Backend calls run on the fan-out pool and the response is sent when they
+ * complete, so a request does not hold an I/O or worker thread while it
+ * waits. A timeline in flight only costs its backend legs, which is what
+ * lets one node keep thousands of timeline requests open.
+ *
+ * /task3, /batch/comments and the pages of /task2 stream a database cursor
+ * with a blocking driver, so they run on a worker thread exactly as in
+ * servlet mode.
+ *
+ * The responses are the same as those of the servlets: same status, body,
+ * content type and CacheHit header.
+ */
+final class MiniSiteHandlers implements AutoCloseable {
+
+    /**
+     * Logger.
+     */
+    private static final Logger LOG = Logging.getLogger(MiniSiteHandlers.class);
+
+    /**
+     * Header telling whether /task5 was answered from the cache.
+     */
+    private static final HttpString CACHE_HIT = new HttpString("CacheHit");
+
+    private final ProfileServlet profileServlet;
+    private final FollowerServlet followerServlet;
+    private final HomepageServlet homepageServlet;
+    private final TimelineServlet timelineServlet;
+    private final TimelineWithCacheServlet timelineWithCacheServlet;
+    private final BatchServlet batchServlet;
+    /**
+     * The services shared by the endpoints, null when serving over given
+     * backends.
+     */
+    private SharedBackends shared;
+    /**
+     * Task 2 without pages.
+     */
+    private final HttpHandler followerList = async(this::followerList);
+
+    /**
+     * Connects to the backends.
+     *
+     * @throws ClassNotFoundException when an application fails to load a class
+     * @throws SQLException on a database access error or other errors
+     */
+    MiniSiteHandlers() throws ClassNotFoundException, SQLException {
+        this(new ProfileServlet(), new FollowerServlet(), new HomepageServlet());
+        shared = new SharedBackends(profileServlet, followerServlet, homepageServlet);
+        shared.start();
+        timelineWithCacheServlet.topUsers().start(TopUserIndex.REFRESH_SECONDS);
+        timelineWithCacheServlet.startSnapshots();
+        timelineWithCacheServlet.startChangeFeed(shared);
+        timelineWithCacheServlet.startPrewarmer();
+    }
+
+    /**
+     * Serves over the given backends.
+     *
+     * @param profileServlet MySQL backend
+     * @param followerServlet Neo4j backend
+     * @param homepageServlet MongoDB backend
+     */
+    MiniSiteHandlers(ProfileServlet profileServlet, FollowerServlet followerServlet,
+            HomepageServlet homepageServlet) {
+        this.profileServlet = profileServlet;
+        this.followerServlet = followerServlet;
+        this.homepageServlet = homepageServlet;
+        this.timelineServlet =
+                new TimelineServlet(profileServlet, followerServlet, homepageServlet);
+        this.timelineWithCacheServlet =
+                new TimelineWithCacheServlet(profileServlet, followerServlet, homepageServlet);
+        this.batchServlet = new BatchServlet(profileServlet, followerServlet, homepageServlet);
+    }
+
+    /**
+     * @return handler of the task paths, relative to the site's base path
+     */
+    HttpHandler routes() {
+        return Handlers.routing()
+                .get("/task1", async(this::login))
+                .get("/task2", this::followers)
+                .get("/task3", this::comments)
+                .get("/task4", async(this::timeline))
+                .get("/task5", async(this::cachedTimeline))
+                .get(BatchServlet.PROFILES_PATH, async(this::batchProfiles))
+                .get(BatchServlet.FOLLOWERS_PATH, async(this::batchFollowers))
+                .get(BatchServlet.COMMENTS_PATH, this::batchComments)
+                .setInvalidMethodHandler(ResponseCodeHandler.HANDLE_405);
+    }
+
+    /**
+     * Task 1, see {@link ProfileServlet}.
+     */
+    private CompletableFuture<byte[]> login(HttpServerExchange exchange) {
+        String name = param(exchange, "id");
+        String pwd = param(exchange, "pwd");
+        return TimelineFanOut.supplyAsync(() -> JsonResponses.toBytes(
+                profileServlet.validateLoginAndReturnResult(name, pwd)));
+    }
+
+    /**
+     * Task 2, see {@link FollowerServlet}. A page of followers is streamed as
+     * the rows come.
+     */
+    private void followers(HttpServerExchange exchange) throws Exception {
+        String id = param(exchange, "id");
+        PageRequest page;
+        String after;
+        try {
+            page = page(exchange);
+            after = page == null ? null : page.after("f", String.class);
+        } catch (IllegalArgumentException e) {
+            badRequest(exchange, e);
+            return;
+        }
+        if (page == null) {
+            followerList.handleRequest(exchange);
+            return;
+        }
+        exchange.dispatch((HttpHandler) paged -> {
+            paged.startBlocking();
+            try (JsonWriter writer = JsonResponses.start(paged)) {
+                writer.beginObject();
+                followerServlet.writeFollowers(writer, id, after, page.limit);
+                writer.endObject();
+            }
+        });
+    }
+
+    /**
+     * Task 2 without pages, see {@link FollowerServlet}.
+     */
+    private CompletableFuture<byte[]> followerList(HttpServerExchange exchange) {
+        String id = param(exchange, "id");
+        return TimelineFanOut.supplyAsync(() -> {
+            JsonObject result = new JsonObject();
+            result.add("followers", followerServlet.getFollowers(id));
+            return JsonResponses.toBytes(result);
+        });
+    }
+
+    /**
+     * Task 3, see {@link HomepageServlet}. Streams the comments as the cursor
+     * returns them.
+     */
+    private void comments(HttpServerExchange exchange) throws Exception {
+        if (exchange.isInIoThread()) {
+            exchange.dispatch(this::comments);
+            return;
+        }
+        exchange.startBlocking();
+        String id = param(exchange, "id");
+        PageRequest page;
+        MongoCursor<Document> cursor;
+        try {
+            page = page(exchange);
+            cursor = page == null ? homepageServlet.findUserComments(id)
+                    : homepageServlet.findUserComments(id, page);
+        } catch (IllegalArgumentException e) {
+            badRequest(exchange, e);
+            return;
+        } catch (Exception e) {
+            LOG.error("Failed to get the comments of " + id, e);
+            JsonObject result = new JsonObject();
+            exchange.setStatusCode(StatusCodes.INTERNAL_SERVER_ERROR);
+            result.addProperty("error", "Internal server error.");
+            JsonResponses.send(exchange, JsonResponses.toBytes(result));
+            return;
+        }
+        try (JsonWriter writer = JsonResponses.start(exchange)) {
+            writer.beginObject();
+            if (page == null) {
+                homepageServlet.writeComments(writer.name("comments"), cursor, id);
+            } else {
+                homepageServlet.writeComments(writer, cursor, id, page);
+            }
+            writer.endObject();
+        }
+    }
+
+    /**
+     * Task 4, see {@link TimelineServlet}.
+     */
+    private CompletableFuture<byte[]> timeline(HttpServerExchange exchange) {
+        return timelineServlet.getTimelineAsync(param(exchange, "id"))
+                .thenApply(JsonResponses::toBytes);
+    }
+
+    /**
+     * Task 5, see {@link TimelineWithCacheServlet}.
+     */
+    private CompletableFuture<byte[]> cachedTimeline(HttpServerExchange exchange) {
+        String id = param(exchange, "id");
+        return timelineWithCacheServlet.getTimelineAsync(id).thenApply(body -> {
+            exchange.getResponseHeaders().put(CACHE_HIT,
+                    String.valueOf(TimelineWithCacheServlet.isCached(id)));
+            return body;
+        });
+    }
+
+    /**
+     * Batch profiles, see {@link BatchServlet}.
+     */
+    private CompletableFuture<byte[]> batchProfiles(HttpServerExchange exchange) {
+        List<String> ids = batchIds(exchange);
+        if (ids == null) {
+            return CompletableFuture.completedFuture(JsonResponses.toBytes(
+                    JsonResponses.error(BatchServlet.TOO_MANY_IDS)));
+        }
+        return TimelineFanOut.supplyAsync(() ->
+                JsonResponses.toBytes(batchServlet.getProfiles(ids)));
+    }
+
+    /**
+     * Batch followers, see {@link BatchServlet}.
+     */
+    private CompletableFuture<byte[]> batchFollowers(HttpServerExchange exchange) {
+        List<String> ids = batchIds(exchange);
+        if (ids == null) {
+            return CompletableFuture.completedFuture(JsonResponses.toBytes(
+                    JsonResponses.error(BatchServlet.TOO_MANY_IDS)));
+        }
+        return TimelineFanOut.supplyAsync(() ->
+                JsonResponses.toBytes(batchServlet.getFollowers(ids)));
+    }
+
+    /**
+     * Batch comments, see {@link BatchServlet}. Streams the comments as the
+     * cursor returns them.
+     */
+    private void batchComments(HttpServerExchange exchange) throws Exception {
+        if (exchange.isInIoThread()) {
+            exchange.dispatch(this::batchComments);
+            return;
+        }
+        exchange.startBlocking();
+        List<String> ids = batchIds(exchange);
+        if (ids == null) {
+            JsonResponses.send(exchange, JsonResponses.toBytes(
+                    JsonResponses.error(BatchServlet.TOO_MANY_IDS)));
+            return;
+        }
+        MongoCursor<Document> cursor;
+        try {
+            cursor = batchServlet.findComments(ids);
+        } catch (Exception e) {
+            LOG.error("Failed to get the comments of " + ids.size() + " users", e);
+            exchange.setStatusCode(StatusCodes.INTERNAL_SERVER_ERROR);
+            JsonResponses.send(exchange,
+                    JsonResponses.toBytes(JsonResponses.error("Internal server error.")));
+            return;
+        }
+        try (JsonWriter writer = JsonResponses.start(exchange)) {
+            batchServlet.writeComments(writer, cursor, ids);
+        }
+    }
+
+    /**
+     * Parses the ids of a batch request, see {@link BatchServlet#parseIds}.
+     *
+     * @param exchange the exchange
+     * @return the ids, or null with the status set to 400 if there are too many
+     */
+    private static List<String> batchIds(HttpServerExchange exchange) {
+        try {
+            return BatchServlet.parseIds(param(exchange, "ids"));
+        } catch (IllegalArgumentException e) {
+            exchange.setStatusCode(StatusCodes.BAD_REQUEST);
+            return null;
+        }
+    }
+
+    /**
+     * Closes the backends.
+     */
+    @Override
+    public void close() {
+        timelineWithCacheServlet.stopPrewarmer();
+        timelineWithCacheServlet.closeChangeFeed();
+        timelineWithCacheServlet.stopSnapshots();
+        timelineWithCacheServlet.closeCacheTier();
+        if (shared != null) {
+            shared.close();
+        }
+        timelineWithCacheServlet.topUsers().close();
+        profileServlet.closeConnection();
+        followerServlet.closeDriver();
+        homepageServlet.closeCollection();
+    }
+
+    /**
+     * Adapts an asynchronous call to a handler that sends the call's result
+     * once it completes.
+     *
+     * The call is started on a worker thread rather than the I/O thread,
+     * because the fan-out pool runs a backend call on the submitting thread
+     * when it is saturated. The worker is released as soon as the call is
+     * started.
+     *
+     * @param call starts computing the UTF-8 encoded JSON response
+     * @return the handler
+     */
+    private static HttpHandler async(Function<HttpServerExchange, CompletableFuture<byte[]>> call) {
+        return new HttpHandler() {
+            @Override
+            public void handleRequest(HttpServerExchange exchange) {
+                if (exchange.isInIoThread()) {
+                    exchange.dispatch(this);
+                    return;
+                }
+                exchange.dispatch(SameThreadExecutor.INSTANCE, () -> call.apply(exchange)
+                        .whenComplete((body, failure) -> {
+                            if (failure != null) {
+                                LOG.error("Failed to handle " + exchange.getRequestURI(), failure);
+                                exchange.setStatusCode(StatusCodes.INTERNAL_SERVER_ERROR);
+                                exchange.endExchange();
+                            } else {
+                                JsonResponses.send(exchange, body);
+                            }
+                        }));
+            }
+        };
+    }
+
+    /**
+     * @param exchange the exchange
+     * @return the page the request asks for, null for the whole list
+     * @throws IllegalArgumentException if the page is invalid
+     */
+    private static PageRequest page(HttpServerExchange exchange) {
+        return PageRequest.parse(param(exchange, "limit"), param(exchange, "cursor"),
+                param(exchange, "stream"));
+    }
+
+    /**
+     * Answers 400 with the error.
+     *
+     * @param exchange the exchange
+     * @param e the invalid argument
+     */
+    private static void badRequest(HttpServerExchange exchange, IllegalArgumentException e) {
+        exchange.setStatusCode(StatusCodes.BAD_REQUEST);
+        JsonResponses.send(exchange, JsonResponses.toBytes(JsonResponses.error(e.getMessage())));
+    }
+
+    /**
+     * @param exchange the exchange
+     * @param name name of a query parameter
+     * @return the first value of the parameter, or null if it is absent
+     */
+    private static String param(HttpServerExchange exchange, String name) {
+        Deque<String> values = exchange.getQueryParameters().get(name);
+        return values == null ? null : values.peekFirst();
+    }
+}
@@ -0,0 +1,129 @@
+package edu.cmu.cc.minisite;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+import org.bson.Document;
+
+/**
+ * The page of a list that a request of /task2 or /task3 asks for, with
+ * keyset pagination: a page starts after the key of the last row of the
+ * previous one rather than at an offset, so reading a page costs the same
+ * however deep it is.
+ *
+ * The query parameters are:
+ *
+ * limit, the number of rows of the page, PAGE_DEFAULT_LIMIT (100) if only a
+ * cursor is given, at most PAGE_MAX_LIMIT (1000).
+ *
+ * cursor, the "next" of the previous page, absent for the first one. It is
+ * the key of the last row as base64url encoded JSON, opaque to clients.
+ *
+ * stream=true, to stream all the rows after the cursor in one response.
+ *
+ * A request with none of them gets the whole list, as before.
+ */
+final class PageRequest {
+
+    /**
+     * Rows of a page when the request gives no limit.
+     */
+    static final int DEFAULT_LIMIT = Config.getInt("PAGE_DEFAULT_LIMIT", 100);
+    /**
+     * Maximum rows of a page.
+     */
+    static final int MAX_LIMIT = Config.getInt("PAGE_MAX_LIMIT", 1000);
+
+    /**
+     * The key of the last row of the previous page, null for the first page.
+     */
+    final Document after;
+    /**
+     * Rows of the page, 0 for all rows after the cursor.
+     */
+    final int limit;
+
+    /**
+     * @param after key of the last row of the previous page, null for the
+     * first page
+     * @param limit rows of the page, 0 for all
+     */
+    PageRequest(Document after, int limit) {
+        this.after = after;
+        this.limit = limit;
+    }
+
+    /**
+     * Parses the page of a request.
+     *
+     * @param limit the limit parameter, may be null
+     * @param cursor the cursor parameter, may be null
+     * @param stream the stream parameter, may be null
+     * @return the page, null if the request asks for the whole list
+     * @throws IllegalArgumentException if the limit or the cursor is invalid
+     */
+    static PageRequest parse(String limit, String cursor, String stream) {
+        boolean streamed = "true".equals(stream);
+        if (limit == null && cursor == null && !streamed) {
+            return null;
+        }
+        Document after = cursor == null ? null : decode(cursor);
+        if (streamed) {
+            return new PageRequest(after, 0);
+        }
+        if (limit == null) {
+            return new PageRequest(after, DEFAULT_LIMIT);
+        }
+        int rows;
+        try {
+            rows = Integer.parseInt(limit);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid limit.");
+        }
+        if (rows < 1 || rows > MAX_LIMIT) {
+            throw new IllegalArgumentException(
+                    "The limit must be between 1 and " + MAX_LIMIT + ".");
+        }
+        return new PageRequest(after, rows);
+    }
+
+    /**
+     * @param key key of the last row of a page
+     * @return the cursor of the next page
+     */
+    static String encode(Document key) {
+        return Base64.getUrlEncoder().withoutPadding()
+                .encodeToString(key.toJson().getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @param cursor a cursor of {@link #encode}
+     * @return the key
+     * @throws IllegalArgumentException if the cursor is invalid
+     */
+    static Document decode(String cursor) {
+        try {
+            return Document.parse(new String(Base64.getUrlDecoder().decode(cursor),
+                    StandardCharsets.UTF_8));
+        } catch (RuntimeException e) {
+            throw new IllegalArgumentException("Invalid cursor.");
+        }
+    }
+
+    /**
+     * @param field a field of the key
+     * @param type its type
+     * @return the field of the cursor, null for the first page
+     * @throws IllegalArgumentException if the cursor has no such field
+     */
+    <T> T after(String field, Class<T> type) {
+        if (after == null) {
+            return null;
+        }
+        Object value = after.get(field);
+        if (!type.isInstance(value)) {
+            throw new IllegalArgumentException("Invalid cursor.");
+        }
+        return type.cast(value);
+    }
+}
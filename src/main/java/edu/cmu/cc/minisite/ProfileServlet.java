@@ -1,18 +1,25 @@
 package edu.cmu.cc.minisite;
 
 import java.io.IOException;
-import java.io.PrintWriter;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Objects;
+import java.util.TreeMap;
 
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import org.apache.log4j.Logger;
+
 import com.google.gson.JsonObject;
 
 /**
@@ -27,6 +34,11 @@ import com.google.gson.JsonObject;
  */
 public class ProfileServlet extends HttpServlet {
 
+    /**
+     * Logger.
+     */
+    private static final Logger LOG = Logging.getLogger(ProfileServlet.class);
+
     /**
      * JDBC driver of MySQL Connector/J.
      */
@@ -36,6 +48,44 @@ public class ProfileServlet extends HttpServlet {
      */
     private static final String DB_NAME = "reddit_db";
 
+    /**
+     * Query of the login, answered from the (username, pwd,
+     * profile_photo_url) index alone, see {@link SchemaManager}.
+     */
+    static final String LOGIN_QUERY =
+            "SELECT username, profile_photo_url FROM users WHERE username = ? AND pwd = ?";
+    /**
+     * Query of a user's profile.
+     */
+    static final String PROFILE_QUERY =
+            "SELECT username, profile_photo_url FROM users WHERE username = ?";
+    /**
+     * Query of several users' profiles, without the placeholders of the IN
+     * list, see {@link #getProfiles}.
+     */
+    static final String PROFILES_QUERY =
+            "SELECT username, profile_photo_url FROM users WHERE username IN ";
+
+    private static final Metrics.Timer LOGIN = Metrics.backend("mysql", "login");
+    private static final Metrics.Timer PROFILE = Metrics.backend("mysql", "profile");
+    private static final Metrics.Timer PROFILES_BATCH = Metrics.backend("mysql", "profiles");
+
+    /**
+     * Profile image URLs by username, shared by all instances. Sized by
+     * PROFILE_CACHE_MAX_BYTES and PROFILE_CACHE_TTL_SECONDS.
+     */
+    private static final Cache PROFILES = Cache.fromConfig("PROFILE", 16L * 1024 * 1024, 60);
+
+    static {
+        Metrics.registerCache("profiles", PROFILES);
+    }
+
+    /**
+     * The credentials in memory, shared by all instances, null when
+     * CREDENTIAL_INDEX is off. Logins it does not answer are queried.
+     */
+    private static volatile CredentialIndex credentials;
+
     /**
      * The endpoint of the database.
      *
@@ -57,16 +107,36 @@ public class ProfileServlet extends HttpServlet {
     private static String mysqlPwd = System.getenv("MYSQL_PWD");
 
     /**
-     * The connection (session) with the database. HINT: pay attention to how
-     * this is used internally
+     * The pool of connections (sessions) with the database, shared by all
+     * instances. Every query borrows its own connection, so concurrent
+     * requests do not serialize on one session. Written under the class
+     * lock, read without it.
      */
-    private static Connection conn;
+    private static volatile ConnectionPool pool;
+    /**
+     * Number of open instances using the pool. The pool is closed when the
+     * last one is closed.
+     */
+    private static int poolUsers;
+
+    /**
+     * The pool this instance counts as a user of.
+     */
+    private ConnectionPool usedPool;
+    /**
+     * Whether this instance has released the pool.
+     */
+    private boolean closed;
 
     /**
-     * MySQL URL.
+     * MySQL URL. Connector/J caches the server-side prepared statements of
+     * each pooled connection, so a query is parsed once per connection.
      */
     private static final String URL = "jdbc:mysql://" + mysqlHost + ":3306/"
-            + DB_NAME + "?useSSL=false&serverTimezone=UTC";
+            + DB_NAME + "?useSSL=false&serverTimezone=UTC"
+            + "&useServerPrepStmts=true&cachePrepStmts=true"
+            + "&prepStmtCacheSize=" + Config.getInt("MYSQL_PREP_STMT_CACHE_SIZE", 64)
+            + "&prepStmtCacheSqlLimit=2048";
 
     /**
      * Initialize SQL connection. Standard constructor
@@ -75,22 +145,46 @@ public class ProfileServlet extends HttpServlet {
      * @throws SQLException on a database access error or other errors
      */
     public ProfileServlet() throws ClassNotFoundException, SQLException {
-        conn = getDBConnection();
+        Objects.requireNonNull(mysqlHost);
+        Objects.requireNonNull(mysqlName);
+        Objects.requireNonNull(mysqlPwd);
+        synchronized (ProfileServlet.class) {
+            if (pool == null) {
+                pool = ConnectionPool.fromConfig(ProfileServlet::getDBConnection);
+            }
+            poolUsers++;
+            usedPool = pool;
+        }
     }
 
     /**
-     * A special constructor for TDD
+     * A special constructor for TDD. The connection replaces the pool of the
+     * previous instances, which is closed.
      *
      * @param conn The connection to use
      */
     ProfileServlet(Connection conn) {
-        ProfileServlet.conn = conn;
+        synchronized (ProfileServlet.class) {
+            if (pool != null) {
+                pool.close();
+            }
+            pool = new ConnectionPool(() -> conn, 0, 1, Long.MAX_VALUE, 0, 0);
+            poolUsers = 1;
+            usedPool = pool;
+        }
     }
 
-    private Connection getDBConnection() throws SQLException {
-        Objects.requireNonNull(mysqlHost);
-        Objects.requireNonNull(mysqlName);
-        Objects.requireNonNull(mysqlPwd);
+    /**
+     * Borrows a connection of the pool, to be closed by the caller.
+     *
+     * @return the connection
+     * @throws SQLException if no connection can be opened
+     */
+    Connection connection() throws SQLException {
+        return pool.getConnection();
+    }
+
+    private static Connection getDBConnection() throws SQLException {
         return DriverManager.getConnection(URL, mysqlName, mysqlPwd);
     }
 
@@ -107,26 +201,29 @@ public class ProfileServlet extends HttpServlet {
         String name = request.getParameter("id");
         String pwd = request.getParameter("pwd");
         JsonObject result = validateLoginAndReturnResult(name, pwd);
-        response.setContentType("text/html; charset=UTF-8");
-        response.setCharacterEncoding("UTF-8");
-        PrintWriter writer = response.getWriter();
-        writer.write(result.toString());
-        writer.close();
+        JsonResponses.write(response, result);
     }
 
     /**
      * Method to perform the SQL query, retrieve the results and construct and
-     * return a JsonObject with the expected result
+     * return a JsonObject with the expected result. A valid login held by the
+     * credential index is answered without the query.
      *
      * @param name The username supplied via the HttpServletRequest
      * @param pwd The password supplied via the HttpServletRequest
      * @return A JsonObject with the servlet's response
      */
     JsonObject validateLoginAndReturnResult(String name, String pwd) {
+        CredentialIndex index = credentials;
+        JsonObject checked = index == null ? null : index.login(name, pwd);
+        if (checked != null) {
+            return checked;
+        }
         JsonObject result = new JsonObject();
-        String q = "SELECT username, profile_photo_url FROM users WHERE username = ? AND pwd = ?";
         // send the query to the database
-        try (PreparedStatement stmt = conn.prepareStatement(q)) {
+        long start = System.nanoTime();
+        try (Connection conn = pool.getConnection();
+                PreparedStatement stmt = conn.prepareStatement(LOGIN_QUERY)) {
             stmt.setString(1, name);
             stmt.setString(2, pwd);
             ResultSet rs = stmt.executeQuery();
@@ -138,44 +235,163 @@ public class ProfileServlet extends HttpServlet {
                 result.addProperty("name", "Unauthorized");
                 result.addProperty("profile", "#");
             }
+            LOGIN.record(start);
         } catch (SQLException e) {
-            e.printStackTrace();
+            LOGIN.recordError(start);
+            LOG.error("Failed to validate the login of " + name, e);
         }
 
         return result;
     }
 
     /**
-     * Retrieves the user's profile information.(Task4)
+     * Retrieves the user's profile information, from the profile cache when it
+     * holds it.(Task4)
      *
      * @param name Username.
-     * @return profile
+     * @return profile, "#" if the user is unknown or the query failed
      */
     public String getProfile(String name) {
-        String result = "#";
-        String query = "SELECT username, profile_photo_url FROM users WHERE username = ?";
+        try {
+            return loadProfile(name);
+        } catch (IllegalStateException e) {
+            LOG.error("Failed to get the profile of " + name, e);
+            return "#";
+        }
+    }
 
-        try (PreparedStatement stmt = conn.prepareStatement(query)) {
+    /**
+     * Retrieves the user's profile information as {@link #getProfile} does,
+     * but reports a failed query instead of answering "#".
+     *
+     * @param name Username.
+     * @return profile, "#" if the user is unknown or has no photo
+     * @throws IllegalStateException if the query failed
+     */
+    String loadProfile(String name) {
+        String cached = name == null ? null : PROFILES.get(name);
+        if (cached != null) {
+            return cached;
+        }
+        long epoch = name == null ? 0 : PROFILES.epoch(name);
+        String result = "#";
+        long start = System.nanoTime();
+        try (Connection conn = pool.getConnection();
+                PreparedStatement stmt = conn.prepareStatement(PROFILE_QUERY)) {
             stmt.setString(1, name);
             ResultSet rs = stmt.executeQuery();
             if (rs.next()) {
-                result = rs.getString("profile_photo_url");
+                String url = rs.getString("profile_photo_url");
+                result = url != null ? url : "#";
             }
+            PROFILE.record(start);
         } catch (SQLException e) {
-            e.printStackTrace();
+            PROFILE.recordError(start);
+            throw new IllegalStateException("Failed to get the profile of " + name, e);
+        }
+        if (name != null) {
+            PROFILES.putIfUnchanged(name, result, epoch);
         }
         return result;
     }
 
     /**
-     * Closes the database connection.
+     * Retrieves the profiles of several users, from the profile cache when
+     * it holds them and with one IN query for the others.
+     *
+     * MySQL compares the names with the collation of the column, so a row
+     * is given to the name it equals, or else to a name it equals ignoring
+     * case, as {@link #getProfile} would return it.
+     *
+     * @param names Usernames.
+     * @return profiles keyed by username, in the order of the names, "#"
+     * for unknown users and null for users whose query failed
+     */
+    public Map<String, String> getProfiles(Collection<String> names) {
+        Map<String, String> profiles = new LinkedHashMap<>();
+        // the epochs of the cache misses, to cache what is read for them
+        Map<String, Long> missing = new LinkedHashMap<>();
+        for (String name : names) {
+            String cached = PROFILES.get(name);
+            if (cached != null) {
+                profiles.put(name, cached);
+            } else {
+                profiles.put(name, null);
+                missing.put(name, PROFILES.epoch(name));
+            }
+        }
+        if (missing.isEmpty()) {
+            return profiles;
+        }
+        String query = PROFILES_QUERY
+                + "(" + String.join(", ", Collections.nCopies(missing.size(), "?")) + ")";
+        Map<String, String> exact = new HashMap<>();
+        Map<String, String> ignoringCase = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        long start = System.nanoTime();
+        try (Connection conn = pool.getConnection();
+                PreparedStatement stmt = conn.prepareStatement(query)) {
+            int i = 1;
+            for (String name : missing.keySet()) {
+                stmt.setString(i++, name);
+            }
+            ResultSet rs = stmt.executeQuery();
+            while (rs.next()) {
+                String username = rs.getString("username");
+                String url = rs.getString("profile_photo_url");
+                exact.putIfAbsent(username, url);
+                ignoringCase.putIfAbsent(username, url);
+            }
+            PROFILES_BATCH.record(start);
+        } catch (SQLException e) {
+            PROFILES_BATCH.recordError(start);
+            LOG.error("Failed to get the profiles of " + missing.size() + " users", e);
+            return profiles;
+        }
+        for (Map.Entry<String, Long> miss : missing.entrySet()) {
+            String name = miss.getKey();
+            String url = exact.containsKey(name) ? exact.get(name)
+                    : ignoringCase.getOrDefault(name, "#");
+            // a user without a URL is told from a failed query
+            url = url != null ? url : "#";
+            profiles.put(name, url);
+            PROFILES.putIfUnchanged(name, url, miss.getValue());
+        }
+        return profiles;
+    }
+
+    /**
+     * Checks the logins in memory.
+     *
+     * @param index the credentials, null to query MySQL again
+     */
+    static void useCredentialIndex(CredentialIndex index) {
+        credentials = index;
+    }
+
+    /**
+     * Evicts a user's cached profile.
+     *
+     * @param name Username.
+     */
+    static void invalidateProfile(String name) {
+        PROFILES.invalidate(name);
+    }
+
+    /**
+     * Releases this instance's use of the connection pool. The pool itself is
+     * closed once no instance uses it any more.
      */
     public void closeConnection() {
-        if (conn != null) {
-            try {
-                conn.close();
-            } catch (SQLException e) {
-                e.printStackTrace();
+        synchronized (ProfileServlet.class) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            // the users of a replaced pool no longer count
+            if (usedPool == pool && --poolUsers <= 0 && pool != null) {
+                pool.close();
+                pool = null;
+                poolUsers = 0;
             }
         }
     }
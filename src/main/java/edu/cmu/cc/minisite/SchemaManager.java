@@ -0,0 +1,317 @@
+package edu.cmu.cc.minisite;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+import org.bson.Document;
+import org.neo4j.driver.v1.Session;
+import org.neo4j.driver.v1.summary.Plan;
+import org.neo4j.driver.v1.summary.ResultSummary;
+
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.IndexOptions;
+import com.mongodb.client.model.Indexes;
+
+/**
+ * Creates the indexes the hot queries need, then checks with the backends'
+ * explain plans that none of the hot queries scans a whole collection, table
+ * or label.
+ *
+ * The indexes:
+ * - MongoDB posts {uid: 1, ups: -1, timestamp: -1, _id: -1}, which returns
+ *   a user's comments, their pages and the top comments of a timeline
+ *   already sorted, and {cid: 1}, which finds their parents and
+ *   grandparents. It replaces {uid: 1, ups: -1, timestamp: -1}, which an
+ *   older deployment may drop once the new index is built.
+ * - MySQL users (username, pwd, profile_photo_url), which answers the login
+ *   and profile queries from the index alone.
+ * - Neo4j :User(username), where every social graph query starts.
+ *
+ * Creating an index that exists does nothing, so this runs at every start.
+ * A missing index is built online, without blocking the writes, and the
+ * server starts serving while it is built: MongoDB builds it in the
+ * background, MySQL without a lock and Neo4j populates it on its own. Until
+ * the build finishes the check reports its queries as scanning, so a
+ * deployment that sets SCHEMA_CHECK to "fail" should build the indexes
+ * first.
+ *
+ * Settings: SCHEMA_CREATE_INDEXES (true) creates the missing indexes.
+ * SCHEMA_CHECK is "warn" (the default) to log the hot queries that scan,
+ * "fail" to refuse to start, or "off" to skip the check.
+ */
+final class SchemaManager {
+
+    /**
+     * Logger.
+     */
+    private static final Logger LOG = Logging.getLogger(SchemaManager.class);
+
+    /**
+     * Whether the missing indexes are created.
+     */
+    static final boolean CREATE_INDEXES = Config.getBoolean("SCHEMA_CREATE_INDEXES", true);
+    /**
+     * What to do when a hot query scans: "warn", "fail" or "off".
+     */
+    static final String CHECK = Config.get("SCHEMA_CHECK", "warn");
+
+    /**
+     * Name of the covering index of the users table.
+     */
+    static final String MYSQL_INDEX = "user_login";
+    /**
+     * Columns of the covering index of the users table.
+     */
+    static final List<String> MYSQL_INDEX_COLUMNS =
+            Arrays.asList("username", "pwd", "profile_photo_url");
+
+    /**
+     * Value bound to the parameters of the explained queries.
+     */
+    private static final String SAMPLE = "schema-check";
+
+    private final ProfileServlet profileServlet;
+    private final FollowerServlet followerServlet;
+    private final HomepageServlet homepageServlet;
+
+    /**
+     * @param profileServlet MySQL backend
+     * @param followerServlet Neo4j backend
+     * @param homepageServlet MongoDB backend
+     */
+    SchemaManager(ProfileServlet profileServlet, FollowerServlet followerServlet,
+            HomepageServlet homepageServlet) {
+        this.profileServlet = profileServlet;
+        this.followerServlet = followerServlet;
+        this.homepageServlet = homepageServlet;
+    }
+
+    /**
+     * Creates the indexes and checks the plans, as configured.
+     *
+     * @throws IllegalStateException if SCHEMA_CHECK is "fail" and a hot query
+     *         scans
+     */
+    void apply() {
+        if (CREATE_INDEXES) {
+            createIndexes();
+        }
+        if (!"off".equalsIgnoreCase(CHECK)) {
+            verify("fail".equalsIgnoreCase(CHECK));
+        }
+    }
+
+    /**
+     * Creates the missing indexes, online. A backend that fails is logged and
+     * skipped, the check then reports its queries.
+     */
+    void createIndexes() {
+        try {
+            MongoCollection<Document> posts = homepageServlet.collection();
+            IndexOptions background = new IndexOptions().background(true);
+            posts.createIndex(Indexes.compoundIndex(Indexes.ascending("uid"),
+                    Indexes.descending("ups", "timestamp", "_id")), background);
+            posts.createIndex(Indexes.ascending("cid"), background);
+        } catch (RuntimeException e) {
+            LOG.error("Failed to create the MongoDB indexes", e);
+        }
+        try (Connection conn = profileServlet.connection()) {
+            if (!hasIndex(conn, "users", MYSQL_INDEX_COLUMNS)) {
+                LOG.info("Creating the MySQL index " + MYSQL_INDEX + MYSQL_INDEX_COLUMNS);
+                try (Statement stmt = conn.createStatement()) {
+                    stmt.executeUpdate("CREATE INDEX " + MYSQL_INDEX + " ON users ("
+                            + String.join(", ", MYSQL_INDEX_COLUMNS) + ") LOCK=NONE");
+                }
+            }
+        } catch (SQLException e) {
+            LOG.error("Failed to create the MySQL index " + MYSQL_INDEX, e);
+        }
+        try (Session session = followerServlet.driver().session()) {
+            session.run("CREATE INDEX ON :User(username)").consume();
+        } catch (RuntimeException e) {
+            LOG.error("Failed to create the Neo4j index on :User(username)", e);
+        }
+    }
+
+    /**
+     * Explains the hot queries and reports those that scan.
+     *
+     * @param fail whether a scan is an error rather than a warning
+     * @return descriptions of the queries that scan, empty if none does
+     * @throws IllegalStateException if fail is set and a hot query scans
+     */
+    List<String> verify(boolean fail) {
+        List<String> scans = new ArrayList<>();
+        Document sort = new Document("ups", -1).append("timestamp", -1);
+        Document in = new Document("$in", Arrays.asList(SAMPLE));
+        explainMongo(scans, "user_comments", new Document("uid", SAMPLE), sort);
+        explainMongo(scans, "top_comments", new Document("uid", in), sort);
+        explainMongo(scans, "ancestors", new Document("cid", in), null);
+        explainMongo(scans, "user_comments_page", new Document("uid", SAMPLE),
+                new Document(sort).append("_id", -1));
+        explainMySql(scans, "login", ProfileServlet.LOGIN_QUERY, 2);
+        explainMySql(scans, "profile", ProfileServlet.PROFILE_QUERY, 1);
+        explainNeo4j(scans, "followers", FollowerServlet.FOLLOWERS_QUERY);
+        explainNeo4j(scans, "followees", FollowerServlet.FOLLOWEES_QUERY);
+        explainNeo4j(scans, "social_graph", FollowerServlet.SOCIAL_GRAPH_QUERY);
+        explainNeo4j(scans, "follower_count", FollowerServlet.FOLLOWER_COUNT_QUERY);
+
+        if (scans.isEmpty()) {
+            LOG.info("No hot query scans");
+        } else if (fail) {
+            throw new IllegalStateException("Hot queries scan instead of using an index: "
+                    + scans);
+        } else {
+            LOG.error("Hot queries scan instead of using an index: " + scans);
+        }
+        return scans;
+    }
+
+    private void explainMongo(List<String> scans, String call, Document filter, Document sort) {
+        MongoDatabase database = homepageServlet.database();
+        if (database == null) {
+            LOG.warn("No MongoDB database to explain the " + call + " query in");
+            return;
+        }
+        Document find = new Document("find", HomepageServlet.COLLECTION_NAME)
+                .append("filter", filter);
+        if (sort != null) {
+            find.append("sort", sort);
+        }
+        try {
+            Document explain = database.runCommand(new Document("explain", find)
+                    .append("verbosity", "queryPlanner"));
+            if (mongoScans(explain)) {
+                scans.add("mongo " + call + " " + filter.toJson() + ": COLLSCAN");
+            }
+        } catch (RuntimeException e) {
+            LOG.warn("Failed to explain the MongoDB " + call + " query", e);
+        }
+    }
+
+    private void explainMySql(List<String> scans, String call, String query, int parameters) {
+        try (Connection conn = profileServlet.connection();
+                PreparedStatement stmt = conn.prepareStatement("EXPLAIN " + query)) {
+            for (int i = 1; i <= parameters; i++) {
+                stmt.setString(i, SAMPLE);
+            }
+            ResultSet rs = stmt.executeQuery();
+            while (rs.next()) {
+                String type = rs.getString("type");
+                if (mySqlScans(type)) {
+                    scans.add("mysql " + call + " on " + rs.getString("table") + ": type "
+                            + type);
+                }
+            }
+        } catch (SQLException | RuntimeException e) {
+            LOG.warn("Failed to explain the MySQL " + call + " query", e);
+        }
+    }
+
+    private void explainNeo4j(List<String> scans, String call, String query) {
+        Map<String, Object> parameters = new LinkedHashMap<>();
+        parameters.put("username", SAMPLE);
+        parameters.put("userId", SAMPLE);
+        try (Session session = followerServlet.driver().session()) {
+            ResultSummary summary = session.run("EXPLAIN " + query, parameters).consume();
+            String scan = summary.hasPlan() ? neo4jScan(summary.plan()) : null;
+            if (scan != null) {
+                scans.add("neo4j " + call + ": " + scan);
+            }
+        } catch (RuntimeException e) {
+            LOG.warn("Failed to explain the Neo4j " + call + " query", e);
+        }
+    }
+
+    /**
+     * @param conn connection to the database
+     * @param table the table
+     * @param columns the columns, in order
+     * @return whether an index of the table starts with the columns
+     * @throws SQLException if the indexes cannot be listed
+     */
+    static boolean hasIndex(Connection conn, String table, List<String> columns)
+            throws SQLException {
+        Map<String, List<String>> indexes = new LinkedHashMap<>();
+        try (Statement stmt = conn.createStatement();
+                ResultSet rs = stmt.executeQuery("SHOW INDEX FROM " + table)) {
+            // one row per column, in order within each index
+            while (rs.next()) {
+                indexes.computeIfAbsent(rs.getString("Key_name"), k -> new ArrayList<>())
+                        .add(rs.getString("Column_name"));
+            }
+        }
+        for (List<String> indexColumns : indexes.values()) {
+            if (indexColumns.size() >= columns.size()
+                    && indexColumns.subList(0, columns.size()).equals(columns)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param explain result of a MongoDB explain command
+     * @return whether the winning plan scans the collection
+     */
+    static boolean mongoScans(Document explain) {
+        Object planner = explain.get("queryPlanner");
+        return planner instanceof Document
+                && containsStage(((Document) planner).get("winningPlan"), "COLLSCAN");
+    }
+
+    private static boolean containsStage(Object plan, String stage) {
+        if (plan instanceof Document) {
+            for (Map.Entry<String, Object> entry : ((Document) plan).entrySet()) {
+                if ("stage".equals(entry.getKey()) && stage.equals(entry.getValue())
+                        || containsStage(entry.getValue(), stage)) {
+                    return true;
+                }
+            }
+        } else if (plan instanceof List) {
+            for (Object child : (List<?>) plan) {
+                if (containsStage(child, stage)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param type access type of a table in a MySQL explain plan
+     * @return whether it reads the whole table or a whole index
+     */
+    static boolean mySqlScans(String type) {
+        return "ALL".equals(type) || "index".equals(type);
+    }
+
+    /**
+     * @param plan a Neo4j explain plan
+     * @return the first operator that scans all nodes or a whole label, null
+     *         if none does
+     */
+    static String neo4jScan(Plan plan) {
+        String operator = plan.operatorType();
+        if (operator.startsWith("AllNodesScan") || operator.startsWith("NodeByLabelScan")) {
+            return operator;
+        }
+        for (Plan child : plan.children()) {
+            String scan = neo4jScan(child);
+            if (scan != null) {
+                return scan;
+            }
+        }
+        return null;
+    }
+}
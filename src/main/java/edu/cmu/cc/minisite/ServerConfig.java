@@ -0,0 +1,237 @@
+package edu.cmu.cc.minisite;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+
+import org.xnio.Options;
+
+import io.undertow.Undertow;
+import io.undertow.UndertowOptions;
+import io.undertow.server.HttpHandler;
+
+/**
+ * Tuning of the Undertow server, read through {@link Config} so a node can be
+ * sized for its cores and memory without a rebuild.
+ *
+ * Every default is the value Undertow would pick by itself, so an
+ * unconfigured server behaves as before. Settings:
+ *
+ * SERVER_HOST, SERVER_PORT: the HTTP listener, 0.0.0.0:8080.
+ * SERVER_IO_THREADS: I/O threads, one per core and at least 2.
+ * SERVER_WORKER_THREADS: worker threads, 8 per I/O thread.
+ * SERVER_BUFFER_SIZE, SERVER_DIRECT_BUFFERS: I/O buffers, sized by the heap.
+ * SERVER_BACKLOG: length of the accept queue, 1000.
+ * SERVER_HTTP2: whether HTTP/2 is offered, false.
+ * SERVER_TCP_KEEP_ALIVE: TCP keep-alive probes, false.
+ * SERVER_KEEP_ALIVE_TIMEOUT_MS: how long an idle persistent connection is
+ * kept between requests, 0 for Undertow's default.
+ * SERVER_IDLE_TIMEOUT_MS: how long a connection may be inactive, 0 for
+ * Undertow's default.
+ * SERVER_MAX_HEADER_SIZE, SERVER_MAX_HEADERS, SERVER_MAX_PARAMETERS,
+ * SERVER_MAX_COOKIES, SERVER_MAX_ENTITY_SIZE: request parsing limits.
+ * SERVER_HTTP2_PORT: port of an additional TLS listener that negotiates
+ * HTTP/2, -1 for none. It needs SERVER_TLS_KEYSTORE,
+ * SERVER_TLS_KEYSTORE_PASSWORD and optionally SERVER_TLS_KEYSTORE_TYPE
+ * (PKCS12). Setting it turns on SERVER_HTTP2.
+ */
+final class ServerConfig {
+
+    /**
+     * Port value that disables the HTTP/2 listener.
+     */
+    static final int DISABLED = -1;
+
+    /**
+     * Effective settings, see the class comment.
+     */
+    final String host;
+    final int port;
+    final int ioThreads;
+    final int workerThreads;
+    final int bufferSize;
+    final boolean directBuffers;
+    final int backlog;
+    final boolean http2;
+    final boolean tcpKeepAlive;
+    final int keepAliveTimeoutMs;
+    final int idleTimeoutMs;
+    final int maxHeaderSize;
+    final int maxHeaders;
+    final int maxParameters;
+    final int maxCookies;
+    final long maxEntitySize;
+    final int http2Port;
+    final String keyStore;
+    final String keyStorePassword;
+    final String keyStoreType;
+
+    /**
+     * Reads the settings.
+     *
+     * @throws IllegalArgumentException if a setting is out of range
+     */
+    ServerConfig() {
+        long maxMemory = Runtime.getRuntime().maxMemory();
+        host = Config.get("SERVER_HOST", "0.0.0.0");
+        port = Config.getInt("SERVER_PORT", 8080);
+        ioThreads = Config.getInt("SERVER_IO_THREADS",
+                Math.max(Runtime.getRuntime().availableProcessors(), 2));
+        workerThreads = Config.getInt("SERVER_WORKER_THREADS", ioThreads * 8);
+        bufferSize = Config.getInt("SERVER_BUFFER_SIZE", defaultBufferSize(maxMemory));
+        directBuffers = Config.getBoolean("SERVER_DIRECT_BUFFERS",
+                maxMemory >= 64 * 1024 * 1024);
+        backlog = Config.getInt("SERVER_BACKLOG", 1000);
+        tcpKeepAlive = Config.getBoolean("SERVER_TCP_KEEP_ALIVE", false);
+        keepAliveTimeoutMs = Config.getInt("SERVER_KEEP_ALIVE_TIMEOUT_MS", 0);
+        idleTimeoutMs = Config.getInt("SERVER_IDLE_TIMEOUT_MS", 0);
+        maxHeaderSize = Config.getInt("SERVER_MAX_HEADER_SIZE",
+                UndertowOptions.DEFAULT_MAX_HEADER_SIZE);
+        maxHeaders = Config.getInt("SERVER_MAX_HEADERS", UndertowOptions.DEFAULT_MAX_HEADERS);
+        maxParameters = Config.getInt("SERVER_MAX_PARAMETERS",
+                UndertowOptions.DEFAULT_MAX_PARAMETERS);
+        maxCookies = Config.getInt("SERVER_MAX_COOKIES", 200);
+        maxEntitySize = Config.getLong("SERVER_MAX_ENTITY_SIZE",
+                UndertowOptions.DEFAULT_MAX_ENTITY_SIZE);
+        http2Port = Config.getInt("SERVER_HTTP2_PORT", DISABLED);
+        http2 = Config.getBoolean("SERVER_HTTP2", false) || http2Port != DISABLED;
+        keyStore = Config.get("SERVER_TLS_KEYSTORE", null);
+        keyStorePassword = Config.get("SERVER_TLS_KEYSTORE_PASSWORD", "");
+        keyStoreType = Config.get("SERVER_TLS_KEYSTORE_TYPE", "PKCS12");
+
+        checkPort("SERVER_PORT", port);
+        checkPositive("SERVER_IO_THREADS", ioThreads);
+        checkPositive("SERVER_WORKER_THREADS", workerThreads);
+        checkPositive("SERVER_BUFFER_SIZE", bufferSize);
+        checkPositive("SERVER_BACKLOG", backlog);
+        checkPositive("SERVER_MAX_HEADER_SIZE", maxHeaderSize);
+        checkPositive("SERVER_MAX_HEADERS", maxHeaders);
+        checkPositive("SERVER_MAX_PARAMETERS", maxParameters);
+        checkPositive("SERVER_MAX_COOKIES", maxCookies);
+        if (http2Port != DISABLED) {
+            checkPort("SERVER_HTTP2_PORT", http2Port);
+            if (keyStore == null) {
+                throw new IllegalArgumentException(
+                        "SERVER_HTTP2_PORT needs SERVER_TLS_KEYSTORE");
+            }
+        }
+    }
+
+    /**
+     * Creates the server.
+     *
+     * @param handler the root handler
+     * @return the server, not started
+     * @throws IllegalStateException if the TLS key store cannot be loaded
+     */
+    Undertow build(HttpHandler handler) {
+        Undertow.Builder builder = Undertow.builder()
+                .addHttpListener(port, host)
+                .setHandler(handler)
+                .setIoThreads(ioThreads)
+                .setWorkerThreads(workerThreads)
+                .setBufferSize(bufferSize)
+                .setDirectBuffers(directBuffers)
+                .setSocketOption(Options.BACKLOG, backlog)
+                .setSocketOption(Options.KEEP_ALIVE, tcpKeepAlive)
+                .setServerOption(UndertowOptions.ENABLE_HTTP2, http2)
+                .setServerOption(UndertowOptions.MAX_HEADER_SIZE, maxHeaderSize)
+                .setServerOption(UndertowOptions.MAX_HEADERS, maxHeaders)
+                .setServerOption(UndertowOptions.MAX_PARAMETERS, maxParameters)
+                .setServerOption(UndertowOptions.MAX_COOKIES, maxCookies)
+                .setServerOption(UndertowOptions.MAX_ENTITY_SIZE, maxEntitySize);
+        if (keepAliveTimeoutMs > 0) {
+            builder.setServerOption(UndertowOptions.NO_REQUEST_TIMEOUT, keepAliveTimeoutMs);
+        }
+        if (idleTimeoutMs > 0) {
+            builder.setServerOption(UndertowOptions.IDLE_TIMEOUT, idleTimeoutMs);
+        }
+        if (http2Port != DISABLED) {
+            builder.addHttpsListener(http2Port, host, sslContext());
+        }
+        return builder.build();
+    }
+
+    /**
+     * @return the effective settings, for the boot log
+     */
+    @Override
+    public String toString() {
+        return "ServerConfig{listener=" + host + ":" + port
+                + ", ioThreads=" + ioThreads
+                + ", workerThreads=" + workerThreads
+                + ", bufferSize=" + bufferSize
+                + ", directBuffers=" + directBuffers
+                + ", backlog=" + backlog
+                + ", http2=" + http2
+                + ", http2Port=" + (http2Port == DISABLED ? "none" : String.valueOf(http2Port))
+                + ", tcpKeepAlive=" + tcpKeepAlive
+                + ", keepAliveTimeoutMs=" + timeout(keepAliveTimeoutMs)
+                + ", idleTimeoutMs=" + timeout(idleTimeoutMs)
+                + ", maxHeaderSize=" + maxHeaderSize
+                + ", maxHeaders=" + maxHeaders
+                + ", maxParameters=" + maxParameters
+                + ", maxCookies=" + maxCookies
+                + ", maxEntitySize=" + (maxEntitySize < 0 ? "unlimited" : maxEntitySize)
+                + "}";
+    }
+
+    /**
+     * Loads the key store of the HTTP/2 listener.
+     *
+     * @return the TLS context
+     */
+    private SSLContext sslContext() {
+        char[] password = keyStorePassword.toCharArray();
+        try (InputStream in = Files.newInputStream(Paths.get(keyStore))) {
+            KeyStore store = KeyStore.getInstance(keyStoreType);
+            store.load(in, password);
+            KeyManagerFactory keyManagers =
+                    KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+            keyManagers.init(store, password);
+            SSLContext context = SSLContext.getInstance("TLS");
+            context.init(keyManagers.getKeyManagers(), null, null);
+            return context;
+        } catch (IOException | GeneralSecurityException e) {
+            throw new IllegalStateException("Cannot load the key store " + keyStore, e);
+        }
+    }
+
+    /**
+     * Buffer size Undertow picks for the given heap.
+     *
+     * @param maxMemory maximum heap size in bytes
+     * @return buffer size in bytes
+     */
+    private static int defaultBufferSize(long maxMemory) {
+        if (maxMemory < 64 * 1024 * 1024) {
+            return 512;
+        } else if (maxMemory < 128 * 1024 * 1024) {
+            return 1024;
+        }
+        // one HTTP/2 frame with its header fits in a buffer
+        return 1024 * 16 - 20;
+    }
+
+    private static String timeout(int timeoutMs) {
+        return timeoutMs > 0 ? String.valueOf(timeoutMs) : "default";
+    }
+
+    private static void checkPositive(String name, long value) {
+        if (value <= 0) {
+            throw new IllegalArgumentException(name + " must be positive: " + value);
+        }
+    }
+
+    private static void checkPort(String name, int value) {
+        if (value < 0 || value > 65535) {
+            throw new IllegalArgumentException(name + " is not a port: " + value);
+        }
+    }
+}
@@ -0,0 +1,161 @@
+package edu.cmu.cc.minisite;
+
+import java.sql.SQLException;
+
+import javax.servlet.ServletContext;
+
+/**
+ * The backend services every endpoint shares: the indexes the schema
+ * check creates, the {@link SocialGraphIndex} behind /task2, /task4 and
+ * /task5, and the {@link CredentialIndex} behind /task1.
+ *
+ * One instance is created per process, by {@link MiniSite} in servlet mode
+ * and by {@link MiniSiteHandlers} in handler mode, and it runs for as long
+ * as the server does. So an index serves every endpoint whichever servlet
+ * is loaded first, and stays on when a servlet is destroyed. In servlet
+ * mode the servlets find it in the servlet context under
+ * {@link #ATTRIBUTE}.
+ */
+final class SharedBackends implements AutoCloseable {
+
+    /**
+     * Servlet context attribute holding the instance in servlet mode.
+     */
+    static final String ATTRIBUTE = SharedBackends.class.getName();
+
+    private final ProfileServlet profileServlet;
+    private final FollowerServlet followerServlet;
+    private final HomepageServlet homepageServlet;
+    /**
+     * Whether this instance opened the backends and closes them.
+     */
+    private final boolean ownsBackends;
+    /**
+     * The FOLLOWS relation in memory, null when SOCIAL_GRAPH_INDEX is off.
+     */
+    private SocialGraphIndex graphIndex;
+    /**
+     * The credentials in memory, null when CREDENTIAL_INDEX is off.
+     */
+    private CredentialIndex credentials;
+
+    /**
+     * Shares services over given backends, which the caller closes.
+     *
+     * @param profileServlet MySQL backend
+     * @param followerServlet Neo4j backend
+     * @param homepageServlet MongoDB backend
+     */
+    SharedBackends(ProfileServlet profileServlet, FollowerServlet followerServlet,
+            HomepageServlet homepageServlet) {
+        this(profileServlet, followerServlet, homepageServlet, false);
+    }
+
+    private SharedBackends(ProfileServlet profileServlet, FollowerServlet followerServlet,
+            HomepageServlet homepageServlet, boolean ownsBackends) {
+        this.profileServlet = profileServlet;
+        this.followerServlet = followerServlet;
+        this.homepageServlet = homepageServlet;
+        this.ownsBackends = ownsBackends;
+    }
+
+    /**
+     * Connects to the backends, which {@link #close()} closes.
+     *
+     * @return the services, not started
+     * @throws ClassNotFoundException when an application fails to load a class
+     * @throws SQLException on a database access error or other errors
+     */
+    static SharedBackends connect() throws ClassNotFoundException, SQLException {
+        return new SharedBackends(new ProfileServlet(), new FollowerServlet(),
+                new HomepageServlet(), true);
+    }
+
+    /**
+     * @param context the servlet context
+     * @return the instance of the deployment, null if it has none
+     */
+    static SharedBackends of(ServletContext context) {
+        return (SharedBackends) context.getAttribute(ATTRIBUTE);
+    }
+
+    /**
+     * Creates the indexes, checks the hot queries and starts the in-memory
+     * indexes that are on.
+     *
+     * @throws IllegalStateException if SCHEMA_CHECK is "fail" and a hot query
+     *         scans
+     */
+    synchronized void start() {
+        new SchemaManager(profileServlet, followerServlet, homepageServlet).apply();
+        startGraphIndex();
+        startCredentialIndex();
+    }
+
+    /**
+     * Keeps the in-memory indexes current from a change feed. They are added
+     * before any other listener, so the graph is current before anything
+     * reads the followers again.
+     *
+     * @param changeFeed the change feed
+     */
+    synchronized void addListeners(ChangeFeed changeFeed) {
+        if (graphIndex != null) {
+            changeFeed.addListener(graphIndex);
+        }
+        if (credentials != null) {
+            changeFeed.addListener(credentials);
+        }
+    }
+
+    /**
+     * Starts serving the followers and followees from memory, if
+     * SOCIAL_GRAPH_INDEX is on. The backends are queried until the graph
+     * is loaded.
+     */
+    private void startGraphIndex() {
+        if (!SocialGraphIndex.ENABLED || graphIndex != null) {
+            return;
+        }
+        graphIndex = new SocialGraphIndex(followerServlet.driver());
+        graphIndex.start(SocialGraphIndex.REFRESH_SECONDS);
+        FollowerServlet.useGraphIndex(graphIndex);
+    }
+
+    /**
+     * Starts checking the logins in memory, if CREDENTIAL_INDEX is on. MySQL
+     * checks them until the credentials are loaded.
+     */
+    private void startCredentialIndex() {
+        if (!CredentialIndex.ENABLED || credentials != null) {
+            return;
+        }
+        credentials = new CredentialIndex(profileServlet);
+        credentials.registerMetrics();
+        credentials.start(CredentialIndex.REFRESH_SECONDS);
+        ProfileServlet.useCredentialIndex(credentials);
+    }
+
+    /**
+     * Stops the in-memory indexes, and closes the backends if they were
+     * opened by {@link #connect()}.
+     */
+    @Override
+    public synchronized void close() {
+        if (graphIndex != null) {
+            FollowerServlet.useGraphIndex(null);
+            graphIndex.close();
+            graphIndex = null;
+        }
+        if (credentials != null) {
+            ProfileServlet.useCredentialIndex(null);
+            credentials.close();
+            credentials = null;
+        }
+        if (ownsBackends) {
+            profileServlet.closeConnection();
+            followerServlet.closeDriver();
+            homepageServlet.closeCollection();
+        }
+    }
+}
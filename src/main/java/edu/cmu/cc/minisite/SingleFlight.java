@@ -0,0 +1,124 @@
+package edu.cmu.cc.minisite;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Coalesces concurrent loads of the same key.
+ *
+ * The first caller for a key runs the loader; callers that arrive while it is
+ * running wait for it and get the same result, or the same exception, instead
+ * of running the loader again. Once the load finishes the key is forgotten, so
+ * a later call loads again.
+ *
+ * @param <K> key type
+ * @param <V> value type
+ */
+class SingleFlight<K, V> {
+
+    /**
+     * Loads that are currently running.
+     */
+    private final ConcurrentHashMap<K, CompletableFuture<V>> inFlight = new ConcurrentHashMap<>();
+
+    /**
+     * Number of times the loader ran.
+     */
+    private final LongAdder loads = new LongAdder();
+    /**
+     * Number of callers that waited for another caller's load instead.
+     */
+    private final LongAdder coalesced = new LongAdder();
+
+    /**
+     * Returns the value of the key, loading it unless a load of the same key
+     * is already running.
+     *
+     * @param key the key
+     * @param loader computes the value
+     * @return the loaded value
+     */
+    V load(K key, Supplier<V> loader) {
+        try {
+            return loadAsync(key, () -> CompletableFuture.completedFuture(loader.get())).join();
+        } catch (CompletionException e) {
+            throw propagate(e.getCause());
+        }
+    }
+
+    /**
+     * Returns a future of the value of the key, starting a load unless a load
+     * of the same key is already running. The loader must not block; it
+     * returns a future that completes when the value is ready.
+     *
+     * @param key the key
+     * @param loader starts computing the value
+     * @return future of the loaded value
+     */
+    CompletableFuture<V> loadAsync(K key, Supplier<CompletableFuture<V>> loader) {
+        CompletableFuture<V> flight = new CompletableFuture<>();
+        CompletableFuture<V> running = inFlight.putIfAbsent(key, flight);
+        if (running != null) {
+            coalesced.increment();
+            return running;
+        }
+
+        loads.increment();
+        CompletableFuture<V> value;
+        try {
+            value = loader.get();
+        } catch (RuntimeException | Error e) {
+            value = new CompletableFuture<>();
+            value.completeExceptionally(e);
+        }
+        value.whenComplete((result, failure) -> {
+            inFlight.remove(key, flight);
+            if (failure != null) {
+                flight.completeExceptionally(failure);
+            } else {
+                flight.complete(result);
+            }
+        });
+        return flight;
+    }
+
+    /**
+     * @return number of times the loader ran
+     */
+    long loadCount() {
+        return loads.sum();
+    }
+
+    /**
+     * @return number of loads saved by waiting for a running load
+     */
+    long coalescedCount() {
+        return coalesced.sum();
+    }
+
+    /**
+     * @return number of loads running right now
+     */
+    int inFlightCount() {
+        return inFlight.size();
+    }
+
+    @Override
+    public String toString() {
+        return "SingleFlight{loads=" + loadCount() + ", coalesced=" + coalescedCount()
+                + ", inFlight=" + inFlightCount() + "}";
+    }
+
+    private static RuntimeException propagate(Throwable cause) {
+        if (cause instanceof RuntimeException) {
+            return (RuntimeException) cause;
+        }
+        if (cause instanceof Error) {
+            throw (Error) cause;
+        }
+        return new CompletionException(cause);
+    }
+}
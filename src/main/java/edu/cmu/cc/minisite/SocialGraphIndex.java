@@ -0,0 +1,704 @@
+package edu.cmu.cc.minisite;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import org.apache.log4j.Logger;
+import org.neo4j.driver.v1.Driver;
+import org.neo4j.driver.v1.Record;
+import org.neo4j.driver.v1.Session;
+import org.neo4j.driver.v1.StatementResult;
+import org.neo4j.driver.v1.Value;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.stream.JsonWriter;
+
+/**
+ * The FOLLOWS relation held in memory, so the followers, followees and
+ * follower count of a user cost a binary search and an array scan instead of
+ * a Cypher query. Neo4j stays the source of truth.
+ *
+ * Usernames are numbered in sorted order and both directions of the relation
+ * are stored in compressed sparse rows: user i's followers are
+ * followerIds[followerOffsets[i] .. followerOffsets[i + 1]). Each row is
+ * sorted by id, which is the order of the usernames, so the rows are already
+ * in the order the endpoints return. A graph of E follows and N users takes
+ * about 8 E + 8 N bytes of arrays plus the usernames and profile URLs.
+ *
+ * The graph is loaded from Neo4j in two queries, or at startup from a CSV
+ * export, and reloaded from Neo4j every SOCIAL_GRAPH_INDEX_REFRESH_SECONDS.
+ * In between, the follows of the change feed are added to small sorted
+ * per-user rows that are merged into the base rows as they are read, in
+ * place. A follow involving a user the graph does not know, or a profile
+ * change, marks the affected users stale until the next reload; those
+ * users, and users the graph does not know, are left to Neo4j, which is
+ * what a null result means. Follows reported while a reload runs are
+ * applied again to the reloaded graph.
+ *
+ * Settings: SOCIAL_GRAPH_INDEX turns the index on.
+ * SOCIAL_GRAPH_INDEX_USERS_CSV and SOCIAL_GRAPH_INDEX_FOLLOWS_CSV name a CSV
+ * export to load first, with "username,profile URL" and "follower,followee"
+ * lines.
+ */
+final class SocialGraphIndex implements ChangeFeed.Listener, AutoCloseable {
+
+    /**
+     * Logger.
+     */
+    private static final Logger LOG = Logging.getLogger(SocialGraphIndex.class);
+
+    /**
+     * Whether followers and followees are served from memory.
+     */
+    static final boolean ENABLED = Config.getBoolean("SOCIAL_GRAPH_INDEX", false);
+    /**
+     * CSV export of the users loaded at startup, empty to load from Neo4j.
+     */
+    static final String USERS_CSV = Config.get("SOCIAL_GRAPH_INDEX_USERS_CSV", "");
+    /**
+     * CSV export of the follows loaded at startup, empty to load from Neo4j.
+     */
+    static final String FOLLOWS_CSV = Config.get("SOCIAL_GRAPH_INDEX_FOLLOWS_CSV", "");
+    /**
+     * Seconds between two reloads from Neo4j, 0 to load once.
+     */
+    static final long REFRESH_SECONDS =
+            Config.getLong("SOCIAL_GRAPH_INDEX_REFRESH_SECONDS", 3600);
+
+    private static final int[] NONE = new int[0];
+
+    private final Driver driver;
+    /**
+     * The loaded graph with the changes since, null until loaded.
+     */
+    private volatile Graph graph;
+    /**
+     * Changes reported while a reload runs, to apply again to its graph,
+     * null when no reload runs. Guarded by this.
+     */
+    private List<Consumer<Graph>> replay;
+    /**
+     * Reloads the graph, null until started.
+     */
+    private ScheduledExecutorService refresher;
+
+    /**
+     * @param driver the Neo4j driver, the source of truth
+     */
+    SocialGraphIndex(Driver driver) {
+        this.driver = driver;
+    }
+
+    /**
+     * Loads the graph in the background, from the CSV export if there is
+     * one, and reloads it from Neo4j periodically.
+     *
+     * @param refreshSeconds seconds between two reloads, 0 to load once
+     */
+    synchronized void start(long refreshSeconds) {
+        if (refresher != null) {
+            return;
+        }
+        refresher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "social-graph-index");
+            thread.setDaemon(true);
+            return thread;
+        });
+        boolean csv = !USERS_CSV.isEmpty() && !FOLLOWS_CSV.isEmpty();
+        if (csv) {
+            refresher.execute(() -> refresh(() -> {
+                try (Reader users = Files.newBufferedReader(Paths.get(USERS_CSV),
+                        StandardCharsets.UTF_8);
+                        Reader follows = Files.newBufferedReader(Paths.get(FOLLOWS_CSV),
+                                StandardCharsets.UTF_8)) {
+                    return loadCsv(users, follows);
+                }
+            }));
+        }
+        if (refreshSeconds > 0) {
+            refresher.scheduleWithFixedDelay(this::refresh, csv ? refreshSeconds : 0,
+                    refreshSeconds, TimeUnit.SECONDS);
+        } else if (!csv) {
+            refresher.execute(this::refresh);
+        }
+    }
+
+    /**
+     * Reloads the whole graph from Neo4j.
+     *
+     * @return false if the load failed and the previous graph is kept
+     */
+    boolean refresh() {
+        return refresh(() -> loadNeo4j(driver));
+    }
+
+    /**
+     * Replaces the graph with a newly loaded one.
+     *
+     * @param loader loads the graph
+     * @return false if the load failed and the previous graph is kept
+     */
+    boolean refresh(Loader loader) {
+        synchronized (this) {
+            replay = new ArrayList<>();
+        }
+        long start = System.nanoTime();
+        Graph loaded;
+        try {
+            loaded = loader.load();
+        } catch (IOException | RuntimeException e) {
+            synchronized (this) {
+                replay = null;
+            }
+            LOG.error("Failed to load the social graph, keeping the previous one", e);
+            return false;
+        }
+        synchronized (this) {
+            for (Consumer<Graph> change : replay) {
+                change.accept(loaded);
+            }
+            replay = null;
+            graph = loaded;
+        }
+        LOG.info("Loaded " + loaded.size() + " users and " + loaded.followCount()
+                + " follows in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)
+                + " ms");
+        return true;
+    }
+
+    /**
+     * @return whether a graph is loaded
+     */
+    boolean isLoaded() {
+        return graph != null;
+    }
+
+    /**
+     * @param name a username
+     * @return the user's followers as [{profile, name}...] sorted by name, as
+     *         {@link FollowerServlet#getFollowers} returns them, or null to
+     *         ask Neo4j
+     */
+    JsonArray followers(String name) {
+        Graph g = graph;
+        int user = usable(g, name);
+        if (user < 0) {
+            return null;
+        }
+        JsonArray followers = new JsonArray();
+        Row row = new Row(g.followerOffsets, g.followerIds, user, g.addedFollowers);
+        while (row.hasNext()) {
+            int follower = row.next();
+            JsonObject json = new JsonObject();
+            json.addProperty("profile", g.urls[follower]);
+            json.addProperty("name", g.names[follower]);
+            followers.add(json);
+        }
+        return followers;
+    }
+
+    /**
+     * Writes a page of a user's followers, as
+     * {@link FollowerServlet#writeFollowers} does, from the user's row
+     * without building the whole list.
+     *
+     * @param writer the JSON stream, in an open object
+     * @param name a username
+     * @param after name of the last follower of the previous page, null for
+     *        the first page
+     * @param limit followers of the page, 0 for all
+     * @return false, having written nothing, to ask Neo4j
+     * @throws IOException if the stream cannot be written
+     */
+    boolean writeFollowers(JsonWriter writer, String name, String after, int limit)
+            throws IOException {
+        Graph g = graph;
+        int user = usable(g, name);
+        if (user < 0) {
+            return false;
+        }
+        Row row = new Row(g.followerOffsets, g.followerIds, user, g.addedFollowers);
+        // ids follow the order of the names, so the page starts at the first
+        // id after the one the name of the cursor has or would have
+        if (after != null) {
+            int id = Arrays.binarySearch(g.names, after);
+            row.skipTo(id >= 0 ? id + 1 : -id - 1);
+        }
+        writer.name("followers").beginArray();
+        int last = -1;
+        for (int written = 0; row.hasNext() && (limit <= 0 || written < limit); written++) {
+            last = row.next();
+            FollowerServlet.writeFollower(writer, g.names[last], g.urls[last]);
+        }
+        writer.endArray();
+        if (row.hasNext() && last >= 0) {
+            FollowerServlet.writeNext(writer, g.names[last]);
+        }
+        return true;
+    }
+
+    /**
+     * @param name a username
+     * @return the names of the user's followees sorted, or null to ask Neo4j
+     */
+    List<String> followees(String name) {
+        Graph g = graph;
+        int user = usable(g, name);
+        if (user < 0) {
+            return null;
+        }
+        Row row = new Row(g.followeeOffsets, g.followeeIds, user, g.addedFollowees);
+        List<String> followees = new ArrayList<>(row.remaining());
+        while (row.hasNext()) {
+            followees.add(g.names[row.next()]);
+        }
+        return followees;
+    }
+
+    /**
+     * @param name a username
+     * @return the user's number of followers, -1 to ask Neo4j
+     */
+    int followerCount(String name) {
+        Graph g = graph;
+        int user = usable(g, name);
+        if (user < 0) {
+            return -1;
+        }
+        int[] added = g.addedFollowers.get(user);
+        return g.followerOffsets[user + 1] - g.followerOffsets[user]
+                + (added == null ? 0 : added.length);
+    }
+
+    @Override
+    public void commentChanged(String authorId) {
+        // comments are not part of the graph
+    }
+
+    @Override
+    public synchronized void followChanged(String followerId, String followeeId) {
+        if (replay != null) {
+            replay.add(g -> addFollow(g, followerId, followeeId));
+        }
+        if (graph != null) {
+            addFollow(graph, followerId, followeeId);
+        }
+    }
+
+    @Override
+    public synchronized void userChanged(String userId) {
+        if (replay != null) {
+            replay.add(g -> markFollowersStale(g, userId));
+        }
+        if (graph != null) {
+            markFollowersStale(graph, userId);
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        if (refresher != null) {
+            refresher.shutdownNow();
+            refresher = null;
+        }
+    }
+
+    private static void addFollow(Graph g, String followerId, String followeeId) {
+        int follower = g.id(followerId);
+        int followee = g.id(followeeId);
+        if (follower < 0 || followee < 0) {
+            // rows cannot hold a user without an id, ask Neo4j until the reload
+            g.stale.add(followerId);
+            g.stale.add(followeeId);
+            return;
+        }
+        if (contains(g.followeeOffsets, g.followeeIds, follower, followee)
+                || Arrays.binarySearch(g.addedFollowees.getOrDefault(follower, NONE), followee)
+                >= 0) {
+            return;
+        }
+        g.addedFollowers.merge(followee, new int[] {follower}, SocialGraphIndex::merge);
+        g.addedFollowees.merge(follower, new int[] {followee}, SocialGraphIndex::merge);
+    }
+
+    private static void markFollowersStale(Graph g, String userId) {
+        int user = g.id(userId);
+        if (user < 0) {
+            return;
+        }
+        // the user's profile URL is in the followers of everyone the user follows
+        Row row = new Row(g.followeeOffsets, g.followeeIds, user, g.addedFollowees);
+        while (row.hasNext()) {
+            g.stale.add(g.names[row.next()]);
+        }
+    }
+
+    private static int usable(Graph g, String name) {
+        if (g == null || name == null || g.stale.contains(name)) {
+            return -1;
+        }
+        return g.id(name);
+    }
+
+    private static boolean contains(int[] offsets, int[] ids, int user, int other) {
+        return Arrays.binarySearch(ids, offsets[user], offsets[user + 1], other) >= 0;
+    }
+
+    /**
+     * A user's row of the base graph merged with the added one, read in
+     * place in the order of the ids. Neither row is copied: the base row is
+     * read from the shared id array and the added row, which is small, is
+     * merged in as the row is read.
+     */
+    private static final class Row {
+
+        /**
+         * Ids of every row of the base graph.
+         */
+        private final int[] ids;
+        /**
+         * End of the user's row in {@link #ids}.
+         */
+        private final int end;
+        /**
+         * The user's added row, sorted.
+         */
+        private final int[] added;
+        /**
+         * Next id to read in {@link #ids}.
+         */
+        private int at;
+        /**
+         * Next id to read in {@link #added}.
+         */
+        private int addedAt;
+
+        /**
+         * @param offsets start of each user's row in ids
+         * @param ids ids of every row
+         * @param user the user
+         * @param added added rows by user id
+         */
+        Row(int[] offsets, int[] ids, int user, Map<Integer, int[]> added) {
+            this.ids = ids;
+            this.at = offsets[user];
+            this.end = offsets[user + 1];
+            this.added = added.getOrDefault(user, NONE);
+        }
+
+        /**
+         * @return true if the row has ids left to read
+         */
+        boolean hasNext() {
+            return at < end || addedAt < added.length;
+        }
+
+        /**
+         * @return the next id of the row, if {@link #hasNext()}
+         */
+        int next() {
+            if (addedAt >= added.length || (at < end && ids[at] <= added[addedAt])) {
+                return ids[at++];
+            }
+            return added[addedAt++];
+        }
+
+        /**
+         * @return number of ids left to read
+         */
+        int remaining() {
+            return end - at + added.length - addedAt;
+        }
+
+        /**
+         * Skips the ids lower than the given one.
+         *
+         * @param id the first id to read
+         */
+        void skipTo(int id) {
+            int found = Arrays.binarySearch(ids, at, end, id);
+            at = found >= 0 ? found : -found - 1;
+            found = Arrays.binarySearch(added, addedAt, added.length, id);
+            addedAt = found >= 0 ? found : -found - 1;
+        }
+    }
+
+    /**
+     * @return the two sorted arrays merged, sorted
+     */
+    static int[] merge(int[] a, int[] b) {
+        int[] merged = new int[a.length + b.length];
+        int i = 0;
+        int j = 0;
+        int k = 0;
+        while (i < a.length && j < b.length) {
+            merged[k++] = a[i] <= b[j] ? a[i++] : b[j++];
+        }
+        while (i < a.length) {
+            merged[k++] = a[i++];
+        }
+        while (j < b.length) {
+            merged[k++] = b[j++];
+        }
+        return merged;
+    }
+
+    /**
+     * Loads the graph from Neo4j, users first, then follows.
+     *
+     * @param driver the Neo4j driver
+     * @return the graph
+     */
+    static Graph loadNeo4j(Driver driver) {
+        Builder builder = new Builder();
+        try (Session session = driver.session()) {
+            StatementResult users = session.run(
+                    "MATCH (u:User) RETURN u.username AS name, u.url AS url");
+            while (users.hasNext()) {
+                Record record = users.next();
+                Value name = record.get("name");
+                Value url = record.get("url");
+                if (!name.isNull()) {
+                    builder.user(name.asString(), url.isNull() ? null : url.asString());
+                }
+            }
+            StatementResult follows = session.run("MATCH (f:User)-[:FOLLOWS]->(u:User) "
+                    + "RETURN f.username AS follower, u.username AS followee");
+            while (follows.hasNext()) {
+                Record record = follows.next();
+                Value follower = record.get("follower");
+                Value followee = record.get("followee");
+                if (!follower.isNull() && !followee.isNull()) {
+                    builder.follow(follower.asString(), followee.asString());
+                }
+            }
+        }
+        return builder.build();
+    }
+
+    /**
+     * Loads the graph from a CSV export.
+     *
+     * @param users lines of "username,profile URL"
+     * @param follows lines of "follower,followee"
+     * @return the graph
+     * @throws IOException if the export cannot be read
+     */
+    static Graph loadCsv(Reader users, Reader follows) throws IOException {
+        Builder builder = new Builder();
+        BufferedReader lines = new BufferedReader(users);
+        for (String line = lines.readLine(); line != null; line = lines.readLine()) {
+            String[] fields = line.split(",", 2);
+            if (!fields[0].isEmpty()) {
+                builder.user(fields[0], fields.length > 1 ? fields[1] : null);
+            }
+        }
+        lines = new BufferedReader(follows);
+        for (String line = lines.readLine(); line != null; line = lines.readLine()) {
+            String[] fields = line.split(",", 3);
+            if (fields.length >= 2 && !fields[0].isEmpty() && !fields[1].isEmpty()) {
+                builder.follow(fields[0], fields[1]);
+            }
+        }
+        return builder.build();
+    }
+
+    /**
+     * Loads a graph.
+     */
+    interface Loader {
+
+        /**
+         * @return the graph
+         * @throws IOException if the source cannot be read
+         */
+        Graph load() throws IOException;
+    }
+
+    /**
+     * A graph in compressed sparse rows, immutable but for the changes
+     * reported since it was loaded.
+     */
+    static final class Graph {
+
+        /**
+         * Usernames by id, sorted and distinct.
+         */
+        final String[] names;
+        /**
+         * Profile URLs by id.
+         */
+        final String[] urls;
+        final int[] followerOffsets;
+        final int[] followerIds;
+        final int[] followeeOffsets;
+        final int[] followeeIds;
+        /**
+         * Followers added since the graph was loaded, sorted, by user id.
+         */
+        final Map<Integer, int[]> addedFollowers = new ConcurrentHashMap<>();
+        /**
+         * Followees added since the graph was loaded, sorted, by user id.
+         */
+        final Map<Integer, int[]> addedFollowees = new ConcurrentHashMap<>();
+        /**
+         * Users whose rows may be out of date until the next reload.
+         */
+        final Set<String> stale = ConcurrentHashMap.newKeySet();
+
+        Graph(String[] names, String[] urls, int[] followerOffsets, int[] followerIds,
+                int[] followeeOffsets, int[] followeeIds) {
+            this.names = names;
+            this.urls = urls;
+            this.followerOffsets = followerOffsets;
+            this.followerIds = followerIds;
+            this.followeeOffsets = followeeOffsets;
+            this.followeeIds = followeeIds;
+        }
+
+        /**
+         * @param name a username
+         * @return the user's id, -1 if the user is unknown
+         */
+        int id(String name) {
+            int id = Arrays.binarySearch(names, name);
+            return id < 0 ? -1 : id;
+        }
+
+        /**
+         * @return number of users
+         */
+        int size() {
+            return names.length;
+        }
+
+        /**
+         * @return number of follows
+         */
+        int followCount() {
+            return followerIds.length;
+        }
+    }
+
+    /**
+     * Collects users and follows in any order, then numbers the users by
+     * name and builds the rows.
+     */
+    static final class Builder {
+
+        private final Map<String, Integer> ids = new HashMap<>();
+        private final List<String> names = new ArrayList<>();
+        private final List<String> urls = new ArrayList<>();
+        private int[] followers = new int[1024];
+        private int[] followees = new int[1024];
+        private int follows;
+
+        /**
+         * Adds a user, or sets the profile URL of a known one.
+         *
+         * @param name the username
+         * @param url the profile URL
+         */
+        void user(String name, String url) {
+            urls.set(intern(name), url);
+        }
+
+        /**
+         * Adds a follow, and its users if they are unknown.
+         *
+         * @param follower the follower's username
+         * @param followee the followed user's username
+         */
+        void follow(String follower, String followee) {
+            if (follows == followers.length) {
+                followers = Arrays.copyOf(followers, follows * 2);
+                followees = Arrays.copyOf(followees, follows * 2);
+            }
+            followers[follows] = intern(follower);
+            followees[follows] = intern(followee);
+            follows++;
+        }
+
+        private int intern(String name) {
+            Integer id = ids.get(name);
+            if (id == null) {
+                id = names.size();
+                ids.put(name, id);
+                names.add(name);
+                urls.add(null);
+            }
+            return id;
+        }
+
+        /**
+         * @return the graph
+         */
+        Graph build() {
+            int size = names.size();
+            String[] sorted = names.toArray(new String[size]);
+            Arrays.sort(sorted);
+            // the final id of every user, in the order the users were added
+            int[] rank = new int[size];
+            String[] sortedUrls = new String[size];
+            for (int i = 0; i < size; i++) {
+                rank[i] = Arrays.binarySearch(sorted, names.get(i));
+                sortedUrls[rank[i]] = urls.get(i);
+            }
+            int[] from = new int[follows];
+            int[] to = new int[follows];
+            for (int i = 0; i < follows; i++) {
+                from[i] = rank[followers[i]];
+                to[i] = rank[followees[i]];
+            }
+            int[] followerOffsets = new int[size + 1];
+            int[] followerIds = rows(to, from, size, followerOffsets);
+            int[] followeeOffsets = new int[size + 1];
+            int[] followeeIds = rows(from, to, size, followeeOffsets);
+            return new Graph(sorted, sortedUrls, followerOffsets, followerIds, followeeOffsets,
+                    followeeIds);
+        }
+
+        /**
+         * Builds the rows of one direction.
+         *
+         * @param owners the user each edge belongs to
+         * @param others the other end of each edge
+         * @param size number of users
+         * @param offsets filled with the start of each user's row
+         * @return the rows, each sorted
+         */
+        private static int[] rows(int[] owners, int[] others, int size, int[] offsets) {
+            for (int owner : owners) {
+                offsets[owner + 1]++;
+            }
+            for (int i = 0; i < size; i++) {
+                offsets[i + 1] += offsets[i];
+            }
+            int[] next = Arrays.copyOf(offsets, size);
+            int[] ids = new int[owners.length];
+            for (int i = 0; i < owners.length; i++) {
+                ids[next[owners[i]]++] = others[i];
+            }
+            for (int i = 0; i < size; i++) {
+                Arrays.sort(ids, offsets[i], offsets[i + 1]);
+            }
+            return ids;
+        }
+    }
+}
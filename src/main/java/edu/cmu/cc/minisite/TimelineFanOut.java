@@ -0,0 +1,284 @@
+package edu.cmu.cc.minisite;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import org.apache.log4j.Logger;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
+/**
+ * Builds a user's timeline by querying Neo4j, MongoDB and MySQL concurrently.
+ *
+ * The social graph (followers and followees, one Neo4j query) and the profile
+ * are independent of each other and are requested at the same time. The top
+ * comments depend on the followees, so the MongoDB query starts as soon as the
+ * social graph arrives.
+ * A timeline therefore takes about as long as its slowest path instead of the
+ * sum of all backend latencies.
+ *
+ * With TIMELINE_MATERIALIZED on, the top comments are read from the
+ * {@link TimelineMaterializer} rather than computed from the followees.
+ *
+ * Every leg has its own timeout. The legs call the backends' load methods,
+ * which throw when a query fails rather than answer an empty value, so a
+ * failure is told apart from an empty result. A leg that fails or times out
+ * contributes the same empty value its backend's servlet answers on error,
+ * and marks the timeline incomplete. Deadlines are enforced
+ * by a timer rather than by a waiting thread, so {@link #getTimelineAsync}
+ * holds no thread while the backends work.
+ *
+ * Settings: TIMELINE_FANOUT_THREADS, TIMELINE_FANOUT_QUEUE,
+ * TIMELINE_NEO4J_TIMEOUT_MS, TIMELINE_MONGO_TIMEOUT_MS and
+ * TIMELINE_MYSQL_TIMEOUT_MS.
+ */
+class TimelineFanOut {
+
+    /**
+     * Logger.
+     */
+    private static final Logger LOG = Logging.getLogger(TimelineFanOut.class);
+
+    /**
+     * Number of comments on a timeline.
+     */
+    static final int TOP_COMMENTS = 30;
+
+    /**
+     * Timeout of the Neo4j leg.
+     */
+    static final long NEO4J_TIMEOUT_MS = Config.getLong("TIMELINE_NEO4J_TIMEOUT_MS", 2000);
+    /**
+     * Timeout of the MongoDB leg, counted from the arrival of the followees.
+     */
+    static final long MONGO_TIMEOUT_MS = Config.getLong("TIMELINE_MONGO_TIMEOUT_MS", 2000);
+    /**
+     * Timeout of the MySQL leg.
+     */
+    static final long MYSQL_TIMEOUT_MS = Config.getLong("TIMELINE_MYSQL_TIMEOUT_MS", 1000);
+
+    /**
+     * Bounded pool shared by all timeline requests. When the queue is full the
+     * requesting thread runs the leg itself, which throttles new requests
+     * instead of dropping them.
+     */
+    private static final ThreadPoolExecutor EXECUTOR = newExecutor(
+            Config.getInt("TIMELINE_FANOUT_THREADS", 64),
+            Config.getInt("TIMELINE_FANOUT_QUEUE", 1024));
+    /**
+     * Completes legs that miss their deadline, so no thread waits for them.
+     */
+    private static final ScheduledThreadPoolExecutor TIMER = newTimer();
+
+    private final ProfileServlet profileServlet;
+    private final FollowerServlet followerServlet;
+    private final HomepageServlet homepageServlet;
+    /**
+     * Materialized top comments, null to compute them on every read.
+     */
+    private final TimelineMaterializer materializer;
+
+    /**
+     * Creates a fan-out over the given backends.
+     *
+     * @param profileServlet MySQL backend
+     * @param followerServlet Neo4j backend
+     * @param homepageServlet MongoDB backend
+     */
+    TimelineFanOut(ProfileServlet profileServlet, FollowerServlet followerServlet,
+            HomepageServlet homepageServlet) {
+        this.profileServlet = profileServlet;
+        this.followerServlet = followerServlet;
+        this.homepageServlet = homepageServlet;
+        this.materializer = TimelineMaterializer.fromConfig(homepageServlet, followerServlet);
+    }
+
+    /**
+     * Builds the timeline of the given user.
+     *
+     * @param id user id
+     * @return timeline with the followers, comments, profile and name fields
+     */
+    Timeline getTimeline(String id) {
+        return getTimelineAsync(id).join();
+    }
+
+    /**
+     * Starts building the timeline of the given user without blocking the
+     * calling thread. The future completes when every leg has either
+     * returned or reached its deadline, so it never completes exceptionally.
+     *
+     * @param id user id
+     * @return future of the timeline with the followers, comments, profile
+     * and name fields
+     */
+    CompletableFuture<Timeline> getTimelineAsync(String id) {
+        CompletableFuture<FollowerServlet.SocialGraph> graph =
+                supplyAsync(() -> followerServlet.loadSocialGraph(id));
+        CompletableFuture<JsonArray> comments = graph.thenApplyAsync(g -> materializer != null
+                ? materializer.getTopComments(id, g.getFollowees(), TOP_COMMENTS)
+                : homepageServlet.loadTopCommentsFromFollowees(g.getFollowees(), TOP_COMMENTS),
+                EXECUTOR);
+        CompletableFuture<String> profile =
+                supplyAsync(() -> profileServlet.loadProfile(id));
+
+        CompletableFuture<FollowerServlet.SocialGraph> graphLeg =
+                withTimeout(graph, NEO4J_TIMEOUT_MS);
+        CompletableFuture<JsonArray> commentsLeg =
+                withTimeout(comments, NEO4J_TIMEOUT_MS + MONGO_TIMEOUT_MS);
+        CompletableFuture<String> profileLeg = withTimeout(profile, MYSQL_TIMEOUT_MS);
+
+        return CompletableFuture.allOf(graphLeg, commentsLeg, profileLeg).thenApply(done -> {
+            FollowerServlet.SocialGraph graphResult = graphLeg.join();
+            JsonArray commentsResult = commentsLeg.join();
+            String profileResult = profileLeg.join();
+            boolean complete = graphResult != null && commentsResult != null
+                    && profileResult != null;
+            if (graphResult == null) {
+                graphResult = FollowerServlet.SocialGraph.EMPTY;
+            }
+
+            JsonObject result = new JsonObject();
+            result.add("followers", graphResult.getFollowers());
+            result.add("comments", commentsResult != null ? commentsResult : new JsonArray());
+            result.addProperty("profile", profileResult != null ? profileResult : "#");
+            result.addProperty("name", id);
+            return new Timeline(result, complete, graphResult.isTopUser());
+        });
+    }
+
+    /**
+     * Runs a backend call on the fan-out pool.
+     *
+     * @param call the backend call
+     * @param <T> result type
+     * @return future of the result
+     */
+    static <T> CompletableFuture<T> supplyAsync(Supplier<T> call) {
+        return CompletableFuture.supplyAsync(call, EXECUTOR);
+    }
+
+    /**
+     * Bounds a leg by a deadline without waiting for it. The returned future
+     * completes with the leg's result, or with null if the leg fails or is
+     * still running at the deadline.
+     *
+     * @param leg the leg
+     * @param timeoutMs timeout of the leg, counted from now
+     * @param <T> result type
+     * @return future of the result of the leg, or of null
+     */
+    static <T> CompletableFuture<T> withTimeout(CompletableFuture<T> leg, long timeoutMs) {
+        CompletableFuture<T> bounded = new CompletableFuture<>();
+        ScheduledFuture<?> deadline = TIMER.schedule(() -> {
+            if (bounded.complete(null)) {
+                LOG.warn("Timeline leg timed out after " + timeoutMs + " ms");
+            }
+        }, timeoutMs, TimeUnit.MILLISECONDS);
+        leg.whenComplete((result, failure) -> {
+            deadline.cancel(false);
+            if (failure != null) {
+                if (!bounded.isDone()) {
+                    LOG.error("Timeline leg failed", failure instanceof CompletionException
+                            ? failure.getCause() : failure);
+                }
+                bounded.complete(null);
+            } else {
+                bounded.complete(result);
+            }
+        });
+        return bounded;
+    }
+
+    /**
+     * A timeline and whether all of its legs succeeded.
+     */
+    static final class Timeline {
+
+        /**
+         * The timeline.
+         */
+        final JsonObject json;
+        /**
+         * False if a leg failed or timed out and contributed a fallback value,
+         * such a timeline must not be cached.
+         */
+        final boolean complete;
+        /**
+         * Whether the user is a top user, decided from the fetched followers.
+         */
+        final boolean topUser;
+
+        /**
+         * @param json the timeline
+         * @param complete whether all legs succeeded
+         * @param topUser whether the user is a top user
+         */
+        Timeline(JsonObject json, boolean complete, boolean topUser) {
+            this.json = json;
+            this.complete = complete;
+            this.topUser = topUser;
+        }
+    }
+
+    /**
+     * @return the materialized top comments, null when they are computed on
+     *         every read
+     */
+    TimelineMaterializer materializer() {
+        return materializer;
+    }
+
+    /**
+     * @return number of legs waiting for a thread of the fan-out pool
+     */
+    static int backlog() {
+        return EXECUTOR.getQueue().size();
+    }
+
+    /**
+     * Creates the single daemon thread that enforces the leg deadlines.
+     *
+     * @return the timer
+     */
+    private static ScheduledThreadPoolExecutor newTimer() {
+        ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, runnable -> {
+            Thread thread = new Thread(runnable, "timeline-timeout");
+            thread.setDaemon(true);
+            return thread;
+        });
+        // deadlines are cancelled as legs complete, do not keep them queued
+        timer.setRemoveOnCancelPolicy(true);
+        return timer;
+    }
+
+    /**
+     * Creates the bounded fan-out pool with daemon threads.
+     *
+     * @param threads number of threads
+     * @param queueSize number of legs that may wait for a thread
+     * @return the pool
+     */
+    private static ThreadPoolExecutor newExecutor(int threads, int queueSize) {
+        AtomicInteger count = new AtomicInteger();
+        ThreadFactory factory = runnable -> {
+            Thread thread = new Thread(runnable, "timeline-fanout-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads,
+                60, TimeUnit.SECONDS, new ArrayBlockingQueue<>(queueSize), factory,
+                new ThreadPoolExecutor.CallerRunsPolicy());
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+}
@@ -0,0 +1,59 @@
+package edu.cmu.cc.minisite;
+
+import com.google.gson.JsonElement;
+
+/**
+ * Evicts the cached timelines that a change makes stale.
+ *
+ * A timeline holds the user's profile, followers and the top comments of
+ * the user's followees, so:
+ *
+ * a comment by an author changes the timelines of the author's followers,
+ * a new follow changes the timelines of both users, and
+ * a profile change changes the user's own timeline and, as a follower, the
+ * timelines of everyone the user follows.
+ *
+ * A timeline also embeds the parent and grandparent of its comments (see
+ * {@link HomepageServlet#findTopComments}). Those copies are not evicted
+ * when the ancestor changes. Finding the replies that embed a comment
+ * would take a query on parent_id, and another for the next level, on
+ * every comment change, and most changes are votes. So a changed ancestor
+ * stays in the timelines that embed it for up to
+ * TIMELINE_CACHE_TTL_SECONDS (300). The comment cache is evicted on the
+ * change, so the next build of those timelines embeds the new version.
+ */
+class TimelineInvalidator implements ChangeFeed.Listener {
+
+    private final Cache cache;
+    private final FollowerServlet followerServlet;
+
+    /**
+     * @param cache the timeline cache, keyed by user id
+     * @param followerServlet finds the users affected by a change
+     */
+    TimelineInvalidator(Cache cache, FollowerServlet followerServlet) {
+        this.cache = cache;
+        this.followerServlet = followerServlet;
+    }
+
+    @Override
+    public void commentChanged(String authorId) {
+        for (JsonElement follower : followerServlet.getFollowers(authorId)) {
+            cache.invalidate(follower.getAsJsonObject().get("name").getAsString());
+        }
+    }
+
+    @Override
+    public void followChanged(String followerId, String followeeId) {
+        cache.invalidate(followerId);
+        cache.invalidate(followeeId);
+    }
+
+    @Override
+    public void userChanged(String userId) {
+        cache.invalidate(userId);
+        for (String followee : followerServlet.getSocialGraph(userId).getFollowees()) {
+            cache.invalidate(followee);
+        }
+    }
+}
@@ -0,0 +1,265 @@
+package edu.cmu.cc.minisite;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+import org.bson.Document;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.PushOptions;
+import com.mongodb.client.model.UpdateOptions;
+import com.mongodb.client.model.Updates;
+
+/**
+ * Keeps the top comments of every user's timeline materialized in a MongoDB
+ * collection, fan-out on write, so reading them is a lookup by _id instead of
+ * an $in over all followees and a sort.
+ *
+ * A materialized timeline is a document {_id: user, builtAt, comments} whose
+ * comments are the user's {@link #DEPTH} best followee comments, with their
+ * parent and grandparent embedded as {@link HomepageServlet#findTopComments}
+ * returns them. Twice as many comments as a timeline shows are kept, so a
+ * comment that loses ups can be replaced by the next one.
+ *
+ * Timelines are materialized when first read, then kept current by the
+ * change feed: a comment is pulled from and pushed into the timelines of its
+ * author's followers, TIMELINE_MATERIALIZED_BATCH followers per update,
+ * sorted and sliced by MongoDB, and a new follow rebuilds the follower's
+ * timeline. A batch whose update fails is dropped instead, so its
+ * timelines are rebuilt when next read. What the feed cannot report, such as
+ * unfollows, deletes and edits of embedded ancestors, is bounded by
+ * TIMELINE_MATERIALIZED_MAX_AGE_SECONDS, after which a timeline is rebuilt
+ * on read.
+ *
+ * Settings: TIMELINE_MATERIALIZED turns the materialization on, and
+ * TIMELINE_MATERIALIZED_COLLECTION names the collection.
+ */
+class TimelineMaterializer implements ChangeFeed.Listener {
+
+    /**
+     * Logger.
+     */
+    private static final Logger LOG = Logging.getLogger(TimelineMaterializer.class);
+
+    /**
+     * Whether timeline comments are materialized.
+     */
+    static final boolean ENABLED = Config.getBoolean("TIMELINE_MATERIALIZED", false);
+    /**
+     * Collection of the materialized timelines, next to the comments.
+     */
+    static final String COLLECTION =
+            Config.get("TIMELINE_MATERIALIZED_COLLECTION", "timelines");
+    /**
+     * Age after which a materialized timeline is rebuilt when read.
+     */
+    static final long MAX_AGE_MS = TimeUnit.SECONDS.toMillis(
+            Config.getLong("TIMELINE_MATERIALIZED_MAX_AGE_SECONDS", 3600));
+    /**
+     * Number of comments kept per timeline.
+     */
+    static final int DEPTH = 2 * TimelineFanOut.TOP_COMMENTS;
+    /**
+     * Number of timelines an update or delete names at most, which bounds
+     * its command well below the 16 MB limit for authors with many
+     * followers.
+     */
+    static final int BATCH = Config.getInt("TIMELINE_MATERIALIZED_BATCH", 1000);
+
+    private static final Metrics.Timer READ = Metrics.backend("mongo", "materialized_read");
+    private static final Metrics.Timer WRITE = Metrics.backend("mongo", "materialized_write");
+
+    private final MongoCollection<Document> timelines;
+    private final HomepageServlet homepageServlet;
+    private final FollowerServlet followerServlet;
+    private final long maxAgeMs;
+    private final int batch;
+
+    /**
+     * @param timelines collection of the materialized timelines
+     * @param homepageServlet reads the comments
+     * @param followerServlet finds the followers and followees
+     * @param maxAgeMs age after which a timeline is rebuilt when read
+     */
+    TimelineMaterializer(MongoCollection<Document> timelines, HomepageServlet homepageServlet,
+            FollowerServlet followerServlet, long maxAgeMs) {
+        this(timelines, homepageServlet, followerServlet, maxAgeMs, BATCH);
+    }
+
+    /**
+     * @param timelines collection of the materialized timelines
+     * @param homepageServlet reads the comments
+     * @param followerServlet finds the followers and followees
+     * @param maxAgeMs age after which a timeline is rebuilt when read
+     * @param batch number of timelines an update or delete names at most
+     */
+    TimelineMaterializer(MongoCollection<Document> timelines, HomepageServlet homepageServlet,
+            FollowerServlet followerServlet, long maxAgeMs, int batch) {
+        this.timelines = timelines;
+        this.homepageServlet = homepageServlet;
+        this.followerServlet = followerServlet;
+        this.maxAgeMs = maxAgeMs;
+        this.batch = batch;
+    }
+
+    /**
+     * Creates the materializer if TIMELINE_MATERIALIZED is on.
+     *
+     * @param homepageServlet reads the comments
+     * @param followerServlet finds the followers and followees
+     * @return the materializer, or null
+     */
+    static TimelineMaterializer fromConfig(HomepageServlet homepageServlet,
+            FollowerServlet followerServlet) {
+        if (!ENABLED) {
+            return null;
+        }
+        return new TimelineMaterializer(homepageServlet.collection(COLLECTION), homepageServlet,
+                followerServlet, MAX_AGE_MS);
+    }
+
+    /**
+     * Returns the top comments of a user's timeline, materializing them if
+     * they are not yet or are too old.
+     *
+     * @param userId the user
+     * @param followeeIds the user's followees, to build the timeline from
+     * @param top number of comments considered
+     * @return the comments, as {@link HomepageServlet#getTopCommentsFromFollowees}
+     *         returns them
+     * @throws RuntimeException if the comments cannot be read
+     */
+    JsonArray getTopComments(String userId, List<String> followeeIds, int top) {
+        long start = System.nanoTime();
+        try {
+            Document timeline = timelines.find(Filters.eq("_id", userId)).first();
+            READ.record(start);
+            if (timeline != null && isFresh(timeline)) {
+                @SuppressWarnings("unchecked")
+                List<Document> comments = (List<Document>) timeline.get("comments");
+                return HomepageServlet.toTimelineComments(comments, top);
+            }
+        } catch (RuntimeException e) {
+            READ.recordError(start);
+            LOG.warn("Failed to read the materialized timeline of " + userId, e);
+            return homepageServlet.loadTopCommentsFromFollowees(followeeIds, top);
+        }
+        List<Document> comments = homepageServlet.findTopComments(followeeIds, DEPTH);
+        store(userId, comments);
+        return HomepageServlet.toTimelineComments(comments, top);
+    }
+
+    /**
+     * Rebuilds a user's materialized timeline.
+     *
+     * @param userId the user
+     */
+    void rebuild(String userId) {
+        // a failed read must not store an empty timeline
+        List<String> followees = followerServlet.loadSocialGraph(userId).getFollowees();
+        store(userId, homepageServlet.findTopComments(followees, DEPTH));
+    }
+
+    @Override
+    public void commentChanged(String authorId) {
+        // without the comment, drop the affected timelines for a rebuild
+        List<String> followers = followerNames(authorId);
+        for (int from = 0; from < followers.size(); from += batch) {
+            drop(followers.subList(from, Math.min(from + batch, followers.size())));
+        }
+    }
+
+    @Override
+    public void commentChanged(Document comment) {
+        List<String> followers = followerNames(comment.getString("uid"));
+        if (followers.isEmpty()) {
+            return;
+        }
+        Document stored = new Document(comment);
+        stored.remove("_id");
+        Document entry = homepageServlet.withAncestors(stored);
+        for (int from = 0; from < followers.size(); from += batch) {
+            List<String> users = followers.subList(from, Math.min(from + batch, followers.size()));
+            long start = System.nanoTime();
+            try {
+                // replace the comment's previous version, if it is listed
+                timelines.updateMany(Filters.in("_id", users),
+                        Updates.pull("comments", new Document("cid", entry.getString("cid"))));
+                timelines.updateMany(Filters.in("_id", users),
+                        Updates.pushEach("comments", Collections.singletonList(entry),
+                                new PushOptions()
+                                        .sortDocument(new Document("ups", -1)
+                                                .append("timestamp", -1))
+                                        .slice(DEPTH)));
+                WRITE.record(start);
+            } catch (RuntimeException e) {
+                WRITE.recordError(start);
+                LOG.warn("Failed to update " + users.size() + " materialized timelines with "
+                        + entry.getString("cid") + ", dropping them for a rebuild", e);
+                drop(users);
+            }
+        }
+    }
+
+    @Override
+    public void followChanged(String followerId, String followeeId) {
+        rebuild(followerId);
+    }
+
+    @Override
+    public void userChanged(String userId) {
+        // profiles are not materialized
+    }
+
+    private boolean isFresh(Document timeline) {
+        Date builtAt = timeline.getDate("builtAt");
+        return builtAt != null && System.currentTimeMillis() - builtAt.getTime() < maxAgeMs
+                && timeline.get("comments") instanceof List;
+    }
+
+    private void store(String userId, List<Document> comments) {
+        long start = System.nanoTime();
+        try {
+            timelines.replaceOne(Filters.eq("_id", userId),
+                    new Document("_id", userId).append("builtAt", new Date())
+                            .append("comments", comments),
+                    new UpdateOptions().upsert(true));
+            WRITE.record(start);
+        } catch (RuntimeException e) {
+            // served from the comments until the next read stores it
+            WRITE.recordError(start);
+            LOG.warn("Failed to store the materialized timeline of " + userId, e);
+        }
+    }
+
+    /**
+     * Deletes materialized timelines, so they are rebuilt when next read.
+     *
+     * @param users the users of the timelines
+     */
+    private void drop(List<String> users) {
+        long start = System.nanoTime();
+        try {
+            timelines.deleteMany(Filters.in("_id", users));
+            WRITE.record(start);
+        } catch (RuntimeException e) {
+            WRITE.recordError(start);
+            throw e;
+        }
+    }
+
+    private List<String> followerNames(String userId) {
+        List<String> names = new ArrayList<>();
+        for (JsonElement follower : followerServlet.getFollowers(userId)) {
+            names.add(follower.getAsJsonObject().get("name").getAsString());
+        }
+        return names;
+    }
+}
@@ -0,0 +1,337 @@
+package edu.cmu.cc.minisite;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+import java.util.function.Predicate;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Builds the timelines of hot users ahead of demand, so even their first
+ * request is a cache hit.
+ *
+ * Every TIMELINE_PREWARM_INTERVAL_SECONDS a pass goes over the recently
+ * requested users that are worth caching, most recent first, and then over
+ * the other top users. A timeline is built if it is not cached, or if it
+ * was built long enough ago that it is about to expire, so hot timelines
+ * are refreshed before their time to live runs out.
+ *
+ * The pass builds at most TIMELINE_PREWARM_RATE timelines per second, one
+ * at a time, and pauses while requests are waiting for the fan-out pool, so
+ * it only uses backend capacity that the requests leave idle. Up to
+ * TIMELINE_PREWARM_RECENT recently requested users are remembered.
+ */
+final class TimelinePrewarmer implements AutoCloseable {
+
+    /**
+     * Logger.
+     */
+    private static final Logger LOG = Logging.getLogger(TimelinePrewarmer.class);
+
+    /**
+     * Whether timelines are prewarmed.
+     */
+    static final boolean ENABLED = Config.getBoolean("TIMELINE_PREWARM", false);
+    /**
+     * Most timelines built per second.
+     */
+    static final int RATE = Config.getInt("TIMELINE_PREWARM_RATE", 10);
+    /**
+     * Number of recently requested users remembered.
+     */
+    static final int RECENT = Config.getInt("TIMELINE_PREWARM_RECENT", 10000);
+    /**
+     * Seconds between the end of a pass and the start of the next.
+     */
+    static final long INTERVAL_SECONDS = Config.getLong("TIMELINE_PREWARM_INTERVAL_SECONDS", 30);
+    /**
+     * Share of the time to live after which a timeline is refreshed.
+     */
+    private static final double REFRESH_AGE = 0.8;
+
+    private final TopUserIndex topUsers;
+    private final Predicate<String> cacheable;
+    private final Predicate<String> cached;
+    private final Predicate<String> warmer;
+    private final IntSupplier backendBacklog;
+    private final long refreshAgeMillis;
+    private final long pauseNanos;
+    private final int recentCapacity;
+
+    /**
+     * Time each recently requested user was last requested.
+     */
+    private final ConcurrentHashMap<String, Long> recent = new ConcurrentHashMap<>();
+    /**
+     * Time each timeline was last built by a pass.
+     */
+    private final ConcurrentHashMap<String, Long> warmedAt = new ConcurrentHashMap<>();
+    private ScheduledExecutorService scheduler;
+    private volatile boolean running = true;
+
+    private final LongAdder passes = new LongAdder();
+    private final LongAdder warmed = new LongAdder();
+    private final LongAdder refreshed = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder deferred = new LongAdder();
+    private final LongAdder backendNanos = new LongAdder();
+    private final AtomicInteger pending = new AtomicInteger();
+
+    /**
+     * @param topUsers the top users
+     * @param cacheable whether a user's timeline would be cached
+     * @param cached whether a user's timeline is cached
+     * @param warmer builds and caches a user's timeline, returns whether it
+     * was cached
+     * @param backendBacklog number of requests waiting for the backends
+     * @param ttlMillis time to live of a cached timeline, 0 for none
+     * @param ratePerSecond most timelines built per second
+     * @param recentCapacity number of recently requested users remembered
+     */
+    TimelinePrewarmer(TopUserIndex topUsers, Predicate<String> cacheable,
+            Predicate<String> cached, Predicate<String> warmer, IntSupplier backendBacklog,
+            long ttlMillis, int ratePerSecond, int recentCapacity) {
+        if (ratePerSecond <= 0) {
+            throw new IllegalArgumentException("Invalid prewarm rate " + ratePerSecond);
+        }
+        this.topUsers = topUsers;
+        this.cacheable = cacheable;
+        this.cached = cached;
+        this.warmer = warmer;
+        this.backendBacklog = backendBacklog;
+        this.refreshAgeMillis = ttlMillis > 0 ? (long) (ttlMillis * REFRESH_AGE) : 0;
+        this.pauseNanos = TimeUnit.SECONDS.toNanos(1) / ratePerSecond;
+        this.recentCapacity = recentCapacity;
+    }
+
+    /**
+     * Runs a pass now and then every interval, on a daemon thread.
+     *
+     * @param intervalSeconds seconds between two passes
+     */
+    synchronized void start(long intervalSeconds) {
+        if (scheduler != null) {
+            return;
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "timeline-prewarm");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(this::runPass, 0, Math.max(intervalSeconds, 1),
+                TimeUnit.SECONDS);
+    }
+
+    /**
+     * Remembers that a user's timeline was requested.
+     *
+     * @param id user id
+     */
+    void requested(String id) {
+        if (recent.size() < recentCapacity || recent.containsKey(id)) {
+            recent.put(id, System.currentTimeMillis());
+        }
+    }
+
+    /**
+     * Builds the timelines that are due, at the configured rate.
+     */
+    void runPass() {
+        try {
+            List<String> due = dueUsers(System.currentTimeMillis());
+            pending.set(due.size());
+            for (String id : due) {
+                if (!running) {
+                    break;
+                }
+                while (running && backendBacklog.getAsInt() > 0) {
+                    deferred.increment();
+                    pause();
+                }
+                warm(id);
+                pending.decrementAndGet();
+                pause();
+            }
+            passes.increment();
+            LOG.info("Prewarm pass of " + due.size() + " timelines done: " + this);
+        } catch (RuntimeException e) {
+            // keep the scheduler running
+            LOG.error("Prewarm pass failed", e);
+        } finally {
+            pending.set(0);
+        }
+    }
+
+    /**
+     * Lists the users whose timelines should be built, the most recently
+     * requested first, and forgets the users requested longest ago when
+     * more are remembered than the capacity allows.
+     */
+    List<String> dueUsers(long now) {
+        List<Map.Entry<String, Long>> requests = new ArrayList<>(recent.entrySet());
+        requests.sort(Map.Entry.<String, Long>comparingByValue(Comparator.reverseOrder()));
+        if (requests.size() >= recentCapacity) {
+            // make room for new requests
+            for (int i = recentCapacity / 2; i < requests.size(); i++) {
+                recent.remove(requests.get(i).getKey(), requests.get(i).getValue());
+            }
+        }
+        Set<String> candidates = new LinkedHashSet<>();
+        for (Map.Entry<String, Long> request : requests) {
+            if (cacheable.test(request.getKey())) {
+                candidates.add(request.getKey());
+            }
+        }
+        candidates.addAll(topUsers.users());
+
+        List<String> due = new ArrayList<>();
+        for (String id : candidates) {
+            Long builtAt = warmedAt.get(id);
+            boolean stale = builtAt != null && refreshAgeMillis > 0
+                    && now - builtAt >= refreshAgeMillis;
+            if (stale || !cached.test(id)) {
+                due.add(id);
+            }
+        }
+        warmedAt.keySet().retainAll(candidates);
+        return due;
+    }
+
+    private void warm(String id) {
+        long start = System.nanoTime();
+        boolean refresh = warmedAt.containsKey(id);
+        boolean ok;
+        try {
+            ok = warmer.test(id);
+        } catch (RuntimeException e) {
+            LOG.warn("Failed to prewarm the timeline of " + id, e);
+            ok = false;
+        }
+        backendNanos.add(System.nanoTime() - start);
+        if (!ok) {
+            failed.increment();
+            warmedAt.remove(id);
+            return;
+        }
+        warmedAt.put(id, System.currentTimeMillis());
+        (refresh ? refreshed : warmed).increment();
+    }
+
+    private void pause() {
+        try {
+            TimeUnit.NANOSECONDS.sleep(pauseNanos);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            running = false;
+        }
+    }
+
+    /**
+     * @return number of passes finished
+     */
+    long passCount() {
+        return passes.sum();
+    }
+
+    /**
+     * @return number of timelines built that were not warm
+     */
+    long warmedCount() {
+        return warmed.sum();
+    }
+
+    /**
+     * @return number of warm timelines rebuilt before they expired
+     */
+    long refreshedCount() {
+        return refreshed.sum();
+    }
+
+    /**
+     * @return number of builds that did not end up cached
+     */
+    long failedCount() {
+        return failed.sum();
+    }
+
+    /**
+     * @return number of times a build waited for the requests
+     */
+    long deferredCount() {
+        return deferred.sum();
+    }
+
+    /**
+     * @return milliseconds the backends spent building prewarmed timelines
+     */
+    long backendMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(backendNanos.sum());
+    }
+
+    /**
+     * @return number of timelines left in the current pass
+     */
+    int pendingCount() {
+        return pending.get();
+    }
+
+    /**
+     * @return number of recently requested users remembered
+     */
+    int recentCount() {
+        return recent.size();
+    }
+
+    /**
+     * Exposes the progress and the backend load of the prewarmer.
+     */
+    void registerMetrics() {
+        String help = "Timelines built ahead of demand, by result";
+        Metrics.counter("minisite_prewarm_timelines_total", help, "result=\"warmed\"",
+                this::warmedCount);
+        Metrics.counter("minisite_prewarm_timelines_total", help, "result=\"refreshed\"",
+                this::refreshedCount);
+        Metrics.counter("minisite_prewarm_timelines_total", help, "result=\"failed\"",
+                this::failedCount);
+        Metrics.counter("minisite_prewarm_passes_total", "Prewarm passes finished", "",
+                this::passCount);
+        Metrics.counter("minisite_prewarm_deferred_total",
+                "Times a prewarm build waited for queued requests", "", this::deferredCount);
+        Metrics.counter("minisite_prewarm_backend_seconds_total",
+                "Time the backends spent building prewarmed timelines", "",
+                () -> backendMillis() / 1000.0);
+        Metrics.gauge("minisite_prewarm_pending", "Timelines left in the current prewarm pass",
+                "", this::pendingCount);
+    }
+
+    /**
+     * Stops the passes, a running one stops after its current build.
+     */
+    @Override
+    public synchronized void close() {
+        running = false;
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "TimelinePrewarmer{passes=" + passCount() + ", warmed=" + warmedCount()
+                + ", refreshed=" + refreshedCount() + ", failed=" + failedCount()
+                + ", deferred=" + deferredCount() + ", backendMillis=" + backendMillis()
+                + ", pending=" + pendingCount() + ", recent=" + recentCount() + "}";
+    }
+}
@@ -1,17 +1,17 @@
 package edu.cmu.cc.minisite;
 
 import java.io.IOException;
-import java.io.PrintWriter;
 import java.sql.SQLException;
-import java.util.ArrayList;
-import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
-import com.google.gson.JsonArray;
+import org.apache.log4j.Logger;
+
 import com.google.gson.JsonObject;
 
 /**
@@ -34,12 +34,42 @@ import com.google.gson.JsonObject;
  */
 public class TimelineServlet extends HttpServlet {
 
+    /**
+     * Logger.
+     */
+    private static final Logger LOG = Logging.getLogger(TimelineServlet.class);
+
     /**
      * Your initialization code goes here.
      */
     private ProfileServlet profileServlet;
     private FollowerServlet followerServlet;
     private HomepageServlet homepageServlet;
+    /**
+     * Queries the three backends concurrently.
+     */
+    private TimelineFanOut fanOut;
+
+    /**
+     * The constructor, the backends are created in {@link #init()}.
+     */
+    public TimelineServlet() {
+    }
+
+    /**
+     * Constructor for running the servlet over given backends
+     *
+     * @param profileServlet MySQL backend
+     * @param followerServlet Neo4j backend
+     * @param homepageServlet MongoDB backend
+     */
+    TimelineServlet(ProfileServlet profileServlet, FollowerServlet followerServlet,
+            HomepageServlet homepageServlet) {
+        this.profileServlet = profileServlet;
+        this.followerServlet = followerServlet;
+        this.homepageServlet = homepageServlet;
+        this.fanOut = new TimelineFanOut(profileServlet, followerServlet, homepageServlet);
+    }
 
     /**
      * Initializes servlet instances.
@@ -53,8 +83,9 @@ public class TimelineServlet extends HttpServlet {
             profileServlet = new ProfileServlet();
             followerServlet = new FollowerServlet();
             homepageServlet = new HomepageServlet();
+            fanOut = new TimelineFanOut(profileServlet, followerServlet, homepageServlet);
         } catch (SQLException | ClassNotFoundException e) {
-            e.printStackTrace();
+            LOG.error("Initialization failed", e);
             throw new ServletException("Initialization failed: " + e.getMessage());
         }
     }
@@ -83,7 +114,8 @@ public class TimelineServlet extends HttpServlet {
     }
 
     /**
-     * Don't modify this method.
+     * Method to get the user ID from the request and stream the timeline as
+     * UTF-8 JSON.
      *
      * @param request the request object that is passed to the servlet
      * @param response the response object that the servlet uses to return the
@@ -95,14 +127,8 @@ public class TimelineServlet extends HttpServlet {
     protected void doGet(final HttpServletRequest request,
             final HttpServletResponse response) throws ServletException, IOException {
 
-        // DON'T modify this method.
         String id = request.getParameter("id");
-        String result = getTimeline(id);
-        response.setContentType("text/html; charset=UTF-8");
-        response.setCharacterEncoding("UTF-8");
-        PrintWriter writer = response.getWriter();
-        writer.print(result);
-        writer.close();
+        JsonResponses.write(response, getTimeline(id));
     }
 
     /**
@@ -111,32 +137,35 @@ public class TimelineServlet extends HttpServlet {
      * @param id user id
      * @return timeline of this user
      */
-    protected String getTimeline(String id) {
-        JsonObject result = new JsonObject();
-        try {
-            // result add followers
-            JsonArray followers = followerServlet.getFollowers(id);
-            result.add("followers", followers);
-
-            // get followees to get comments and add to result
-            JsonArray followeesArray = followerServlet.getFollowees(id);
-            List<String> followeeIds = new ArrayList<>();
-            for (int i = 0; i < followeesArray.size(); i++) {
-                JsonObject followee = followeesArray.get(i).getAsJsonObject();
-                followeeIds.add(followee.get("name").getAsString());
-            }
-            JsonArray comments = homepageServlet.getTopCommentsFromFollowees(followeeIds, 30);
-            result.add("comments", comments);
+    protected JsonObject getTimeline(String id) {
+        long start = System.nanoTime();
+        JsonObject result = fanOut.getTimeline(id).json;
+        logTimeline(id, start, result);
+        return result;
+    }
 
-            // get profile, name and add to result
-            String profile = profileServlet.getProfile(id);
-            result.addProperty("profile", profile);
-            result.addProperty("name", id);
+    /**
+     * Starts building the given user's timeline without blocking the calling
+     * thread.
+     *
+     * @param id user id
+     * @return future of the timeline of this user
+     */
+    CompletableFuture<JsonObject> getTimelineAsync(String id) {
+        long start = System.nanoTime();
+        return fanOut.getTimelineAsync(id).thenApply(timeline -> {
+            logTimeline(id, start, timeline.json);
+            return timeline.json;
+        });
+    }
 
-        } catch (Exception e) {
-            e.printStackTrace();
+    private static void logTimeline(String id, long start, JsonObject result) {
+        if (Logging.isSampled()) {
+            LOG.info("Timeline of " + id + " built in "
+                    + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("Timeline of " + id + ": " + result);
+            }
         }
-        System.out.println("result: " + result.toString());
-        return result.toString();
     }
 }
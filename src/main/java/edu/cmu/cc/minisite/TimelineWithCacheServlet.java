@@ -1,19 +1,20 @@
 package edu.cmu.cc.minisite;
 
-import com.google.gson.JsonArray;
-import com.google.gson.JsonObject;
+import org.apache.log4j.Logger;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
-import java.io.PrintWriter;
 import java.sql.SQLException;
+import java.io.File;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 
-import java.util.HashMap;
-import java.util.List;
-import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 /**
  * In this task you will populate a user's timeline. This task helps you
@@ -34,20 +35,123 @@ import java.util.ArrayList;
  * Task 5 (4): Make sure your implementation can finish a request that is sent
  * before in a short time.
  *
+ * Cached timelines expire after TIMELINE_CACHE_TTL_SECONDS. With
+ * TIMELINE_CHANGE_FEED on, they are also invalidated as soon as their data
+ * changes, which makes it safe to cache every user with
+ * TIMELINE_CACHE_ALL_USERS.
+ *
+ * With TIMELINE_CACHE_SNAPSHOT set to a file, the cache is saved there every
+ * TIMELINE_CACHE_SNAPSHOT_SECONDS and when the servlet is destroyed, and the
+ * next start serves the saved timelines instead of starting cold.
+ *
+ * The top users are kept in a {@link TopUserIndex}, refreshed in the
+ * background and by the follower counts of the timelines built here. With
+ * TIMELINE_PREWARM on, a {@link TimelinePrewarmer} builds their timelines
+ * and those of recently requested users ahead of demand.
+ *
  * The posts should be sorted: First by ups in descending order. Break tie by
  * the timestamp in descending order.
  */
 public class TimelineWithCacheServlet extends HttpServlet {
 
+    /**
+     * Logger.
+     */
+    private static final Logger LOG = Logging.getLogger(TimelineWithCacheServlet.class);
+
     /**
      * You need to use this variable to implement your caching mechanism. Please
      * see {@link Cache#put}, {@link Cache#get}.
      *
      */
     private static Cache cache = new Cache();
+    /**
+     * Coalesces concurrent cache misses of the same user, so a popular
+     * timeline is built once and not once per waiting request.
+     */
+    private static final SingleFlight<String, byte[]> timelineLoads = new SingleFlight<>();
+
+    static {
+        Metrics.registerCache("timeline", cache);
+        Metrics.counter("minisite_timeline_loads_total",
+                "Timeline cache misses by whether they built the timeline or waited for "
+                        + "another request's build", "result=\"built\"",
+                timelineLoads::loadCount);
+        Metrics.counter("minisite_timeline_loads_total",
+                "Timeline cache misses by whether they built the timeline or waited for "
+                        + "another request's build", "result=\"coalesced\"",
+                timelineLoads::coalescedCount);
+    }
+    /**
+     * Whether the timelines of all users are cached, not only those of top
+     * users. Meant to be used with the change feed.
+     */
+    static final boolean CACHE_ALL_USERS = Config.getBoolean("TIMELINE_CACHE_ALL_USERS", false);
+    /**
+     * Time to live of a cached timeline, which bounds how stale it can get
+     * when a change is missed.
+     */
+    static final long TIMELINE_TTL_MS =
+            TimeUnit.SECONDS.toMillis(Config.getLong("TIMELINE_CACHE_TTL_SECONDS", 300));
+    /**
+     * Whether cached timelines are invalidated by the change feed.
+     */
+    static final boolean CHANGE_FEED = Config.getBoolean("TIMELINE_CHANGE_FEED", false);
+    /**
+     * File the cache is saved to and loaded from, empty for none.
+     */
+    static final String SNAPSHOT_PATH = Config.get("TIMELINE_CACHE_SNAPSHOT", "");
+    /**
+     * Seconds between two saves of the cache, 0 to save on shutdown only.
+     */
+    static final long SNAPSHOT_INTERVAL_SECONDS =
+            Config.getLong("TIMELINE_CACHE_SNAPSHOT_SECONDS", 60);
     private ProfileServlet profileServlet;
     private FollowerServlet followerServlet;
     private HomepageServlet homepageServlet;
+    /**
+     * Queries the three backends concurrently.
+     */
+    private TimelineFanOut fanOut;
+    /**
+     * Invalidates the cached timelines when their data changes, null when
+     * TIMELINE_CHANGE_FEED is off.
+     */
+    private ChangeFeed changeFeed;
+    /**
+     * The users whose timelines are worth caching.
+     */
+    private TopUserIndex topUsers;
+    /**
+     * Builds hot timelines ahead of demand, null when TIMELINE_PREWARM is off.
+     */
+    private TimelinePrewarmer prewarmer;
+    /**
+     * Saves the cache periodically, null when it is not saved periodically.
+     */
+    private ScheduledExecutorService snapshots;
+
+    /**
+     * The constructor, the backends are created in {@link #init()}.
+     */
+    public TimelineWithCacheServlet() {
+    }
+
+    /**
+     * Constructor for running the servlet over given backends
+     *
+     * @param profileServlet MySQL backend
+     * @param followerServlet Neo4j backend
+     * @param homepageServlet MongoDB backend
+     */
+    TimelineWithCacheServlet(ProfileServlet profileServlet, FollowerServlet followerServlet,
+            HomepageServlet homepageServlet) {
+        this.profileServlet = profileServlet;
+        this.followerServlet = followerServlet;
+        this.homepageServlet = homepageServlet;
+        this.fanOut = new TimelineFanOut(profileServlet, followerServlet, homepageServlet);
+        this.topUsers = new TopUserIndex(followerServlet);
+    }
 
     /**
      * Initializes servlet instances.
@@ -61,8 +165,14 @@ public class TimelineWithCacheServlet extends HttpServlet {
             profileServlet = new ProfileServlet();
             followerServlet = new FollowerServlet();
             homepageServlet = new HomepageServlet();
-        } catch (SQLException | ClassNotFoundException e) {
-            e.printStackTrace();
+            fanOut = new TimelineFanOut(profileServlet, followerServlet, homepageServlet);
+            topUsers = new TopUserIndex(followerServlet);
+            topUsers.start(TopUserIndex.REFRESH_SECONDS);
+            startSnapshots();
+            startChangeFeed(SharedBackends.of(getServletContext()));
+            startPrewarmer();
+        } catch (SQLException | ClassNotFoundException | IllegalStateException e) {
+            LOG.error("Initialization failed", e);
             throw new ServletException("Initialization failed: " + e.getMessage());
         }
     }
@@ -73,6 +183,13 @@ public class TimelineWithCacheServlet extends HttpServlet {
     @Override
     public void destroy() {
         super.destroy();
+        stopPrewarmer();
+        closeChangeFeed();
+        stopSnapshots();
+        closeCacheTier();
+        if (topUsers != null) {
+            topUsers.close();
+        }
 
         // Close ProfileServlet resources
         if (profileServlet != null) {
@@ -91,7 +208,8 @@ public class TimelineWithCacheServlet extends HttpServlet {
     }
 
     /**
-     * Don't modify this method.
+     * Method to get the user ID from the request and send the timeline, a
+     * cache hit is sent as the cached bytes.
      *
      * @param request the request object that is passed to the servlet
      * @param response the response object that the servlet uses to return the
@@ -103,16 +221,11 @@ public class TimelineWithCacheServlet extends HttpServlet {
     protected void doGet(final HttpServletRequest request,
             final HttpServletResponse response) throws ServletException, IOException {
 
-        // DON'T modify this method
         String id = request.getParameter("id");
-        String result = getTimeline(id);
+        byte[] result = getTimeline(id);
 
-        response.setContentType("text/html; charset=UTF-8");
-        response.setCharacterEncoding("UTF-8");
-        response.addHeader("CacheHit", String.valueOf(cache.get(id) != null));
-        PrintWriter writer = response.getWriter();
-        writer.print(result);
-        writer.close();
+        response.addHeader("CacheHit", String.valueOf(isCached(id)));
+        JsonResponses.write(response, result);
     }
 
     /**
@@ -120,48 +233,275 @@ public class TimelineWithCacheServlet extends HttpServlet {
      * caching mechanism with given cache variable.
      *
      * @param id user id
-     * @return timeline of this user
+     * @return timeline of this user, UTF-8 encoded
      */
-    private String getTimeline(String id) throws IOException {
-        JsonObject result = new JsonObject();
-
+    private byte[] getTimeline(String id) throws IOException {
+        if (prewarmer != null) {
+            prewarmer.requested(id);
+        }
         // if timeline is cached, return it
-        String cachedResult = cache.get(id);
+        byte[] cachedResult = cache.getBytes(id);
         if (cachedResult != null) {
             return cachedResult;
         }
+        // otherwise build it, or wait for the request that is building it
+        return timelineLoads.load(id, () -> loadTimeline(id));
+    }
 
-        try {
-            // result add followers
-            JsonArray followers = followerServlet.getFollowers(id);
-            result.add("followers", followers);
-
-            // get followees to get comments and add to result
-            JsonArray followeesArray = followerServlet.getFollowees(id);
-            List<String> followeeIds = new ArrayList<>();
-            for (int i = 0; i < followeesArray.size(); i++) {
-                JsonObject followee = followeesArray.get(i).getAsJsonObject();
-                followeeIds.add(followee.get("name").getAsString());
+    /**
+     * Starts getting the given user's timeline without blocking the calling
+     * thread. Shares the cache and the coalesced loads with {@link #doGet}.
+     *
+     * @param id user id
+     * @return future of the timeline of this user, UTF-8 encoded
+     */
+    CompletableFuture<byte[]> getTimelineAsync(String id) {
+        if (prewarmer != null) {
+            prewarmer.requested(id);
+        }
+        byte[] cachedResult = cache.getBytes(id);
+        if (cachedResult != null) {
+            return CompletableFuture.completedFuture(cachedResult);
+        }
+        return timelineLoads.loadAsync(id, () -> buildTimelineAsync(id));
+    }
+
+    /**
+     * Rebuilds the timeline of a user ahead of demand, whether it is cached
+     * or not, sharing the coalesced loads with the requests.
+     *
+     * @param id user id
+     * @return whether the timeline is cached afterwards
+     */
+    boolean prewarm(String id) {
+        timelineLoads.loadAsync(id, () -> buildTimelineAsync(id)).join();
+        return cache.contains(id);
+    }
+
+    /**
+     * @param id user id
+     * @return whether the timeline of the user would be cached
+     */
+    boolean isCacheable(String id) {
+        return CACHE_ALL_USERS || topUsers.contains(id);
+    }
+
+    /**
+     * Starts building the timeline from the backends and caching it.
+     *
+     * @param id user id
+     * @return future of the timeline of this user, UTF-8 encoded
+     */
+    private CompletableFuture<byte[]> buildTimelineAsync(String id) {
+        long start = System.nanoTime();
+        long epoch = cache.epoch(id);
+        return fanOut.getTimelineAsync(id)
+                .thenApply(timeline -> cacheTimeline(id, start, epoch, timeline));
+    }
+
+    /**
+     * @param id user id
+     * @return whether the user's timeline is cached, for the CacheHit header
+     */
+    static boolean isCached(String id) {
+        return cache.contains(id);
+    }
+
+    /**
+     * Builds the timeline from the backends and caches it.
+     *
+     * @param id user id
+     * @return timeline of this user, UTF-8 encoded
+     */
+    private byte[] loadTimeline(String id) {
+        long start = System.nanoTime();
+        long epoch = cache.epoch(id);
+        return cacheTimeline(id, start, epoch, fanOut.getTimeline(id));
+    }
+
+    /**
+     * Encodes a built timeline and caches it.
+     *
+     * @param id user id
+     * @param start System.nanoTime() when the timeline was requested
+     * @param epoch the cache epoch of the user before the backends were read
+     * @param timeline the built timeline
+     * @return timeline of this user, UTF-8 encoded
+     */
+    private byte[] cacheTimeline(String id, long start, long epoch,
+            TimelineFanOut.Timeline timeline) {
+        byte[] result = JsonResponses.toBytes(timeline.json);
+
+        // add to cache if no leg fell back and the user is a top user, or
+        // every user is cached; unless the timeline changed while it was built
+        if (timeline.complete && (CACHE_ALL_USERS || timeline.topUser)) {
+            cache.putBytesIfUnchanged(id, result, TIMELINE_TTL_MS, epoch);
+        }
+        if (timeline.complete) {
+            topUsers.record(id, timeline.topUser);
+        }
+
+        if (Logging.isSampled()) {
+            LOG.info("Timeline of " + id + ": " + result.length + " bytes in "
+                    + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms, "
+                    + cache + ", " + timelineLoads);
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("Timeline of " + id + ": "
+                        + new String(result, StandardCharsets.UTF_8));
             }
-            JsonArray comments = homepageServlet.getTopCommentsFromFollowees(followeeIds, 30);
-            result.add("comments", comments);
+        }
+        return result;
+    }
 
-            // get profile, name and add to result
-            String profile = profileServlet.getProfile(id);
-            result.addProperty("profile", profile);
-            result.addProperty("name", id);
+    /**
+     * Starts invalidating cached timelines from the change feed, if
+     * TIMELINE_CHANGE_FEED is on.
+     *
+     * @param shared the shared services whose indexes the feed keeps
+     *        current too, null if there are none
+     */
+    void startChangeFeed(SharedBackends shared) {
+        if (!CHANGE_FEED || changeFeed != null) {
+            return;
+        }
+        changeFeed = new ChangeFeed();
+        if (shared != null) {
+            shared.addListeners(changeFeed);
+        }
+        // evict the backends' cached entities before anything reads them again
+        changeFeed.addListener(new EntityCacheInvalidator(followerServlet));
+        // update the materialized comments before evicting what they feed
+        if (fanOut.materializer() != null) {
+            changeFeed.addListener(fanOut.materializer());
+        }
+        changeFeed.addListener(new TimelineInvalidator(cache, followerServlet));
+        changeFeed.addListener(topUsers);
+        changeFeed.watchComments(homepageServlet.collection());
+        changeFeed.pollFollows(followerServlet.driver());
+        changeFeed.pollUsers(profileServlet);
+    }
+
+    /**
+     * Loads the snapshot of the cache and starts saving it periodically, if
+     * TIMELINE_CACHE_SNAPSHOT is set.
+     */
+    void startSnapshots() {
+        if (SNAPSHOT_PATH.isEmpty() || snapshots != null) {
+            return;
+        }
+        File file = new File(SNAPSHOT_PATH);
+        LOG.info("Loaded " + cache.loadSnapshot(file) + " cached timelines from " + file);
+        if (SNAPSHOT_INTERVAL_SECONDS > 0) {
+            snapshots = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "cache-snapshot");
+                thread.setDaemon(true);
+                return thread;
+            });
+            snapshots.scheduleWithFixedDelay(() -> saveSnapshot(file),
+                    SNAPSHOT_INTERVAL_SECONDS, SNAPSHOT_INTERVAL_SECONDS, TimeUnit.SECONDS);
+        }
+    }
 
-            // add to cache if the user is a top user
-            if (followerServlet.isTopUser(id)) {
-                cache.put(id, result.toString());
+    /**
+     * Closes the second tier of the timeline cache, with its connections,
+     * writer thread or file mapping.
+     */
+    void closeCacheTier() {
+        cache.closeSecondTier();
+    }
+
+    /**
+     * Stops the periodic saves and saves the cache a last time.
+     */
+    void stopSnapshots() {
+        if (SNAPSHOT_PATH.isEmpty()) {
+            return;
+        }
+        if (snapshots != null) {
+            snapshots.shutdown();
+            try {
+                snapshots.awaitTermination(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
             }
+            snapshots = null;
+        }
+        saveSnapshot(new File(SNAPSHOT_PATH));
+    }
+
+    /**
+     * Saves the cache, a failure is logged and retried by the next save.
+     */
+    private static void saveSnapshot(File file) {
+        long start = System.nanoTime();
+        try {
+            int count = cache.saveSnapshot(file);
+            LOG.info("Saved " + count + " cached timelines to " + file + " in "
+                    + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+        } catch (IOException | RuntimeException e) {
+            LOG.warn("Failed to save cached timelines to " + file, e);
+        }
+    }
 
-        } catch (Exception e) {
-            e.printStackTrace();
+    /**
+     * Starts prewarming timelines, if TIMELINE_PREWARM is on.
+     */
+    void startPrewarmer() {
+        if (!TimelinePrewarmer.ENABLED || prewarmer != null) {
+            return;
         }
+        prewarmer = new TimelinePrewarmer(topUsers, this::isCacheable,
+                TimelineWithCacheServlet::isCached, this::prewarm, TimelineFanOut::backlog,
+                TIMELINE_TTL_MS, TimelinePrewarmer.RATE, TimelinePrewarmer.RECENT);
+        prewarmer.registerMetrics();
+        prewarmer.start(TimelinePrewarmer.INTERVAL_SECONDS);
+    }
+
+    /**
+     * Stops prewarming timelines.
+     */
+    void stopPrewarmer() {
+        if (prewarmer != null) {
+            prewarmer.close();
+            prewarmer = null;
+        }
+    }
 
-        System.out.println("result: " + result.toString());
-        return result.toString();
+    /**
+     * @return the prewarmer, null when it is off
+     */
+    TimelinePrewarmer prewarmer() {
+        return prewarmer;
+    }
+
+    /**
+     * @return the top users
+     */
+    TopUserIndex topUsers() {
+        return topUsers;
+    }
+
+    /**
+     * @return the change feed, null when it is off
+     */
+    ChangeFeed changeFeed() {
+        return changeFeed;
     }
 
+    /**
+     * Stops the change feed.
+     */
+    void closeChangeFeed() {
+        if (changeFeed != null) {
+            changeFeed.close();
+            changeFeed = null;
+        }
+    }
+
+    /**
+     * @return statistics of the coalesced timeline loads
+     */
+    static SingleFlight<String, byte[]> timelineLoads() {
+        return timelineLoads;
+    }
 }
@@ -0,0 +1,167 @@
+package edu.cmu.cc.minisite;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+/**
+ * The set of top users, the users with more than
+ * {@link FollowerServlet#TOP_USER_FOLLOWERS} followers, held in memory so
+ * asking whether a user is a top user costs a hash lookup instead of a
+ * Cypher count.
+ *
+ * The set is loaded from Neo4j in one query when the index starts and
+ * reloaded every TOP_USER_REFRESH_SECONDS. In between, it is kept current
+ * by the follows of the change feed, which recount the followee, and by the
+ * follower counts the timelines observe. A failed reload keeps the previous
+ * set.
+ */
+final class TopUserIndex implements ChangeFeed.Listener, AutoCloseable {
+
+    /**
+     * Logger.
+     */
+    private static final Logger LOG = Logging.getLogger(TopUserIndex.class);
+
+    /**
+     * Seconds between two reloads of the whole set, 0 to load it once.
+     */
+    static final long REFRESH_SECONDS = Config.getLong("TOP_USER_REFRESH_SECONDS", 600);
+
+    private final FollowerServlet followerServlet;
+    private final Set<String> users = ConcurrentHashMap.newKeySet();
+    private volatile boolean loaded;
+    /**
+     * Reloads the set, null until started.
+     */
+    private ScheduledExecutorService refresher;
+
+    /**
+     * @param followerServlet counts the followers
+     */
+    TopUserIndex(FollowerServlet followerServlet) {
+        this.followerServlet = followerServlet;
+    }
+
+    /**
+     * Loads the set in the background and reloads it periodically.
+     *
+     * @param refreshSeconds seconds between two reloads, 0 to load once
+     */
+    synchronized void start(long refreshSeconds) {
+        if (refresher != null) {
+            return;
+        }
+        refresher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "top-user-index");
+            thread.setDaemon(true);
+            return thread;
+        });
+        if (refreshSeconds > 0) {
+            refresher.scheduleWithFixedDelay(this::refresh, 0, refreshSeconds, TimeUnit.SECONDS);
+        } else {
+            refresher.execute(this::refresh);
+        }
+    }
+
+    /**
+     * Reloads the whole set from Neo4j.
+     *
+     * @return false if the query failed and the previous set is kept
+     */
+    boolean refresh() {
+        long start = System.nanoTime();
+        Set<String> top = followerServlet.getTopUsers();
+        if (top == null) {
+            return false;
+        }
+        users.retainAll(top);
+        users.addAll(top);
+        loaded = true;
+        LOG.info("Loaded " + top.size() + " top users in "
+                + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+        return true;
+    }
+
+    /**
+     * @param userId the user's ID
+     * @return whether the user is a top user, as far as the index knows
+     */
+    boolean contains(String userId) {
+        return users.contains(userId);
+    }
+
+    /**
+     * Records what a fresh follower count says about a user.
+     *
+     * @param userId the user's ID
+     * @param topUser whether the user is a top user
+     */
+    void record(String userId, boolean topUser) {
+        if (topUser) {
+            users.add(userId);
+        } else {
+            users.remove(userId);
+        }
+    }
+
+    /**
+     * @return whether the set was loaded at least once
+     */
+    boolean isLoaded() {
+        return loaded;
+    }
+
+    /**
+     * @return number of top users
+     */
+    int size() {
+        return users.size();
+    }
+
+    /**
+     * @return live read-only view of the top users
+     */
+    Set<String> users() {
+        return Collections.unmodifiableSet(users);
+    }
+
+    @Override
+    public void commentChanged(String authorId) {
+        // comments do not change follower counts
+    }
+
+    @Override
+    public void followChanged(String followerId, String followeeId) {
+        int followers = followerServlet.getFollowerCount(followeeId);
+        if (followers >= 0) {
+            record(followeeId, FollowerServlet.isTopUser(followers));
+        }
+    }
+
+    @Override
+    public void userChanged(String userId) {
+        // profiles do not change follower counts
+    }
+
+    /**
+     * Stops the reloads.
+     */
+    @Override
+    public synchronized void close() {
+        if (refresher != null) {
+            refresher.shutdownNow();
+            refresher = null;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "TopUserIndex{size=" + size() + ", loaded=" + loaded + "}";
+    }
+}
@@ -0,0 +1,200 @@
+package edu.cmu.cc.minisite;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.stream.JsonWriter;
+import com.mongodb.MongoException;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoCursor;
+import org.bson.Document;
+import org.junit.Assert;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.neo4j.driver.v1.Driver;
+import org.neo4j.driver.v1.Record;
+import org.neo4j.driver.v1.Session;
+import org.neo4j.driver.v1.StatementResult;
+import org.neo4j.driver.v1.Value;
+import org.neo4j.driver.v1.Values;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+// Class for BatchServlet and batch backend tests
+public class BatchServletTest {
+
+    // Ids are split on commas, without empty ones or duplicates, and bounded
+    @Test
+    public void parsesIds() {
+        Assert.assertEquals(Arrays.asList("b", "a"), BatchServlet.parseIds("b,,a,b,"));
+        Assert.assertEquals(Collections.emptyList(), BatchServlet.parseIds(null));
+
+        String[] ids = new String[BatchServlet.MAX_IDS + 1];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = "u" + i;
+        }
+        try {
+            BatchServlet.parseIds(String.join(",", ids));
+            Assert.fail();
+        } catch (IllegalArgumentException e) {
+            Assert.assertEquals(BatchServlet.TOO_MANY_IDS, e.getMessage());
+        }
+    }
+
+    // Profiles are read with one IN query, matching names as the collation does
+    @Test
+    public void readsProfilesAtOnce() throws SQLException {
+        Connection conn = Mockito.mock(Connection.class);
+        PreparedStatement stmt = Mockito.mock(PreparedStatement.class);
+        ResultSet rs = Mockito.mock(ResultSet.class);
+        when(conn.prepareStatement(ProfileServlet.PROFILES_QUERY + "(?, ?, ?)")).thenReturn(stmt);
+        when(stmt.executeQuery()).thenReturn(rs);
+        when(rs.next()).thenReturn(true, true, false);
+        when(rs.getString("username")).thenReturn("batch-alice", "BATCH-BOB");
+        when(rs.getString("profile_photo_url")).thenReturn("a.png", "b.png");
+        ProfileServlet profiles = new ProfileServlet(conn);
+        List<String> names = Arrays.asList("batch-alice", "batch-bob", "batch-nobody");
+
+        Map<String, String> read = profiles.getProfiles(names);
+        Assert.assertEquals(names, Arrays.asList(read.keySet().toArray()));
+        Assert.assertEquals(Arrays.asList("a.png", "b.png", "#"),
+                Arrays.asList(read.values().toArray()));
+
+        // the second batch is served by the profile cache
+        Assert.assertEquals(read, profiles.getProfiles(names));
+        verify(stmt, times(1)).executeQuery();
+        profiles.closeConnection();
+    }
+
+    // Followers are read with one UNWIND query and keyed by user
+    @Test
+    public void readsFollowersAtOnce() {
+        Driver driver = Mockito.mock(Driver.class);
+        Session session = Mockito.mock(Session.class);
+        StatementResult rs = Mockito.mock(StatementResult.class);
+        Record star = Mockito.mock(Record.class);
+        Record loner = Mockito.mock(Record.class);
+        when(driver.session()).thenReturn(session);
+        when(session.run(eq(FollowerServlet.USERS_FOLLOWERS_QUERY), any(Value.class)))
+                .thenReturn(rs);
+        when(rs.hasNext()).thenReturn(true, true, false);
+        when(rs.next()).thenReturn(star, loner);
+        when(star.get("username")).thenReturn(Values.value("batch-star"));
+        when(star.get("followers")).thenReturn(Values.value(Collections.singletonList(
+                Values.parameters("name", "fan", "url", "fan.png").asMap())));
+        when(loner.get("username")).thenReturn(Values.value("batch-loner"));
+        when(loner.get("followers")).thenReturn(Values.value(Collections.emptyList()));
+        BatchServlet batch = new BatchServlet(null, new FollowerServlet(driver), null);
+
+        JsonObject followers = batch.getFollowers(Arrays.asList("batch-star", "batch-loner"))
+                .getAsJsonObject("followers");
+        JsonArray fans = followers.getAsJsonArray("batch-star");
+        Assert.assertEquals("fan", fans.get(0).getAsJsonObject().get("name").getAsString());
+        Assert.assertEquals("fan.png", fans.get(0).getAsJsonObject().get("profile").getAsString());
+        Assert.assertEquals(0, followers.getAsJsonArray("batch-loner").size());
+        verify(session, times(1)).run(anyString(), any(Value.class));
+    }
+
+    // Failed profile and follower queries report their users the way comments do
+    @Test
+    public void reportsFailedUsers() throws SQLException {
+        Connection conn = Mockito.mock(Connection.class);
+        when(conn.prepareStatement(anyString())).thenThrow(new SQLException("down"));
+        Driver driver = Mockito.mock(Driver.class);
+        when(driver.session()).thenThrow(new IllegalStateException("down"));
+        BatchServlet batch = new BatchServlet(new ProfileServlet(conn),
+                new FollowerServlet(driver), null);
+        List<String> ids = Arrays.asList("batch-failed-a", "batch-failed-b");
+
+        Assert.assertEquals("{\"profiles\":{},\"error\":\"Internal server error.\","
+                + "\"failed\":[\"batch-failed-a\",\"batch-failed-b\"]}",
+                batch.getProfiles(ids).toString());
+        Assert.assertEquals("{\"followers\":{},\"error\":\"Internal server error.\","
+                + "\"failed\":[\"batch-failed-a\",\"batch-failed-b\"]}",
+                batch.getFollowers(ids).toString());
+    }
+
+    // Comments are streamed grouped by user, users without comments get []
+    @Test
+    @SuppressWarnings("unchecked")
+    public void streamsCommentsByUser() throws IOException {
+        MongoCursor<Document> cursor = Mockito.mock(MongoCursor.class);
+        when(cursor.hasNext()).thenReturn(true, true, true, false);
+        when(cursor.next()).thenReturn(new Document("uid", "a").append("ups", 2),
+                new Document("uid", "a").append("ups", 1), new Document("uid", "c"));
+        BatchServlet batch = new BatchServlet(null, null,
+                new HomepageServlet((MongoCollection<Document>) null));
+        StringWriter out = new StringWriter();
+
+        try (JsonWriter writer = new JsonWriter(out)) {
+            batch.writeComments(writer, cursor, Arrays.asList("a", "b", "c"));
+        }
+        Assert.assertEquals("{\"comments\":{\"a\":[{\"uid\":\"a\",\"ups\":2},"
+                + "{\"uid\":\"a\",\"ups\":1}],\"c\":[{\"uid\":\"c\"}],\"b\":[]}}", out.toString());
+        verify(cursor).close();
+
+        out = new StringWriter();
+        try (JsonWriter writer = new JsonWriter(out)) {
+            batch.writeComments(writer, batch.findComments(Collections.emptyList()),
+                    Collections.emptyList());
+        }
+        Assert.assertEquals("{\"comments\":{}}", out.toString());
+    }
+
+    // A query failing half way reports the users it did not finish
+    @Test
+    @SuppressWarnings("unchecked")
+    public void reportsUnfinishedComments() throws IOException {
+        MongoCursor<Document> cursor = Mockito.mock(MongoCursor.class);
+        when(cursor.hasNext()).thenReturn(true, true, true).thenThrow(new MongoException("down"));
+        when(cursor.next()).thenReturn(new Document("uid", "a"), new Document("uid", "b"),
+                new Document("uid", "b"));
+        BatchServlet batch = new BatchServlet(null, null,
+                new HomepageServlet((MongoCollection<Document>) null));
+        StringWriter out = new StringWriter();
+
+        try (JsonWriter writer = new JsonWriter(out)) {
+            batch.writeComments(writer, cursor, Arrays.asList("a", "b", "c"));
+        }
+        Assert.assertEquals("{\"comments\":{\"a\":[{\"uid\":\"a\"}],"
+                + "\"b\":[{\"uid\":\"b\"},{\"uid\":\"b\"}]},"
+                + "\"error\":\"Internal server error.\",\"failed\":[\"b\",\"c\"]}",
+                out.toString());
+        verify(cursor).close();
+    }
+
+    // A comment without a uid is skipped instead of aborting the stream
+    @Test
+    @SuppressWarnings("unchecked")
+    public void skipsCommentsWithoutUser() throws IOException {
+        MongoCursor<Document> cursor = Mockito.mock(MongoCursor.class);
+        when(cursor.hasNext()).thenReturn(true, true, true, false);
+        when(cursor.next()).thenReturn(new Document("ups", 3), new Document("uid", "a"),
+                new Document("ups", 1));
+        BatchServlet batch = new BatchServlet(null, null,
+                new HomepageServlet((MongoCollection<Document>) null));
+        StringWriter out = new StringWriter();
+
+        try (JsonWriter writer = new JsonWriter(out)) {
+            batch.writeComments(writer, cursor, Arrays.asList("a", "b"));
+        }
+        Assert.assertEquals("{\"comments\":{\"a\":[{\"uid\":\"a\"}],\"b\":[]}}",
+                out.toString());
+        verify(cursor).close();
+    }
+}
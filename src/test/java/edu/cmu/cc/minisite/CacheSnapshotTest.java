@@ -0,0 +1,106 @@
+package edu.cmu.cc.minisite;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+// Class for CacheSnapshot tests
+public class CacheSnapshotTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static Cache newCache() {
+        return new Cache(1024 * 1024, 0, 4);
+    }
+
+    // A new cache serves the entries saved by the previous one
+    @Test
+    public void restoresSavedEntries() throws Exception {
+        File file = new File(folder.getRoot(), "snapshot");
+        Cache previous = newCache();
+        previous.put("a", "timeline a");
+        previous.put("b", "timeline b", 60000);
+        Assert.assertEquals(2, previous.saveSnapshot(file));
+
+        Cache cache = newCache();
+        Assert.assertEquals(2, cache.loadSnapshot(file));
+        Assert.assertEquals("timeline a", cache.get("a"));
+        Assert.assertEquals("timeline b", cache.get("b"));
+        Assert.assertNull(cache.get("c"));
+        Assert.assertEquals(2, cache.snapshotHitCount());
+        // promoted, so later hits are served by the cache itself
+        Assert.assertTrue(cache.contains("a"));
+    }
+
+    // Entries that expired while the node was down are not served
+    @Test
+    public void dropsExpiredEntries() throws Exception {
+        File file = new File(folder.getRoot(), "snapshot");
+        Cache previous = newCache();
+        previous.put("a", "timeline a", 1);
+        previous.saveSnapshot(file);
+        Thread.sleep(20);
+
+        Cache cache = newCache();
+        cache.loadSnapshot(file);
+        Assert.assertNull(cache.get("a"));
+    }
+
+    // Entries put or invalidated after loading replace the snapshot's
+    @Test
+    public void newerEntriesWin() throws Exception {
+        File file = new File(folder.getRoot(), "snapshot");
+        Cache previous = newCache();
+        previous.put("a", "old a");
+        previous.put("b", "old b");
+        previous.saveSnapshot(file);
+
+        Cache cache = newCache();
+        cache.loadSnapshot(file);
+        cache.put("a", "new a");
+        cache.invalidate("b");
+
+        Assert.assertEquals("new a", cache.get("a"));
+        Assert.assertNull(cache.get("b"));
+        Assert.assertEquals(0, cache.snapshotHitCount());
+    }
+
+    // Corrupt, truncated and foreign files never produce wrong values
+    @Test
+    public void rejectsDamagedSnapshots() throws Exception {
+        File file = new File(folder.getRoot(), "snapshot");
+        Cache previous = newCache();
+        previous.put("a", "timeline a");
+        previous.saveSnapshot(file);
+        byte[] saved = Files.readAllBytes(file.toPath());
+
+        // flipped byte in the value
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.seek(saved.length - 6);
+            raf.write(saved[saved.length - 6] ^ 0xff);
+        }
+        Cache cache = newCache();
+        Assert.assertEquals(1, cache.loadSnapshot(file));
+        Assert.assertNull(cache.get("a"));
+
+        // cut in the middle of the entry
+        Files.write(file.toPath(), Arrays.copyOf(saved, saved.length - 3));
+        Assert.assertEquals(0, newCache().loadSnapshot(file));
+
+        // another version
+        byte[] foreign = saved.clone();
+        foreign[7] = (byte) (CacheSnapshot.VERSION + 1);
+        Files.write(file.toPath(), foreign);
+        Assert.assertEquals(0, newCache().loadSnapshot(file));
+
+        // no file at all
+        Assert.assertEquals(0, newCache().loadSnapshot(new File(folder.getRoot(), "absent")));
+    }
+}
@@ -0,0 +1,144 @@
+package edu.cmu.cc.minisite;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+// Class for Cache tests
+public class CacheTest {
+
+    // Fake clock in nanoseconds
+    private final AtomicLong now = new AtomicLong();
+
+    // Weight of an entry with a one char key and a ten char value
+    private final long entryWeight =
+            Cache.weigh("k", "0123456789".getBytes(StandardCharsets.UTF_8));
+
+    // Returns a single segment cache that holds the given number of entries
+    private Cache newCache(int entries, long ttlMillis) {
+        return new Cache(entries * entryWeight, ttlMillis, 1, now::get);
+    }
+
+    // Values can be read back and count as hits, absent keys as misses
+    @Test
+    public void getReturnsPutValue() {
+        Cache cache = newCache(4, 0);
+        cache.put("a", "0123456789");
+
+        Assert.assertEquals("0123456789", cache.get("a"));
+        Assert.assertNull(cache.get("b"));
+        Assert.assertEquals(1, cache.hitCount());
+        Assert.assertEquals(1, cache.missCount());
+    }
+
+    // The cache never grows beyond its maximum weight
+    @Test
+    public void evictsBeyondMaximumWeight() {
+        Cache cache = newCache(4, 0);
+        for (int i = 0; i < 10; i++) {
+            cache.put(String.valueOf(i), "0123456789");
+        }
+
+        Assert.assertEquals(4, cache.size());
+        Assert.assertTrue(cache.weight() <= 4 * entryWeight);
+        Assert.assertEquals(6, cache.evictionCount());
+        Assert.assertEquals("0123456789", cache.get("9"));
+        Assert.assertNull(cache.get("0"));
+    }
+
+    // An entry that was hit again survives a scan of one-off entries
+    @Test
+    public void protectsFrequentlyUsedEntries() {
+        Cache cache = newCache(4, 0);
+        cache.put("h", "0123456789");
+        cache.get("h");
+        for (int i = 0; i < 10; i++) {
+            cache.put(String.valueOf(i), "0123456789");
+        }
+
+        Assert.assertEquals("0123456789", cache.get("h"));
+    }
+
+    // Entries expire after their time to live
+    @Test
+    public void expiresEntries() {
+        Cache cache = newCache(4, 1000);
+        cache.put("a", "0123456789");
+        cache.put("b", "0123456789", 5000);
+
+        now.addAndGet(TimeUnit.SECONDS.toNanos(2));
+
+        Assert.assertNull(cache.get("a"));
+        Assert.assertEquals("0123456789", cache.get("b"));
+        Assert.assertEquals(1, cache.expirationCount());
+    }
+
+    // Values larger than the cache are not cached at all
+    @Test
+    public void rejectsOversizedValues() {
+        Cache cache = newCache(1, 0);
+        cache.put("a", "0123456789");
+        cache.put("b", "01234567890123456789");
+
+        Assert.assertEquals("0123456789", cache.get("a"));
+        Assert.assertNull(cache.get("b"));
+    }
+
+    // Invalidated keys are gone
+    @Test
+    public void invalidatesEntries() {
+        Cache cache = newCache(4, 0);
+        cache.put("a", "0123456789");
+
+        cache.invalidate("a");
+        cache.invalidate("b");
+
+        Assert.assertNull(cache.get("a"));
+        Assert.assertEquals(1, cache.invalidationCount());
+    }
+
+    // A value built before an invalidation is not cached
+    @Test
+    public void skipsPutsOlderThanInvalidation() {
+        Cache cache = newCache(4, 0);
+        byte[] value = "0123456789".getBytes(StandardCharsets.UTF_8);
+        long epoch = cache.epoch("a");
+
+        cache.invalidate("a");
+
+        Assert.assertFalse(cache.putBytesIfUnchanged("a", value, 0, epoch));
+        Assert.assertNull(cache.getBytes("a"));
+        Assert.assertTrue(cache.putBytesIfUnchanged("a", value, 0, cache.epoch("a")));
+        Assert.assertArrayEquals(value, cache.getBytes("a"));
+    }
+
+    // A value is decoded once per entry and the decoded value is weighed
+    @Test
+    public void keepsDecodedValues() {
+        Cache cache = newCache(16, 0);
+        AtomicLong decodes = new AtomicLong();
+        Function<byte[], StringBuilder> decoder = value -> {
+            decodes.incrementAndGet();
+            return new StringBuilder(new String(value, StandardCharsets.UTF_8));
+        };
+        cache.put("a", "0123456789");
+        long weight = cache.weight();
+
+        StringBuilder first = cache.getDecoded("a", StringBuilder.class, decoder);
+        Assert.assertEquals("0123456789", first.toString());
+        Assert.assertSame(first, cache.getDecoded("a", StringBuilder.class, decoder));
+        Assert.assertEquals(1, decodes.get());
+        Assert.assertTrue(cache.weight() > weight);
+        Assert.assertNull(cache.getDecoded("b", StringBuilder.class, decoder));
+
+        // a new value is decoded again
+        cache.put("a", "9876543210");
+        Assert.assertEquals("9876543210",
+                cache.getDecoded("a", StringBuilder.class, decoder).toString());
+        Assert.assertEquals(2, decodes.get());
+    }
+}
@@ -0,0 +1,271 @@
+package edu.cmu.cc.minisite;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// Class for CacheTier tests and for Cache over a second tier
+public class CacheTierTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    // A node with a cold cache is served by the tier another node filled
+    @Test
+    public void cacheSharesSecondTier() {
+        InMemoryCacheTier tier = new InMemoryCacheTier();
+        Cache first = new Cache(1024 * 1024, 0, 4, System::nanoTime, tier);
+        Cache second = new Cache(1024 * 1024, 0, 4, System::nanoTime, tier);
+
+        first.putBytes("u", bytes("timeline"), 60000);
+
+        Assert.assertEquals("timeline", second.get("u"));
+        Assert.assertEquals(1, second.secondTierHitCount());
+        // promoted into the second node's own cache
+        Assert.assertTrue(second.contains("u"));
+
+        second.invalidate("u");
+        Assert.assertNull(tier.get("u"));
+
+    }
+
+    // A cache closes its tier and stops writing it, serving its own entries
+    @Test
+    public void cacheClosesSecondTier() {
+        AtomicBoolean closed = new AtomicBoolean();
+        InMemoryCacheTier tier = new InMemoryCacheTier() {
+            @Override
+            public void close() {
+                closed.set(true);
+            }
+        };
+        Cache cache = new Cache(1024 * 1024, 0, 4, System::nanoTime, tier);
+
+        cache.closeSecondTier();
+        cache.putBytes("u", bytes("timeline"), 60000);
+
+        Assert.assertTrue(closed.get());
+        Assert.assertNull(tier.get("u"));
+        Assert.assertEquals("timeline", cache.get("u"));
+    }
+
+    // Entries expire in the tier when the original would have
+    @Test
+    public void secondTierKeepsExpiry() throws InterruptedException {
+        InMemoryCacheTier tier = new InMemoryCacheTier();
+        Cache first = new Cache(1024 * 1024, 0, 4, System::nanoTime, tier);
+        first.putBytes("u", bytes("timeline"), 1);
+
+        Thread.sleep(20);
+
+        Assert.assertNull(new Cache(1024 * 1024, 0, 4, System::nanoTime, tier).get("u"));
+    }
+
+    // Two mappings of one file see each other's writes, and the data outlives them
+    @Test
+    public void mappedTierIsShared() throws Exception {
+        File file = folder.newFile("cache");
+        try (MappedCacheTier a = new MappedCacheTier(file, 16, 1024);
+             MappedCacheTier b = new MappedCacheTier(file, 16, 1024)) {
+            a.put("u", bytes("timeline"), 0);
+            Assert.assertArrayEquals(bytes("timeline"), b.get("u"));
+
+            b.put("u", bytes("newer"), 0);
+            Assert.assertArrayEquals(bytes("newer"), a.get("u"));
+        }
+        try (MappedCacheTier reopened = new MappedCacheTier(file, 16, 1024)) {
+            Assert.assertArrayEquals(bytes("newer"), reopened.get("u"));
+            reopened.invalidate("u");
+            Assert.assertNull(reopened.get("u"));
+        }
+    }
+
+    // Colliding keys probe further slots; oversized values drop the old one
+    @Test
+    public void mappedTierProbesAndBounds() throws Exception {
+        try (MappedCacheTier tier = new MappedCacheTier(folder.newFile("cache"), 4, 128)) {
+            for (int i = 0; i < MappedCacheTier.PROBES; i++) {
+                tier.put("k" + i, bytes("v" + i), 0);
+            }
+            for (int i = 0; i < MappedCacheTier.PROBES; i++) {
+                Assert.assertArrayEquals(bytes("v" + i), tier.get("k" + i));
+            }
+
+            tier.put("k0", new byte[512], 0);
+            Assert.assertNull(tier.get("k0"));
+            Assert.assertNull(tier.get("absent"));
+        }
+    }
+
+    // The geometry of an existing file is replaced, not misread
+    @Test
+    public void mappedTierReformatsOnNewGeometry() throws Exception {
+        File file = folder.newFile("cache");
+        try (MappedCacheTier tier = new MappedCacheTier(file, 16, 1024)) {
+            tier.put("u", bytes("timeline"), 0);
+        }
+        try (MappedCacheTier tier = new MappedCacheTier(file, 32, 512)) {
+            Assert.assertNull(tier.get("u"));
+        }
+    }
+
+    // The memcached client speaks the text protocol
+    @Test
+    public void memcachedTier() throws Exception {
+        try (FakeMemcached server = new FakeMemcached();
+             MemcachedCacheTier tier = new MemcachedCacheTier(
+                     "127.0.0.1:" + server.socket.getLocalPort(), 1000, 2, 1000, 16)) {
+            Assert.assertNull(tier.get("u"));
+
+            tier.put("u", bytes("time\r\nline"), 60000);
+            Assert.assertTrue(tier.awaitWrites(1000));
+            Assert.assertArrayEquals(bytes("time\r\nline"), tier.get("u"));
+            Assert.assertTrue(server.values.containsKey("minisite:u"));
+
+            tier.put("has space", bytes("x"), 0);
+            Assert.assertTrue(tier.awaitWrites(1000));
+            Assert.assertArrayEquals(bytes("x"), tier.get("has space"));
+
+            // a miss at once, deleted on the server by the writer
+            tier.invalidate("u");
+            Assert.assertNull(tier.get("u"));
+            Assert.assertTrue(tier.awaitWrites(1000));
+            Assert.assertFalse(server.values.containsKey("minisite:u"));
+
+            // a set queued before an invalidation does not land after its delete
+            for (int i = 0; i < 10; i++) {
+                tier.put("other" + i, bytes("x"), 0);
+            }
+            tier.put("u", bytes("stale"), 0);
+            tier.invalidate("u");
+            Assert.assertTrue(tier.awaitWrites(1000));
+            Assert.assertNull(tier.get("u"));
+            Assert.assertFalse(server.values.containsKey("minisite:u"));
+        }
+    }
+
+    // An unreachable server answers misses
+    @Test
+    public void memcachedTierFailsAsMiss() throws Exception {
+        int port;
+        try (ServerSocket closed = new ServerSocket(0)) {
+            port = closed.getLocalPort();
+        }
+        try (MemcachedCacheTier tier =
+                new MemcachedCacheTier("127.0.0.1:" + port, 100, 2, 1000, 16)) {
+            tier.put("u", bytes("timeline"), 0);
+            Assert.assertNull(tier.get("u"));
+        }
+    }
+
+    // A server that does not answer costs one timeout, then is skipped
+    @Test
+    public void memcachedTierBacksOff() throws Exception {
+        try (ServerSocket silent = new ServerSocket(0);
+             MemcachedCacheTier tier = new MemcachedCacheTier(
+                     "127.0.0.1:" + silent.getLocalPort(), 100, 2, 60000, 16)) {
+            long start = System.nanoTime();
+            Assert.assertNull(tier.get("u"));
+            Assert.assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(100));
+
+            start = System.nanoTime();
+            for (int i = 0; i < 10; i++) {
+                Assert.assertNull(tier.get("u"));
+                tier.invalidate("u");
+                tier.put("u", bytes("timeline"), 0);
+            }
+            Assert.assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(100));
+            // the deletes wait for the server
+            Assert.assertFalse(tier.awaitWrites(50));
+        }
+    }
+
+    // Single connection memcached speaking get, set and delete
+    private static final class FakeMemcached implements AutoCloseable {
+
+        final ServerSocket socket = new ServerSocket(0);
+        final Map<String, byte[]> values = new ConcurrentHashMap<>();
+        private final Thread thread = new Thread(this::serve);
+
+        FakeMemcached() throws Exception {
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        private void serve() {
+            try {
+                while (true) {
+                    try (Socket conn = socket.accept()) {
+                        InputStream in = conn.getInputStream();
+                        OutputStream out = conn.getOutputStream();
+                        String line;
+                        while ((line = readLine(in)) != null) {
+                            String[] parts = line.split(" ");
+                            if (parts[0].equals("get")) {
+                                byte[] value = values.get(parts[1]);
+                                if (value != null) {
+                                    out.write(bytes("VALUE " + parts[1] + " 0 "
+                                            + value.length + "\r\n"));
+                                    out.write(value);
+                                    out.write(bytes("\r\n"));
+                                }
+                                out.write(bytes("END\r\n"));
+                            } else if (parts[0].equals("set")) {
+                                byte[] value = new byte[Integer.parseInt(parts[4])];
+                                int read = 0;
+                                while (read < value.length) {
+                                    read += in.read(value, read, value.length - read);
+                                }
+                                in.read();
+                                in.read();
+                                values.put(parts[1], value);
+                                out.write(bytes("STORED\r\n"));
+                            } else if (parts[0].equals("delete")) {
+                                out.write(bytes(values.remove(parts[1]) != null
+                                        ? "DELETED\r\n" : "NOT_FOUND\r\n"));
+                            }
+                            out.flush();
+                        }
+                    }
+                }
+            } catch (Exception e) {
+                // closed
+            }
+        }
+
+        private static String readLine(InputStream in) throws Exception {
+            StringBuilder line = new StringBuilder();
+            int c;
+            while ((c = in.read()) != '\n') {
+                if (c < 0) {
+                    return null;
+                }
+                if (c != '\r') {
+                    line.append((char) c);
+                }
+            }
+            return line.toString();
+        }
+
+        @Override
+        public void close() throws Exception {
+            socket.close();
+        }
+    }
+}
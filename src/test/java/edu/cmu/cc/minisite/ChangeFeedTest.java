@@ -0,0 +1,205 @@
+package edu.cmu.cc.minisite;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.mockito.stubbing.Answer;
+import org.neo4j.driver.v1.Driver;
+import org.neo4j.driver.v1.Record;
+import org.neo4j.driver.v1.Session;
+import org.neo4j.driver.v1.StatementResult;
+import org.neo4j.driver.v1.Value;
+import org.neo4j.driver.v1.Values;
+
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+// Class for ChangeFeed tests, with the timeline invalidator as listener
+public class ChangeFeedTest {
+
+    private static final byte[] TIMELINE = "{}".getBytes(StandardCharsets.UTF_8);
+
+    private final Cache cache = new Cache(1024 * 1024, 0, 4);
+    private ChangeFeed feed;
+
+    @Before
+    public void setUp() {
+        // "author" is followed by "a" and "b", and follows "c"
+        FollowerServlet followers = new FollowerServlet((Driver) null) {
+            @Override
+            public JsonArray getFollowers(String id) {
+                JsonArray result = new JsonArray();
+                if ("author".equals(id)) {
+                    for (String name : Arrays.asList("a", "b")) {
+                        JsonObject follower = new JsonObject();
+                        follower.addProperty("profile", "#");
+                        follower.addProperty("name", name);
+                        result.add(follower);
+                    }
+                }
+                return result;
+            }
+
+            @Override
+            public SocialGraph getSocialGraph(String userId) {
+                return new SocialGraph(getFollowers(userId), "author".equals(userId)
+                        ? Collections.singletonList("c") : Collections.emptyList());
+            }
+        };
+        feed = new ChangeFeed();
+        feed.addListener(new TimelineInvalidator(cache, followers));
+        for (String id : Arrays.asList("author", "a", "b", "c", "d")) {
+            cache.putBytes(id, TIMELINE);
+        }
+    }
+
+    @After
+    public void tearDown() {
+        feed.close();
+    }
+
+    // A comment invalidates the timelines of the author's followers
+    @Test
+    public void commentInvalidatesFollowers() {
+        feed.commentChanged("author");
+
+        Assert.assertFalse(cache.contains("a"));
+        Assert.assertFalse(cache.contains("b"));
+        Assert.assertTrue(cache.contains("author"));
+        Assert.assertTrue(cache.contains("c"));
+    }
+
+    // A follow invalidates both users
+    @Test
+    public void followInvalidatesBothUsers() {
+        feed.followChanged("d", "c");
+
+        Assert.assertFalse(cache.contains("c"));
+        Assert.assertFalse(cache.contains("d"));
+        Assert.assertTrue(cache.contains("a"));
+    }
+
+    // A profile change invalidates the user and the users it follows
+    @Test
+    public void userChangeInvalidatesUserAndFollowees() {
+        feed.userChanged("author");
+
+        Assert.assertFalse(cache.contains("author"));
+        Assert.assertFalse(cache.contains("c"));
+        Assert.assertTrue(cache.contains("a"));
+    }
+
+    // A failing listener does not keep the others from seeing the change
+    @Test
+    public void isolatesFailingListeners() {
+        ChangeFeed isolated = new ChangeFeed();
+        isolated.addListener(new TimelineInvalidator(cache, null));
+        isolated.addListener(new TimelineInvalidator(cache, new FollowerServlet((Driver) null)));
+        try {
+            isolated.followChanged("a", "b");
+            isolated.commentChanged("author");
+        } finally {
+            isolated.close();
+        }
+
+        Assert.assertFalse(cache.contains("a"));
+        Assert.assertFalse(cache.contains("b"));
+    }
+
+    // The relationships are scanned only when their number changed or the scan is due
+    @Test
+    public void pollsFollowsByCount() {
+        Session session = Mockito.mock(Session.class);
+        StatementResult counts = result(Collections.singletonMap("n", Values.value(2)),
+                Collections.singletonMap("n", Values.value(2)),
+                Collections.singletonMap("n", Values.value(3)));
+        when(session.run(ChangeFeed.FOLLOWS_COUNT_QUERY)).thenReturn(counts);
+        StatementResult maxId = result(Collections.singletonMap("id", Values.value(7)));
+        when(session.run(ChangeFeed.FOLLOWS_MAX_ID_QUERY)).thenReturn(maxId);
+        Map<String, Value> follow = new HashMap<>();
+        follow.put("id", Values.value(8));
+        follow.put("follower", Values.value("d"));
+        follow.put("followee", Values.value("c"));
+        StatementResult follows = result(follow);
+        when(session.run(eq(ChangeFeed.FOLLOWS_AFTER_QUERY), any(Value.class)))
+                .thenReturn(follows);
+        ChangeFeed.FollowPoll poll = feed.new FollowPoll(60000);
+
+        Assert.assertTrue(poll.poll(session));
+        Assert.assertFalse(poll.poll(session));
+        Assert.assertTrue(cache.contains("c"));
+
+        Assert.assertTrue(poll.poll(session));
+        verify(session).run(ChangeFeed.FOLLOWS_AFTER_QUERY, Values.parameters("lastId", 7L));
+        Assert.assertFalse(cache.contains("c"));
+        Assert.assertFalse(cache.contains("d"));
+    }
+
+    // The users whose row changed, appeared or disappeared since the last poll are reported
+    @Test
+    public void pollsUsersByDiff() throws SQLException {
+        ChangeFeed.UserPoll poll = feed.new UserPoll();
+        Assert.assertEquals(0, poll.poll(users("author", "p", "a.png", "c", "p", "c.png",
+                "d", "p", "d.png")));
+        Assert.assertTrue(cache.contains("author"));
+
+        Assert.assertEquals(3, poll.poll(users("author", "p", "new.png", "c", "p", "c.png",
+                "e", "p", "e.png")));
+        Assert.assertFalse(cache.contains("author"));
+        // author follows c
+        Assert.assertFalse(cache.contains("c"));
+        Assert.assertFalse(cache.contains("d"));
+        Assert.assertTrue(cache.contains("a"));
+    }
+
+    // Returns a connection reading the users table as username, pwd, url triples
+    private static Connection users(String... rows) throws SQLException {
+        Connection conn = Mockito.mock(Connection.class);
+        Statement stmt = Mockito.mock(Statement.class);
+        ResultSet rs = Mockito.mock(ResultSet.class);
+        when(conn.createStatement(anyInt(), anyInt())).thenReturn(stmt);
+        when(stmt.executeQuery(CredentialIndex.ALL_QUERY)).thenReturn(rs);
+        int[] row = {-1};
+        when(rs.next()).thenAnswer(i -> ++row[0] < rows.length / 3);
+        when(rs.getString("username")).thenAnswer(i -> rows[row[0] * 3]);
+        when(rs.getString("pwd")).thenAnswer(i -> rows[row[0] * 3 + 1]);
+        when(rs.getString("profile_photo_url")).thenAnswer(i -> rows[row[0] * 3 + 2]);
+        return conn;
+    }
+
+    // Returns a result of one record per map, read once each
+    @SafeVarargs
+    private static StatementResult result(Map<String, Value>... rows) {
+        StatementResult rs = Mockito.mock(StatementResult.class);
+        Iterator<Map<String, Value>> next = Arrays.asList(rows).iterator();
+        when(rs.hasNext()).thenAnswer(i -> next.hasNext());
+        Answer<Record> record = i -> {
+            Map<String, Value> row = next.next();
+            Record r = Mockito.mock(Record.class);
+            when(r.get(anyString())).thenAnswer(j -> row.get(j.<String>getArgument(0)));
+            return r;
+        };
+        when(rs.next()).thenAnswer(record);
+        when(rs.single()).thenAnswer(record);
+        return rs;
+    }
+}
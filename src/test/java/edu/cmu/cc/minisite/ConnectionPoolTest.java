@@ -0,0 +1,119 @@
+package edu.cmu.cc.minisite;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.mockito.Mockito.when;
+
+// Class for ConnectionPool tests
+public class ConnectionPoolTest {
+
+    // Counts the physical connections opened by the pool
+    private final AtomicInteger opened = new AtomicInteger();
+
+    // Opens a mocked physical connection
+    private Connection newMockConnection() {
+        opened.incrementAndGet();
+        return Mockito.mock(Connection.class);
+    }
+
+    // A returned connection is reused instead of opening a new one
+    @Test
+    public void reusesReturnedConnection() throws Exception {
+        ConnectionPool pool = new ConnectionPool(this::newMockConnection, 0, 2, 60000, 0, 100);
+
+        Connection first = pool.getConnection();
+        first.close();
+        Connection second = pool.getConnection();
+        second.close();
+
+        Assert.assertEquals(1, opened.get());
+        Assert.assertEquals(0, pool.borrowedCount());
+        Assert.assertEquals(1, pool.idleCount());
+        pool.close();
+    }
+
+    // Borrowing beyond the maximum size times out
+    @Test(expected = SQLException.class)
+    public void failsWhenExhausted() throws Exception {
+        ConnectionPool pool = new ConnectionPool(this::newMockConnection, 0, 1, 60000, 0, 50);
+        pool.getConnection();
+        pool.getConnection();
+    }
+
+    // A closed handle cannot be used and does not close the physical connection
+    @Test
+    public void closedHandleIsUnusable() throws Exception {
+        Connection raw = Mockito.mock(Connection.class);
+        ConnectionPool pool = new ConnectionPool(() -> raw, 0, 1, 60000, 0, 100);
+
+        Connection handle = pool.getConnection();
+        handle.close();
+        Assert.assertTrue(handle.isClosed());
+        try {
+            handle.prepareStatement("SELECT 1");
+            Assert.fail("a closed handle must not be usable");
+        } catch (SQLException expected) {
+            // expected
+        }
+        Mockito.verify(raw, Mockito.never()).close();
+        pool.close();
+    }
+
+    // An idle connection that fails validation is replaced
+    @Test
+    public void replacesInvalidConnection() throws Exception {
+        Connection broken = Mockito.mock(Connection.class);
+        when(broken.isValid(Mockito.anyInt())).thenReturn(false);
+        Connection healthy = Mockito.mock(Connection.class);
+        Connection[] connections = {broken, healthy};
+        ConnectionPool pool = new ConnectionPool(
+                () -> connections[opened.getAndIncrement()], 0, 1, 0, 0, 100);
+
+        pool.getConnection().close();
+        pool.getConnection().close();
+
+        Assert.assertEquals(2, opened.get());
+        Mockito.verify(broken).close();
+        pool.close();
+    }
+
+    // A borrower does not open a connection of its own while the pool tops up its last one
+    @Test
+    public void topsUpWithinMaximumSize() throws Exception {
+        CountDownLatch opening = new CountDownLatch(1);
+        CountDownLatch open = new CountDownLatch(1);
+        ConnectionPool pool = new ConnectionPool(() -> {
+            opening.countDown();
+            try {
+                open.await();
+            } catch (InterruptedException e) {
+                throw new SQLException(e);
+            }
+            return newMockConnection();
+        }, 1, 1, 60000, 0, 1000);
+        Assert.assertTrue(opening.await(1, TimeUnit.SECONDS));
+
+        CompletableFuture<Connection> borrowed = CompletableFuture.supplyAsync(() -> {
+            try {
+                return pool.getConnection();
+            } catch (SQLException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        Thread.sleep(50);
+        open.countDown();
+        borrowed.get(1, TimeUnit.SECONDS).close();
+
+        Assert.assertEquals(1, opened.get());
+        pool.close();
+    }
+}
@@ -0,0 +1,116 @@
+package edu.cmu.cc.minisite;
+
+import com.google.gson.JsonObject;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.Mockito.when;
+
+// Class for CredentialIndex tests
+public class CredentialIndexTest {
+
+    private final Connection conn = Mockito.mock(Connection.class);
+    private final ResultSet users = Mockito.mock(ResultSet.class);
+    private ProfileServlet profiles;
+    private CredentialIndex index;
+
+    // Loads alice, and bob who is held by two rows
+    @Before
+    public void setUp() throws SQLException {
+        Statement stmt = Mockito.mock(Statement.class);
+        when(conn.createStatement(anyInt(), anyInt())).thenReturn(stmt);
+        when(stmt.executeQuery(CredentialIndex.ALL_QUERY)).thenReturn(users);
+        when(users.next()).thenReturn(true, true, true, false);
+        when(users.getString("username")).thenReturn("alice", "bob", "bob");
+        when(users.getString("pwd")).thenReturn("secret", "pw", "other");
+        when(users.getString("profile_photo_url")).thenReturn("a.png", "b.png", "b2.png");
+        profiles = new ProfileServlet(conn);
+        index = new CredentialIndex(profiles);
+        Assert.assertTrue(index.refresh());
+    }
+
+    // Releases the connection pool
+    @After
+    public void tearDown() {
+        profiles.closeConnection();
+    }
+
+    // Only exact logins of users held by one row are answered
+    @Test
+    public void answersExactLogins() {
+        JsonObject expected = new JsonObject();
+        expected.addProperty("name", "alice");
+        expected.addProperty("profile", "a.png");
+        Assert.assertEquals(expected, index.login("alice", "secret"));
+
+        Assert.assertNull(index.login("alice", "SECRET"));
+        Assert.assertNull(index.login("bob", "pw"));
+        Assert.assertNull(index.login("carol", "secret"));
+        Assert.assertNull(index.login(null, "secret"));
+    }
+
+    // A changed user is read again
+    @Test
+    public void readsChangedUsers() throws SQLException {
+        PreparedStatement stmt = Mockito.mock(PreparedStatement.class);
+        ResultSet user = Mockito.mock(ResultSet.class);
+        when(conn.prepareStatement(CredentialIndex.USER_QUERY)).thenReturn(stmt);
+        when(stmt.executeQuery()).thenReturn(user);
+        when(user.next()).thenReturn(true, false);
+        when(user.getString("username")).thenReturn("alice");
+        when(user.getString("pwd")).thenReturn("changed");
+        when(user.getString("profile_photo_url")).thenReturn("new.png");
+
+        index.userChanged("alice");
+
+        Assert.assertNull(index.login("alice", "secret"));
+        Assert.assertEquals("new.png",
+                index.login("alice", "changed").get("profile").getAsString());
+    }
+
+    // A table past its maximum age leaves every login to MySQL
+    @Test
+    public void expiresStaleTables() throws SQLException, InterruptedException {
+        when(users.next()).thenReturn(true, false);
+        when(users.getString("username")).thenReturn("alice");
+        when(users.getString("pwd")).thenReturn("secret");
+        when(users.getString("profile_photo_url")).thenReturn("a.png");
+        CredentialIndex expiring = new CredentialIndex(profiles, 1);
+        Assert.assertTrue(expiring.refresh());
+        Thread.sleep(5);
+
+        Assert.assertFalse(expiring.isLoaded());
+        Assert.assertNull(expiring.login("alice", "secret"));
+    }
+
+    // Every user is found among colliding slots
+    @Test
+    public void probesTable() {
+        List<String> names = new ArrayList<>();
+        List<String> urls = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            names.add("user" + i);
+            urls.add(i + ".png");
+        }
+        CredentialIndex.Table table = new CredentialIndex.Table(names, urls,
+                new byte[names.size() * CredentialIndex.DIGEST_BYTES]);
+
+        Assert.assertEquals(1000, table.size());
+        for (int i = 0; i < 1000; i++) {
+            Assert.assertNotNull(table.get("user" + i));
+        }
+        Assert.assertNull(table.get("user1000"));
+    }
+}
@@ -0,0 +1,50 @@
+package edu.cmu.cc.minisite;
+
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonWriter;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Date;
+
+// Class for DocumentJson tests
+public class DocumentJsonTest {
+
+    // A comment with every field type the posts collection uses
+    private final Document comment = new Document("cid", "t1_abc")
+            .append("parent_id", "t3_xyz")
+            .append("uid", "xylo")
+            .append("timestamp", 1420070400L)
+            .append("ups", 42)
+            .append("score", 0.5)
+            .append("content", "<b>quotes \" and é</b>")
+            .append("edited", false)
+            .append("removed", null)
+            .append("created", new Date(1420070400000L))
+            .append("tags", Arrays.asList("a", 1, new Document("n", 2L)))
+            .append("meta", new Document("id", new ObjectId("5a0000000000000000000000")));
+
+    // The Gson tree equals the one parsed from Document.toJson()
+    @Test
+    public void treeMatchesDriverJson() {
+        Assert.assertEquals(JsonParser.parseString(comment.toJson()),
+                DocumentJson.toJsonObject(comment));
+    }
+
+    // The streamed JSON equals the rendering of the parsed Document.toJson()
+    @Test
+    public void streamMatchesDriverJson() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (JsonWriter writer = JsonResponses.newWriter(out)) {
+            DocumentJson.write(writer, comment);
+        }
+
+        Assert.assertEquals(JsonParser.parseString(comment.toJson()).toString(),
+                new String(out.toByteArray(), StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,129 @@
+package edu.cmu.cc.minisite;
+
+import com.google.gson.JsonArray;
+import com.mongodb.client.FindIterable;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoCursor;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.junit.Assert;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.neo4j.driver.v1.Driver;
+import org.neo4j.driver.v1.Record;
+import org.neo4j.driver.v1.Session;
+import org.neo4j.driver.v1.StatementResult;
+import org.neo4j.driver.v1.Value;
+import org.neo4j.driver.v1.Values;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Arrays;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+// Class for the backend entity caches and EntityCacheInvalidator tests
+public class EntityCacheInvalidatorTest {
+
+    // Follower backend whose social graphs have one followee
+    private final FollowerServlet graphs = new FollowerServlet((Driver) null) {
+        @Override
+        public SocialGraph getSocialGraph(String userId) {
+            return new SocialGraph(new JsonArray(), Arrays.asList("followee-" + userId));
+        }
+    };
+
+    private final EntityCacheInvalidator invalidator = new EntityCacheInvalidator(graphs);
+
+    // A profile is read once until the user changes
+    @Test
+    public void cachesProfiles() throws SQLException {
+        Connection conn = Mockito.mock(Connection.class);
+        PreparedStatement stmt = Mockito.mock(PreparedStatement.class);
+        ResultSet rs = Mockito.mock(ResultSet.class);
+        when(conn.prepareStatement(anyString())).thenReturn(stmt);
+        when(stmt.executeQuery()).thenReturn(rs);
+        when(rs.next()).thenReturn(true);
+        when(rs.getString("profile_photo_url")).thenReturn("old.png", "new.png");
+        ProfileServlet profiles = new ProfileServlet(conn);
+
+        Assert.assertEquals("old.png", profiles.getProfile("cached-profile"));
+        Assert.assertEquals("old.png", profiles.getProfile("cached-profile"));
+        verify(stmt, times(1)).executeQuery();
+
+        invalidator.userChanged("cached-profile");
+        Assert.assertEquals("new.png", profiles.getProfile("cached-profile"));
+        profiles.closeConnection();
+    }
+
+    // Followers are read once until a follow changes them, a failed read is not cached
+    @Test
+    public void cachesFollowers() {
+        Driver driver = Mockito.mock(Driver.class);
+        Session session = Mockito.mock(Session.class);
+        StatementResult rs = Mockito.mock(StatementResult.class);
+        Record record = Mockito.mock(Record.class);
+        when(driver.session()).thenThrow(new IllegalStateException("down")).thenReturn(session);
+        when(session.run(anyString(), any(Value.class))).thenReturn(rs);
+        when(rs.hasNext()).thenReturn(true, false, true, false);
+        when(rs.next()).thenReturn(record);
+        when(record.get("url")).thenReturn(Values.value("fan.png"));
+        when(record.get("name")).thenReturn(Values.value("fan"));
+        FollowerServlet followers = new FollowerServlet(driver);
+
+        Assert.assertEquals(0, followers.getFollowers("cached-star").size());
+        Assert.assertEquals(1, followers.getFollowers("cached-star").size());
+        JsonArray cached = followers.getFollowers("cached-star");
+        Assert.assertEquals("fan", cached.get(0).getAsJsonObject().get("name").getAsString());
+        verify(session, times(1)).run(anyString(), any(Value.class));
+
+        invalidator.followChanged("fan", "cached-star");
+        followers.getFollowers("cached-star");
+        verify(session, times(2)).run(anyString(), any(Value.class));
+    }
+
+    // A social graph survives the cache's JSON form
+    @Test
+    public void encodesSocialGraphs() {
+        FollowerServlet.SocialGraph graph = graphs.getSocialGraph("u");
+        FollowerServlet.SocialGraph decoded =
+                FollowerServlet.SocialGraph.fromJson(graph.toJson());
+
+        Assert.assertEquals(graph.getFollowers(), decoded.getFollowers());
+        Assert.assertEquals(graph.getFollowees(), decoded.getFollowees());
+    }
+
+    // An ancestor is fetched once until the comment changes
+    @Test
+    @SuppressWarnings("unchecked")
+    public void cachesComments() {
+        MongoCollection<Document> posts = Mockito.mock(MongoCollection.class);
+        FindIterable<Document> found = Mockito.mock(FindIterable.class);
+        when(posts.find(any(Bson.class))).thenReturn(found);
+        when(found.projection(any(Bson.class))).thenReturn(found);
+        when(found.iterator()).thenAnswer(invocation -> {
+            MongoCursor<Document> cursor = Mockito.mock(MongoCursor.class);
+            when(cursor.hasNext()).thenReturn(true, false);
+            when(cursor.next()).thenReturn(new Document("cid", "cached-parent").append("ups", 7L));
+            return cursor;
+        });
+        HomepageServlet comments = new HomepageServlet(posts);
+        Document reply = new Document("cid", "r").append("parent_id", "cached-parent");
+
+        Assert.assertEquals(7L, comments.withAncestors(reply).get("parent", Document.class)
+                .get("ups"));
+        Assert.assertEquals(7L, comments.withAncestors(reply).get("parent", Document.class)
+                .get("ups"));
+        verify(posts, times(1)).find(any(Bson.class));
+
+        invalidator.commentChanged(new Document("cid", "cached-parent").append("uid", "a"));
+        comments.withAncestors(reply);
+        verify(posts, times(2)).find(any(Bson.class));
+    }
+}
@@ -0,0 +1,97 @@
+package edu.cmu.cc.minisite;
+
+import com.mongodb.MongoClient;
+import com.mongodb.client.FindIterable;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.model.Filters;
+import org.bson.BsonDocument;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.junit.Assert;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+// Class for HomepageServlet tests
+public class HomepageServletTest {
+
+    // Returns a query result over the documents
+    @SuppressWarnings("unchecked")
+    private static FindIterable<Document> found(Document... docs) {
+        FindIterable<Document> found = Mockito.mock(FindIterable.class);
+        when(found.sort(any(Bson.class))).thenReturn(found);
+        when(found.limit(anyInt())).thenReturn(found);
+        when(found.projection(any(Bson.class))).thenReturn(found);
+        when(found.into(any())).thenAnswer(invocation -> {
+            Collection<Document> target = invocation.getArgument(0);
+            target.addAll(Arrays.asList(docs));
+            return target;
+        });
+        when(found.iterator()).thenAnswer(invocation -> {
+            Iterator<Document> rows = Arrays.asList(docs).iterator();
+            MongoCursor<Document> cursor = Mockito.mock(MongoCursor.class);
+            when(cursor.hasNext()).thenAnswer(i -> rows.hasNext());
+            when(cursor.next()).thenAnswer(i -> rows.next());
+            return cursor;
+        });
+        return found;
+    }
+
+    // Renders a filter as the server receives it
+    private static BsonDocument render(Bson filter) {
+        return filter.toBsonDocument(Document.class, MongoClient.getDefaultCodecRegistry());
+    }
+
+    // Ancestors are resolved with one $in per level and embedded as before
+    @Test
+    @SuppressWarnings("unchecked")
+    public void resolvesAncestorsByLevel() {
+        Document withBoth = new Document("cid", "ta-c1").append("parent_id", "ta-p1");
+        Document lostParent = new Document("cid", "ta-c2").append("parent_id", "ta-gone");
+        Document emptyParent = new Document("cid", "ta-c3").append("parent_id", "");
+        Document lostGrandParent = new Document("cid", "ta-c4").append("parent_id", "ta-p2");
+        Document parent = new Document("cid", "ta-p1").append("parent_id", "ta-g1");
+        Document orphan = new Document("cid", "ta-p2").append("parent_id", "ta-lost");
+        Document grandParent = new Document("cid", "ta-g1");
+        FindIterable<Document> top = found(withBoth, lostParent, emptyParent, lostGrandParent);
+        FindIterable<Document> parents = found(parent, orphan);
+        FindIterable<Document> grandParents = found(grandParent);
+        MongoCollection<Document> posts = Mockito.mock(MongoCollection.class);
+        when(posts.find(any(Bson.class))).thenReturn(top, parents, grandParents);
+
+        List<Document> comments = new HomepageServlet(posts)
+                .findTopComments(Arrays.asList("a", "b"), 30);
+
+        ArgumentCaptor<Bson> filters = ArgumentCaptor.forClass(Bson.class);
+        verify(posts, times(3)).find(filters.capture());
+        Assert.assertEquals(render(Filters.in("cid",
+                new HashSet<>(Arrays.asList("ta-p1", "ta-gone", "ta-p2")))),
+                render(filters.getAllValues().get(1)));
+        Assert.assertEquals(render(Filters.in("cid",
+                new HashSet<>(Arrays.asList("ta-g1", "ta-lost")))),
+                render(filters.getAllValues().get(2)));
+
+        // the output of looking up every ancestor on its own
+        Assert.assertEquals(Arrays.asList(
+                new Document(withBoth).append("parent", parent).append("grand_parent", grandParent),
+                lostParent, emptyParent, new Document(lostGrandParent).append("parent", orphan)),
+                comments);
+
+        // a single comment embeds the same ancestors, here from the comment cache
+        Assert.assertEquals(comments.get(0), new HomepageServlet(posts).withAncestors(withBoth));
+        verify(posts, times(3)).find(any(Bson.class));
+    }
+}
@@ -0,0 +1,67 @@
+package edu.cmu.cc.minisite;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A second cache tier held in this process, standing in for a shared tier in
+ * tests. It is unbounded and drops expired entries only when they are read.
+ */
+class InMemoryCacheTier implements CacheTier {
+
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+
+    @Override
+    public byte[] get(String key) {
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            return null;
+        }
+        if (entry.expiresAt != 0 && System.currentTimeMillis() >= entry.expiresAt) {
+            entries.remove(key, entry);
+            return null;
+        }
+        return entry.value;
+    }
+
+    @Override
+    public void put(String key, byte[] value, long ttlMillis) {
+        long expiresAt = ttlMillis > 0 ? System.currentTimeMillis() + ttlMillis : 0;
+        entries.put(key, new Entry(value, expiresAt));
+    }
+
+    @Override
+    public void invalidate(String key) {
+        entries.remove(key);
+    }
+
+    /**
+     * @return number of entries, including expired ones not read since
+     */
+    int size() {
+        return entries.size();
+    }
+
+    @Override
+    public void close() {
+        entries.clear();
+    }
+
+    @Override
+    public String toString() {
+        return "InMemoryCacheTier{size=" + size() + "}";
+    }
+
+    /**
+     * A value and its wall clock expiry, 0 for never.
+     */
+    private static final class Entry {
+
+        final byte[] value;
+        final long expiresAt;
+
+        Entry(byte[] value, long expiresAt) {
+            this.value = value;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
@@ -0,0 +1,29 @@
+package edu.cmu.cc.minisite;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonNull;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+
+// Class for JsonResponses tests
+public class JsonResponsesTest {
+
+    // Streamed JSON is identical to JsonElement.toString()
+    @Test
+    public void matchesToString() {
+        JsonObject json = new JsonObject();
+        json.addProperty("name", "<a href='x'>&amp;</a> é中😀 \"q\" \\  ");
+        json.add("missing", JsonNull.INSTANCE);
+        JsonArray numbers = JsonParser.parseString("[1, 2.50, 1e3, -0, {\"$numberLong\": \"7\"}]")
+                .getAsJsonArray();
+        json.add("numbers", numbers);
+
+        byte[] streamed = JsonResponses.toBytes(json);
+
+        Assert.assertEquals(json.toString(), new String(streamed, StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,73 @@
+package edu.cmu.cc.minisite;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+// Class for Metrics and LatencyHistogram tests
+public class MetricsTest {
+
+    // Every latency falls in a bucket whose bounds hold it
+    @Test
+    public void bucketsCoverAllLatencies() {
+        long[] samples = {0, 1, 15, 16, 17, 31, 32, 1000, 123456789, Long.MAX_VALUE / 1000};
+        for (long micros : samples) {
+            int index = LatencyHistogram.indexOf(micros);
+            Assert.assertTrue(micros + " below its bucket",
+                    LatencyHistogram.lowerBound(index) <= micros);
+            Assert.assertTrue(micros + " above its bucket",
+                    LatencyHistogram.upperBound(index) >= micros);
+        }
+        for (int index = 0; index < 500; index++) {
+            long lowerBound = LatencyHistogram.lowerBound(index);
+            Assert.assertEquals(index, LatencyHistogram.indexOf(lowerBound));
+        }
+    }
+
+    // Quantiles are within the relative error of the buckets
+    @Test
+    public void estimatesQuantiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int millis = 1; millis <= 1000; millis++) {
+            histogram.record(TimeUnit.MILLISECONDS.toNanos(millis));
+        }
+
+        Assert.assertEquals(1000, histogram.count());
+        Assert.assertEquals(500.5, histogram.sumSeconds(), 1e-6);
+        Assert.assertEquals(0.5, histogram.quantileSeconds(0.5),
+                0.5 / LatencyHistogram.SUB_BUCKETS);
+        Assert.assertEquals(0.99, histogram.quantileSeconds(0.99),
+                0.99 / LatencyHistogram.SUB_BUCKETS);
+        Assert.assertEquals(0, new LatencyHistogram().quantileSeconds(0.5), 0);
+    }
+
+    // Timers, counters and gauges are rendered in the Prometheus text format
+    @Test
+    public void rendersPrometheusText() {
+        Metrics.Timer timer = Metrics.timer("test_call", "Test calls", "call=\"x\"");
+        timer.record(System.nanoTime());
+        timer.recordError(System.nanoTime());
+        Assert.assertSame(timer, Metrics.timer("test_call", "Test calls", "call=\"x\""));
+
+        Cache cache = new Cache(1024 * 1024, 0, 1);
+        cache.put("a", "value");
+        cache.get("a");
+        cache.get("b");
+        Metrics.registerCache("test", cache);
+
+        String text = Metrics.render();
+        Assert.assertTrue(text.contains("# TYPE test_call_seconds summary\n"));
+        Assert.assertTrue(text.contains("test_call_seconds{call=\"x\",quantile=\"0.99\"} "));
+        Assert.assertTrue(text.contains("test_call_seconds_count{call=\"x\"} 2\n"));
+        Assert.assertTrue(text.contains("# TYPE test_call_errors_total counter\n"));
+        Assert.assertTrue(text.contains("test_call_errors_total{call=\"x\"} 1\n"));
+        Assert.assertTrue(text.contains(
+                "minisite_cache_requests_total{cache=\"test\",result=\"hit\"} 1\n"));
+        Assert.assertTrue(text.contains("minisite_cache_hit_ratio{cache=\"test\"} 0.5\n"));
+        Assert.assertTrue(text.contains("minisite_cache_entries{cache=\"test\"} 1\n"));
+        // one HELP and TYPE per name
+        Assert.assertEquals(text.indexOf("# TYPE minisite_cache_requests_total"),
+                text.lastIndexOf("# TYPE minisite_cache_requests_total"));
+    }
+}
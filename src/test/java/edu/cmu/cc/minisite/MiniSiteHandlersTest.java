@@ -0,0 +1,161 @@
+package edu.cmu.cc.minisite;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.stream.JsonWriter;
+import com.mongodb.client.MongoCollection;
+import io.undertow.Handlers;
+import io.undertow.Undertow;
+import org.bson.Document;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.neo4j.driver.v1.Driver;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.util.Collections;
+import java.util.List;
+
+// Class for MiniSiteHandlers tests, over stub backends
+public class MiniSiteHandlersTest {
+
+    private Undertow server;
+    private String base;
+
+    @Before
+    public void setUp() {
+        ProfileServlet profile = new ProfileServlet((Connection) null) {
+            @Override
+            JsonObject validateLoginAndReturnResult(String name, String pwd) {
+                JsonObject result = new JsonObject();
+                result.addProperty("name", name);
+                result.addProperty("profile", "url_" + pwd);
+                return result;
+            }
+
+            @Override
+            String loadProfile(String name) {
+                return "url_" + name;
+            }
+        };
+        JsonArray followers = new JsonArray();
+        JsonObject follower = new JsonObject();
+        follower.addProperty("profile", "url_f");
+        follower.addProperty("name", "f");
+        followers.add(follower);
+        FollowerServlet followerServlet = new FollowerServlet((Driver) null) {
+            @Override
+            public JsonArray getFollowers(String id) {
+                return followers;
+            }
+
+            @Override
+            SocialGraph loadSocialGraph(String userId) {
+                return new SocialGraph(followers, Collections.singletonList("e"));
+            }
+
+            @Override
+            void writeFollowers(JsonWriter writer, String id, String after, int limit)
+                    throws IOException {
+                writer.name("followers").beginArray();
+                writeFollower(writer, "f", "url_f");
+                writer.endArray();
+                writeNext(writer, "f");
+            }
+        };
+        HomepageServlet homepage = new HomepageServlet((MongoCollection<Document>) null) {
+            @Override
+            JsonArray loadTopCommentsFromFollowees(List<String> followeeIds, int top) {
+                return new JsonArray();
+            }
+        };
+        MiniSiteHandlers handlers = new MiniSiteHandlers(profile, followerServlet, homepage);
+        server = Undertow.builder()
+                .addHttpListener(0, "127.0.0.1")
+                .setHandler(Handlers.path().addPrefixPath(MiniSite.PATH, handlers.routes()))
+                .build();
+        server.start();
+        InetSocketAddress address = (InetSocketAddress) server.getListenerInfo().get(0).getAddress();
+        base = "http://127.0.0.1:" + address.getPort() + MiniSite.PATH;
+    }
+
+    @After
+    public void tearDown() {
+        server.stop();
+    }
+
+    // Task 1 answers like ProfileServlet
+    @Test
+    public void login() throws IOException {
+        HttpURLConnection conn = open("/task1?id=%C3%A9&pwd=p");
+
+        Assert.assertEquals(200, conn.getResponseCode());
+        Assert.assertEquals(JsonResponses.CONTENT_TYPE_HEADER, conn.getContentType());
+        Assert.assertEquals("{\"name\":\"é\",\"profile\":\"url_p\"}", body(conn));
+    }
+
+    // Task 4 sends the timeline built by the fan-out
+    @Test
+    public void timeline() throws IOException {
+        HttpURLConnection conn = open("/task4?id=u");
+
+        Assert.assertEquals(200, conn.getResponseCode());
+        Assert.assertEquals("{\"followers\":[{\"profile\":\"url_f\",\"name\":\"f\"}],"
+                + "\"comments\":[],\"profile\":\"url_u\",\"name\":\"u\"}", body(conn));
+    }
+
+    // Task 5 reports a miss for a user that is not cached
+    @Test
+    public void cachedTimelineMiss() throws IOException {
+        HttpURLConnection conn = open("/task5?id=not_a_top_user");
+
+        Assert.assertEquals(200, conn.getResponseCode());
+        Assert.assertEquals("false", conn.getHeaderField("CacheHit"));
+        Assert.assertTrue(body(conn).endsWith("\"name\":\"not_a_top_user\"}"));
+    }
+
+    // Task 2 streams a page of followers, and rejects an invalid page
+    @Test
+    public void followerPages() throws IOException {
+        HttpURLConnection conn = open("/task2?id=u&limit=1");
+
+        Assert.assertEquals(200, conn.getResponseCode());
+        Assert.assertEquals("{\"followers\":[{\"profile\":\"url_f\",\"name\":\"f\"}],"
+                + "\"next\":\"" + PageRequest.encode(new Document("f", "f")) + "\"}", body(conn));
+
+        Assert.assertEquals(400, open("/task2?id=u&limit=0").getResponseCode());
+        Assert.assertEquals(400, open("/task2?id=u&cursor=%25").getResponseCode());
+    }
+
+    // Only GET is served, as with the servlets
+    @Test
+    public void rejectsOtherMethods() throws IOException {
+        HttpURLConnection conn = open("/task1");
+        conn.setRequestMethod("POST");
+
+        Assert.assertEquals(405, conn.getResponseCode());
+    }
+
+    private HttpURLConnection open(String path) throws IOException {
+        return (HttpURLConnection) new URL(base + path).openConnection();
+    }
+
+    private static String body(HttpURLConnection conn) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (InputStream in = conn.getInputStream()) {
+            byte[] buffer = new byte[4096];
+            for (int n; (n = in.read(buffer)) > 0; ) {
+                out.write(buffer, 0, n);
+            }
+        }
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,230 @@
+package edu.cmu.cc.minisite;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonWriter;
+import com.mongodb.MongoClient;
+import com.mongodb.MongoException;
+import com.mongodb.client.FindIterable;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.model.Filters;
+import org.bson.BsonDocument;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.bson.types.ObjectId;
+import org.junit.Assert;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+import org.neo4j.driver.v1.Driver;
+import org.neo4j.driver.v1.Record;
+import org.neo4j.driver.v1.Session;
+import org.neo4j.driver.v1.StatementResult;
+import org.neo4j.driver.v1.Value;
+import org.neo4j.driver.v1.Values;
+import org.neo4j.driver.v1.exceptions.ServiceUnavailableException;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.Arrays;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+// Class for PageRequest and for comment and follower page tests
+public class PageRequestTest {
+
+    // Requests without page parameters get the whole list, bad pages are rejected
+    @Test
+    public void parsesPages() {
+        Assert.assertNull(PageRequest.parse(null, null, null));
+        Assert.assertNull(PageRequest.parse(null, null, "false"));
+        Assert.assertEquals(10, PageRequest.parse("10", null, null).limit);
+        Assert.assertEquals(0, PageRequest.parse("10", null, "true").limit);
+
+        String cursor = PageRequest.encode(new Document("f", "bob"));
+        PageRequest page = PageRequest.parse(null, cursor, null);
+        Assert.assertEquals(PageRequest.DEFAULT_LIMIT, page.limit);
+        Assert.assertEquals("bob", page.after("f", String.class));
+
+        for (String limit : new String[] {"0", "-1", "x", "" + (PageRequest.MAX_LIMIT + 1)}) {
+            try {
+                PageRequest.parse(limit, null, null);
+                Assert.fail(limit);
+            } catch (IllegalArgumentException expected) {
+                // rejected
+            }
+        }
+        try {
+            PageRequest.parse("10", "not a cursor!", null).after("f", String.class);
+            Assert.fail();
+        } catch (IllegalArgumentException expected) {
+            // rejected
+        }
+        try {
+            page.after("n", Integer.class);
+            Assert.fail();
+        } catch (IllegalArgumentException expected) {
+            // a cursor of followers is no cursor of comments
+        }
+    }
+
+    // Comments with equal ups and timestamp are split across pages by _id
+    @Test
+    @SuppressWarnings("unchecked")
+    public void pagesCommentsWithTies() throws IOException {
+        MongoCollection<Document> posts = Mockito.mock(MongoCollection.class);
+        FindIterable<Document> found = Mockito.mock(FindIterable.class);
+        when(posts.find(any(Bson.class))).thenReturn(found);
+        when(found.sort(any(Bson.class))).thenReturn(found);
+        when(found.limit(anyInt())).thenReturn(found);
+        HomepageServlet comments = new HomepageServlet(posts);
+
+        ObjectId firstId = new ObjectId();
+        ObjectId secondId = new ObjectId();
+        ObjectId thirdId = new ObjectId();
+        Document first = comment(firstId, "a", 5, 9L);
+        Document second = comment(secondId, "b", 3, 7L);
+        Document third = comment(thirdId, "c", 3, 7L);
+        PageRequest page = new PageRequest(null, 2);
+        JsonObject body = page(comments, page, first, second, third);
+        Assert.assertEquals(2, body.getAsJsonArray("comments").size());
+        Assert.assertNull(body.getAsJsonArray("comments").get(0).getAsJsonObject().get("_id"));
+        verify(found).sort(new Document("ups", -1).append("timestamp", -1).append("_id", -1));
+        verify(found).limit(3);
+
+        // the next page starts right after the key of the last comment
+        PageRequest next = PageRequest.parse("2", body.get("next").getAsString(), null);
+        Assert.assertEquals(secondId, next.after("_id", ObjectId.class));
+        body = page(comments, next, third);
+        Assert.assertEquals("c", body.getAsJsonArray("comments").get(0).getAsJsonObject()
+                .get("cid").getAsString());
+        Assert.assertNull(body.get("next"));
+        ArgumentCaptor<Bson> filters = ArgumentCaptor.forClass(Bson.class);
+        verify(posts, Mockito.times(2)).find(filters.capture());
+        Assert.assertEquals(render(Filters.and(Filters.eq("uid", "u"), Filters.or(
+                Filters.lt("ups", 3),
+                Filters.and(Filters.eq("ups", 3), Filters.lt("timestamp", 7L)),
+                Filters.and(Filters.eq("ups", 3), Filters.eq("timestamp", 7L),
+                        Filters.lt("_id", secondId))))),
+                render(filters.getAllValues().get(1)));
+
+        // a cursor without the tiebreaker is rejected
+        try {
+            comments.findUserComments("u", new PageRequest(new Document("ups", 3)
+                    .append("timestamp", 7L).append("n", 1), 2));
+            Assert.fail();
+        } catch (IllegalArgumentException expected) {
+            // rejected
+        }
+    }
+
+    // A page failing half way tells the client where to resume
+    @Test
+    @SuppressWarnings("unchecked")
+    public void resumesFailedPages() throws IOException {
+        HomepageServlet comments = new HomepageServlet((MongoCollection<Document>) null);
+        ObjectId firstId = new ObjectId();
+        MongoCursor<Document> cursor = Mockito.mock(MongoCursor.class);
+        when(cursor.hasNext()).thenReturn(true).thenThrow(new MongoException("down"));
+        when(cursor.next()).thenReturn(comment(firstId, "a", 5, 9L));
+
+        JsonObject body = write(comments, cursor, new PageRequest(null, 10));
+        Assert.assertEquals(1, body.getAsJsonArray("comments").size());
+        Assert.assertEquals("Internal server error.", body.get("error").getAsString());
+        PageRequest next = PageRequest.parse("10", body.get("next").getAsString(), null);
+        Assert.assertEquals(firstId, next.after("_id", ObjectId.class));
+
+        // a page failing before its first comment resumes at itself
+        cursor = Mockito.mock(MongoCursor.class);
+        when(cursor.hasNext()).thenThrow(new MongoException("down"));
+        body = write(comments, cursor, next);
+        Assert.assertEquals(0, body.getAsJsonArray("comments").size());
+        Assert.assertEquals(PageRequest.encode(next.after), body.get("next").getAsString());
+    }
+
+    // A page of followers failing half way tells the client where to resume
+    @Test
+    public void resumesFailedFollowerPages() throws IOException {
+        Driver driver = Mockito.mock(Driver.class);
+        Session session = Mockito.mock(Session.class);
+        StatementResult rs = Mockito.mock(StatementResult.class);
+        Record fan = Mockito.mock(Record.class);
+        when(driver.session()).thenReturn(session);
+        when(session.run(anyString(), any(Value.class))).thenReturn(rs);
+        when(rs.hasNext()).thenReturn(true).thenThrow(new ServiceUnavailableException("down"));
+        when(rs.next()).thenReturn(fan);
+        when(fan.get("name")).thenReturn(Values.value("fan"));
+        when(fan.get("url")).thenReturn(Values.value("fan.png"));
+        FollowerServlet followers = new FollowerServlet(driver);
+
+        JsonObject body = writeFollowers(followers, null);
+        Assert.assertEquals(1, body.getAsJsonArray("followers").size());
+        Assert.assertEquals("Internal server error.", body.get("error").getAsString());
+        Assert.assertEquals(PageRequest.encode(new Document("f", "fan")),
+                body.get("next").getAsString());
+
+        // a page failing before its first follower resumes at itself
+        StatementResult failing = Mockito.mock(StatementResult.class);
+        when(failing.hasNext()).thenThrow(new ServiceUnavailableException("down"));
+        when(session.run(anyString(), any(Value.class))).thenReturn(failing);
+        body = writeFollowers(followers, "fan");
+        Assert.assertEquals(0, body.getAsJsonArray("followers").size());
+        Assert.assertEquals("Internal server error.", body.get("error").getAsString());
+        Assert.assertEquals(PageRequest.encode(new Document("f", "fan")),
+                body.get("next").getAsString());
+    }
+
+    // Writes a page of ten followers of u
+    private static JsonObject writeFollowers(FollowerServlet followers, String after)
+            throws IOException {
+        StringWriter out = new StringWriter();
+        try (JsonWriter writer = new JsonWriter(out)) {
+            writer.beginObject();
+            followers.writeFollowers(writer, "u", after, 10);
+            writer.endObject();
+        }
+        return JsonParser.parseString(out.toString()).getAsJsonObject();
+    }
+
+    // Returns a comment with its key
+    private static Document comment(ObjectId id, String cid, int ups, long timestamp) {
+        return new Document("_id", id).append("cid", cid).append("ups", ups)
+                .append("timestamp", timestamp);
+    }
+
+    // Renders a filter as the server receives it
+    private static BsonDocument render(Bson filter) {
+        return filter.toBsonDocument(Document.class, MongoClient.getDefaultCodecRegistry());
+    }
+
+    // Writes the page of comments a cursor over the rows returns
+    @SuppressWarnings("unchecked")
+    private static JsonObject page(HomepageServlet comments, PageRequest page, Document... rows)
+            throws IOException {
+        MongoCursor<Document> cursor = Mockito.mock(MongoCursor.class);
+        Boolean[] more = new Boolean[rows.length];
+        Arrays.fill(more, true);
+        more[rows.length - 1] = false;
+        when(cursor.hasNext()).thenReturn(true, more);
+        when(cursor.next()).thenReturn(rows[0], Arrays.copyOfRange(rows, 1, rows.length));
+        comments.findUserComments("u", page);
+        return write(comments, cursor, page);
+    }
+
+    // Writes a page of comments from a cursor
+    private static JsonObject write(HomepageServlet comments, MongoCursor<Document> cursor,
+            PageRequest page) throws IOException {
+        StringWriter out = new StringWriter();
+        try (JsonWriter writer = new JsonWriter(out)) {
+            writer.beginObject();
+            comments.writeComments(writer, cursor, "u", page);
+            writer.endObject();
+        }
+        return JsonParser.parseString(out.toString()).getAsJsonObject();
+    }
+}
@@ -106,4 +106,17 @@ public class ProfileServletTest {
         Mockito.verify(mockConnection, Mockito.atLeastOnce()).prepareStatement(anyString());
         Mockito.verify(preparedMockStatement, Mockito.atLeastOnce()).executeQuery();
     }
+
+    // Test that a user without a photo gets "#" as the batch lookup gives
+    @Test
+    public void loadsMissingPhotoAsHash() throws Exception {
+        when(mockResultSet.next()).thenReturn(true).thenReturn(false);
+        when(mockResultSet.getString("profile_photo_url")).thenReturn(null);
+        ProfileServlet.invalidateProfile("nophoto");
+
+        ProfileServlet profileServlet = new ProfileServlet(mockConnection);
+
+        Assert.assertEquals("#", profileServlet.loadProfile("nophoto"));
+        ProfileServlet.invalidateProfile("nophoto");
+    }
 }
@@ -0,0 +1,108 @@
+package edu.cmu.cc.minisite;
+
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.junit.Assert;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.neo4j.driver.v1.Driver;
+import org.neo4j.driver.v1.summary.Plan;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.when;
+
+// Class for SchemaManager tests
+public class SchemaManagerTest {
+
+    // Returns a MongoDB explain result whose winning plan is the given stages
+    private static Document explain(String stage, String inputStage) {
+        return new Document("queryPlanner", new Document("winningPlan",
+                new Document("stage", stage).append("inputStage",
+                        new Document("stage", inputStage)))
+                .append("rejectedPlans",
+                        Collections.singletonList(new Document("stage", "COLLSCAN"))));
+    }
+
+    // Returns a Neo4j plan operator over the given children
+    private static Plan plan(String operator, Plan... children) {
+        Plan plan = Mockito.mock(Plan.class);
+        when(plan.operatorType()).thenReturn(operator);
+        Mockito.<List<? extends Plan>>when(plan.children()).thenReturn(Arrays.asList(children));
+        return plan;
+    }
+
+    // Only a collection scan in the winning plan counts
+    @Test
+    public void detectsMongoScans() {
+        Assert.assertFalse(SchemaManager.mongoScans(explain("FETCH", "IXSCAN")));
+        Assert.assertTrue(SchemaManager.mongoScans(explain("SORT", "COLLSCAN")));
+        Assert.assertFalse(SchemaManager.mongoScans(new Document("ok", 1)));
+    }
+
+    // Label and all-nodes scans are found anywhere in a plan
+    @Test
+    public void detectsNeo4jScans() {
+        Assert.assertNull(SchemaManager.neo4jScan(plan("ProduceResults",
+                plan("Expand(All)", plan("NodeIndexSeek")))));
+        Assert.assertEquals("NodeByLabelScan", SchemaManager.neo4jScan(plan("ProduceResults",
+                plan("Filter", plan("NodeByLabelScan")))));
+        Assert.assertTrue(SchemaManager.mySqlScans("ALL"));
+        Assert.assertFalse(SchemaManager.mySqlScans("ref"));
+    }
+
+    // An index counts only if it starts with the columns, in order
+    @Test
+    public void findsCoveringIndex() throws SQLException {
+        Connection conn = Mockito.mock(Connection.class);
+        Statement stmt = Mockito.mock(Statement.class);
+        ResultSet rs = Mockito.mock(ResultSet.class);
+        when(conn.createStatement()).thenReturn(stmt);
+        when(stmt.executeQuery(anyString())).thenReturn(rs);
+        when(rs.next()).thenReturn(true, true, true, true, false);
+        when(rs.getString("Key_name")).thenReturn("user_index", "other", "other", "other");
+        when(rs.getString("Column_name"))
+                .thenReturn("username", "username", "pwd", "profile_photo_url");
+
+        Assert.assertTrue(SchemaManager.hasIndex(conn, "users",
+                SchemaManager.MYSQL_INDEX_COLUMNS));
+    }
+
+    // A hot query that scans fails the check, backends that cannot be explained are skipped
+    @Test
+    public void failsOnScans() throws SQLException {
+        MongoDatabase database = Mockito.mock(MongoDatabase.class);
+        when(database.runCommand(any(Bson.class))).thenReturn(explain("FETCH", "IXSCAN"))
+                .thenReturn(explain("SORT", "COLLSCAN")).thenReturn(explain("FETCH", "IXSCAN"));
+        @SuppressWarnings("unchecked")
+        HomepageServlet comments = new HomepageServlet(Mockito.mock(MongoCollection.class)) {
+            @Override
+            MongoDatabase database() {
+                return database;
+            }
+        };
+        Connection conn = Mockito.mock(Connection.class);
+        when(conn.prepareStatement(anyString())).thenThrow(new SQLException("down"));
+        Driver driver = Mockito.mock(Driver.class);
+        when(driver.session()).thenThrow(new IllegalStateException("down"));
+        SchemaManager schema = new SchemaManager(new ProfileServlet(conn),
+                new FollowerServlet(driver), comments);
+
+        try {
+            schema.verify(true);
+            Assert.fail("The scan was not reported");
+        } catch (IllegalStateException e) {
+            Assert.assertTrue(e.getMessage().contains("mongo top_comments"));
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package edu.cmu.cc.minisite;
+
+import io.undertow.Undertow;
+import io.undertow.server.handlers.ResponseCodeHandler;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+
+// Class for ServerConfig tests, settings are given as system properties
+public class ServerConfigTest {
+
+    private static final String[] SETTINGS = {"SERVER_PORT", "SERVER_HOST",
+        "SERVER_IO_THREADS", "SERVER_WORKER_THREADS", "SERVER_HTTP2", "SERVER_BACKLOG",
+        "SERVER_HTTP2_PORT"};
+
+    @After
+    public void tearDown() {
+        for (String setting : SETTINGS) {
+            System.clearProperty(setting);
+        }
+    }
+
+    // Unset settings take Undertow's defaults
+    @Test
+    public void defaults() {
+        ServerConfig config = new ServerConfig();
+
+        Assert.assertEquals(8080, config.port);
+        Assert.assertEquals(Math.max(Runtime.getRuntime().availableProcessors(), 2),
+                config.ioThreads);
+        Assert.assertEquals(config.ioThreads * 8, config.workerThreads);
+        Assert.assertFalse(config.http2);
+        Assert.assertEquals(ServerConfig.DISABLED, config.http2Port);
+    }
+
+    // Configured settings are used and the server starts with them
+    @Test
+    public void configured() throws IOException {
+        System.setProperty("SERVER_PORT", "0");
+        System.setProperty("SERVER_HOST", "127.0.0.1");
+        System.setProperty("SERVER_IO_THREADS", "3");
+        System.setProperty("SERVER_HTTP2", "on");
+        System.setProperty("SERVER_BACKLOG", "64");
+
+        ServerConfig config = new ServerConfig();
+        Assert.assertEquals(3, config.ioThreads);
+        Assert.assertEquals(24, config.workerThreads);
+        Assert.assertTrue(config.http2);
+        Assert.assertTrue(config.toString().contains("backlog=64"));
+
+        Undertow server = config.build(ResponseCodeHandler.HANDLE_404);
+        server.start();
+        try {
+            InetSocketAddress address =
+                    (InetSocketAddress) server.getListenerInfo().get(0).getAddress();
+            HttpURLConnection conn = (HttpURLConnection) new URL(
+                    "http://127.0.0.1:" + address.getPort() + "/").openConnection();
+            Assert.assertEquals(404, conn.getResponseCode());
+        } finally {
+            server.stop();
+        }
+    }
+
+    // Nonsense values fail at boot instead of being ignored
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsInvalidSettings() {
+        System.setProperty("SERVER_WORKER_THREADS", "0");
+        new ServerConfig();
+    }
+
+    // The HTTP/2 listener needs a key store
+    @Test(expected = IllegalArgumentException.class)
+    public void http2PortNeedsKeyStore() {
+        System.setProperty("SERVER_HTTP2_PORT", "8443");
+        new ServerConfig();
+    }
+}
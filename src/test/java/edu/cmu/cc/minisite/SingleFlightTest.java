@@ -0,0 +1,71 @@
+package edu.cmu.cc.minisite;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Class for SingleFlight tests
+public class SingleFlightTest {
+
+    // Concurrent loads of one key run the loader once and share its result
+    @Test
+    public void coalescesConcurrentLoads() throws Exception {
+        SingleFlight<String, String> flight = new SingleFlight<>();
+        AtomicInteger calls = new AtomicInteger();
+        CountDownLatch release = new CountDownLatch(1);
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<String>> results = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                results.add(pool.submit(() -> flight.load("id", () -> {
+                    calls.incrementAndGet();
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    return "timeline";
+                })));
+            }
+            // wait until every caller is either loading or waiting
+            while (flight.loadCount() + flight.coalescedCount() < 8) {
+                Thread.sleep(1);
+            }
+            release.countDown();
+            for (Future<String> result : results) {
+                Assert.assertEquals("timeline", result.get(5, TimeUnit.SECONDS));
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+
+        Assert.assertEquals(1, calls.get());
+        Assert.assertEquals(7, flight.coalescedCount());
+        Assert.assertEquals(0, flight.inFlightCount());
+    }
+
+    // A failed load is not remembered
+    @Test
+    public void forgetsFailedLoads() {
+        SingleFlight<String, String> flight = new SingleFlight<>();
+        try {
+            flight.load("id", () -> {
+                throw new IllegalStateException("backend down");
+            });
+            Assert.fail("the loader's exception must be rethrown");
+        } catch (IllegalStateException expected) {
+            // expected
+        }
+
+        Assert.assertEquals("timeline", flight.load("id", () -> "timeline"));
+        Assert.assertEquals(2, flight.loadCount());
+    }
+}
@@ -0,0 +1,118 @@
+package edu.cmu.cc.minisite;
+
+import com.google.gson.JsonArray;
+import com.google.gson.stream.JsonWriter;
+import org.bson.Document;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.Collections;
+
+// Class for SocialGraphIndex tests
+public class SocialGraphIndexTest {
+
+    // Users with their profile URLs, and who follows whom
+    private static final String USERS = "carol,c.png\nalice,a.png\nbob,b.png\n\ndave,d.png\n";
+    private static final String FOLLOWS = "carol,alice\nbob,alice\ndave,alice\nalice,bob\n"
+            + "alice,carol\nerin,carol\n";
+
+    private SocialGraphIndex index;
+
+    // Loads the graph from the CSV export
+    @Before
+    public void setUp() {
+        index = new SocialGraphIndex(null);
+        Assert.assertTrue(index.refresh(() -> SocialGraphIndex.loadCsv(
+                new StringReader(USERS), new StringReader(FOLLOWS))));
+    }
+
+    // Returns the names of followers as the servlet formats them
+    private static String names(JsonArray followers) {
+        StringBuilder names = new StringBuilder();
+        followers.forEach(f -> names.append(f.getAsJsonObject().get("name").getAsString())
+                .append(' '));
+        return names.toString().trim();
+    }
+
+    // Both directions are served sorted by name, with the profile URLs
+    @Test
+    public void servesSortedRows() {
+        JsonArray followers = index.followers("alice");
+        Assert.assertEquals("bob carol dave", names(followers));
+        Assert.assertEquals("b.png",
+                followers.get(0).getAsJsonObject().get("profile").getAsString());
+        Assert.assertEquals(Arrays.asList("bob", "carol"), index.followees("alice"));
+        Assert.assertEquals(3, index.followerCount("alice"));
+        Assert.assertEquals("alice erin", names(index.followers("carol")));
+        Assert.assertEquals(Collections.singletonList("alice"), index.followees("bob"));
+        Assert.assertNull(index.followers("zed"));
+        Assert.assertEquals(-1, index.followerCount("zed"));
+    }
+
+    // Pages of followers start after the cursor's name, known to the graph or not
+    @Test
+    public void pagesFollowers() throws IOException {
+        Assert.assertEquals("{\"followers\":[{\"profile\":\"b.png\",\"name\":\"bob\"}],"
+                + "\"next\":\"" + PageRequest.encode(new Document("f", "bob")) + "\"}",
+                page("alice", null, 1));
+        Assert.assertEquals("{\"followers\":[{\"profile\":\"c.png\",\"name\":\"carol\"},"
+                + "{\"profile\":\"d.png\",\"name\":\"dave\"}]}", page("alice", "bob", 0));
+        Assert.assertEquals("{\"followers\":[{\"profile\":\"d.png\",\"name\":\"dave\"}]}",
+                page("alice", "cat", 5));
+        Assert.assertEquals("{}", page("zed", null, 5));
+    }
+
+    // Writes a page of followers into an object
+    private String page(String name, String after, int limit) throws IOException {
+        StringWriter out = new StringWriter();
+        try (JsonWriter writer = new JsonWriter(out)) {
+            writer.beginObject();
+            index.writeFollowers(writer, name, after, limit);
+            writer.endObject();
+        }
+        return out.toString();
+    }
+
+    // New follows are merged into the rows, unknown users are left to Neo4j
+    @Test
+    public void addsFollows() throws IOException {
+        index.followChanged("bob", "carol");
+        index.followChanged("bob", "carol");
+        Assert.assertEquals("alice bob erin", names(index.followers("carol")));
+        Assert.assertEquals(Arrays.asList("alice", "carol"), index.followees("bob"));
+        Assert.assertEquals(3, index.followerCount("carol"));
+        Assert.assertEquals("{\"followers\":[{\"profile\":\"b.png\",\"name\":\"bob\"}],"
+                + "\"next\":\"" + PageRequest.encode(new Document("f", "bob")) + "\"}",
+                page("carol", "alice", 1));
+        Assert.assertEquals("{\"followers\":[]}", page("carol", "erin", 1));
+
+        index.followChanged("newcomer", "dave");
+        Assert.assertNull(index.followers("dave"));
+        Assert.assertNotNull(index.followers("alice"));
+
+        // a profile change is in the followers of everyone the user follows
+        index.userChanged("alice");
+        Assert.assertNull(index.followers("bob"));
+        Assert.assertNull(index.followers("carol"));
+    }
+
+    // Follows reported during a reload survive it, a failed reload keeps the graph
+    @Test
+    public void replaysFollowsDuringReload() {
+        Assert.assertTrue(index.refresh(() -> {
+            index.followChanged("dave", "bob");
+            return SocialGraphIndex.loadCsv(new StringReader(USERS), new StringReader(FOLLOWS));
+        }));
+        Assert.assertEquals("alice dave", names(index.followers("bob")));
+
+        Assert.assertFalse(index.refresh(() -> {
+            throw new IOException("gone");
+        }));
+        Assert.assertEquals("alice dave", names(index.followers("bob")));
+    }
+}
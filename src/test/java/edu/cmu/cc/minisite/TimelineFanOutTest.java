@@ -0,0 +1,95 @@
+package edu.cmu.cc.minisite;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.mongodb.MongoException;
+import com.mongodb.client.MongoCollection;
+import org.bson.Document;
+import org.junit.Assert;
+import org.junit.Test;
+import org.neo4j.driver.v1.Driver;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+// Class for TimelineFanOut tests, over stub backends
+public class TimelineFanOutTest {
+
+    // Builds a fan-out whose legs fail as asked
+    private static TimelineFanOut fanOut(boolean graphFails, boolean commentsFail,
+            boolean profileFails) {
+        ProfileServlet profile = new ProfileServlet((Connection) null) {
+            @Override
+            String loadProfile(String name) {
+                if (profileFails) {
+                    throw new IllegalStateException("down", new SQLException());
+                }
+                return "url_" + name;
+            }
+        };
+        FollowerServlet followers = new FollowerServlet((Driver) null) {
+            @Override
+            SocialGraph loadSocialGraph(String userId) {
+                if (graphFails) {
+                    throw new IllegalStateException("down");
+                }
+                JsonArray fans = new JsonArray();
+                JsonObject fan = new JsonObject();
+                fan.addProperty("profile", "url_f");
+                fan.addProperty("name", "f");
+                fans.add(fan);
+                return new SocialGraph(fans, Collections.singletonList("e"));
+            }
+        };
+        HomepageServlet comments = new HomepageServlet((MongoCollection<Document>) null) {
+            @Override
+            JsonArray loadTopCommentsFromFollowees(List<String> followeeIds, int top) {
+                if (commentsFail) {
+                    throw new MongoException("down");
+                }
+                return new JsonArray();
+            }
+        };
+        return new TimelineFanOut(profile, followers, comments);
+    }
+
+    // A timeline whose legs all succeed is complete
+    @Test
+    public void completeTimeline() {
+        TimelineFanOut.Timeline timeline = fanOut(false, false, false).getTimeline("u");
+
+        Assert.assertTrue(timeline.complete);
+        Assert.assertEquals("url_u", timeline.json.get("profile").getAsString());
+        Assert.assertEquals(1, timeline.json.getAsJsonArray("followers").size());
+    }
+
+    // A failing leg contributes its fallback and makes the timeline incomplete
+    @Test
+    public void failingLegs() {
+        TimelineFanOut.Timeline noGraph = fanOut(true, false, false).getTimeline("u");
+        Assert.assertFalse(noGraph.complete);
+        Assert.assertEquals(0, noGraph.json.getAsJsonArray("followers").size());
+        Assert.assertEquals("url_u", noGraph.json.get("profile").getAsString());
+
+        TimelineFanOut.Timeline noComments = fanOut(false, true, false).getTimeline("u");
+        Assert.assertFalse(noComments.complete);
+        Assert.assertEquals(0, noComments.json.getAsJsonArray("comments").size());
+
+        TimelineFanOut.Timeline noProfile = fanOut(false, false, true).getTimeline("u");
+        Assert.assertFalse(noProfile.complete);
+        Assert.assertEquals("#", noProfile.json.get("profile").getAsString());
+    }
+
+    // A leg still running at its deadline completes with null
+    @Test
+    public void timesOutLegs() {
+        CompletableFuture<String> never = new CompletableFuture<>();
+        Assert.assertNull(TimelineFanOut.withTimeout(never, 20).join());
+
+        CompletableFuture<String> done = CompletableFuture.completedFuture("x");
+        Assert.assertEquals("x", TimelineFanOut.withTimeout(done, 20).join());
+    }
+}
@@ -0,0 +1,170 @@
+package edu.cmu.cc.minisite;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.mongodb.MongoException;
+import com.mongodb.client.FindIterable;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.UpdateOptions;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+import org.neo4j.driver.v1.Driver;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+// Class for TimelineMaterializer tests
+public class TimelineMaterializerTest {
+
+    // Materialized timelines collection
+    @SuppressWarnings("unchecked")
+    private final MongoCollection<Document> timelines = Mockito.mock(MongoCollection.class);
+    @SuppressWarnings("unchecked")
+    private final FindIterable<Document> found = Mockito.mock(FindIterable.class);
+
+    // Number of times the comments were computed from the followees
+    private int computed;
+
+    // Comments backend computing two comments, one of them a reply
+    @SuppressWarnings("unchecked")
+    private final HomepageServlet comments =
+            new HomepageServlet((MongoCollection<Document>) Mockito.mock(MongoCollection.class)) {
+                @Override
+                List<Document> findTopComments(List<String> followeeIds, int limit) {
+                    computed++;
+                    return Arrays.asList(reply("c1", 9), new Document("cid", "c2"));
+                }
+            };
+
+    private final FollowerServlet followers = new FollowerServlet((Driver) null) {
+        @Override
+        public JsonArray getFollowers(String id) {
+            JsonArray result = new JsonArray();
+            JsonObject follower = new JsonObject();
+            follower.addProperty("name", "fan");
+            result.add(follower);
+            return result;
+        }
+    };
+
+    private TimelineMaterializer materializer;
+
+    // Returns a reply with its parent embedded
+    private static Document reply(String cid, int ups) {
+        return new Document("cid", cid).append("ups", ups).append("parent_id", "p")
+                .append("parent", new Document("cid", "p"));
+    }
+
+    // Sets up a materializer over the mocked collection
+    @Before
+    public void setUp() {
+        when(timelines.find(any(Bson.class))).thenReturn(found);
+        materializer = new TimelineMaterializer(timelines, comments, followers, 60000);
+    }
+
+    // Only the replies among the first comments are on a timeline, with their ancestors
+    @Test
+    public void convertsTopComments() {
+        List<Document> top = new ArrayList<>(Arrays.asList(
+                reply("a", 3), new Document("cid", "b").append("parent_id", ""), reply("c", 1)));
+
+        JsonArray all = HomepageServlet.toTimelineComments(top, 30);
+        Assert.assertEquals(2, all.size());
+        Assert.assertEquals("p", all.get(0).getAsJsonObject()
+                .getAsJsonObject("parent").get("cid").getAsString());
+
+        Assert.assertEquals(1, HomepageServlet.toTimelineComments(top, 2).size());
+    }
+
+    // A fresh materialized timeline is served without computing the comments
+    @Test
+    public void readsMaterializedTimeline() {
+        when(found.first()).thenReturn(new Document("_id", "u").append("builtAt", new Date())
+                .append("comments", Collections.singletonList(reply("c1", 1))));
+
+        JsonArray result = materializer.getTopComments("u", Arrays.asList("f"), 30);
+
+        Assert.assertEquals(1, result.size());
+        Assert.assertEquals(0, computed);
+    }
+
+    // A missing or old timeline is computed and stored
+    @Test
+    public void materializesOnRead() {
+        when(found.first()).thenReturn(null).thenReturn(new Document("_id", "u")
+                .append("builtAt", new Date(0)).append("comments", new ArrayList<>()));
+
+        Assert.assertEquals(1, materializer.getTopComments("u", Arrays.asList("f"), 30).size());
+        Assert.assertEquals(1, materializer.getTopComments("u", Arrays.asList("f"), 30).size());
+
+        Assert.assertEquals(2, computed);
+        verify(timelines, times(2)).replaceOne(any(Bson.class), any(Document.class),
+                any(UpdateOptions.class));
+    }
+
+    // A comment replaces its previous version in the timelines of the author's followers
+    @Test
+    public void pushesChangedComments() {
+        HomepageServlet ancestors = Mockito.spy(comments);
+        Mockito.doAnswer(invocation -> invocation.getArgument(0))
+                .when(ancestors).withAncestors(any(Document.class));
+        materializer = new TimelineMaterializer(timelines, ancestors, followers, 60000);
+
+        materializer.commentChanged(new Document("_id", 1).append("cid", "c9")
+                .append("uid", "author").append("ups", 5));
+
+        verify(timelines, times(2)).updateMany(any(Bson.class), any(Bson.class));
+        verify(timelines, never()).deleteMany(any(Bson.class));
+        verify(ancestors).withAncestors(eq(new Document("cid", "c9").append("uid", "author")
+                .append("ups", 5)));
+    }
+
+    // The followers are updated in batches, a batch that fails is dropped for a rebuild
+    @Test
+    public void batchesFollowerUpdates() {
+        FollowerServlet fans = new FollowerServlet((Driver) null) {
+            @Override
+            public JsonArray getFollowers(String id) {
+                JsonArray result = new JsonArray();
+                for (String name : new String[] {"f1", "f2", "f3"}) {
+                    JsonObject follower = new JsonObject();
+                    follower.addProperty("name", name);
+                    result.add(follower);
+                }
+                return result;
+            }
+        };
+        HomepageServlet ancestors = Mockito.spy(comments);
+        Mockito.doAnswer(invocation -> invocation.getArgument(0))
+                .when(ancestors).withAncestors(any(Document.class));
+        when(timelines.updateMany(any(Bson.class), any(Bson.class)))
+                .thenReturn(null, null).thenThrow(new MongoException("down"));
+        materializer = new TimelineMaterializer(timelines, ancestors, fans, 60000, 2);
+
+        materializer.commentChanged(new Document("cid", "c9").append("uid", "author"));
+
+        ArgumentCaptor<Bson> filters = ArgumentCaptor.forClass(Bson.class);
+        verify(timelines, times(3)).updateMany(filters.capture(), any(Bson.class));
+        Assert.assertEquals(Filters.in("_id", Arrays.asList("f1", "f2")).toString(),
+                filters.getAllValues().get(0).toString());
+        verify(timelines).deleteMany(filters.capture());
+        Assert.assertEquals(Filters.in("_id", Collections.singletonList("f3")).toString(),
+                filters.getValue().toString());
+    }
+}
@@ -0,0 +1,98 @@
+package edu.cmu.cc.minisite;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.neo4j.driver.v1.Driver;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Class for TimelinePrewarmer tests
+public class TimelinePrewarmerTest {
+
+    // Users with cached timelines
+    private final Set<String> cached = new HashSet<>();
+    // Users whose timelines were built, in order
+    private final List<String> built = new ArrayList<>();
+
+    // Returns a top user index holding the given users
+    private static TopUserIndex topUsers(String... users) {
+        TopUserIndex index = new TopUserIndex(new FollowerServlet((Driver) null) {
+            @Override
+            public Set<String> getTopUsers() {
+                return new HashSet<>(Arrays.asList(users));
+            }
+        });
+        index.refresh();
+        return index;
+    }
+
+    // Returns a fast prewarmer whose builds cache the timeline
+    private TimelinePrewarmer newPrewarmer(TopUserIndex topUsers, long ttlMillis,
+            AtomicInteger backlog) {
+        return new TimelinePrewarmer(topUsers, topUsers::contains, cached::contains, id -> {
+            built.add(id);
+            cached.add(id);
+            return true;
+        }, backlog::get, ttlMillis, 1000, 100);
+    }
+
+    // Recently requested top users come first, then the others, cached ones are skipped
+    @Test
+    public void warmsRecentTopUsersFirst() {
+        TimelinePrewarmer prewarmer =
+                newPrewarmer(topUsers("a", "b", "c"), 0, new AtomicInteger());
+        cached.add("a");
+        prewarmer.requested("not-top");
+        prewarmer.requested("c");
+
+        prewarmer.runPass();
+
+        Assert.assertEquals("c", built.get(0));
+        Assert.assertEquals(new HashSet<>(Arrays.asList("b", "c")), new HashSet<>(built));
+        Assert.assertEquals(2, prewarmer.warmedCount());
+        Assert.assertEquals(1, prewarmer.passCount());
+
+        // everything is warm now
+        prewarmer.runPass();
+        Assert.assertEquals(2, built.size());
+    }
+
+    // Warm timelines are rebuilt before they expire, evicted ones at once
+    @Test
+    public void refreshesBeforeExpiry() throws InterruptedException {
+        TimelinePrewarmer prewarmer = newPrewarmer(topUsers("a", "b"), 50, new AtomicInteger());
+        prewarmer.runPass();
+        built.clear();
+
+        cached.remove("b");
+        prewarmer.runPass();
+        Assert.assertEquals(Arrays.asList("b"), built);
+
+        Thread.sleep(60);
+        prewarmer.runPass();
+        Assert.assertTrue(built.contains("a"));
+        Assert.assertTrue(prewarmer.refreshedCount() >= 2);
+    }
+
+    // Builds wait while requests are queued for the backends
+    @Test
+    public void yieldsToRequests() {
+        AtomicInteger backlog = new AtomicInteger(1);
+        TimelinePrewarmer prewarmer = new TimelinePrewarmer(topUsers("a"), id -> false,
+                cached::contains, id -> {
+                    built.add(id);
+                    return false;
+                }, () -> backlog.getAndSet(0), 0, 1000, 100);
+
+        prewarmer.runPass();
+
+        Assert.assertEquals(1, prewarmer.deferredCount());
+        Assert.assertEquals(Arrays.asList("a"), built);
+        Assert.assertEquals(1, prewarmer.failedCount());
+    }
+}
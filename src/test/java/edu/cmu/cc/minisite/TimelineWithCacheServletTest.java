@@ -0,0 +1,75 @@
+package edu.cmu.cc.minisite;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.mongodb.MongoException;
+import com.mongodb.client.MongoCollection;
+import org.bson.Document;
+import org.junit.Assert;
+import org.junit.Test;
+import org.neo4j.driver.v1.Driver;
+
+import java.sql.Connection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// Class for TimelineWithCacheServlet tests, over stub backends
+public class TimelineWithCacheServletTest {
+
+    // A timeline with a failed leg is neither cached nor taken as a follower count
+    @Test
+    public void skipsIncompleteTimelines() {
+        AtomicBoolean graphFails = new AtomicBoolean(true);
+        AtomicBoolean commentsFail = new AtomicBoolean(false);
+        JsonArray fans = new JsonArray();
+        for (int i = 0; i <= FollowerServlet.TOP_USER_FOLLOWERS; i++) {
+            JsonObject fan = new JsonObject();
+            fan.addProperty("profile", "url_f" + i);
+            fan.addProperty("name", "f" + i);
+            fans.add(fan);
+        }
+        ProfileServlet profile = new ProfileServlet((Connection) null) {
+            @Override
+            String loadProfile(String name) {
+                return "url_" + name;
+            }
+        };
+        FollowerServlet followers = new FollowerServlet((Driver) null) {
+            @Override
+            SocialGraph loadSocialGraph(String userId) {
+                if (graphFails.get()) {
+                    throw new IllegalStateException("down");
+                }
+                return new SocialGraph(fans, Collections.singletonList("e"));
+            }
+        };
+        HomepageServlet comments = new HomepageServlet((MongoCollection<Document>) null) {
+            @Override
+            JsonArray loadTopCommentsFromFollowees(List<String> followeeIds, int top) {
+                if (commentsFail.get()) {
+                    throw new MongoException("down");
+                }
+                return new JsonArray();
+            }
+        };
+        TimelineWithCacheServlet servlet =
+                new TimelineWithCacheServlet(profile, followers, comments);
+        String id = "skips_incomplete_top_user";
+        servlet.topUsers().record(id, true);
+
+        // a failed graph keeps the user a top user
+        Assert.assertFalse(servlet.prewarm(id));
+        Assert.assertTrue(servlet.topUsers().contains(id));
+
+        // failed comments keep the empty list out of the cache
+        graphFails.set(false);
+        commentsFail.set(true);
+        Assert.assertFalse(servlet.prewarm(id));
+        Assert.assertTrue(servlet.topUsers().contains(id));
+
+        commentsFail.set(false);
+        Assert.assertTrue(servlet.prewarm(id));
+        Assert.assertTrue(TimelineWithCacheServlet.isCached(id));
+    }
+}
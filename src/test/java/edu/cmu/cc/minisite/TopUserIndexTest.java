@@ -0,0 +1,85 @@
+package edu.cmu.cc.minisite;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.neo4j.driver.v1.Driver;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+// Class for TopUserIndex tests
+public class TopUserIndexTest {
+
+    // Follower counts served by the stub backend
+    private final Map<String, Integer> followers = new HashMap<>();
+    // Whether the stub backend fails
+    private boolean down;
+
+    private final FollowerServlet backend = new FollowerServlet((Driver) null) {
+        @Override
+        public int getFollowerCount(String userId) {
+            return down ? -1 : followers.getOrDefault(userId, 0);
+        }
+
+        @Override
+        public Set<String> getTopUsers() {
+            if (down) {
+                return null;
+            }
+            Set<String> top = new HashSet<>();
+            followers.forEach((user, count) -> {
+                if (FollowerServlet.isTopUser(count)) {
+                    top.add(user);
+                }
+            });
+            return top;
+        }
+    };
+
+    // A reload replaces the set, a failed one keeps it
+    @Test
+    public void refreshLoadsTopUsers() {
+        TopUserIndex index = new TopUserIndex(backend);
+        followers.put("top", FollowerServlet.TOP_USER_FOLLOWERS + 1);
+        followers.put("other", FollowerServlet.TOP_USER_FOLLOWERS);
+
+        Assert.assertFalse(index.isLoaded());
+        Assert.assertTrue(index.refresh());
+        Assert.assertTrue(index.contains("top"));
+        Assert.assertFalse(index.contains("other"));
+
+        followers.put("top", 0);
+        followers.put("other", FollowerServlet.TOP_USER_FOLLOWERS + 1);
+        Assert.assertTrue(index.refresh());
+        Assert.assertEquals(new HashSet<>(Arrays.asList("other")), index.users());
+
+        down = true;
+        Assert.assertFalse(index.refresh());
+        Assert.assertTrue(index.contains("other"));
+    }
+
+    // A follow recounts the followee between reloads
+    @Test
+    public void followsUpdateTheSet() {
+        TopUserIndex index = new TopUserIndex(backend);
+        index.refresh();
+
+        followers.put("rising", FollowerServlet.TOP_USER_FOLLOWERS + 1);
+        index.followChanged("fan", "rising");
+        Assert.assertTrue(index.contains("rising"));
+        Assert.assertFalse(index.contains("fan"));
+
+        followers.put("rising", 1);
+        index.followChanged("fan", "rising");
+        Assert.assertFalse(index.contains("rising"));
+
+        // a failed count leaves the user as is
+        index.record("rising", true);
+        down = true;
+        index.followChanged("fan", "rising");
+        Assert.assertTrue(index.contains("rising"));
+    }
+}